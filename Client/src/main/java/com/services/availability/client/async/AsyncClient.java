@@ -0,0 +1,417 @@
+package com.services.availability.client.async;
+
+import com.services.availability.client.singlethread.AbstractClient;
+import com.services.availability.common.UnixSockets;
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryRequestType;
+import com.services.availability.protocol.binary.BinaryResponse;
+import org.apache.log4j.Logger;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Thread safe client, which multiplexes requests of many threads over a few
+ * persistent connections. A request is queued to one of the connections
+ * and a future is returned at once; the future is completed when the
+ * response with the request ID arrives, so any number of requests could
+ * be in flight without a thread waiting for each of them.
+ *
+ * All connections are served by a single I/O thread. Futures are completed
+ * by this thread as well: dependent stages, which are added without an
+ * executor, run on it and should not block.
+ *
+ * Connections are opened by {@link #initClient()}. If a connection fails,
+ * all requests in flight on it fail with the IOException, and the
+ * connection is reopened by the next request queued to it; an unexpected
+ * error on a connection, e.g. a malformed response, fails it the same way.
+ * A request, which is not answered within the request timeout, fails with
+ * TimeoutException. If the I/O thread stops, the client is closed.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-17 14:30
+ */
+public class AsyncClient extends AbstractClient {
+    private static final Logger log = Logger.getLogger(AsyncClient.class);
+
+    public static final int DEFAULT_CONNECTIONS = 2;
+    public static final long DEFAULT_REQUEST_TIMEOUT = 5000;   // ms
+    private static final long SWEEP_INTERVAL = 100;             // ms, how often timed out requests are looked for
+    private static final int BUFFER_SIZE = 0x10000;
+
+    private final Connection[] connections;
+    private final long requestTimeout;
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private final AtomicInteger nextConnection = new AtomicInteger(0);
+
+    private Selector selector;
+    private Thread ioThread;
+    private volatile boolean isOpen = false;
+
+    public AsyncClient(String host, int port) {
+        this(new InetSocketAddress(host, port), DEFAULT_CONNECTIONS, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param serverAddress TCP address of the server, or its Unix domain socket address
+     * @param connections number of connections
+     * @param requestTimeout max time to wait for a response, ms
+     */
+    public AsyncClient(SocketAddress serverAddress, int connections, long requestTimeout) {
+        super(serverAddress);
+        if (connections <= 0) throw new IllegalArgumentException("Number of connections should be positive");
+
+        this.connections = new Connection[connections];
+        for (int i = 0; i < connections; i++) this.connections[i] = new Connection();
+        this.requestTimeout = requestTimeout;
+    }
+
+    public void initClient() throws IOException {
+        selector = Selector.open();
+        for (Connection connection: connections) connection.open();
+        isOpen = true;
+
+        ioThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    processConnections();
+                } catch (IOException e) {
+                    log.error("Error in client loop", e);
+                } catch (RuntimeException e) {
+                    log.error("Unexpected error in client loop", e);
+                } finally {
+                    isOpen = false;                         // no request is queued to a dead I/O thread
+                    closeConnections();
+                }
+            }
+        }, "async-client-io");
+        ioThread.setDaemon(true);
+        ioThread.start();
+    }
+
+    /**
+     * Closes all connections; requests in flight fail with IOException.
+     *
+     * @throws IOException
+     */
+    public void closeClient() throws IOException {
+        isOpen = false;
+        if (ioThread == null) return;
+
+        selector.wakeup();
+        try {
+            ioThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while closing the client");
+        }
+    }
+
+    /**
+     * Queues the request to one of the connections.
+     *
+     * @param request request to perform; its request ID is assigned by the client
+     * @return future of the response, which fails with IOException or TimeoutException
+     */
+    public CompletableFuture<BinaryResponse> performRequestAsync(BinaryRequest request) {
+        CompletableFuture<BinaryResponse> future = new CompletableFuture<BinaryResponse>();
+        if (!isOpen) {
+            future.completeExceptionally(new IllegalStateException("Client either was not initialized, or is already closed"));
+            return future;
+        }
+
+        int requestId = nextRequestId.getAndIncrement();
+        Connection connection = connections[(nextConnection.getAndIncrement() & Integer.MAX_VALUE) % connections.length];
+        connection.pending.put(requestId, new PendingRequest(future, System.currentTimeMillis() + requestTimeout));
+        connection.outbox.add(request.withRequestId(requestId));
+        selector.wakeup();
+
+        // the I/O thread could have failed pending requests already, while closing
+        if (!isOpen && connection.pending.remove(requestId) != null) {
+            future.completeExceptionally(new IOException("Client is closed"));
+        }
+        return future;
+    }
+
+    /**
+     * Performs the request and waits for the response.
+     */
+    public BinaryResponse performRequest(BinaryRequest request) throws IOException {
+        return await(performRequestAsync(request));
+    }
+
+    /**
+     * Queues the batch request to one of the connections, see
+     * {@link #performRequestAsync(BinaryRequest)}.
+     *
+     * @param request batch request
+     * @return future of the response with a result per item
+     */
+    public CompletableFuture<BinaryBatchResponse> performBatchRequestAsync(BinaryBatchRequest request) {
+        return performRequestAsync(request).thenApply(new Function<BinaryResponse, BinaryBatchResponse>() {
+            @Override
+            public BinaryBatchResponse apply(BinaryResponse response) {
+                return (BinaryBatchResponse) response;
+            }
+        });
+    }
+
+    public BinaryBatchResponse performBatchRequest(BinaryBatchRequest request) throws IOException {
+        return (BinaryBatchResponse) performRequest(request);
+    }
+
+    public BinaryBatchResponse scanSku(int sku, short fromStore, int limit) throws IOException {
+        return (BinaryBatchResponse) performRequest(new BinaryRequest(BinaryRequestType.SCAN_SKU, sku, fromStore, limit));
+    }
+
+    /**
+     * @return number of requests, which are sent or queued, but not answered yet
+     */
+    public int getPendingRequests() {
+        int pending = 0;
+        for (Connection connection: connections) pending += connection.pending.size();
+        return pending;
+    }
+
+    /**
+     * Waits for the response no longer than the request timeout, plus the
+     * interval of the timed out requests sweep.
+     */
+    private BinaryResponse await(CompletableFuture<BinaryResponse> future) throws IOException {
+        try {
+            return future.get(requestTimeout + SWEEP_INTERVAL, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.completeExceptionally(e);
+            throw new IOException("No response in " + requestTimeout + " ms", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    // ------------------------------------------------------------------------------------------------------------
+    // I/O thread
+    // ------------------------------------------------------------------------------------------------------------
+
+    private void processConnections() throws IOException {
+        long nextSweep = System.currentTimeMillis() + SWEEP_INTERVAL;
+        while (isOpen) {
+            for (Connection connection: connections) {
+                if (connection.outbox.isEmpty()) continue;
+                try {
+                    if (connection.channel == null) connection.open();
+                    if (connection.key.interestOps() != SelectionKey.OP_CONNECT) {
+                        connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    }
+                } catch (IOException e) {
+                    log.warn("Cannot connect to " + serverAddress + ": " + e.getMessage());
+                    connection.fail(e);
+                } catch (RuntimeException e) {
+                    log.error("Connection to " + serverAddress + " failed", e);
+                    connection.fail(new IOException("Connection failed: " + e, e));
+                }
+            }
+
+            selector.select(SWEEP_INTERVAL);
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (!key.isValid()) continue;
+                    if (key.isConnectable()) connection.finishConnect();
+                    if (key.isValid() && key.isWritable()) connection.write();
+                    if (key.isValid() && key.isReadable()) connection.read();
+                } catch (IOException e) {
+                    log.warn("Connection to " + serverAddress + " failed: " + e.getMessage());
+                    connection.fail(e);
+                } catch (RuntimeException e) {            // e.g. malformed response frame, or cancelled key
+                    log.error("Connection to " + serverAddress + " failed", e);
+                    connection.fail(new IOException("Connection failed: " + e, e));
+                }
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= nextSweep) {
+                for (Connection connection: connections) connection.expire(now);
+                nextSweep = now + SWEEP_INTERVAL;
+            }
+        }
+    }
+
+    private void closeConnections() {
+        IOException closed = new IOException("Client is closed");
+        for (Connection connection: connections) connection.fail(closed);
+        try {
+            selector.close();
+        } catch (IOException e) {
+            log.error("Cannot close selector", e);
+        }
+    }
+
+    /**
+     * Request, which waits for the response.
+     */
+    private static class PendingRequest {
+        final CompletableFuture<BinaryResponse> future;
+        final long deadline;                                   // ms
+
+        PendingRequest(CompletableFuture<BinaryResponse> future, long deadline) {
+            this.future = future;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * Connection with its queue of requests to send and its requests in
+     * flight. Channel and buffers are used by the I/O thread only.
+     */
+    private class Connection {
+        final Queue<BinaryRequest> outbox = new ConcurrentLinkedQueue<BinaryRequest>();
+        final Map<Integer, PendingRequest> pending = new ConcurrentHashMap<Integer, PendingRequest>();
+
+        SocketChannel channel;
+        SelectionKey key;
+        ByteBuffer writeBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+        ByteBuffer readBuffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        void open() throws IOException {
+            channel = UnixSockets.isUnixAddress(serverAddress) ? UnixSockets.openChannel() : SocketChannel.open();
+            configureChannel(channel);
+            writeBuffer.clear().flip();
+            readBuffer.clear();
+            if (channel.connect(serverAddress)) {
+                key = channel.register(selector, SelectionKey.OP_READ, this);
+            } else {
+                key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            }
+        }
+
+        void finishConnect() throws IOException {
+            if (channel.finishConnect()) key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * Writes queued requests, as many as the socket accepts.
+         */
+        void write() throws IOException {
+            writeBuffer.compact();
+            BinaryRequest request;
+            while ((request = outbox.peek()) != null) {
+                int frameSize = request.getFrameSize();
+                if (frameSize > writeBuffer.remaining()) {
+                    if (writeBuffer.position() > 0) break;
+                    writeBuffer = ByteBuffer.allocate(frameSize);           // batch request larger than the buffer
+                }
+                request.putToBuffer(writeBuffer);
+                outbox.poll();
+            }
+            writeBuffer.flip();
+
+            channel.write(writeBuffer);
+            if (!writeBuffer.hasRemaining() && outbox.isEmpty()) key.interestOps(SelectionKey.OP_READ);
+        }
+
+        /**
+         * Reads responses and completes their futures.
+         */
+        void read() throws IOException {
+            if (channel.read(readBuffer) == -1) throw new EOFException("Connection closed by the server");
+
+            readBuffer.flip();
+            int frameSize;
+            while ((frameSize = BinaryResponse.frameSize(readBuffer)) > 0 && frameSize <= readBuffer.remaining()) {
+                BinaryResponse response = BinaryResponse.fromByteBuffer(readBuffer);
+                PendingRequest request = pending.remove(response.getRequestId());
+                if (request == null) {
+                    log.debug("Response to an expired request; requestId = " + response.getRequestId());
+                    continue;
+                }
+                throughputMeter.inc();
+                request.future.complete(response);
+            }
+            if (frameSize > readBuffer.capacity()) {
+                ByteBuffer buffer = ByteBuffer.allocate(frameSize);     // batch response larger than the buffer
+                buffer.put(readBuffer);
+                readBuffer = buffer;
+            } else {
+                readBuffer.compact();
+            }
+        }
+
+        void expire(long now) {
+            Iterator<Map.Entry<Integer, PendingRequest>> requests = pending.entrySet().iterator();
+            while (requests.hasNext()) {
+                PendingRequest request = requests.next().getValue();
+                if (request.deadline <= now) {
+                    requests.remove();
+                    request.future.completeExceptionally(new TimeoutException("No response in " + requestTimeout + " ms"));
+                }
+            }
+        }
+
+        /**
+         * Closes the channel and fails all requests of the connection.
+         */
+        void fail(IOException e) {
+            if (key != null) key.cancel();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException closeException) {
+                    log.error("Cannot close channel", closeException);
+                }
+            }
+            key = null;
+            channel = null;
+
+            outbox.clear();
+            Iterator<PendingRequest> requests = pending.values().iterator();
+            while (requests.hasNext()) {
+                PendingRequest request = requests.next();
+                requests.remove();
+                request.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void configureChannel(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        if (UnixSockets.isUnixAddress(serverAddress)) return;      // TCP options only
+
+        channel.socket().setSendBufferSize(0x100000);
+        channel.socket().setReceiveBufferSize(0x100000);
+        channel.socket().setKeepAlive(true);
+        channel.socket().setTcpNoDelay(true);
+    }
+}
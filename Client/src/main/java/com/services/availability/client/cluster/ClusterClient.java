@@ -0,0 +1,233 @@
+package com.services.availability.client.cluster;
+
+import com.services.availability.client.singlethread.AbstractClient;
+import com.services.availability.client.singlethread.SingleThreadClient;
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
+import com.services.availability.protocol.binary.BinaryErrorCodes;
+import com.services.availability.protocol.binary.BinaryPartitionMapResponse;
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryRequestType;
+import com.services.availability.protocol.binary.BinaryResponse;
+import com.services.availability.protocol.binary.PartitionMap;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client of a partitioned cluster. The partition map is fetched from the
+ * seed node on {@link #initClient()}, then every request is sent to the
+ * owner of the partition of its SKU, over a persistent connection per
+ * node. Items of a batch request are split into a sub-batch per owner.
+ *
+ * A node rejects items of the partitions it does not own with
+ * WRONG_PARTITION. The client then fetches the map from that node, which
+ * has installed the new map as soon as it gave up the partition, and
+ * resends the items. Items rejected with BUSY, which happens for a few
+ * milliseconds at the end of a partition migration, are resent after a
+ * short pause. The result of the last attempt is returned, if the request
+ * is still rejected after {@link #MAX_ATTEMPTS} attempts.
+ *
+ * The client is not thread safe, as well as {@link SingleThreadClient}.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-15 16:20
+ */
+public class ClusterClient extends AbstractClient {
+    private static final Logger log = Logger.getLogger(ClusterClient.class);
+
+    public static final int MAX_ATTEMPTS = 5;
+    public static final long BUSY_PAUSE = 5;                // ms, multiplied by the attempt number
+
+    private final Map<PartitionMap.Node, SingleThreadClient> clients = new HashMap<PartitionMap.Node, SingleThreadClient>();
+    private PartitionMap partitionMap = null;
+
+    /**
+     * @param host host of any node of the cluster
+     * @param port client port of the node
+     */
+    public ClusterClient(String host, int port) {
+        super(host, port);
+    }
+
+    public void initClient() throws IOException {
+        SingleThreadClient seed = new SingleThreadClient(serverAddress);
+        seed.initClient();
+        try {
+            refreshMap(seed);
+        } finally {
+            seed.closeClient();
+        }
+        if (partitionMap == null) throw new IOException("Partition map is not available at " + serverAddress);
+    }
+
+    public void closeClient() throws IOException {
+        for (SingleThreadClient client: clients.values()) client.closeClient();
+        clients.clear();
+    }
+
+    /**
+     * @return partition map the client currently routes requests by
+     */
+    public PartitionMap getPartitionMap() {
+        return partitionMap;
+    }
+
+    public BinaryResponse performRequest(BinaryRequest request) throws IOException {
+        if (request instanceof BinaryBatchRequest) return performBatchRequest((BinaryBatchRequest) request);
+
+        BinaryResponse response = null;
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS; attempt++) {
+            SingleThreadClient client = clientFor(partitionMap.nodeFor(request.getSku()));
+            response = client.performRequest(request);
+
+            if (response.getErrorCode() == BinaryErrorCodes.WRONG_PARTITION) {
+                refreshMap(client);
+            } else if (response.getErrorCode() == BinaryErrorCodes.BUSY) {
+                pause(attempt);
+            } else {
+                break;
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Performs a batch request with a sub-batch per node, which owns some
+     * of its items.
+     *
+     * @param request batch request
+     * @return response with a result per item, in the order of items
+     * @throws IOException
+     */
+    public BinaryBatchResponse performBatchRequest(BinaryBatchRequest request) throws IOException {
+        BinaryBatchResponse response = new BinaryBatchResponse(request.getRequestType(), request.size());
+
+        List<Integer> pending = new ArrayList<Integer>(request.size());
+        for (int i = 0; i < request.size(); i++) pending.add(i);
+
+        for (int attempt = 1; attempt <= MAX_ATTEMPTS && !pending.isEmpty(); attempt++) {
+            boolean lastAttempt = attempt == MAX_ATTEMPTS;
+            List<Integer> rejected = new ArrayList<Integer>();
+            SingleThreadClient refreshFrom = null;
+            boolean busy = false;
+
+            for (Map.Entry<Integer, List<Integer>> group: groupByOwner(request, pending).entrySet()) {
+                SingleThreadClient client = clientFor(partitionMap.getNode(group.getKey()));
+                int[] indices = toArray(group.getValue());
+                BinaryBatchResponse part = client.performBatchRequest(request.subBatch(indices));
+
+                for (int i = 0; i < indices.length; i++) {
+                    BinaryErrorCodes errorCode = part.getErrorCode(i);
+                    if (!lastAttempt && errorCode == BinaryErrorCodes.WRONG_PARTITION) {
+                        rejected.add(indices[i]);
+                        refreshFrom = client;
+                    } else if (!lastAttempt && errorCode == BinaryErrorCodes.BUSY) {
+                        rejected.add(indices[i]);
+                        busy = true;
+                    } else {
+                        response.copyResult(indices[i], part, i);
+                    }
+                }
+            }
+
+            if (refreshFrom != null) refreshMap(refreshFrom);
+            if (busy) pause(attempt);
+            pending = rejected;
+        }
+        return response;
+    }
+
+    /**
+     * Reads stores of the SKU from the node, which owns it.
+     *
+     * @param sku requested sku
+     * @param fromStore first store to return
+     * @param limit max number of stores to return
+     * @return response with a result per store found
+     * @throws IOException
+     */
+    public BinaryBatchResponse scanSku(int sku, short fromStore, int limit) throws IOException {
+        return (BinaryBatchResponse) performRequest(new BinaryRequest(BinaryRequestType.SCAN_SKU, sku, fromStore, limit));
+    }
+
+    /**
+     * Asks the current owner of the partition to move it to another node.
+     * Returns when the migration is over; the map of the client is updated
+     * on success.
+     *
+     * @param partition partition index
+     * @param targetNode index of the new owner
+     * @return response of the owner; WRONG_PARTITION if the partition or the node is unknown
+     * @throws IOException
+     */
+    public BinaryResponse migratePartition(int partition, int targetNode) throws IOException {
+        SingleThreadClient owner = clientFor(partitionMap.getNode(partitionMap.ownerOf(partition)));
+        BinaryResponse response = owner.performRequest(new BinaryRequest(BinaryRequestType.MIGRATE_PARTITION, partition, (short) targetNode, 0));
+        if (response.isSuccess()) refreshMap(owner);
+        return response;
+    }
+
+    /**
+     * Fetches the map of the node and adopts it, if it is newer than the
+     * map of the client.
+     */
+    private void refreshMap(SingleThreadClient client) throws IOException {
+        BinaryResponse response = client.performRequest(new BinaryRequest(BinaryRequestType.PARTITION_MAP, 0, (short) 0, 0));
+        if (!response.isSuccess()) {
+            log.warn("Partition map is not available at " + client.getServerAddress() + ": " + response.getErrorCode());
+            return;
+        }
+
+        PartitionMap map = ((BinaryPartitionMapResponse) response).getPartitionMap();
+        if (partitionMap == null || map.getVersion() > partitionMap.getVersion()) {
+            partitionMap = map;
+            log.debug("Partition map of version " + map.getVersion() + " is received from " + client.getServerAddress());
+        }
+    }
+
+    private Map<Integer, List<Integer>> groupByOwner(BinaryBatchRequest request, List<Integer> indices) {
+        Map<Integer, List<Integer>> groups = new HashMap<Integer, List<Integer>>();
+        for (Integer idx: indices) {
+            Integer owner = partitionMap.ownerOf(partitionMap.partitionOf(request.getSku(idx)));
+            List<Integer> group = groups.get(owner);
+            if (group == null) {
+                group = new ArrayList<Integer>();
+                groups.put(owner, group);
+            }
+            group.add(idx);
+        }
+        return groups;
+    }
+
+    private SingleThreadClient clientFor(PartitionMap.Node node) throws IOException {
+        SingleThreadClient client = clients.get(node);
+        if (client == null) {
+            client = new SingleThreadClient(node.getHost(), node.getPort());
+            client.initClient();
+            clients.put(node, client);
+        }
+        return client;
+    }
+
+    private static int[] toArray(List<Integer> list) {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) array[i] = list.get(i);
+        return array;
+    }
+
+    private static void pause(int attempt) throws InterruptedIOException {
+        try {
+            Thread.sleep(BUSY_PAUSE * attempt);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the partition is busy");
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package com.services.availability.client.pooled;
+
+import com.services.availability.client.singlethread.AbstractClient;
+import com.services.availability.client.singlethread.SingleThreadClient;
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryRequestType;
+import com.services.availability.protocol.binary.BinaryResponse;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe client, which keeps a pool of persistent connections to the
+ * server. A request borrows a connection for the time of the exchange, so
+ * up to {@link #getPoolSize()} requests are in flight at once; other
+ * callers wait for a connection up to the borrow timeout.
+ *
+ * Every connection is a {@link SingleThreadClient}: it is opened on the
+ * first request and is reused afterwards, and a connection closed by the
+ * server while idle is reopened; a request is repeated only if it could
+ * not have been applied. A connection, which has failed, is returned to
+ * the pool closed and is reopened by its next request.
+ *
+ * Idle connections are checked in the background every
+ * {@link #HEALTH_CHECK_INTERVAL} ms with a GET of a probe item, so that
+ * connections dropped by the server or by the network are reopened before
+ * the next request needs them.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-17 10:15
+ */
+public class PooledClient extends AbstractClient {
+    private static final Logger log = Logger.getLogger(PooledClient.class);
+
+    public static final int DEFAULT_POOL_SIZE = 8;
+    public static final long DEFAULT_BORROW_TIMEOUT = 5000;    // ms
+    public static final long HEALTH_CHECK_INTERVAL = 10000;    // ms
+
+    private final int poolSize;
+    private final long borrowTimeout;
+    private final BlockingQueue<SingleThreadClient> idleConnections;
+
+    private final AtomicLong failedChecks = new AtomicLong(0);
+    private volatile boolean isOpen = false;
+    private Thread healthCheckThread;
+
+    public PooledClient(String host, int port) {
+        this(new InetSocketAddress(host, port), DEFAULT_POOL_SIZE, DEFAULT_BORROW_TIMEOUT);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param serverAddress TCP address of the server, or its Unix domain socket address
+     * @param poolSize number of connections
+     * @param borrowTimeout max time to wait for a connection, ms
+     */
+    public PooledClient(SocketAddress serverAddress, int poolSize, long borrowTimeout) {
+        super(serverAddress);
+        if (poolSize <= 0) throw new IllegalArgumentException("Pool size should be positive");
+
+        this.poolSize = poolSize;
+        this.borrowTimeout = borrowTimeout;
+        this.idleConnections = new ArrayBlockingQueue<SingleThreadClient>(poolSize);
+    }
+
+    public void initClient() throws IOException {
+        for (int i = 0; i < poolSize; i++) {
+            SingleThreadClient connection = new SingleThreadClient(serverAddress);
+            connection.initClient();
+            idleConnections.add(connection);
+        }
+        isOpen = true;
+
+        healthCheckThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (isOpen) {
+                    try {
+                        Thread.sleep(HEALTH_CHECK_INTERVAL);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    checkConnections();
+                }
+            }
+        }, "client-health-check");
+        healthCheckThread.setDaemon(true);
+        healthCheckThread.start();
+    }
+
+    /**
+     * Closes all connections. Requests in flight complete, and their
+     * connections are closed when returned.
+     *
+     * @throws IOException
+     */
+    public void closeClient() throws IOException {
+        isOpen = false;
+        if (healthCheckThread != null) healthCheckThread.interrupt();
+
+        SingleThreadClient connection;
+        while ((connection = idleConnections.poll()) != null) connection.closeClient();
+    }
+
+    public BinaryResponse performRequest(BinaryRequest request) throws IOException {
+        SingleThreadClient connection = borrow();
+        try {
+            return count(connection.performRequest(request));
+        } finally {
+            release(connection);
+        }
+    }
+
+    /**
+     * Performs a batch request over a single connection.
+     *
+     * @param request batch request
+     * @return response with a result per item
+     * @throws IOException
+     */
+    public BinaryBatchResponse performBatchRequest(BinaryBatchRequest request) throws IOException {
+        return (BinaryBatchResponse) performRequest(request);
+    }
+
+    /**
+     * Reads stores of the SKU with a single SCAN_SKU request, see
+     * {@link SingleThreadClient#scanSku(int, short, int)}.
+     */
+    public BinaryBatchResponse scanSku(int sku, short fromStore, int limit) throws IOException {
+        return (BinaryBatchResponse) performRequest(new BinaryRequest(BinaryRequestType.SCAN_SKU, sku, fromStore, limit));
+    }
+
+    /**
+     * Pipelines the requests over a single connection, see
+     * {@link SingleThreadClient#performRequests(List)}.
+     *
+     * @param requests requests to perform
+     * @return responses, in the order of requests
+     * @throws IOException
+     */
+    public List<BinaryResponse> performRequests(List<BinaryRequest> requests) throws IOException {
+        SingleThreadClient connection = borrow();
+        try {
+            List<BinaryResponse> responses = connection.performRequests(requests);
+            for (BinaryResponse response: responses) count(response);
+            return responses;
+        } finally {
+            release(connection);
+        }
+    }
+
+    /**
+     * Probes the connections, which are idle at the moment, and lets the
+     * failed ones be reopened by their next request. Is called by the
+     * health check thread periodically.
+     *
+     * @return number of connections found healthy
+     */
+    public int checkConnections() {
+        int checked = idleConnections.size(), healthy = 0;
+        for (int i = 0; i < checked; i++) {
+            SingleThreadClient connection = idleConnections.poll();
+            if (connection == null) break;
+            try {
+                connection.performRequest(new BinaryRequest(BinaryRequestType.GET, 0, (short) 0, 0));
+                healthy++;
+            } catch (IOException e) {
+                failedChecks.incrementAndGet();
+                log.warn("Connection to " + serverAddress + " failed the health check: " + e.getMessage());
+            } finally {
+                release(connection);
+            }
+        }
+        return healthy;
+    }
+
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * @return number of connections, which are not borrowed at the moment
+     */
+    public int getIdleConnections() {
+        return idleConnections.size();
+    }
+
+    /**
+     * @return number of health checks failed since the client was initialized
+     */
+    public long getFailedChecks() {
+        return failedChecks.get();
+    }
+
+    private SingleThreadClient borrow() throws IOException {
+        if (!isOpen) throw new IllegalStateException("Client either was not initialized, or is already closed");
+
+        SingleThreadClient connection;
+        try {
+            connection = idleConnections.poll(borrowTimeout, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for a connection");
+        }
+        if (connection == null) throw new IOException("No connection to " + serverAddress + " is available in " + borrowTimeout + " ms");
+        return connection;
+    }
+
+    private void release(SingleThreadClient connection) {
+        idleConnections.add(connection);
+        // the client could be closed concurrently, after the connection was polled for closing
+        if (!isOpen && idleConnections.remove(connection)) {
+            try {
+                connection.closeClient();
+            } catch (IOException e) {
+                log.error("Cannot close connection", e);
+            }
+        }
+    }
+
+    private BinaryResponse count(BinaryResponse response) {
+        throughputMeter.inc();
+        return response;
+    }
+}
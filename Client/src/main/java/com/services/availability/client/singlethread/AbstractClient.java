@@ -6,6 +6,7 @@ import com.services.availability.protocol.binary.BinaryResponse;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 
 /**
  * @author Roman Reva
@@ -13,12 +14,20 @@ import java.net.InetSocketAddress;
  * @since 2014-06-25 14:15
  */
 public abstract class AbstractClient implements Client {
-    protected final InetSocketAddress serverAddress;
+    protected final SocketAddress serverAddress;
     protected final ThroughputMeter throughputMeter;
 
     public AbstractClient(String host, int port) {
-        serverAddress = new InetSocketAddress(host, port);
-        throughputMeter = new ThroughputMeter();
+        this(new InetSocketAddress(host, port));
+    }
+
+    /**
+     * @param serverAddress TCP address of the server, or its Unix domain
+     *                      socket address (see UnixSockets#address)
+     */
+    public AbstractClient(SocketAddress serverAddress) {
+        this.serverAddress = serverAddress;
+        this.throughputMeter = new ThroughputMeter();
     }
 
     public abstract BinaryResponse performRequest(BinaryRequest request) throws IOException;
@@ -26,7 +35,7 @@ public abstract class AbstractClient implements Client {
     public abstract void initClient() throws IOException;
     public abstract void closeClient() throws IOException;
 
-    public InetSocketAddress getServerAddress() {
+    public SocketAddress getServerAddress() {
         return serverAddress;
     }
 }
@@ -1,32 +1,96 @@
 package com.services.availability.client.singlethread;
 
+import com.services.availability.common.UnixSockets;
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
 import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryRequestType;
 import com.services.availability.protocol.binary.BinaryResponse;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
+ * Client with a persistent connection. The channel is opened on the first
+ * request and carries all subsequent requests. A reused connection, which
+ * has been closed by the server (e.g. because of the idle timeout), is
+ * found before the request is sent and is reopened; only connections idle
+ * for longer than the probe idle time are checked, see
+ * {@link #setProbeIdleTime(long)}. If a reused connection
+ * fails during the exchange, the client reconnects and repeats the request
+ * once, but only if the server could not have processed it: none of its
+ * bytes were sent, or all requests are reads. Mutations, which might have
+ * been applied, fail with the IOException instead, since repeating ADD or
+ * DECREMENT would apply them twice.
+ *
+ * Every request gets a request ID, which is verified in the response. A
+ * batch of requests could be pipelined with {@link #performRequests(List)}:
+ * all requests are sent without waiting, and responses, which may arrive
+ * in any order, are matched to requests by ID. Batch requests carry many
+ * items in a single frame, see {@link #performBatchRequest(BinaryBatchRequest)};
+ * all stores of a SKU are read with {@link #scanSku(int, short, int)}.
+ *
+ * Clients on the same host as the server could connect to its Unix domain
+ * socket instead of TCP, see {@link #SingleThreadClient(SocketAddress)}.
+ *
  * @author Roman Reva
  * @version 1.0
  * @since 2014-06-20 18:59
  */
 public class SingleThreadClient extends AbstractClient {
+    public static final long DEFAULT_PROBE_IDLE_TIME = 1000;         // ms
+
     private Selector selector = null;
+    private SocketChannel socketChannel = null;
+    private SelectionKey channelKey = null;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(16);
+    private final ByteBuffer probe = ByteBuffer.allocate(1);
+    private long probeIdleTime = DEFAULT_PROBE_IDLE_TIME;
+    private long lastUsed = 0;                      // time of the last exchange over the channel, ms
+    private int nextRequestId = 1;
+    private boolean sent = false;                   // true, if a byte of the current exchange has been written
 
     public SingleThreadClient(String host, int port) {
         super(host, port);
     }
 
+    /**
+     * Client of a server on the same host, which listens on the Unix domain
+     * socket, or of a TCP server.
+     *
+     * @param serverAddress Unix domain socket address (see UnixSockets#address) or TCP address
+     */
+    public SingleThreadClient(SocketAddress serverAddress) {
+        super(serverAddress);
+    }
+
+    /**
+     * Sets the idle time, after which a reused connection is checked
+     * before the request is sent. Connections lost within a shorter idle
+     * time are found by the exchange itself, and the request is repeated
+     * if it could not have been processed.
+     *
+     * @param probeIdleTime idle time, ms
+     */
+    public void setProbeIdleTime(long probeIdleTime) {
+        this.probeIdleTime = probeIdleTime;
+    }
+
     public void initClient() throws IOException {
         selector = Selector.open();
     }
 
     public void closeClient() throws IOException {
+        closeChannel();
         if (selector != null && selector.isOpen()) {
             selector.close();
             selector = null;
@@ -37,60 +101,193 @@ public class SingleThreadClient extends AbstractClient {
         return processBinaryRequest(request);
     }
 
+    /**
+     * Performs a batch request: all items are processed by the server with
+     * a single storage batch and are answered with a single response.
+     *
+     * @param request batch request
+     * @return response with a result per item
+     * @throws IOException
+     */
+    public BinaryBatchResponse performBatchRequest(BinaryBatchRequest request) throws IOException {
+        return (BinaryBatchResponse) processBinaryRequest(request);
+    }
+
+    /**
+     * Reads stores of the SKU with a single SCAN_SKU request. If the
+     * response is full, the next page starts right after its last store.
+     *
+     * @param sku requested sku
+     * @param fromStore first store to return
+     * @param limit max number of stores to return
+     * @return response with a result per store found
+     * @throws IOException
+     */
+    public BinaryBatchResponse scanSku(int sku, short fromStore, int limit) throws IOException {
+        return (BinaryBatchResponse) processBinaryRequest(new BinaryRequest(BinaryRequestType.SCAN_SKU, sku, fromStore, limit));
+    }
+
+    /**
+     * Sends all requests over the connection without waiting for responses,
+     * then reads the responses.
+     *
+     * @param requests requests to perform
+     * @return responses, in the order of requests
+     * @throws IOException
+     */
+    public List<BinaryResponse> performRequests(List<BinaryRequest> requests) throws IOException {
+        return processBinaryRequests(requests);
+    }
+
     private BinaryResponse processBinaryRequest(BinaryRequest request) throws IOException {
+        return processBinaryRequests(Collections.singletonList(request)).get(0);
+    }
+
+    private List<BinaryResponse> processBinaryRequests(List<BinaryRequest> requests) throws IOException {
         if (selector == null || !selector.isOpen()) {
             throw new IllegalStateException("Selector either was not open, or is already closed");
         }
 
-        BinaryResponse response = null;
-        SocketChannel socketChannel = null;
+        boolean reused = socketChannel != null && socketChannel.isOpen();
+        if (reused && System.currentTimeMillis() - lastUsed > probeIdleTime && isClosedByServer()) {
+            closeChannel();
+            reused = false;
+        }
+        if (!reused) openChannel();
+
+        List<BinaryResponse> responses;
         try {
-            socketChannel = SocketChannel.open();
-            configureChannel(socketChannel);
-            socketChannel.connect(serverAddress);
-
-            socketChannel.register(selector, SelectionKey.OP_CONNECT);
-
-            ByteBuffer buffer = ByteBuffer.allocate(16);
-            requestLoop: while (true) {
-                if (selector.select() > 0) {
-                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
-                    while (keys.hasNext()) {
-                        SelectionKey key = keys.next();
-                        if (key.isConnectable()) {
-                            socketChannel.finishConnect();
-                            socketChannel.register(selector, SelectionKey.OP_WRITE);
-                        }
-                        if (key.isWritable()) {
-                            buffer.clear();
-                            request.putToBuffer(buffer);
-                            buffer.flip();
-                            socketChannel.write(buffer);
-                            socketChannel.register(selector, SelectionKey.OP_READ);
-                        }
-                        if (key.isReadable()) {
-                            buffer.clear();
-                            socketChannel.read(buffer);
-                            buffer.flip();
-                            response = BinaryResponse.fromByteBuffer(buffer);
-                            break requestLoop;
-                        }
-                    }
-                }
+            responses = exchange(requests);
+        } catch (IOException e) {
+            closeChannel();
+            if (!reused || (sent && !areRepeatable(requests))) throw e;
+
+            // connection was lost while idle, and the requests could not have been applied; retrying with a new one
+            openChannel();
+            try {
+                responses = exchange(requests);
+            } catch (IOException retryException) {
+                closeChannel();
+                throw retryException;
             }
-        } finally {
-            if (socketChannel != null && socketChannel.isOpen()) {
-                socketChannel.close();
+        }
+
+        lastUsed = System.currentTimeMillis();
+        for (int i = 0; i < responses.size(); i++) throughputMeter.inc();
+
+        return responses;
+    }
+
+    /**
+     * Writes requests to the open channel and reads responses. Buffer fits
+     * the max response length of all requests, and responses are decoded
+     * as soon as their frames are complete, since SCAN_SKU responses have
+     * variable length.
+     */
+    private List<BinaryResponse> exchange(List<BinaryRequest> requests) throws IOException {
+        int requestsSize = 0, responsesSize = 0;
+        for (BinaryRequest request: requests) {
+            requestsSize += request.getFrameSize();
+            responsesSize += request.getResponseFrameSize();
+        }
+        int bufferSize = Math.max(requestsSize, responsesSize);
+        ByteBuffer buffer = bufferSize <= this.buffer.capacity() ? this.buffer : ByteBuffer.allocate(bufferSize);
+
+        int firstRequestId = nextRequestId;
+        nextRequestId += requests.size();
+
+        buffer.clear();
+        for (int i = 0; i < requests.size(); i++) {
+            requests.get(i).withRequestId(firstRequestId + i).putToBuffer(buffer);
+        }
+        buffer.flip();
+        sent = false;
+        channelKey.interestOps(SelectionKey.OP_WRITE);
+        while (buffer.hasRemaining()) {
+            selector.select();
+            selector.selectedKeys().clear();
+            if (socketChannel.write(buffer) > 0) sent = true;
+        }
+
+        BinaryResponse[] responses = new BinaryResponse[requests.size()];
+        int received = 0;
+
+        buffer.clear();
+        channelKey.interestOps(SelectionKey.OP_READ);
+        while (received < responses.length) {
+            selector.select();
+            selector.selectedKeys().clear();
+            if (socketChannel.read(buffer) == -1) throw new EOFException("Connection closed by the server");
+
+            buffer.flip();
+            int frameSize;
+            while (received < responses.length && (frameSize = BinaryResponse.frameSize(buffer)) > 0
+                    && frameSize <= buffer.remaining()) {
+                BinaryResponse response = BinaryResponse.fromByteBuffer(buffer);
+                int idx = response.getRequestId() - firstRequestId;
+                if (idx < 0 || idx >= responses.length || responses[idx] != null)
+                    throw new IOException("Unexpected response; requestId = " + response.getRequestId());
+                responses[idx] = response;
+                received++;
             }
+            buffer.compact();
+        }
+        return Arrays.asList(responses);
+    }
+
+    /**
+     * Checks the idle connection without blocking. Nothing should be
+     * received on it, so end of stream or any data means the connection
+     * is closed, or is out of sync with the server.
+     */
+    private boolean isClosedByServer() {
+        probe.clear();
+        try {
+            return socketChannel.read(probe) != 0;
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    /**
+     * @return true, if all requests are reads, which could be repeated without changing the outcome
+     */
+    private static boolean areRepeatable(List<BinaryRequest> requests) {
+        for (BinaryRequest request: requests) {
+            BinaryRequestType type = request.getRequestType();
+            if (type.isMutation() || type == BinaryRequestType.MIGRATE_PARTITION) return false;
         }
+        return true;
+    }
 
-        throughputMeter.inc();
+    private void openChannel() throws IOException {
+        socketChannel = UnixSockets.isUnixAddress(serverAddress) ? UnixSockets.openChannel() : SocketChannel.open();
+        configureChannel(socketChannel);
+        socketChannel.connect(serverAddress);
 
-        return response;
+        channelKey = socketChannel.register(selector, SelectionKey.OP_CONNECT);
+        while (!socketChannel.finishConnect()) {
+            selector.select();
+            selector.selectedKeys().clear();
+        }
+    }
+
+    private void closeChannel() throws IOException {
+        if (channelKey != null) {
+            channelKey.cancel();
+            channelKey = null;
+        }
+        if (socketChannel != null) {
+            if (socketChannel.isOpen()) socketChannel.close();
+            socketChannel = null;
+            if (selector != null && selector.isOpen()) selector.selectNow();   // flushes the cancelled key
+        }
     }
 
     private void configureChannel(SocketChannel channel) throws IOException {
         channel.configureBlocking(false);
+        if (UnixSockets.isUnixAddress(serverAddress)) return;      // TCP options only
+
         channel.socket().setSendBufferSize(0x100000);
         channel.socket().setReceiveBufferSize(0x100000);
         channel.socket().setKeepAlive(true);
@@ -0,0 +1,129 @@
+package com.services.availability.common;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Unix domain socket channels for clients on the same host as the server,
+ * which skip the TCP/IP stack. Channels are the regular NIO ones and carry
+ * the same binary protocol.
+ *
+ * Unix domain sockets are supported by the runtime since Java 16; they are
+ * accessed via reflection, since the code base targets Java 8. Use
+ * {@link #isSupported()} to check for the support.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-10 10:00
+ */
+public final class UnixSockets {
+    private static final String ADDRESS_CLASS = "java.net.UnixDomainSocketAddress";
+    private static final ProtocolFamily UNIX = unixFamily();
+
+    private UnixSockets() {}
+
+    /**
+     * @return true, if the runtime supports Unix domain socket channels
+     */
+    public static boolean isSupported() {
+        return UNIX != null;
+    }
+
+    /**
+     * @param path path of the socket file
+     * @return Unix domain socket address
+     * @throws IllegalStateException if Unix domain sockets are not supported
+     */
+    public static SocketAddress address(String path) {
+        verifySupported();
+        try {
+            return (SocketAddress) Class.forName(ADDRESS_CLASS).getMethod("of", String.class).invoke(null, path);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot create Unix domain socket address " + path, e);
+        }
+    }
+
+    /**
+     * @param address socket address
+     * @return true, if the address is a Unix domain socket address
+     */
+    public static boolean isUnixAddress(SocketAddress address) {
+        return address != null && ADDRESS_CLASS.equals(address.getClass().getName());
+    }
+
+    /**
+     * TCP socket options are not applicable to Unix domain socket channels,
+     * and their {@code socket()} adaptor is not supported.
+     *
+     * @param channel open channel
+     * @return true, if the channel is a Unix domain socket channel
+     * @throws IOException
+     */
+    public static boolean isUnixChannel(NetworkChannel channel) throws IOException {
+        return isUnixAddress(channel.getLocalAddress());
+    }
+
+    /**
+     * Opens a server channel bound to the socket file. The file of a
+     * previous run, if any, is deleted first.
+     *
+     * @param path path of the socket file
+     * @return bound server channel
+     * @throws IOException
+     */
+    public static ServerSocketChannel openServerChannel(String path) throws IOException {
+        verifySupported();
+        Files.deleteIfExists(Paths.get(path));
+
+        ServerSocketChannel channel = (ServerSocketChannel) open(ServerSocketChannel.class);
+        try {
+            channel.bind(address(path));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * @return new unconnected Unix domain socket channel
+     * @throws IOException
+     */
+    public static SocketChannel openChannel() throws IOException {
+        verifySupported();
+        return (SocketChannel) open(SocketChannel.class);
+    }
+
+    private static Object open(Class<?> channelClass) throws IOException {
+        try {
+            Method open = channelClass.getMethod("open", ProtocolFamily.class);
+            return open.invoke(null, UNIX);
+        } catch (InvocationTargetException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IllegalStateException("Cannot open Unix domain socket channel", e.getCause());
+        } catch (Exception e) {
+            throw new IllegalStateException("Cannot open Unix domain socket channel", e);
+        }
+    }
+
+    private static void verifySupported() {
+        if (UNIX == null) throw new IllegalStateException("Unix domain sockets are not supported by the runtime");
+    }
+
+    private static ProtocolFamily unixFamily() {
+        try {
+            return StandardProtocolFamily.valueOf("UNIX");
+        } catch (IllegalArgumentException e) {
+            return null;            // Java 15 and older
+        }
+    }
+}
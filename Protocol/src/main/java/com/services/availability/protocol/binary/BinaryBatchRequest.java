@@ -0,0 +1,163 @@
+package com.services.availability.protocol.binary;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Batch request: a single frame carrying N items, which are processed with
+ * a single storage batch. Wire format: type (1 byte), request ID (4 bytes),
+ * number of items (2 bytes), then sku (4 bytes), store (2 bytes) and
+ * amount (4 bytes) of each item. Amount is ignored by MGET and MREMOVE.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-07 10:30
+ */
+public class BinaryBatchRequest extends BinaryRequest {
+    public static final int BATCH_HEADER_SIZE = 7;          // 1 + 4 + 2 bytes
+    public static final int BATCH_ITEM_SIZE = 10;           // 4 + 2 + 4 bytes
+    public static final int MAX_BATCH_SIZE = 1024;          // max number of items in a batch
+
+    private final int[] skus;
+    private final short[] stores;
+    private final int[] amounts;
+
+    /**
+     * Request constructor.
+     *
+     * @param requestType batch type of request
+     * @param skus item skus
+     * @param stores item stores
+     * @param amounts item amounts; ignored by MGET and MREMOVE
+     */
+    public BinaryBatchRequest(BinaryRequestType requestType, int[] skus, short[] stores, int[] amounts) {
+        this(requestType, 0, skus, stores, amounts);
+    }
+
+    /**
+     * Request constructor.
+     *
+     * @param requestType batch type of request
+     * @param requestId request identifier, echoed back in the response
+     * @param skus item skus
+     * @param stores item stores
+     * @param amounts item amounts; ignored by MGET and MREMOVE
+     */
+    public BinaryBatchRequest(BinaryRequestType requestType, int requestId, int[] skus, short[] stores, int[] amounts) {
+        super(requestType, requestId, 0, (short) 0, 0);
+        if (!requestType.isBatch()) throw new IllegalArgumentException("request type " + requestType + " is not a batch type");
+        if (skus.length != stores.length || skus.length != amounts.length)
+            throw new IllegalArgumentException("skus, stores and amounts should have the same length");
+        if (skus.length > MAX_BATCH_SIZE) throw new IllegalArgumentException("batch is larger than " + MAX_BATCH_SIZE);
+
+        this.skus = skus;
+        this.stores = stores;
+        this.amounts = amounts;
+    }
+
+    /**
+     * @return number of items in the batch
+     */
+    public int size() {
+        return skus.length;
+    }
+
+    public int getSku(int idx) {
+        return skus[idx];
+    }
+
+    public short getStore(int idx) {
+        return stores[idx];
+    }
+
+    public int getAmount(int idx) {
+        return amounts[idx];
+    }
+
+    @Override
+    public BinaryRequest withRequestId(int requestId) {
+        return new BinaryBatchRequest(getRequestType(), requestId, skus, stores, amounts);
+    }
+
+    /**
+     * @param indices indices of the items to take
+     * @return batch of the same type with the specified items only
+     */
+    public BinaryBatchRequest subBatch(int[] indices) {
+        int[] subSkus = new int[indices.length], subAmounts = new int[indices.length];
+        short[] subStores = new short[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            subSkus[i] = skus[indices[i]];
+            subStores[i] = stores[indices[i]];
+            subAmounts[i] = amounts[indices[i]];
+        }
+        return new BinaryBatchRequest(getRequestType(), getRequestId(), subSkus, subStores, subAmounts);
+    }
+
+    @Override
+    public int getFrameSize() {
+        return frameSize(skus.length);
+    }
+
+    @Override
+    public int getResponseFrameSize() {
+        return BinaryBatchResponse.frameSize(skus.length);
+    }
+
+    @Override
+    public void putToBuffer(ByteBuffer buffer) {
+        buffer.put(getRequestType().getCode());
+        buffer.putInt(getRequestId());
+        buffer.putShort((short) skus.length);
+        for (int i = 0; i < skus.length; i++) {
+            buffer.putInt(skus[i]);
+            buffer.putShort(stores[i]);
+            buffer.putInt(amounts[i]);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!super.equals(o)) return false;
+
+        BinaryBatchRequest request = (BinaryBatchRequest) o;
+        return Arrays.equals(skus, request.skus) && Arrays.equals(stores, request.stores) && Arrays.equals(amounts, request.amounts);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + Arrays.hashCode(skus);
+        result = 31 * result + Arrays.hashCode(stores);
+        result = 31 * result + Arrays.hashCode(amounts);
+        return result;
+    }
+
+    /**
+     * @param size number of items
+     * @return length of a batch request frame with the specified number of items
+     * @throws IllegalArgumentException if the batch is too large
+     */
+    public static int frameSize(int size) {
+        if (size > MAX_BATCH_SIZE) throw new IllegalArgumentException("batch is larger than " + MAX_BATCH_SIZE);
+        return BATCH_HEADER_SIZE + size * BATCH_ITEM_SIZE;
+    }
+
+    /**
+     * Decodes the rest of the batch frame; request type is already read.
+     */
+    static BinaryBatchRequest fromByteBuffer(BinaryRequestType requestType, ByteBuffer buffer) {
+        int requestId = buffer.getInt();
+        int size = buffer.getShort() & 0xFFFF;
+        if (size > MAX_BATCH_SIZE) throw new IllegalArgumentException("batch is larger than " + MAX_BATCH_SIZE);
+
+        int[] skus = new int[size], amounts = new int[size];
+        short[] stores = new short[size];
+        for (int i = 0; i < size; i++) {
+            skus[i] = buffer.getInt();
+            stores[i] = buffer.getShort();
+            amounts[i] = buffer.getInt();
+        }
+        return new BinaryBatchRequest(requestType, requestId, skus, stores, amounts);
+    }
+}
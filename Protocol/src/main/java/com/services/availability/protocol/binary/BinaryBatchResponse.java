@@ -0,0 +1,166 @@
+package com.services.availability.protocol.binary;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Response to a batch request: a single frame with a result per item, in
+ * the order of request items. Wire format: type (1 byte), error code
+ * (1 byte), request ID (4 bytes), number of results (2 bytes), then error
+ * code (1 byte), sku (4 bytes), store (2 bytes) and amount (4 bytes) of
+ * each result.
+ *
+ * Error code of the frame tells if the batch was processed at all. If it
+ * was not (e.g. the server is BUSY), every result carries the same error,
+ * so that the frame length depends on the number of items only.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-07 10:50
+ */
+public class BinaryBatchResponse extends BinaryResponse {
+    public static final int BATCH_HEADER_SIZE = 8;          // 1 + 1 + 4 + 2 bytes
+    public static final int BATCH_RESULT_SIZE = 11;         // 1 + 4 + 2 + 4 bytes
+
+    private final BinaryErrorCodes[] errorCodes;
+    private final int[] skus;
+    private final short[] stores;
+    private final int[] amounts;
+
+    /**
+     * Successful constructor. Results are set afterwards with
+     * {@link #setResult(int, BinaryErrorCodes, int, short, int)}.
+     *
+     * @param requestType batch type of request
+     * @param size number of results
+     */
+    public BinaryBatchResponse(BinaryRequestType requestType, int size) {
+        this(requestType, BinaryErrorCodes.SUCCESS, size);
+    }
+
+    /**
+     * Constructor. If the error code is not SUCCESS, every result gets it.
+     *
+     * @param requestType batch type of request
+     * @param errorCode error code of the batch
+     * @param size number of results
+     */
+    public BinaryBatchResponse(BinaryRequestType requestType, BinaryErrorCodes errorCode, int size) {
+        super(requestType, errorCode, -1, (short) -1, -1);
+        this.errorCodes = new BinaryErrorCodes[size];
+        this.skus = new int[size];
+        this.stores = new short[size];
+        this.amounts = new int[size];
+        for (int i = 0; i < size; i++) setResult(i, errorCode, -1, (short) -1, -1);
+    }
+
+    /**
+     * Sets the result of an item.
+     *
+     * @param idx item index
+     * @param errorCode result of the item operation
+     * @param sku item sku
+     * @param store item store
+     * @param amount item amount
+     */
+    public void setResult(int idx, BinaryErrorCodes errorCode, int sku, short store, int amount) {
+        errorCodes[idx] = errorCode;
+        skus[idx] = sku;
+        stores[idx] = store;
+        amounts[idx] = amount;
+    }
+
+    /**
+     * Copies the result of the item of another response.
+     *
+     * @param idx target item index
+     * @param source response to copy from
+     * @param sourceIdx item index in the source response
+     */
+    public void copyResult(int idx, BinaryBatchResponse source, int sourceIdx) {
+        setResult(idx, source.errorCodes[sourceIdx], source.skus[sourceIdx], source.stores[sourceIdx], source.amounts[sourceIdx]);
+    }
+
+    /**
+     * @return number of results
+     */
+    public int size() {
+        return skus.length;
+    }
+
+    public BinaryErrorCodes getErrorCode(int idx) {
+        return errorCodes[idx];
+    }
+
+    public int getSku(int idx) {
+        return skus[idx];
+    }
+
+    public short getStore(int idx) {
+        return stores[idx];
+    }
+
+    public int getAmount(int idx) {
+        return amounts[idx];
+    }
+
+    @Override
+    public int getFrameSize() {
+        return frameSize(skus.length);
+    }
+
+    @Override
+    public void putToBuffer(ByteBuffer buffer) {
+        buffer.put(getRequestType().getCode());
+        buffer.put(getErrorCode().getCode());
+        buffer.putInt(getRequestId());
+        buffer.putShort((short) skus.length);
+        for (int i = 0; i < skus.length; i++) {
+            buffer.put(errorCodes[i].getCode());
+            buffer.putInt(skus[i]);
+            buffer.putShort(stores[i]);
+            buffer.putInt(amounts[i]);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!super.equals(o)) return false;
+
+        BinaryBatchResponse response = (BinaryBatchResponse) o;
+        return Arrays.equals(errorCodes, response.errorCodes) && Arrays.equals(skus, response.skus)
+                && Arrays.equals(stores, response.stores) && Arrays.equals(amounts, response.amounts);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + Arrays.hashCode(errorCodes);
+        result = 31 * result + Arrays.hashCode(skus);
+        result = 31 * result + Arrays.hashCode(amounts);
+        return result;
+    }
+
+    /**
+     * @param size number of results
+     * @return length of a batch response frame with the specified number of results
+     */
+    public static int frameSize(int size) {
+        return BATCH_HEADER_SIZE + size * BATCH_RESULT_SIZE;
+    }
+
+    /**
+     * Decodes the rest of the batch frame; request type and error code are already read.
+     */
+    static BinaryBatchResponse fromByteBuffer(BinaryRequestType requestType, BinaryErrorCodes errorCode, ByteBuffer buffer) {
+        int requestId = buffer.getInt();
+        int size = buffer.getShort() & 0xFFFF;
+
+        BinaryBatchResponse response = new BinaryBatchResponse(requestType, errorCode, size);
+        response.setRequestId(requestId);
+        for (int i = 0; i < size; i++) {
+            response.setResult(i, BinaryErrorCodes.getByCode(buffer.get()), buffer.getInt(), buffer.getShort(), buffer.getInt());
+        }
+        return response;
+    }
+}
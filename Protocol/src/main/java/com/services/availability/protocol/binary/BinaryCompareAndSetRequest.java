@@ -0,0 +1,87 @@
+package com.services.availability.protocol.binary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * COMPARE_AND_SET request: the amount of the item is set to the new value
+ * only if it equals the expected one. Wire format is the one of a regular
+ * request followed by the expected amount (4 bytes).
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-08 10:20
+ */
+public class BinaryCompareAndSetRequest extends BinaryRequest {
+    public static final int COMPARE_AND_SET_REQUEST_SIZE = REQUEST_SIZE + 4;
+
+    private final int expectedAmount;
+
+    /**
+     * Request constructor.
+     *
+     * @param sku requested sku
+     * @param store requested store
+     * @param expectedAmount amount the item is expected to have
+     * @param amount new amount
+     */
+    public BinaryCompareAndSetRequest(int sku, short store, int expectedAmount, int amount) {
+        this(0, sku, store, expectedAmount, amount);
+    }
+
+    /**
+     * Request constructor.
+     *
+     * @param requestId request identifier, echoed back in the response
+     * @param sku requested sku
+     * @param store requested store
+     * @param expectedAmount amount the item is expected to have
+     * @param amount new amount
+     */
+    public BinaryCompareAndSetRequest(int requestId, int sku, short store, int expectedAmount, int amount) {
+        super(BinaryRequestType.COMPARE_AND_SET, requestId, sku, store, amount);
+        this.expectedAmount = expectedAmount;
+    }
+
+    public int getExpectedAmount() {
+        return expectedAmount;
+    }
+
+    @Override
+    public BinaryRequest withRequestId(int requestId) {
+        return new BinaryCompareAndSetRequest(requestId, getSku(), getStore(), expectedAmount, getAmount());
+    }
+
+    @Override
+    public int getFrameSize() {
+        return COMPARE_AND_SET_REQUEST_SIZE;
+    }
+
+    @Override
+    public void putToBuffer(ByteBuffer buffer) {
+        super.putToBuffer(buffer);
+        buffer.putInt(expectedAmount);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return super.equals(o) && expectedAmount == ((BinaryCompareAndSetRequest) o).expectedAmount;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + expectedAmount;
+    }
+
+    /**
+     * Decodes the rest of the frame; request type is already read.
+     */
+    static BinaryCompareAndSetRequest fromByteBuffer(BinaryRequestType requestType, ByteBuffer buffer) {
+        int requestId = buffer.getInt();
+        int sku = buffer.getInt();
+        short store = buffer.getShort();
+        int amount = buffer.getInt();
+        int expectedAmount = buffer.getInt();
+
+        return new BinaryCompareAndSetRequest(requestId, sku, store, expectedAmount, amount);
+    }
+}
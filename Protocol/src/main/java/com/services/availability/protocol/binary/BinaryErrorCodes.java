@@ -9,7 +9,12 @@ public enum BinaryErrorCodes {
     SUCCESS(0),
     IOEXCEPTION(1),
     ITEM_NOT_FOUND(2),
-    UNKNOWN_REQUEST(3);
+    UNKNOWN_REQUEST(3),
+    BUSY(4),                // request was shed because the server is overloaded, could be retried later
+    INSUFFICIENT_AMOUNT(5), // DECREMENT is not applied, amount is less than requested
+    AMOUNT_MISMATCH(6),     // COMPARE_AND_SET is not applied, amount differs from the expected one
+    READ_ONLY(7),           // mutation is rejected by a follower, should be sent to the primary
+    WRONG_PARTITION(8);     // item belongs to a partition of another node, partition map should be refreshed
     BinaryErrorCodes(int code) {
         this.code = (byte) code;
     }
@@ -18,13 +23,35 @@ public enum BinaryErrorCodes {
         return code;
     }
 
+    /**
+     * @param code error code
+     * @return error code instance
+     * @throws IllegalArgumentException if the code is unknown
+     */
     public static BinaryErrorCodes getByCode(int code) {
+        BinaryErrorCodes errorCode = forCode(code);
+        if (errorCode == null) throw new IllegalArgumentException("Unknown code");
+        return errorCode;
+    }
+
+    /**
+     * Non-throwing lookup, for decoding on hot paths.
+     *
+     * @param code error code
+     * @return error code instance, or null if the code is unknown
+     */
+    public static BinaryErrorCodes forCode(int code) {
         switch (code) {
             case 0: return BinaryErrorCodes.SUCCESS;
             case 1: return BinaryErrorCodes.IOEXCEPTION;
             case 2: return BinaryErrorCodes.ITEM_NOT_FOUND;
             case 3: return BinaryErrorCodes.UNKNOWN_REQUEST;
-            default: throw new IllegalArgumentException("Unknown code");
+            case 4: return BinaryErrorCodes.BUSY;
+            case 5: return BinaryErrorCodes.INSUFFICIENT_AMOUNT;
+            case 6: return BinaryErrorCodes.AMOUNT_MISMATCH;
+            case 7: return BinaryErrorCodes.READ_ONLY;
+            case 8: return BinaryErrorCodes.WRONG_PARTITION;
+            default: return null;
         }
     }
 }
@@ -0,0 +1,81 @@
+package com.services.availability.protocol.binary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Response to a PARTITION_MAP request. Wire format: type (1 byte), error
+ * code (1 byte), request ID (4 bytes), length of the encoded map (2 bytes),
+ * then the map itself (see {@link PartitionMap}). Error responses carry no
+ * map.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-15 10:40
+ */
+public class BinaryPartitionMapResponse extends BinaryResponse {
+    public static final int MAP_HEADER_SIZE = 8;            // 1 + 1 + 4 + 2 bytes
+    public static final int MAX_FRAME_SIZE = MAP_HEADER_SIZE + PartitionMap.MAX_ENCODED_SIZE;
+
+    private final PartitionMap partitionMap;
+
+    public BinaryPartitionMapResponse(PartitionMap partitionMap) {
+        this(BinaryErrorCodes.SUCCESS, partitionMap);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param errorCode error code
+     * @param partitionMap partition map; null for error responses
+     */
+    public BinaryPartitionMapResponse(BinaryErrorCodes errorCode, PartitionMap partitionMap) {
+        super(BinaryRequestType.PARTITION_MAP, errorCode, -1, (short) -1, -1);
+        this.partitionMap = partitionMap;
+    }
+
+    /**
+     * @return partition map, or null if the request failed
+     */
+    public PartitionMap getPartitionMap() {
+        return partitionMap;
+    }
+
+    @Override
+    public int getFrameSize() {
+        return MAP_HEADER_SIZE + (partitionMap == null ? 0 : partitionMap.getEncodedSize());
+    }
+
+    @Override
+    public void putToBuffer(ByteBuffer buffer) {
+        buffer.put(getRequestType().getCode());
+        buffer.put(getErrorCode().getCode());
+        buffer.putInt(getRequestId());
+        buffer.putShort((short) (partitionMap == null ? 0 : partitionMap.getEncodedSize()));
+        if (partitionMap != null) partitionMap.putToBuffer(buffer);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!super.equals(o)) return false;
+
+        PartitionMap map = ((BinaryPartitionMapResponse) o).partitionMap;
+        return partitionMap == null ? map == null : partitionMap.equals(map);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + (partitionMap == null ? 0 : partitionMap.hashCode());
+    }
+
+    /**
+     * Decodes the rest of the frame; request type and error code are already read.
+     */
+    static BinaryPartitionMapResponse fromByteBuffer(BinaryErrorCodes errorCode, ByteBuffer buffer) {
+        int requestId = buffer.getInt();
+        int length = buffer.getShort() & 0xFFFF;
+
+        BinaryPartitionMapResponse response = new BinaryPartitionMapResponse(errorCode, length == 0 ? null : PartitionMap.fromByteBuffer(buffer));
+        response.setRequestId(requestId);
+        return response;
+    }
+}
@@ -3,14 +3,35 @@ package com.services.availability.protocol.binary;
 import java.nio.ByteBuffer;
 
 /**
+ * Binary request. Wire format: type (1 byte), request ID (4 bytes),
+ * sku (4 bytes), store (2 bytes), amount (4 bytes).
+ *
+ * Request ID is chosen by the client and is echoed back in the response,
+ * so that a client can send many requests over a single connection without
+ * waiting, and match responses that may arrive out of order.
+ *
+ * Batch types (MGET, MPUT, MREMOVE) have frames of variable length, see
+ * {@link BinaryBatchRequest}; COMPARE_AND_SET frame carries an extra field,
+ * see {@link BinaryCompareAndSetRequest}. Use {@link #frameSize(ByteBuffer)} to find out
+ * the length of a received frame.
+ *
+ * SCAN_SKU request has the regular frame: store is the first store to
+ * return and amount is the max number of stores to return. It is
+ * answered with a {@link BinaryBatchResponse} of up to that many results,
+ * so the next page starts right after the last store returned.
+ *
+ * PARTITION_MAP and MIGRATE_PARTITION requests have the regular frame as
+ * well, see {@link BinaryRequestType}.
+ *
  * @author Roman Reva
  * @version 1.0
  * @since 2014-06-26 12:52
  */
 public class BinaryRequest {
-    public static final int REQUEST_SIZE = 11;              // 1 + 4 + 2 + 4 bytes
+    public static final int REQUEST_SIZE = 15;              // 1 + 4 + 4 + 2 + 4 bytes
 
     private BinaryRequestType requestType;
+    private int requestId;
     private int sku;
     private short store;
     private int amount;
@@ -24,8 +45,26 @@ public class BinaryRequest {
      * @param amount requested amount
      */
     public BinaryRequest(BinaryRequestType requestType, int sku, short store, int amount) {
+        this(requestType, 0, sku, store, amount);
+    }
+
+    /**
+     * Request constructor.
+     *
+     * @param requestType type of request
+     * @param requestId request identifier, echoed back in the response
+     * @param sku requested sku
+     * @param store requested store
+     * @param amount requested amount
+     */
+    public BinaryRequest(BinaryRequestType requestType, int requestId, int sku, short store, int amount) {
         if (requestType == null) throw new IllegalArgumentException("parameter `requestType` is null");
+        if (requestType.isBatch() && !(this instanceof BinaryBatchRequest))
+            throw new IllegalArgumentException("batch requests should be built with BinaryBatchRequest");
+        if (requestType == BinaryRequestType.COMPARE_AND_SET && !(this instanceof BinaryCompareAndSetRequest))
+            throw new IllegalArgumentException("COMPARE_AND_SET requests should be built with BinaryCompareAndSetRequest");
         this.requestType = requestType;
+        this.requestId = requestId;
         this.sku = sku;
         this.store = store;
         this.amount = amount;
@@ -35,6 +74,18 @@ public class BinaryRequest {
         return requestType;
     }
 
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * @param requestId request identifier
+     * @return copy of the current request with the specified identifier
+     */
+    public BinaryRequest withRequestId(int requestId) {
+        return new BinaryRequest(requestType, requestId, sku, store, amount);
+    }
+
     public int getSku() {
         return sku;
     }
@@ -47,8 +98,35 @@ public class BinaryRequest {
         return amount;
     }
 
+    /**
+     * @return number of bytes of the encoded request
+     */
+    public int getFrameSize() {
+        return REQUEST_SIZE;
+    }
+
+    /**
+     * @return number of bytes of the encoded response to the request; max
+     *         number of bytes for SCAN_SKU and PARTITION_MAP, which have
+     *         responses of variable length
+     */
+    public int getResponseFrameSize() {
+        if (requestType == BinaryRequestType.SCAN_SKU) return BinaryBatchResponse.frameSize(getScanLimit());
+        if (requestType == BinaryRequestType.PARTITION_MAP) return BinaryPartitionMapResponse.MAX_FRAME_SIZE;
+        return BinaryResponse.RESPONSE_SIZE;
+    }
+
+    /**
+     * @return max number of results of a SCAN_SKU request; not positive or
+     *         too large amount is replaced by the max batch size
+     */
+    public int getScanLimit() {
+        return amount <= 0 || amount > BinaryBatchRequest.MAX_BATCH_SIZE ? BinaryBatchRequest.MAX_BATCH_SIZE : amount;
+    }
+
     public void putToBuffer(ByteBuffer buffer) {
         buffer.put(requestType.getCode());
+        buffer.putInt(requestId);
         buffer.putInt(sku);
         buffer.putShort(store);
         buffer.putInt(amount);
@@ -61,6 +139,7 @@ public class BinaryRequest {
 
         BinaryRequest request = (BinaryRequest) o;
 
+        if (requestId != request.requestId) return false;
         if (amount != request.amount) return false;
         if (sku != request.sku) return false;
         if (store != request.store) return false;
@@ -72,18 +151,42 @@ public class BinaryRequest {
     @Override
     public int hashCode() {
         int result = requestType.hashCode();
+        result = 31 * result + requestId;
         result = 31 * result + sku;
         result = 31 * result + (int) store;
         result = 31 * result + amount;
         return result;
     }
 
+    /**
+     * Calculates the length of the frame that starts at the current position
+     * of the buffer. Buffer position is not changed.
+     *
+     * @param buffer buffer with received bytes
+     * @return frame length, or -1 if not enough bytes are received to find it out
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public static int frameSize(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) return -1;
+
+        BinaryRequestType requestType = BinaryRequestType.getByCode(buffer.get(buffer.position()));
+        if (requestType == BinaryRequestType.COMPARE_AND_SET) return BinaryCompareAndSetRequest.COMPARE_AND_SET_REQUEST_SIZE;
+        if (!requestType.isBatch()) return REQUEST_SIZE;
+
+        if (buffer.remaining() < BinaryBatchRequest.BATCH_HEADER_SIZE) return -1;
+        return BinaryBatchRequest.frameSize(buffer.getShort(buffer.position() + 5) & 0xFFFF);
+    }
+
     public static BinaryRequest fromByteBuffer(ByteBuffer buffer) {
         BinaryRequestType requestType = BinaryRequestType.getByCode(buffer.get());
+        if (requestType.isBatch()) return BinaryBatchRequest.fromByteBuffer(requestType, buffer);
+        if (requestType == BinaryRequestType.COMPARE_AND_SET) return BinaryCompareAndSetRequest.fromByteBuffer(requestType, buffer);
+
+        int requestId = buffer.getInt();
         int sku = buffer.getInt();
         short store = buffer.getShort();
         int amount = buffer.getInt();
 
-        return new BinaryRequest(requestType, sku, store, amount);
+        return new BinaryRequest(requestType, requestId, sku, store, amount);
     }
 }
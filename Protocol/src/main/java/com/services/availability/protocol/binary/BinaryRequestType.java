@@ -8,7 +8,16 @@ package com.services.availability.protocol.binary;
 public enum BinaryRequestType {
     PUT(1),
     GET(2),
-    REMOVE(3);
+    REMOVE(3),
+    MGET(4),                // batch of GET operations, see BinaryBatchRequest
+    MPUT(5),                // batch of PUT operations
+    MREMOVE(6),             // batch of REMOVE operations
+    ADD(7),                 // adds a delta to the amount, amount never goes below zero
+    DECREMENT(8),           // decrements the amount if it is sufficient
+    COMPARE_AND_SET(9),     // sets the amount if it equals the expected one, see BinaryCompareAndSetRequest
+    SCAN_SKU(10),           // stores of a SKU starting from the store, up to `amount` of them; see BinaryBatchResponse
+    PARTITION_MAP(11),      // partition map of the cluster, see BinaryPartitionMapResponse
+    MIGRATE_PARTITION(12);  // moves partition `sku` to node `store`; sent to the current owner
 
     public final byte code;
     private BinaryRequestType(int intCode) {
@@ -17,12 +26,78 @@ public enum BinaryRequestType {
     public byte getCode() {
         return code;
     }
+    /**
+     * @param code request type code
+     * @return request type
+     * @throws IllegalArgumentException if the code is unknown
+     */
     public static BinaryRequestType getByCode(int code) {
+        BinaryRequestType requestType = forCode(code);
+        if (requestType == null) throw new IllegalArgumentException("Unknown code");
+        return requestType;
+    }
+
+    /**
+     * Non-throwing lookup, for decoding on hot paths.
+     *
+     * @param code request type code
+     * @return request type, or null if the code is unknown
+     */
+    public static BinaryRequestType forCode(int code) {
         switch (code) {
             case 1: return BinaryRequestType.PUT;
             case 2: return BinaryRequestType.GET;
             case 3: return BinaryRequestType.REMOVE;
-            default: throw new IllegalArgumentException("Unknown code");
+            case 4: return BinaryRequestType.MGET;
+            case 5: return BinaryRequestType.MPUT;
+            case 6: return BinaryRequestType.MREMOVE;
+            case 7: return BinaryRequestType.ADD;
+            case 8: return BinaryRequestType.DECREMENT;
+            case 9: return BinaryRequestType.COMPARE_AND_SET;
+            case 10: return BinaryRequestType.SCAN_SKU;
+            case 11: return BinaryRequestType.PARTITION_MAP;
+            case 12: return BinaryRequestType.MIGRATE_PARTITION;
+            default: return null;
+        }
+    }
+
+    /**
+     * @return true, if requests of the type carry a batch of items
+     */
+    public boolean isBatch() {
+        return this == MGET || this == MPUT || this == MREMOVE;
+    }
+
+    /**
+     * @return true, if requests of the type are answered with a BinaryBatchResponse
+     */
+    public boolean hasBatchResponse() {
+        return isBatch() || this == SCAN_SKU;
+    }
+
+    /**
+     * @return true, if requests of the type could modify the storage
+     */
+    public boolean isMutation() {
+        return this != GET && this != MGET && this != SCAN_SKU && !isCluster();
+    }
+
+    /**
+     * @return true, if requests of the type manage the cluster rather than items
+     */
+    public boolean isCluster() {
+        return this == PARTITION_MAP || this == MIGRATE_PARTITION;
+    }
+
+    /**
+     * @return type of the operation performed on each item of a batch, or the type itself for single item types
+     */
+    public BinaryRequestType getItemType() {
+        switch (this) {
+            case MGET: return GET;
+            case MPUT: return PUT;
+            case MREMOVE: return REMOVE;
+            default: return this;
         }
     }
 
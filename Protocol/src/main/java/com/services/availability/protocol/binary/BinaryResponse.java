@@ -3,13 +3,25 @@ package com.services.availability.protocol.binary;
 import java.nio.ByteBuffer;
 
 /**
+ * Binary response. Wire format: type (1 byte), error code (1 byte),
+ * request ID (4 bytes), sku (4 bytes), store (2 bytes), amount (4 bytes).
+ * Request ID echoes the ID of the corresponding request.
+ *
+ * Responses to batch and SCAN_SKU requests carry a result per item, see
+ * {@link BinaryBatchResponse}; PARTITION_MAP is answered with
+ * {@link BinaryPartitionMapResponse}. Use {@link #frameSize(ByteBuffer)} to
+ * find out the length of a received frame.
+ *
  * @author Roman Reva
  * @version 1.0
  * @since 2014-06-26 12:52
  */
 public class BinaryResponse {
+    public static final int RESPONSE_SIZE = 16;             // 1 + 1 + 4 + 4 + 2 + 4 bytes
+
     private BinaryRequestType requestType;
     private BinaryErrorCodes errorCode;
+    private int requestId = 0;
     private int sku = -1;
     private short store = -1;
     private int amount = -1;
@@ -67,6 +79,19 @@ public class BinaryResponse {
         return requestType;
     }
 
+    public int getRequestId() {
+        return requestId;
+    }
+
+    /**
+     * Sets the identifier of the request the response is built for.
+     *
+     * @param requestId request identifier
+     */
+    public void setRequestId(int requestId) {
+        this.requestId = requestId;
+    }
+
     public int getSku() {
         return sku;
     }
@@ -91,9 +116,24 @@ public class BinaryResponse {
         return !isSuccess();
     }
 
+    /**
+     * @return true, if the request was rejected because the server is overloaded
+     */
+    public boolean isBusy() {
+        return errorCode == BinaryErrorCodes.BUSY;
+    }
+
+    /**
+     * @return number of bytes of the encoded response
+     */
+    public int getFrameSize() {
+        return RESPONSE_SIZE;
+    }
+
     public void putToBuffer(ByteBuffer buffer) {
         buffer.put(requestType.getCode());
         buffer.put(errorCode.getCode());
+        buffer.putInt(requestId);
         buffer.putInt(sku);
         buffer.putShort(store);
         buffer.putInt(amount);
@@ -106,6 +146,7 @@ public class BinaryResponse {
 
         BinaryResponse response = (BinaryResponse) o;
 
+        if (requestId != response.requestId) return false;
         if (amount != response.amount) return false;
         if (sku != response.sku) return false;
         if (store != response.store) return false;
@@ -119,20 +160,67 @@ public class BinaryResponse {
     public int hashCode() {
         int result = requestType.hashCode();
         result = 31 * result + errorCode.hashCode();
+        result = 31 * result + requestId;
         result = 31 * result + sku;
         result = 31 * result + (int) store;
         result = 31 * result + amount;
         return result;
     }
 
+    /**
+     * Builds an error response to the request, which could be a batch one.
+     *
+     * @param request request to respond to
+     * @param errorCode error code
+     * @return error response with the request ID of the request
+     */
+    public static BinaryResponse errorFor(BinaryRequest request, BinaryErrorCodes errorCode) {
+        BinaryResponse response;
+        if (request instanceof BinaryBatchRequest) {
+            response = new BinaryBatchResponse(request.getRequestType(), errorCode, ((BinaryBatchRequest) request).size());
+        } else if (request.getRequestType() == BinaryRequestType.PARTITION_MAP) {
+            response = new BinaryPartitionMapResponse(errorCode, null);
+        } else if (request.getRequestType().hasBatchResponse()) {
+            response = new BinaryBatchResponse(request.getRequestType(), errorCode, 0);
+        } else {
+            response = new BinaryResponse(request.getRequestType(), errorCode);
+        }
+        response.setRequestId(request.getRequestId());
+        return response;
+    }
+
+    /**
+     * Calculates the length of the frame that starts at the current position
+     * of the buffer. Buffer position is not changed.
+     *
+     * @param buffer buffer with received bytes
+     * @return frame length, or -1 if not enough bytes are received to find it out
+     */
+    public static int frameSize(ByteBuffer buffer) {
+        if (!buffer.hasRemaining()) return -1;
+
+        BinaryRequestType requestType = BinaryRequestType.getByCode(buffer.get(buffer.position()));
+        boolean isMap = requestType == BinaryRequestType.PARTITION_MAP;
+        if (!requestType.hasBatchResponse() && !isMap) return RESPONSE_SIZE;
+
+        if (buffer.remaining() < BinaryBatchResponse.BATCH_HEADER_SIZE) return -1;       // same size of both headers
+        int length = buffer.getShort(buffer.position() + 6) & 0xFFFF;
+        return isMap ? BinaryPartitionMapResponse.MAP_HEADER_SIZE + length : BinaryBatchResponse.frameSize(length);
+    }
+
     public static BinaryResponse fromByteBuffer(ByteBuffer buffer) {
         BinaryRequestType requestType = BinaryRequestType.getByCode(buffer.get());
         BinaryErrorCodes errorCode = BinaryErrorCodes.getByCode(buffer.get());
+        if (requestType.hasBatchResponse()) return BinaryBatchResponse.fromByteBuffer(requestType, errorCode, buffer);
+        if (requestType == BinaryRequestType.PARTITION_MAP) return BinaryPartitionMapResponse.fromByteBuffer(errorCode, buffer);
 
+        int requestId = buffer.getInt();
         int sku = buffer.getInt();
         short store = buffer.getShort();
         int amount = buffer.getInt();
 
-        return new BinaryResponse(requestType, errorCode, sku, store, amount);
+        BinaryResponse response = new BinaryResponse(requestType, errorCode, sku, store, amount);
+        response.requestId = requestId;
+        return response;
     }
 }
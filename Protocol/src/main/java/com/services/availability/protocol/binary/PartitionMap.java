@@ -0,0 +1,264 @@
+package com.services.availability.protocol.binary;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Assignment of partitions to the nodes of a cluster. The key space is
+ * split into a fixed number of partitions by the hash of the SKU, so that
+ * all stores of a SKU belong to the same partition and could be scanned
+ * on a single node. Every partition is owned by exactly one node.
+ *
+ * Map is immutable; every change produces a map with a greater version, so
+ * that of two maps the newer one could be chosen. Wire format: version
+ * (4 bytes), number of partitions (2 bytes), number of nodes (2 bytes),
+ * then host length (1 byte), host (ASCII), client port (2 bytes) and
+ * cluster port (2 bytes) of each node, then owner node index (1 byte) of
+ * each partition.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-15 10:10
+ */
+public final class PartitionMap {
+    public static final int MAX_PARTITIONS = 4096;
+    public static final int MAX_NODES = 64;
+    public static final int MAX_HOST_LENGTH = 64;
+    public static final int MAX_ENCODED_SIZE = 4 + 2 + 2 + MAX_NODES * (1 + MAX_HOST_LENGTH + 2 + 2) + MAX_PARTITIONS;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private final int version;
+    private final List<Node> nodes;
+    private final byte[] owners;                            // node index per partition
+
+    /**
+     * Constructor.
+     *
+     * @param version map version
+     * @param nodes cluster nodes; node index is the position in the list
+     * @param owners owner node index of each partition
+     */
+    public PartitionMap(int version, List<Node> nodes, int[] owners) {
+        if (owners.length == 0 || owners.length > MAX_PARTITIONS)
+            throw new IllegalArgumentException("number of partitions should be in [1, " + MAX_PARTITIONS + "]");
+        if (nodes.isEmpty() || nodes.size() > MAX_NODES)
+            throw new IllegalArgumentException("number of nodes should be in [1, " + MAX_NODES + "]");
+
+        this.version = version;
+        this.nodes = Collections.unmodifiableList(new ArrayList<Node>(nodes));
+        this.owners = new byte[owners.length];
+        for (int i = 0; i < owners.length; i++) {
+            if (owners[i] < 0 || owners[i] >= nodes.size()) throw new IllegalArgumentException("unknown owner of partition " + i);
+            this.owners[i] = (byte) owners[i];
+        }
+    }
+
+    /**
+     * Builds the initial map, which assigns partitions to nodes round robin.
+     *
+     * @param partitionNumber number of partitions
+     * @param nodes cluster nodes
+     * @return map of version 1
+     */
+    public static PartitionMap uniform(int partitionNumber, List<Node> nodes) {
+        int[] owners = new int[partitionNumber];
+        for (int i = 0; i < partitionNumber; i++) owners[i] = i % nodes.size();
+        return new PartitionMap(1, nodes, owners);
+    }
+
+    /**
+     * @param sku item sku
+     * @param partitionNumber number of partitions
+     * @return partition of the sku
+     */
+    public static int partitionOf(int sku, int partitionNumber) {
+        int hash = sku * 0x9E3779B9;                        // spreads sequential skus
+        return ((hash ^ (hash >>> 16)) & Integer.MAX_VALUE) % partitionNumber;
+    }
+
+    public int partitionOf(int sku) {
+        return partitionOf(sku, owners.length);
+    }
+
+    /**
+     * @param partition partition index
+     * @return index of the node, which owns the partition
+     */
+    public int ownerOf(int partition) {
+        return owners[partition];
+    }
+
+    /**
+     * @param sku item sku
+     * @return node, which owns the partition of the sku
+     */
+    public Node nodeFor(int sku) {
+        return nodes.get(owners[partitionOf(sku)]);
+    }
+
+    /**
+     * @param partition partition index
+     * @param node index of the new owner
+     * @return map of the next version, in which the partition is owned by the node
+     */
+    public PartitionMap withOwner(int partition, int node) {
+        int[] next = new int[owners.length];
+        for (int i = 0; i < owners.length; i++) next[i] = owners[i];
+        next[partition] = node;
+        return new PartitionMap(version + 1, nodes, next);
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getPartitionNumber() {
+        return owners.length;
+    }
+
+    public int getNodeNumber() {
+        return nodes.size();
+    }
+
+    public Node getNode(int idx) {
+        return nodes.get(idx);
+    }
+
+    /**
+     * @return number of bytes of the encoded map
+     */
+    public int getEncodedSize() {
+        int size = 4 + 2 + 2 + owners.length;
+        for (Node node: nodes) size += 1 + node.host.length() + 2 + 2;
+        return size;
+    }
+
+    public void putToBuffer(ByteBuffer buffer) {
+        buffer.putInt(version);
+        buffer.putShort((short) owners.length);
+        buffer.putShort((short) nodes.size());
+        for (Node node: nodes) {
+            byte[] host = node.host.getBytes(ASCII);
+            buffer.put((byte) host.length);
+            buffer.put(host);
+            buffer.putShort((short) node.port);
+            buffer.putShort((short) node.clusterPort);
+        }
+        buffer.put(owners);
+    }
+
+    public static PartitionMap fromByteBuffer(ByteBuffer buffer) {
+        int version = buffer.getInt();
+        int partitionNumber = buffer.getShort() & 0xFFFF;
+        int nodeNumber = buffer.getShort() & 0xFFFF;
+
+        List<Node> nodes = new ArrayList<Node>(nodeNumber);
+        for (int i = 0; i < nodeNumber; i++) {
+            byte[] host = new byte[buffer.get() & 0xFF];
+            buffer.get(host);
+            nodes.add(new Node(new String(host, ASCII), buffer.getShort() & 0xFFFF, buffer.getShort() & 0xFFFF));
+        }
+        int[] owners = new int[partitionNumber];
+        for (int i = 0; i < partitionNumber; i++) owners[i] = buffer.get() & 0xFF;
+        return new PartitionMap(version, nodes, owners);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        PartitionMap map = (PartitionMap) o;
+        return version == map.version && nodes.equals(map.nodes) && Arrays.equals(owners, map.owners);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = version;
+        result = 31 * result + nodes.hashCode();
+        result = 31 * result + Arrays.hashCode(owners);
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return "PartitionMap{version=" + version + ", partitions=" + owners.length + ", nodes=" + nodes + "}";
+    }
+
+    /**
+     * Cluster node: host, port for clients and port for other nodes.
+     */
+    public static final class Node {
+        private final String host;
+        private final int port;
+        private final int clusterPort;
+
+        public Node(String host, int port, int clusterPort) {
+            if (host.length() == 0 || host.length() > MAX_HOST_LENGTH)
+                throw new IllegalArgumentException("host should have 1 to " + MAX_HOST_LENGTH + " characters");
+            this.host = host;
+            this.port = port;
+            this.clusterPort = clusterPort;
+        }
+
+        /**
+         * Parses node of the <i>host:port:clusterPort</i> form.
+         *
+         * @param node node description
+         * @return node
+         */
+        public static Node parse(String node) {
+            String[] parts = node.split(":");
+            if (parts.length != 3) throw new IllegalArgumentException("node should be described as host:port:clusterPort");
+            return new Node(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2]));
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public int getClusterPort() {
+            return clusterPort;
+        }
+
+        public InetSocketAddress getAddress() {
+            return new InetSocketAddress(host, port);
+        }
+
+        public InetSocketAddress getClusterAddress() {
+            return new InetSocketAddress(host, clusterPort);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Node node = (Node) o;
+            return port == node.port && clusterPort == node.clusterPort && host.equals(node.host);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = host.hashCode();
+            result = 31 * result + port;
+            result = 31 * result + clusterPort;
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port + ":" + clusterPort;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.services.availability.protocol.binary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view of a request frame: fields are read straight from the
+ * buffer the frame was received into, so decoding allocates nothing. The
+ * same instance is re-wrapped for every frame; it is valid as long as the
+ * bytes of the frame stay in the buffer.
+ *
+ * Fields follow the layout of {@link BinaryRequest}; batch frames have
+ * the request type and ID only. Unknown request type is reported as null
+ * instead of an exception.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-11 10:00
+ */
+public class RequestFlyweight {
+    private static final int TYPE_OFFSET = 0;               // byte
+    private static final int REQUEST_ID_OFFSET = 1;         // int
+    private static final int SKU_OFFSET = 5;                // int
+    private static final int STORE_OFFSET = 9;              // short
+    private static final int AMOUNT_OFFSET = 11;            // int
+    private static final int EXPECTED_AMOUNT_OFFSET = 15;   // int, COMPARE_AND_SET only
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    /**
+     * Points the view to the frame.
+     *
+     * @param buffer buffer with the frame
+     * @param offset absolute index of the first byte of the frame
+     * @return this
+     */
+    public RequestFlyweight wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * @return request type, or null if the code is unknown
+     */
+    public BinaryRequestType getRequestType() {
+        return BinaryRequestType.forCode(buffer.get(offset + TYPE_OFFSET));
+    }
+
+    public int getRequestId() {
+        return buffer.getInt(offset + REQUEST_ID_OFFSET);
+    }
+
+    public int getSku() {
+        return buffer.getInt(offset + SKU_OFFSET);
+    }
+
+    public short getStore() {
+        return buffer.getShort(offset + STORE_OFFSET);
+    }
+
+    public int getAmount() {
+        return buffer.getInt(offset + AMOUNT_OFFSET);
+    }
+
+    /**
+     * @return expected amount of a COMPARE_AND_SET request
+     */
+    public int getExpectedAmount() {
+        return buffer.getInt(offset + EXPECTED_AMOUNT_OFFSET);
+    }
+
+    /**
+     * @return length of a single item frame of the request type; batch
+     *         frames are measured with {@link BinaryRequest#frameSize(ByteBuffer)}
+     */
+    public int getFrameSize() {
+        return getRequestType() == BinaryRequestType.COMPARE_AND_SET
+                ? BinaryCompareAndSetRequest.COMPARE_AND_SET_REQUEST_SIZE : BinaryRequest.REQUEST_SIZE;
+    }
+}
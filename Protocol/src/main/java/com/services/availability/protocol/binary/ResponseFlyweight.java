@@ -0,0 +1,111 @@
+package com.services.availability.protocol.binary;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view of a single item response frame: fields are written
+ * straight into the output buffer (or read from the input one), so
+ * encoding allocates nothing. The same instance is re-wrapped for every
+ * frame. Layout is the one of {@link BinaryResponse}.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-11 10:20
+ */
+public class ResponseFlyweight {
+    private static final int TYPE_OFFSET = 0;               // byte
+    private static final int ERROR_CODE_OFFSET = 1;         // byte
+    private static final int REQUEST_ID_OFFSET = 2;         // int
+    private static final int SKU_OFFSET = 6;                // int
+    private static final int STORE_OFFSET = 10;             // short
+    private static final int AMOUNT_OFFSET = 12;            // int
+
+    private ByteBuffer buffer;
+    private int offset;
+
+    /**
+     * Points the view to the current position of the buffer, where the
+     * frame is written to.
+     *
+     * @param buffer output buffer, should have at least RESPONSE_SIZE bytes remaining
+     * @return this
+     */
+    public ResponseFlyweight wrap(ByteBuffer buffer) {
+        return wrap(buffer, buffer.position());
+    }
+
+    /**
+     * Points the view to the frame.
+     *
+     * @param buffer buffer with the frame
+     * @param offset absolute index of the first byte of the frame
+     * @return this
+     */
+    public ResponseFlyweight wrap(ByteBuffer buffer, int offset) {
+        this.buffer = buffer;
+        this.offset = offset;
+        return this;
+    }
+
+    /**
+     * Writes all fields of the response.
+     *
+     * @return this
+     */
+    public ResponseFlyweight set(BinaryRequestType requestType, BinaryErrorCodes errorCode, int requestId,
+                                 int sku, short store, int amount) {
+        buffer.put(offset + TYPE_OFFSET, requestType.getCode());
+        buffer.put(offset + ERROR_CODE_OFFSET, errorCode.getCode());
+        buffer.putInt(offset + REQUEST_ID_OFFSET, requestId);
+        buffer.putInt(offset + SKU_OFFSET, sku);
+        buffer.putShort(offset + STORE_OFFSET, store);
+        buffer.putInt(offset + AMOUNT_OFFSET, amount);
+        return this;
+    }
+
+    /**
+     * Writes an error response, which has no item fields.
+     *
+     * @return this
+     */
+    public ResponseFlyweight setError(BinaryRequestType requestType, BinaryErrorCodes errorCode, int requestId) {
+        return set(requestType, errorCode, requestId, -1, (short) -1, -1);
+    }
+
+    /**
+     * Moves the position of the buffer past the frame.
+     */
+    public void commit() {
+        buffer.position(offset + BinaryResponse.RESPONSE_SIZE);
+    }
+
+    /**
+     * @return request type, or null if the code is unknown
+     */
+    public BinaryRequestType getRequestType() {
+        return BinaryRequestType.forCode(buffer.get(offset + TYPE_OFFSET));
+    }
+
+    /**
+     * @return error code, or null if the code is unknown
+     */
+    public BinaryErrorCodes getErrorCode() {
+        return BinaryErrorCodes.forCode(buffer.get(offset + ERROR_CODE_OFFSET));
+    }
+
+    public int getRequestId() {
+        return buffer.getInt(offset + REQUEST_ID_OFFSET);
+    }
+
+    public int getSku() {
+        return buffer.getInt(offset + SKU_OFFSET);
+    }
+
+    public short getStore() {
+        return buffer.getShort(offset + STORE_OFFSET);
+    }
+
+    public int getAmount() {
+        return buffer.getInt(offset + AMOUNT_OFFSET);
+    }
+}
@@ -3,8 +3,10 @@ package com.services.availability.protocol.binary;
 import org.junit.Test;
 
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 /**
  * @author Roman Reva
@@ -14,11 +16,11 @@ import static org.junit.Assert.assertEquals;
 public class SerializationTests {
     @Test
     public void requestSerializationTest() {
-        BinaryRequest request = new BinaryRequest(BinaryRequestType.GET, 124010, (short)1202, 5829);
+        BinaryRequest request = new BinaryRequest(BinaryRequestType.GET, 77, 124010, (short)1202, 5829);
         ByteBuffer byteBuffer = ByteBuffer.allocate(16);
         request.putToBuffer(byteBuffer);
 
-        assertEquals(11, byteBuffer.position());
+        assertEquals(BinaryRequest.REQUEST_SIZE, byteBuffer.position());
 
         byteBuffer.flip();
         BinaryRequest restoredRequest = BinaryRequest.fromByteBuffer(byteBuffer);
@@ -27,6 +29,7 @@ public class SerializationTests {
         assert request.equals(restoredRequest);
 
         assertEquals(request.getRequestType(), restoredRequest.getRequestType());
+        assertEquals(request.getRequestId(), restoredRequest.getRequestId());
         assertEquals(request.getSku(), restoredRequest.getSku());
         assertEquals(request.getStore(), restoredRequest.getStore());
         assertEquals(request.getAmount(), restoredRequest.getAmount());
@@ -35,10 +38,11 @@ public class SerializationTests {
     @Test
     public void responseSerializationTest() {
         BinaryResponse response = new BinaryResponse(BinaryRequestType.GET, BinaryErrorCodes.ITEM_NOT_FOUND, 124010, (short)1202, -1);
+        response.setRequestId(77);
         ByteBuffer byteBuffer = ByteBuffer.allocate(16);
         response.putToBuffer(byteBuffer);
 
-        assertEquals(12, byteBuffer.position());
+        assertEquals(BinaryResponse.RESPONSE_SIZE, byteBuffer.position());
 
         byteBuffer.flip();
         BinaryResponse restoredResponse = BinaryResponse.fromByteBuffer(byteBuffer);
@@ -48,6 +52,7 @@ public class SerializationTests {
 
         assertEquals(response.getRequestType(), restoredResponse.getRequestType());
         assertEquals(response.getErrorCode(), restoredResponse.getErrorCode());
+        assertEquals(77, restoredResponse.getRequestId());
         assertEquals(response.getSku(), restoredResponse.getSku());
         assertEquals(response.getStore(), restoredResponse.getStore());
         assertEquals(response.getAmount(), restoredResponse.getAmount());
@@ -55,4 +60,161 @@ public class SerializationTests {
         assert response.isError();
         assert !response.isSuccess();
     }
+
+    @Test
+    public void batchRequestSerializationTest() {
+        BinaryBatchRequest request = new BinaryBatchRequest(BinaryRequestType.MPUT, 78,
+                new int[] {124010, 124011, 124012}, new short[] {1, 2, 3}, new int[] {10, 20, 30});
+        ByteBuffer byteBuffer = ByteBuffer.allocate(request.getFrameSize());
+        request.putToBuffer(byteBuffer);
+
+        assertEquals(BinaryBatchRequest.BATCH_HEADER_SIZE + 3 * BinaryBatchRequest.BATCH_ITEM_SIZE, byteBuffer.position());
+
+        byteBuffer.flip();
+        byteBuffer.limit(BinaryBatchRequest.BATCH_HEADER_SIZE - 1);
+        assertEquals(-1, BinaryRequest.frameSize(byteBuffer));          // header is not complete yet
+        byteBuffer.limit(byteBuffer.capacity());
+        assertEquals(request.getFrameSize(), BinaryRequest.frameSize(byteBuffer));
+
+        BinaryRequest restoredRequest = BinaryRequest.fromByteBuffer(byteBuffer);
+        assertEquals(request, restoredRequest);
+        assertEquals(30, ((BinaryBatchRequest) restoredRequest).getAmount(2));
+        assertEquals(0, byteBuffer.remaining());
+    }
+
+    @Test
+    public void batchResponseSerializationTest() {
+        BinaryBatchResponse response = new BinaryBatchResponse(BinaryRequestType.MGET, 2);
+        response.setResult(0, BinaryErrorCodes.SUCCESS, 124010, (short) 1, 10);
+        response.setResult(1, BinaryErrorCodes.ITEM_NOT_FOUND, 124011, (short) 2, -1);
+        response.setRequestId(79);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(response.getFrameSize());
+        response.putToBuffer(byteBuffer);
+
+        byteBuffer.flip();
+        BinaryBatchResponse restoredResponse = (BinaryBatchResponse) BinaryResponse.fromByteBuffer(byteBuffer);
+        assertEquals(response, restoredResponse);
+        assertEquals(79, restoredResponse.getRequestId());
+        assertEquals(BinaryErrorCodes.ITEM_NOT_FOUND, restoredResponse.getErrorCode(1));
+        assertEquals(10, restoredResponse.getAmount(0));
+
+        BinaryResponse busy = BinaryResponse.errorFor(new BinaryBatchRequest(BinaryRequestType.MGET, 80,
+                new int[] {1, 2}, new short[] {1, 1}, new int[] {0, 0}), BinaryErrorCodes.BUSY);
+        assertEquals(BinaryBatchResponse.frameSize(2), busy.getFrameSize());
+        assertEquals(BinaryErrorCodes.BUSY, ((BinaryBatchResponse) busy).getErrorCode(1));
+    }
+
+    @Test
+    public void compareAndSetRequestSerializationTest() {
+        BinaryCompareAndSetRequest request = new BinaryCompareAndSetRequest(81, 124010, (short) 1202, 15, 12);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(request.getFrameSize());
+        request.putToBuffer(byteBuffer);
+
+        assertEquals(BinaryCompareAndSetRequest.COMPARE_AND_SET_REQUEST_SIZE, byteBuffer.position());
+
+        byteBuffer.flip();
+        assertEquals(request.getFrameSize(), BinaryRequest.frameSize(byteBuffer));
+
+        BinaryRequest restoredRequest = BinaryRequest.fromByteBuffer(byteBuffer);
+        assertEquals(request, restoredRequest);
+        assertEquals(15, ((BinaryCompareAndSetRequest) restoredRequest).getExpectedAmount());
+        assertEquals(12, restoredRequest.getAmount());
+        assertEquals(0, byteBuffer.remaining());
+    }
+
+    @Test
+    public void scanResponseSerializationTest() {
+        BinaryRequest request = new BinaryRequest(BinaryRequestType.SCAN_SKU, 82, 124010, (short) 0, 0);
+        assertEquals(BinaryBatchResponse.frameSize(BinaryBatchRequest.MAX_BATCH_SIZE), request.getResponseFrameSize());
+
+        BinaryBatchResponse response = new BinaryBatchResponse(BinaryRequestType.SCAN_SKU, 3);
+        for (int i = 0; i < 3; i++) response.setResult(i, BinaryErrorCodes.SUCCESS, 124010, (short) i, i * 5);
+        response.setRequestId(82);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(response.getFrameSize());
+        response.putToBuffer(byteBuffer);
+
+        byteBuffer.flip();
+        byteBuffer.limit(BinaryBatchResponse.BATCH_HEADER_SIZE - 1);
+        assertEquals(-1, BinaryResponse.frameSize(byteBuffer));         // header is not complete yet
+        byteBuffer.limit(byteBuffer.capacity());
+        assertEquals(response.getFrameSize(), BinaryResponse.frameSize(byteBuffer));
+        assertEquals(response, BinaryResponse.fromByteBuffer(byteBuffer));
+
+        BinaryResponse error = BinaryResponse.errorFor(request, BinaryErrorCodes.BUSY);
+        assertEquals(BinaryBatchResponse.frameSize(0), error.getFrameSize());
+    }
+
+    @Test
+    public void flyweightTest() {
+        ByteBuffer byteBuffer = ByteBuffer.allocate(64);
+        byteBuffer.position(3);                                         // frames do not have to start at 0
+        new BinaryRequest(BinaryRequestType.PUT, 83, 124010, (short) 1202, 5829).putToBuffer(byteBuffer);
+        new BinaryCompareAndSetRequest(84, 124011, (short) 1203, 10, 20).putToBuffer(byteBuffer);
+
+        RequestFlyweight request = new RequestFlyweight().wrap(byteBuffer, 3);
+        assertEquals(BinaryRequestType.PUT, request.getRequestType());
+        assertEquals(83, request.getRequestId());
+        assertEquals(124010, request.getSku());
+        assertEquals(1202, request.getStore());
+        assertEquals(5829, request.getAmount());
+        assertEquals(BinaryRequest.REQUEST_SIZE, request.getFrameSize());
+
+        request.wrap(byteBuffer, 3 + BinaryRequest.REQUEST_SIZE);
+        assertEquals(BinaryRequestType.COMPARE_AND_SET, request.getRequestType());
+        assertEquals(10, request.getExpectedAmount());
+        assertEquals(20, request.getAmount());
+        assertEquals(BinaryCompareAndSetRequest.COMPARE_AND_SET_REQUEST_SIZE, request.getFrameSize());
+
+        byteBuffer.put(0, (byte) 99);
+        assertEquals(null, request.wrap(byteBuffer, 0).getRequestType());          // unknown type, no exception
+
+        byteBuffer.clear();
+        ResponseFlyweight response = new ResponseFlyweight().wrap(byteBuffer);
+        response.set(BinaryRequestType.GET, BinaryErrorCodes.SUCCESS, 85, 124010, (short) 1202, 5829).commit();
+        response.wrap(byteBuffer).setError(BinaryRequestType.GET, BinaryErrorCodes.ITEM_NOT_FOUND, 86).commit();
+        assertEquals(2 * BinaryResponse.RESPONSE_SIZE, byteBuffer.position());
+
+        byteBuffer.flip();
+        BinaryResponse expected = new BinaryResponse(BinaryRequestType.GET, 124010, (short) 1202, 5829);
+        expected.setRequestId(85);
+        assertEquals(expected, BinaryResponse.fromByteBuffer(byteBuffer));
+        expected = new BinaryResponse(BinaryRequestType.GET, BinaryErrorCodes.ITEM_NOT_FOUND);
+        expected.setRequestId(86);
+        assertEquals(expected, BinaryResponse.fromByteBuffer(byteBuffer));
+
+        assertEquals(null, BinaryErrorCodes.forCode(99));
+        assertEquals(BinaryErrorCodes.BUSY, BinaryErrorCodes.forCode(4));
+    }
+
+    @Test
+    public void partitionMapResponseSerializationTest() {
+        PartitionMap map = PartitionMap.uniform(16, Arrays.asList(
+                PartitionMap.Node.parse("node-1:8888:9888"), PartitionMap.Node.parse("node-2:8889:9889")));
+        PartitionMap next = map.withOwner(3, 0);
+        assertEquals(2, next.getVersion());
+        assertEquals(0, next.ownerOf(3));
+        assertEquals(1, map.ownerOf(3));
+
+        BinaryRequest request = new BinaryRequest(BinaryRequestType.PARTITION_MAP, 87, 0, (short) 0, 0);
+        assertEquals(BinaryPartitionMapResponse.MAX_FRAME_SIZE, request.getResponseFrameSize());
+        assertTrue(request.getResponseFrameSize() >= new BinaryPartitionMapResponse(next).getFrameSize());
+
+        BinaryPartitionMapResponse response = new BinaryPartitionMapResponse(next);
+        response.setRequestId(87);
+        ByteBuffer byteBuffer = ByteBuffer.allocate(response.getFrameSize());
+        response.putToBuffer(byteBuffer);
+        assertEquals(response.getFrameSize(), byteBuffer.position());
+
+        byteBuffer.flip();
+        assertEquals(response.getFrameSize(), BinaryResponse.frameSize(byteBuffer));
+        BinaryPartitionMapResponse restored = (BinaryPartitionMapResponse) BinaryResponse.fromByteBuffer(byteBuffer);
+        assertEquals(response, restored);
+        assertEquals(87, restored.getRequestId());
+        assertEquals(next, restored.getPartitionMap());
+        assertEquals(next.nodeFor(124010), restored.getPartitionMap().nodeFor(124010));
+
+        BinaryResponse error = BinaryResponse.errorFor(request, BinaryErrorCodes.UNKNOWN_REQUEST);
+        assertEquals(BinaryPartitionMapResponse.MAP_HEADER_SIZE, error.getFrameSize());
+        assertEquals(BinaryErrorCodes.WRONG_PARTITION, BinaryErrorCodes.forCode(8));
+    }
 }
@@ -1,17 +1,59 @@
 package com.services.availability;
 
+import com.services.availability.cluster.ClusterNode;
+import com.services.availability.protocol.binary.PartitionMap;
+import com.services.availability.replication.ReplicationFollower;
+import com.services.availability.replication.ReplicationServer;
 import com.services.availability.server.AbstractServer;
 import com.services.availability.server.BinaryMultiThreadServer;
 import com.services.availability.server.BinarySingleThreadServer;
 import com.services.availability.server.RequestProcessor;
+import com.services.availability.server.VirtualThreadServer;
 import com.services.availability.storage.CachedLoggedStorage;
 import com.services.availability.storage.InMemoryStorage;
+import com.services.availability.storage.ShardedStorage;
 import com.services.availability.storage.Storage;
+import com.services.availability.storage.SwitchableStorage;
+import com.services.availability.storage.btree.BTreeMMap;
+import com.services.availability.storage.ccl.commitlog.AsyncCommitLog;
+import com.services.availability.storage.ccl.commitlog.CommitLog;
+import com.services.availability.storage.ccl.commitlog.CommitLogCompactor;
+import com.services.availability.storage.ccl.commitlog.CommitLogReader;
+import com.services.availability.storage.hashmmap.BulkLoadWatcher;
+import com.services.availability.storage.hashmmap.BulkLoader;
+import com.services.availability.storage.hashmmap.ConcurrentHashMMap;
+import com.services.availability.storage.hashmmap.HashMMap;
+import com.services.availability.utils.IoThrottle;
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Availability service launcher. Without arguments a standalone server is
+ * started on port 8888. Replicated setup is started with:
+ * <pre>
+ *   AvailabilityService primary &lt;port&gt; &lt;replicationPort&gt; [logDirectory]
+ *   AvailabilityService follower &lt;port&gt; &lt;primaryHost&gt; &lt;primaryReplicationPort&gt;
+ * </pre>
+ * Node of a partitioned cluster is started with its index in the list of
+ * nodes, the number of partitions and the list, which should be the same
+ * on all nodes:
+ * <pre>
+ *   AvailabilityService node &lt;nodeId&gt; &lt;partitions&gt; &lt;host:port:clusterPort&gt;[,&lt;host:port:clusterPort&gt;...]
+ * </pre>
+ * Standalone server, which is refreshed with storage files built by the
+ * {@link BulkLoader} and dropped next to <i>data.dat</i>, is started with:
+ * <pre>
+ *   AvailabilityService mapped &lt;port&gt;
+ * </pre>
+ * All roles keep items in <i>data.dat</i> of the working directory, so
+ * processes on the same host should be started in different directories.
+ *
  * @author Roman Reva
  * @version 1.0
  * @since 2014-07-17 14:47
@@ -19,8 +61,18 @@ import java.io.IOException;
 public class AvailabilityService {
     private Logger logger = Logger.getLogger(AvailabilityService.class);
 
+    private static final String FOLLOWER_SEQUENCE_FILE = "applied.seq";        // sequence applied to data.dat by a follower
+    private static final long COMPACTION_INTERVAL = 10;                         // minutes
+    private static final long COMPACTION_BYTES_PER_SECOND = 32 * 1024 * 1024;   // I/O budget of the commit log compaction
+
     private final AbstractServer server;
     private final Storage storage;
+    private AsyncCommitLog commitLog = null;
+    private CommitLogCompactor compactor = null;
+    private ReplicationServer replicationServer = null;
+    private ReplicationFollower replicationFollower = null;
+    private ClusterNode clusterNode = null;
+    private BulkLoadWatcher bulkLoadWatcher = null;
 
     /**
      * Default constructor. Builds up all main components.
@@ -28,9 +80,122 @@ public class AvailabilityService {
     private AvailabilityService() {
         storage = new InMemoryStorage(7);
 //        server = new BinarySingleThreadServer();
+//        server = new VirtualThreadServer();
+        server = new BinaryMultiThreadServer(32);
+//        server.setUnixSocketPath("/tmp/availability.sock");  // for clients on the same host, alongside TCP
+
+        // ordered storage, which answers SCAN_SKU with a single range scan
+//        storage = new BTreeMMap();
+
+        // shared-nothing alternative: a worker thread per storage shard
+//        storage = new ShardedStorage(8);
+//        server = new BinaryMultiThreadServer(8);
+//        ((BinaryMultiThreadServer) server).setKeyAffinity(true);
+
+        RequestProcessor requestProcessor = new RequestProcessor(server.getThroughputMeter(), storage);
+        server.setRequestProcessor(requestProcessor);
+
+        addShutdownHook();
+    }
+
+    /**
+     * Replication primary: mutations are acknowledged when durable in the
+     * commit log, which is streamed to followers over the replication port.
+     * Sealed files of the commit log are compacted in the background.
+     *
+     * @param port client port
+     * @param replicationPort replication port
+     * @param logDirectory commit log directory
+     * @throws IOException
+     */
+    private AvailabilityService(int port, int replicationPort, File logDirectory) throws IOException {
+        storage = new ConcurrentHashMMap();
+        server = new BinaryMultiThreadServer(32);
+        server.setPort(port);
+
+        CommitLogReader reader = CommitLogReader.forDirectory(logDirectory);
+        try {
+            reader.replay(storage);
+        } finally {
+            reader.close();
+        }
+        commitLog = new AsyncCommitLog(new CommitLog(logDirectory, reader.getLastSequence() + 1));
+        compactor = new CommitLogCompactor(commitLog.getCommitLog(), new IoThrottle(COMPACTION_BYTES_PER_SECOND));
+        replicationServer = new ReplicationServer(commitLog, replicationPort);
+
+        RequestProcessor requestProcessor = new RequestProcessor(server.getThroughputMeter(), storage);
+        requestProcessor.setCommitLog(commitLog);
+        server.setRequestProcessor(requestProcessor);
+
+        addShutdownHook();
+    }
+
+    /**
+     * Replication follower: serves reads from a replica of the primary
+     * storage and rejects mutations. The sequence applied to <i>data.dat</i>
+     * is kept next to it, so that a restarted follower gets only the records
+     * it has not applied yet.
+     *
+     * @param port client port
+     * @param primaryAddress replication address of the primary
+     * @throws IOException if the applied sequence cannot be read
+     */
+    private AvailabilityService(int port, InetSocketAddress primaryAddress) throws IOException {
+        File sequenceFile = new File(FOLLOWER_SEQUENCE_FILE);
+        if (!new File(HashMMap.STORAGE_FILE).exists() && sequenceFile.exists() && !sequenceFile.delete()) {
+            throw new IOException("Stale applied sequence " + sequenceFile + " cannot be deleted");
+        }
+        storage = new ConcurrentHashMMap();
+        server = new BinaryMultiThreadServer(32);
+        server.setPort(port);
+
+        replicationFollower = new ReplicationFollower(primaryAddress, storage, ReplicationFollower.readSequence(sequenceFile));
+        replicationFollower.setSequenceFile(sequenceFile);
+
+        RequestProcessor requestProcessor = new RequestProcessor(server.getThroughputMeter(), storage);
+        requestProcessor.setReadOnly(true);
+        server.setRequestProcessor(requestProcessor);
+
+        addShutdownHook();
+    }
+
+    /**
+     * Standalone server on the mapped storage file, which switches to the
+     * files built by the bulk loader.
+     *
+     * @param port client port
+     */
+    private AvailabilityService(int port) {
+        SwitchableStorage storage = new SwitchableStorage(new ConcurrentHashMMap());
+        this.storage = storage;
         server = new BinaryMultiThreadServer(32);
+        server.setPort(port);
+
+        bulkLoadWatcher = new BulkLoadWatcher(new File(HashMMap.STORAGE_FILE), storage);
+
+        RequestProcessor requestProcessor = new RequestProcessor(server.getThroughputMeter(), storage);
+        server.setRequestProcessor(requestProcessor);
+
+        addShutdownHook();
+    }
+
+    /**
+     * Node of a partitioned cluster: serves the partitions assigned to it by
+     * the initial map and takes part in partition migrations.
+     *
+     * @param nodeId index of the node in the map
+     * @param partitionMap initial partition map
+     */
+    private AvailabilityService(int nodeId, PartitionMap partitionMap) {
+        ConcurrentHashMMap storage = new ConcurrentHashMMap();
+        this.storage = storage;
+        server = new BinaryMultiThreadServer(32);
+        server.setPort(partitionMap.getNode(nodeId).getPort());
+
+        clusterNode = new ClusterNode(nodeId, partitionMap, storage);
 
         RequestProcessor requestProcessor = new RequestProcessor(server.getThroughputMeter(), storage);
+        requestProcessor.setClusterNode(clusterNode);
         server.setRequestProcessor(requestProcessor);
 
         addShutdownHook();
@@ -46,12 +211,20 @@ public class AvailabilityService {
             public void run() {
                 logger.debug("shutdown event registered.");
                 try {
+                    if (replicationFollower != null) replicationFollower.stop();
+                    if (bulkLoadWatcher != null) bulkLoadWatcher.stop();
                     server.shutdown();
                     logger.debug("server is shut down");
+                    if (clusterNode != null) clusterNode.stop();
+                    if (replicationServer != null) replicationServer.stop();
+                    if (compactor != null) compactor.shutdown();
+                    if (commitLog != null) commitLog.close();
                     storage.prepareForShutdown();
                     logger.debug("storage is ready for shut down");
                 } catch (IOException e) {
                     logger.error("Error during server shutdown", e);
+                } catch (InterruptedException e) {
+                    logger.error("Interrupted during server shutdown", e);
                 }
             }
         });
@@ -63,6 +236,11 @@ public class AvailabilityService {
      * @throws IOException
      */
     public void startService() throws IOException {
+        if (replicationServer != null) replicationServer.start();
+        if (compactor != null) compactor.start(COMPACTION_INTERVAL, TimeUnit.MINUTES);
+        if (replicationFollower != null) replicationFollower.start();
+        if (clusterNode != null) clusterNode.start();
+        if (bulkLoadWatcher != null) bulkLoadWatcher.start();
         server.startup();
     }
 
@@ -73,6 +251,27 @@ public class AvailabilityService {
      * @throws IOException
      */
     public static void main(String[] args) throws IOException {
-        new AvailabilityService().startService();
+        if (args.length == 0) {
+            new AvailabilityService().startService();
+        } else if (args[0].equals("primary") && (args.length == 3 || args.length == 4)) {
+            File logDirectory = new File(args.length == 4 ? args[3] : "commitlog");
+            new AvailabilityService(Integer.parseInt(args[1]), Integer.parseInt(args[2]), logDirectory).startService();
+        } else if (args[0].equals("follower") && args.length == 4) {
+            InetSocketAddress primaryAddress = new InetSocketAddress(args[2], Integer.parseInt(args[3]));
+            new AvailabilityService(Integer.parseInt(args[1]), primaryAddress).startService();
+        } else if (args[0].equals("mapped") && args.length == 2) {
+            new AvailabilityService(Integer.parseInt(args[1])).startService();
+        } else if (args[0].equals("node") && args.length == 4) {
+            List<PartitionMap.Node> nodes = new ArrayList<PartitionMap.Node>();
+            for (String node: args[3].split(",")) nodes.add(PartitionMap.Node.parse(node));
+            PartitionMap partitionMap = PartitionMap.uniform(Integer.parseInt(args[2]), nodes);
+            new AvailabilityService(Integer.parseInt(args[1]), partitionMap).startService();
+        } else {
+            System.err.println("Usage: AvailabilityService [primary <port> <replicationPort> [logDirectory]"
+                    + " | follower <port> <primaryHost> <primaryReplicationPort>"
+                    + " | mapped <port>"
+                    + " | node <nodeId> <partitions> <host:port:clusterPort>[,<host:port:clusterPort>...]]");
+            System.exit(1);
+        }
     }
 }
@@ -0,0 +1,505 @@
+package com.services.availability.cluster;
+
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.protocol.binary.BinaryErrorCodes;
+import com.services.availability.protocol.binary.PartitionMap;
+import com.services.availability.storage.IterableStorage;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Node of a partitioned cluster. Owns the partitions assigned to it by the
+ * {@link PartitionMap}; requests for items of other partitions are
+ * rejected with WRONG_PARTITION, so that clients refresh the map and route
+ * them to the owner.
+ *
+ * A partition is moved to another node online, see
+ * {@link #migratePartition(int, int)}. Migrations requested by clients are
+ * run by the migration thread of the node, see
+ * {@link #submitMigration(int, int)}, so that request workers are not
+ * blocked for the duration of a migration. The owner streams all items of the
+ * partition to the target over the cluster port while still serving it.
+ * Keys written meanwhile are collected into the tail of the migration,
+ * which is streamed in rounds with the current values of the keys. When
+ * the tail is short, writes of the partition are briefly rejected with
+ * BUSY, the rest of the tail is streamed, and the target installs the
+ * next map version, in which it owns the partition. Reads are never
+ * interrupted. The new map is then sent to the rest of the nodes.
+ *
+ * Messages of the cluster port: PUT (key and amount), REMOVE (key), BEGIN
+ * (partition, clears the partition on the target before a migration) and
+ * MAP (encoded partition map, answered with ACK once installed, or with
+ * NACK if the receiver already has a map of the same or a newer version).
+ *
+ * Two owners could migrate partitions to the same target at once and
+ * build next maps of the same version; the target installs the first one
+ * and rejects the second. The second migration is aborted then: its source
+ * keeps the partition, and the target drops the items streamed to it. The
+ * source learns the map of the first migration from its broadcast.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-15 12:00
+ */
+public class ClusterNode {
+    private static final Logger log = Logger.getLogger(ClusterNode.class);
+
+    public static final byte MSG_PUT = 1;
+    public static final byte MSG_REMOVE = 2;
+    public static final byte MSG_BEGIN = 3;
+    public static final byte MSG_MAP = 4;
+    public static final byte ACK = 1;
+    public static final byte NACK = 0;
+
+    public static final int FREEZE_THRESHOLD = 64;          // max tail size to be streamed with writes frozen
+    public static final int MAX_TAIL_ROUNDS = 16;           // tail rounds before writes are frozen anyway
+
+    private final int nodeId;
+    private final IterableStorage storage;
+    private volatile PartitionMap partitionMap;
+
+    private final AtomicIntegerArray writesInFlight;        // per partition
+    private final AtomicIntegerArray frozen;                // per partition; 1, if writes are rejected for a hand-over
+    private final AtomicReferenceArray<Set<Long>> tails;    // per partition; keys written during a migration
+
+    private final Object migrationLock = new Object();      // one migration at a time; maps are installed under `this`
+    private final ExecutorService migrationExecutor;
+    private volatile boolean isRunning = false;
+    private ServerSocket serverSocket;
+    private Thread acceptorThread;
+
+    /**
+     * Constructor.
+     *
+     * @param nodeId index of the node in the partition map
+     * @param partitionMap initial partition map
+     * @param storage storage of the node
+     */
+    public ClusterNode(int nodeId, PartitionMap partitionMap, IterableStorage storage) {
+        if (nodeId < 0 || nodeId >= partitionMap.getNodeNumber()) throw new IllegalArgumentException("Node " + nodeId + " is not in the map");
+
+        this.nodeId = nodeId;
+        this.partitionMap = partitionMap;
+        this.storage = storage;
+        this.writesInFlight = new AtomicIntegerArray(partitionMap.getPartitionNumber());
+        this.frozen = new AtomicIntegerArray(partitionMap.getPartitionNumber());
+        this.tails = new AtomicReferenceArray<Set<Long>>(partitionMap.getPartitionNumber());
+        this.migrationExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "cluster-migration");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Opens the cluster port of the node and starts accepting other nodes.
+     *
+     * @throws IOException if the port cannot be opened
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(partitionMap.getNode(nodeId).getClusterPort()));
+        isRunning = true;
+
+        acceptorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "cluster-acceptor");
+        acceptorThread.setDaemon(true);
+        acceptorThread.start();
+        log.debug("Node " + nodeId + " is listening on cluster port " + serverSocket.getLocalPort());
+    }
+
+    public void stop() throws InterruptedException {
+        isRunning = false;
+        migrationExecutor.shutdown();
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            log.error("Cannot close cluster port", e);
+        }
+        if (acceptorThread != null) acceptorThread.join();
+    }
+
+    public int getNodeId() {
+        return nodeId;
+    }
+
+    public PartitionMap getPartitionMap() {
+        return partitionMap;
+    }
+
+    /**
+     * Installs the map, if it is newer than the current one.
+     *
+     * @param map partition map
+     * @return true, if the map is installed
+     */
+    public synchronized boolean installMap(PartitionMap map) {
+        if (map.getVersion() <= partitionMap.getVersion()) return false;
+        if (map.getPartitionNumber() != partitionMap.getPartitionNumber())
+            throw new IllegalArgumentException("Number of partitions cannot be changed");
+
+        partitionMap = map;
+        log.debug("Node " + nodeId + " installed " + map);
+        return true;
+    }
+
+    /**
+     * @param sku item sku
+     * @return true, if the partition of the sku is owned by the node
+     */
+    public boolean owns(int sku) {
+        PartitionMap map = partitionMap;
+        return map.ownerOf(map.partitionOf(sku)) == nodeId;
+    }
+
+    /**
+     * Registers writes of the items. Should be paired with
+     * {@link #endWrite(long[])}, if SUCCESS is returned.
+     *
+     * @param keys keys of the items to write
+     * @return SUCCESS; WRONG_PARTITION if an item is not owned by the node;
+     *         BUSY if a partition is being handed over to another node
+     */
+    public BinaryErrorCodes beginWrite(long[] keys) {
+        for (int i = 0; i < keys.length; i++) {
+            int partition = partitionMap.partitionOf(AvailabilityItem.keyToSku(keys[i]));
+            writesInFlight.incrementAndGet(partition);
+
+            // checked after the write is registered, so that a hand-over either waits for it or is seen by it
+            BinaryErrorCodes error = frozen.get(partition) == 1 ? BinaryErrorCodes.BUSY
+                    : !owns(AvailabilityItem.keyToSku(keys[i])) ? BinaryErrorCodes.WRONG_PARTITION : null;
+            if (error != null) {
+                for (int j = 0; j <= i; j++) writesInFlight.decrementAndGet(partitionMap.partitionOf(AvailabilityItem.keyToSku(keys[j])));
+                return error;
+            }
+        }
+        return BinaryErrorCodes.SUCCESS;
+    }
+
+    /**
+     * Completes writes registered with {@link #beginWrite(long[])}. Keys of
+     * partitions being migrated are added to the migration tail.
+     *
+     * @param keys keys of the written items
+     */
+    public void endWrite(long[] keys) {
+        for (long key: keys) {
+            int partition = partitionMap.partitionOf(AvailabilityItem.keyToSku(key));
+            Set<Long> tail = tails.get(partition);
+            if (tail != null) tail.add(key);
+            writesInFlight.decrementAndGet(partition);
+        }
+    }
+
+    /**
+     * Moves the partition to another node without interrupting reads of
+     * the partition; writes are rejected with BUSY only while the last
+     * part of the tail is streamed. Only one partition is migrated at once.
+     *
+     * @param partition partition index
+     * @param targetNode index of the new owner
+     * @throws IOException if the partition cannot be streamed to the target,
+     *                     or the target rejects the next map; the partition
+     *                     stays with the current node then
+     * @throws IllegalArgumentException if the partition is not owned by the node
+     */
+    public void migratePartition(int partition, int targetNode) throws IOException {
+        synchronized (migrationLock) {
+            migrate(partition, targetNode);
+        }
+    }
+
+    /**
+     * Queues the migration of the partition to the migration thread of the
+     * node, see {@link #migratePartition(int, int)}.
+     *
+     * @param partition partition index
+     * @param targetNode index of the new owner
+     * @return future completed with the partition map once the migration is
+     *         done, or exceptionally with the migration error
+     */
+    public CompletableFuture<PartitionMap> submitMigration(final int partition, final int targetNode) {
+        final CompletableFuture<PartitionMap> result = new CompletableFuture<PartitionMap>();
+        try {
+            migrationExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        migratePartition(partition, targetNode);
+                        result.complete(partitionMap);
+                    } catch (Throwable e) {
+                        result.completeExceptionally(e);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(new IOException("Node " + nodeId + " is stopped"));
+        }
+        return result;
+    }
+
+    private void migrate(int partition, int targetNode) throws IOException {
+        PartitionMap map = partitionMap;
+        if (partition < 0 || partition >= map.getPartitionNumber()) throw new IllegalArgumentException("Unknown partition " + partition);
+        if (targetNode < 0 || targetNode >= map.getNodeNumber()) throw new IllegalArgumentException("Unknown node " + targetNode);
+        if (map.ownerOf(partition) != nodeId) throw new IllegalArgumentException("Partition " + partition + " is not owned by node " + nodeId);
+        if (targetNode == nodeId) return;
+
+        long startTime = System.currentTimeMillis();
+        Set<Long> tail = Collections.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        tails.set(partition, tail);
+
+        PartitionMap next = map.withOwner(partition, targetNode);
+        Socket socket = new Socket();
+        try {
+            socket.connect(map.getNode(targetNode).getClusterAddress());
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            out.writeByte(MSG_BEGIN);
+            out.writeInt(partition);
+            long copied = streamPartition(partition, out);
+
+            int round = 0;
+            while (tail.size() > FREEZE_THRESHOLD && round++ < MAX_TAIL_ROUNDS) {
+                streamTail(tail, out);
+            }
+
+            long freezeTime = System.currentTimeMillis();
+            frozen.set(partition, 1);
+            try {
+                while (writesInFlight.get(partition) > 0) Thread.yield();
+                streamTail(tail, out);
+                sendMap(next, out, in);
+                installMap(next);
+            } finally {
+                frozen.set(partition, 0);
+            }
+            log.debug("Partition " + partition + " moved to node " + targetNode + ": " + copied + " items, "
+                    + round + " tail rounds, writes frozen for " + (System.currentTimeMillis() - freezeTime) + " ms, total "
+                    + (System.currentTimeMillis() - startTime) + " ms");
+        } finally {
+            tails.set(partition, null);
+            socket.close();
+        }
+
+        broadcastMap(next, targetNode);
+        removePartition(partition);
+    }
+
+    private long streamPartition(final int partition, final DataOutputStream out) throws IOException {
+        final long[] count = new long[1];
+        try {
+            storage.forEach(new IterableStorage.ItemVisitor() {
+                @Override
+                public void visit(AvailabilityItem item) {
+                    if (partitionMap.partitionOf(item.getSku()) != partition) return;
+                    try {
+                        writePut(item.key(), item.getAmount(), out);
+                    } catch (IOException e) {
+                        throw new StreamFailure(e);
+                    }
+                    count[0]++;
+                }
+            });
+        } catch (StreamFailure e) {
+            throw e.getCause();
+        }
+        return count[0];
+    }
+
+    /**
+     * Streams current values of the tail keys; keys written again in the
+     * meantime stay in the tail for the next round.
+     */
+    private void streamTail(Set<Long> tail, DataOutputStream out) throws IOException {
+        for (Long key: new ArrayList<Long>(tail)) {
+            tail.remove(key);
+            AvailabilityItem item = storage.get(key);
+            if (item == null) {
+                out.writeByte(MSG_REMOVE);
+                out.writeLong(key);
+            } else {
+                writePut(key, item.getAmount(), out);
+            }
+        }
+    }
+
+    private void writePut(long key, int amount, DataOutputStream out) throws IOException {
+        out.writeByte(MSG_PUT);
+        out.writeLong(key);
+        out.writeInt(amount);
+    }
+
+    private void sendMap(PartitionMap map, DataOutputStream out, DataInputStream in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(map.getEncodedSize());
+        map.putToBuffer(buffer);
+        out.writeByte(MSG_MAP);
+        out.writeInt(buffer.capacity());
+        out.write(buffer.array());
+        out.flush();
+        byte answer = in.readByte();
+        if (answer == NACK) throw new IOException("Map version " + map.getVersion() + " is rejected, the node has a newer map");
+        if (answer != ACK) throw new IOException("Map is not acknowledged");
+    }
+
+    /**
+     * Sends the map to all nodes except the current one and the target of
+     * the migration. Nodes that cannot be reached learn the map later,
+     * since clients refresh it from the owners that reject their requests.
+     */
+    private void broadcastMap(PartitionMap map, int targetNode) {
+        for (int i = 0; i < map.getNodeNumber(); i++) {
+            if (i == nodeId || i == targetNode) continue;
+
+            Socket socket = new Socket();
+            try {
+                socket.connect(map.getNode(i).getClusterAddress());
+                sendMap(map, new DataOutputStream(new BufferedOutputStream(socket.getOutputStream())), new DataInputStream(socket.getInputStream()));
+            } catch (IOException e) {
+                log.warn("Cannot send partition map to node " + i + ": " + e.getMessage());
+            } finally {
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    log.error("Cannot close connection to node " + i, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes items of the partition, which is not owned by the node.
+     */
+    private void removePartition(final int partition) {
+        final List<Long> keys = new ArrayList<Long>();
+        storage.forEach(new IterableStorage.ItemVisitor() {
+            @Override
+            public void visit(AvailabilityItem item) {
+                if (partitionMap.partitionOf(item.getSku()) == partition) keys.add(item.key());
+            }
+        });
+        for (Long key: keys) {
+            storage.remove(key);
+        }
+    }
+
+    private void acceptLoop() {
+        while (isRunning) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (isRunning) log.error("Cannot accept cluster connection", e);
+                break;
+            }
+
+            Thread receiver = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    receive(socket);
+                }
+            }, "cluster-" + socket.getRemoteSocketAddress());
+            receiver.setDaemon(true);
+            receiver.start();
+        }
+        log.debug("Cluster acceptor stopped");
+    }
+
+    /**
+     * Applies messages of another node until it closes the connection.
+     */
+    private void receive(Socket socket) {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+            int migrated = -1;                          // partition streamed over the connection
+            while (true) {
+                byte type;
+                try {
+                    type = in.readByte();
+                } catch (EOFException e) {
+                    break;
+                }
+
+                if (type == MSG_PUT) {
+                    long key = in.readLong();
+                    storage.put(key, new AvailabilityItem(AvailabilityItem.keyToSku(key), AvailabilityItem.keyToStore(key), in.readInt()));
+                } else if (type == MSG_REMOVE) {
+                    storage.remove(in.readLong());
+                } else if (type == MSG_BEGIN) {
+                    int partition = in.readInt();
+                    if (partitionMap.ownerOf(partition) == nodeId) throw new IOException("Partition " + partition + " is owned by node " + nodeId);
+                    removePartition(partition);         // leftovers of a failed migration
+                    migrated = partition;
+                } else if (type == MSG_MAP) {
+                    byte[] encoded = new byte[in.readInt()];
+                    in.readFully(encoded);
+                    boolean installed = installMap(PartitionMap.fromByteBuffer(ByteBuffer.wrap(encoded)));
+                    if (!installed && migrated >= 0 && partitionMap.ownerOf(migrated) != nodeId) {
+                        log.warn("Migration of partition " + migrated + " is rejected: a newer map is installed");
+                        removePartition(migrated);
+                    }
+                    out.writeByte(installed ? ACK : NACK);
+                    out.flush();
+                } else {
+                    throw new IOException("Unknown cluster message: " + type);
+                }
+            }
+        } catch (IOException e) {
+            log.error("Cluster connection " + socket.getRemoteSocketAddress() + " failed", e);
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.error("Cannot close cluster connection", e);
+            }
+        }
+    }
+
+    /**
+     * Carries an I/O failure out of the storage visitor.
+     */
+    private static class StreamFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        StreamFailure(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public IOException getCause() {
+            return (IOException) super.getCause();
+        }
+    }
+}
@@ -48,6 +48,14 @@ public class AvailabilityItem {
         return (((long)sku) << 16) + store;
     }
 
+    public static short keyToStore(long key) {
+        return (short) key;
+    }
+
+    public static int keyToSku(long key) {
+        return (int) ((key - keyToStore(key)) >> 16);
+    }
+
     public static int keyToHashCode(long key) {
         short store = (short)key;
         int sku = (int) (key >> 16);
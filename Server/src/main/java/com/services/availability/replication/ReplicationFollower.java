@@ -0,0 +1,309 @@
+package com.services.availability.replication;
+
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.storage.Storage;
+import com.services.availability.storage.ccl.LogRecord;
+import com.services.availability.storage.hashmmap.ConcurrentHashMMap;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Follower side of the commit log replication. Connects to the replication
+ * port of the primary (see {@link ReplicationServer}) and applies received
+ * records to its own storage, which could be served in parallel by a
+ * read-only request processor.
+ *
+ * Applying a record is idempotent, since both PUT and REMOVE records carry
+ * the resulting state of the item. Therefore the follower could safely
+ * reconnect with the last applied sequence after any failure and get some
+ * records once again. Connection is retried until the follower is stopped.
+ *
+ * If a sequence file is set, the applied sequence is persisted to it every
+ * {@link #CHECKPOINT_INTERVAL} ms and when the follower is stopped, each
+ * time after the storage is flushed, so that the sequence never runs ahead
+ * of the storage file. A restarted follower passes the persisted sequence
+ * to the constructor and gets only the records it has not applied yet.
+ *
+ * Replication lag is reported in records, as the difference between the
+ * last sequence synced by the primary and the last sequence applied, and
+ * in milliseconds, as the time between the commit of the last applied
+ * record on the primary and its apply on the follower (zero when the
+ * follower is caught up). Milliseconds assume synchronized clocks of the
+ * hosts.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-14 12:05
+ */
+public class ReplicationFollower {
+    private static final Logger log = Logger.getLogger(ReplicationFollower.class);
+
+    public static final long RECONNECT_DELAY = 1000;        // ms
+    public static final int READ_TIMEOUT = 5000;            // ms, primary is considered dead after that many ms of silence
+    public static final long REPORT_INTERVAL = 2000;        // ms between lag reports in the log
+    public static final long CHECKPOINT_INTERVAL = 10000;   // ms between checkpoints of the applied sequence
+
+    private final InetSocketAddress primaryAddress;
+    private final Storage storage;
+
+    private volatile long appliedSequence;                  // sequence of the last applied record
+    private volatile long primarySequence;                  // last sequence synced by the primary, as seen by the follower
+    private volatile long lagMillis = 0;
+    private volatile long appliedRecords = 0;
+    private volatile boolean isConnected = false;
+    private volatile boolean isRunning = false;
+
+    private volatile Socket socket;
+    private Thread followerThread;
+    private long lastReport = 0;
+
+    private volatile File sequenceFile = null;              // file the applied sequence is persisted to
+    private long checkpointSequence;                        // sequence persisted by the last checkpoint
+    private long lastCheckpoint = 0;
+
+    public ReplicationFollower(InetSocketAddress primaryAddress, Storage storage) {
+        this(primaryAddress, storage, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param primaryAddress replication address of the primary
+     * @param storage storage to apply records to
+     * @param appliedSequence sequence of the last record already present in the storage,
+     *                        0 if the storage should get all records of the primary log
+     */
+    public ReplicationFollower(InetSocketAddress primaryAddress, Storage storage, long appliedSequence) {
+        this.primaryAddress = primaryAddress;
+        this.storage = storage;
+        this.appliedSequence = appliedSequence;
+        this.primarySequence = appliedSequence;
+        this.checkpointSequence = appliedSequence;
+    }
+
+    /**
+     * Reads the applied sequence persisted by a follower, see {@link #setSequenceFile(File)}.
+     *
+     * @param sequenceFile sequence file
+     * @return persisted sequence, 0 if there is no file
+     * @throws IOException if the file cannot be read
+     */
+    public static long readSequence(File sequenceFile) throws IOException {
+        if (!sequenceFile.exists()) return 0;
+
+        DataInputStream in = new DataInputStream(new FileInputStream(sequenceFile));
+        try {
+            return in.readLong();
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Makes the follower persist the applied sequence to the file. The
+     * storage should be a {@link ConcurrentHashMMap}, which is flushed
+     * before the sequence is written.
+     *
+     * @param sequenceFile file to persist the applied sequence to
+     */
+    public void setSequenceFile(File sequenceFile) {
+        if (!(storage instanceof ConcurrentHashMMap)) {
+            throw new IllegalStateException("Applied sequence is persisted only for a ConcurrentHashMMap storage");
+        }
+        this.sequenceFile = sequenceFile;
+    }
+
+    /**
+     * Starts the follower thread, which connects to the primary and applies
+     * records until the follower is stopped.
+     */
+    public void start() {
+        isRunning = true;
+        followerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                followLoop();
+            }
+        }, "replication-follower");
+        followerThread.setDaemon(true);
+        followerThread.start();
+    }
+
+    /**
+     * Disconnects from the primary and waits for the follower thread.
+     *
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+        isRunning = false;
+        closeSocket();
+        if (followerThread != null) {
+            followerThread.interrupt();
+            followerThread.join();
+        }
+        if (sequenceFile != null) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                log.error("Applied sequence cannot be persisted", e);
+            }
+        }
+    }
+
+    public boolean isConnected() {
+        return isConnected;
+    }
+
+    /**
+     * @return sequence of the last record applied to the storage
+     */
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    /**
+     * @return number of records applied since the follower was created
+     */
+    public long getAppliedRecords() {
+        return appliedRecords;
+    }
+
+    /**
+     * @return number of records synced by the primary, but not applied by the follower yet
+     */
+    public long getLagRecords() {
+        return Math.max(0, primarySequence - appliedSequence);
+    }
+
+    /**
+     * @return delay of the last applied record, ms; zero if the follower is caught up
+     */
+    public long getLagMillis() {
+        return getLagRecords() == 0 ? 0 : lagMillis;
+    }
+
+    private void followLoop() {
+        while (isRunning) {
+            try {
+                follow();
+            } catch (IOException e) {
+                if (isRunning) log.warn("Replication from " + primaryAddress + " interrupted: " + e.getMessage());
+            } finally {
+                isConnected = false;
+                closeSocket();
+            }
+
+            if (!isRunning) break;
+            try {
+                Thread.sleep(RECONNECT_DELAY);
+            } catch (InterruptedException e) {
+                break;
+            }
+        }
+        log.debug("Replication follower stopped; applied sequence = " + appliedSequence);
+    }
+
+    private void follow() throws IOException {
+        socket = new Socket();
+        socket.setTcpNoDelay(true);
+        socket.setSoTimeout(READ_TIMEOUT);
+        socket.connect(primaryAddress, READ_TIMEOUT);
+
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        out.writeInt(ReplicationServer.HANDSHAKE_MAGIC);
+        out.writeLong(appliedSequence);
+        out.flush();
+
+        isConnected = true;
+        log.debug("Connected to primary " + primaryAddress + ", last applied sequence = " + appliedSequence);
+
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+        ByteBuffer frame = ByteBuffer.allocate(ReplicationServer.FRAME_SIZE);
+        while (isRunning) {
+            frame.clear();
+            in.readFully(frame.array());
+            apply(frame);
+            report();
+            if (sequenceFile != null && System.currentTimeMillis() - lastCheckpoint >= CHECKPOINT_INTERVAL) checkpoint();
+        }
+    }
+
+    private void apply(ByteBuffer frame) {
+        byte type = frame.get();
+        long key = frame.getLong();
+        int amount = frame.getInt();
+        long sequence = frame.getLong();
+        long timestamp = frame.getLong();
+        primarySequence = Math.max(primarySequence, frame.getLong());
+
+        if (type == ReplicationServer.TYPE_HEARTBEAT || sequence <= appliedSequence) return;
+
+        if (type == LogRecord.TYPE_PUT) {
+            storage.put(key, new AvailabilityItem(AvailabilityItem.keyToSku(key), AvailabilityItem.keyToStore(key), amount));
+        } else if (type == LogRecord.TYPE_REMOVE) {
+            storage.remove(key);
+        } else {
+            throw new IllegalStateException("Unknown replication record type: " + type);
+        }
+        lagMillis = Math.max(0, System.currentTimeMillis() - timestamp);
+        appliedSequence = sequence;
+        appliedRecords++;
+    }
+
+    private void report() {
+        long now = System.currentTimeMillis();
+        if (now - lastReport < REPORT_INTERVAL) return;
+
+        lastReport = now;
+        log.debug("REPLICATION : appliedSequence=" + appliedSequence + "; lagRecords=" + getLagRecords() + "; lagMillis=" + getLagMillis());
+    }
+
+    /**
+     * Flushes the storage and persists the sequence applied before the
+     * flush. The sequence file is replaced atomically.
+     *
+     * @throws IOException if the storage cannot be flushed, or the file cannot be written
+     */
+    private synchronized void checkpoint() throws IOException {
+        lastCheckpoint = System.currentTimeMillis();
+        long sequence = appliedSequence;
+        if (sequence == checkpointSequence) return;
+
+        ((ConcurrentHashMMap) storage).flush();
+
+        File tmp = new File(sequenceFile.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            DataOutputStream out = new DataOutputStream(fos);
+            out.writeLong(sequence);
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), sequenceFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        checkpointSequence = sequence;
+    }
+
+    private void closeSocket() {
+        Socket current = socket;
+        if (current == null) return;
+        try {
+            current.close();
+        } catch (IOException e) {
+            log.error("Cannot close replication connection", e);
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.services.availability.replication;
+
+import com.services.availability.storage.ccl.LogRecord;
+import com.services.availability.storage.ccl.commitlog.AsyncCommitLog;
+import com.services.availability.storage.ccl.commitlog.CommitLogReader;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * Primary side of the commit log replication. Listens on a dedicated
+ * replication port and streams durable commit log records to connected
+ * followers (see {@link ReplicationFollower}).
+ *
+ * A follower connects with the sequence number of the last record it has
+ * applied. Its session first registers for live records, published by the
+ * commit log writer after every synced batch, then catches up by reading
+ * the commit log files, and then streams live records. The files are
+ * opened before the compaction could delete them. Records that were
+ * both read from the files and received live are sent once, since the
+ * session skips everything not newer than the last record sent.
+ *
+ * Wire format of the stream is a sequence of fixed size frames: type
+ * (1 byte), key (8 bytes), amount (4 bytes), sequence (8 bytes), commit
+ * timestamp (8 bytes) and the last sequence synced by the primary (8 bytes).
+ * If there are no records to send, a HEARTBEAT frame with the last synced
+ * sequence is sent instead, so that the follower could measure its lag.
+ *
+ * A follower that is too slow to keep up with the live records is
+ * disconnected when its queue overflows; it reconnects and catches up from
+ * the log files again.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-14 11:20
+ */
+public class ReplicationServer implements AsyncCommitLog.SyncListener {
+    private static final Logger log = Logger.getLogger(ReplicationServer.class);
+
+    public static final int HANDSHAKE_MAGIC = 0x52504C31;                   // 'RPL1', followed by the last applied sequence
+    public static final int FRAME_SIZE = 1 + 8 + 4 + 8 + 8 + 8;             // type + key + amount + sequence + timestamp + primary sequence = 37
+    public static final byte TYPE_HEARTBEAT = 0;                            // PUT and REMOVE frames use LogRecord types
+
+    public static final long HEARTBEAT_INTERVAL = 100;                      // ms
+    public static final int DEFAULT_QUEUE_CAPACITY = 64 * 1024;             // live records buffered per follower
+
+    private final AsyncCommitLog commitLog;
+    private final int port;
+    private final int queueCapacity;
+    private final List<FollowerSession> sessions = new CopyOnWriteArrayList<FollowerSession>();
+
+    private volatile long lastSequence;                     // last sequence synced by the commit log
+    private volatile boolean isRunning = false;
+    private ServerSocket serverSocket;
+    private Thread acceptorThread;
+
+    public ReplicationServer(AsyncCommitLog commitLog, int port) {
+        this(commitLog, port, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param commitLog commit log to replicate
+     * @param port replication port
+     * @param queueCapacity max number of live records buffered per follower
+     */
+    public ReplicationServer(AsyncCommitLog commitLog, int port, int queueCapacity) {
+        if (queueCapacity <= 0) throw new IllegalArgumentException("queueCapacity should be positive");
+
+        this.commitLog = commitLog;
+        this.port = port;
+        this.queueCapacity = queueCapacity;
+    }
+
+    /**
+     * Opens the replication port, subscribes to the commit log and starts
+     * accepting followers.
+     *
+     * @throws IOException if the port cannot be opened
+     */
+    public void start() throws IOException {
+        serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(port));
+
+        lastSequence = commitLog.getCommitLog().getLastSequence();
+        commitLog.setSyncListener(this);
+        isRunning = true;
+
+        acceptorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "replication-acceptor");
+        acceptorThread.setDaemon(true);
+        acceptorThread.start();
+        log.debug("Replication server is listening on port " + port);
+    }
+
+    /**
+     * Closes the replication port and disconnects all followers.
+     *
+     * @throws InterruptedException
+     */
+    public void stop() throws InterruptedException {
+        isRunning = false;
+        commitLog.setSyncListener(null);
+        try {
+            if (serverSocket != null) serverSocket.close();
+        } catch (IOException e) {
+            log.error("Cannot close replication port", e);
+        }
+        for (FollowerSession session: sessions) {
+            session.close();
+        }
+        if (acceptorThread != null) acceptorThread.join();
+    }
+
+    /**
+     * @return number of connected followers
+     */
+    public int getFollowerNumber() {
+        return sessions.size();
+    }
+
+    /**
+     * @return sequence number of the last record synced by the commit log
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    @Override
+    public void recordsSynced(List<LogRecord> records) {
+        lastSequence = records.get(records.size() - 1).getSequence();
+        for (FollowerSession session: sessions) {
+            session.offer(records);
+        }
+    }
+
+    private void acceptLoop() {
+        while (isRunning) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (isRunning) log.error("Cannot accept follower connection", e);
+                break;
+            }
+
+            final FollowerSession session = new FollowerSession(socket);
+            Thread sessionThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    session.run();
+                }
+            }, "replication-" + socket.getRemoteSocketAddress());
+            sessionThread.setDaemon(true);
+            sessionThread.start();
+        }
+        log.debug("Replication acceptor stopped");
+    }
+
+    /**
+     * Streams records to a single follower.
+     */
+    private class FollowerSession {
+        private final Socket socket;
+        private final BlockingQueue<LogRecord> queue = new ArrayBlockingQueue<LogRecord>(queueCapacity);
+        private final ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+        private BufferedOutputStream out;
+        private long lastSent;                              // sequence of the last record sent to the follower
+
+        FollowerSession(Socket socket) {
+            this.socket = socket;
+        }
+
+        void run() {
+            try {
+                socket.setTcpNoDelay(true);
+                out = new BufferedOutputStream(socket.getOutputStream(), 64 * 1024);
+                lastSent = readHandshake();
+                log.debug("Follower " + socket.getRemoteSocketAddress() + " connected, last applied sequence = " + lastSent);
+
+                sessions.add(this);                         // live records are queued while the log files are read
+                catchUp();
+                streamLive();
+            } catch (SocketException e) {
+                log.debug("Follower " + socket.getRemoteSocketAddress() + " disconnected: " + e.getMessage());
+            } catch (IOException e) {
+                log.error("Replication to " + socket.getRemoteSocketAddress() + " failed", e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Queues live records. Disconnects the follower, if it is too slow.
+         */
+        void offer(List<LogRecord> records) {
+            for (LogRecord record: records) {
+                if (!queue.offer(record)) {
+                    log.warn("Follower " + socket.getRemoteSocketAddress() + " is too slow, disconnecting");
+                    close();
+                    return;
+                }
+            }
+        }
+
+        void close() {
+            sessions.remove(this);
+            queue.clear();
+            try {
+                socket.close();
+            } catch (IOException e) {
+                log.error("Cannot close follower connection", e);
+            }
+        }
+
+        private long readHandshake() throws IOException {
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            if (in.readInt() != HANDSHAKE_MAGIC) throw new IOException("Unexpected replication handshake");
+            return in.readLong();
+        }
+
+        /**
+         * Sends the records of the log files. The files are listed and
+         * opened under the read lock of the log files, so that the compactor
+         * does not delete them in between; the records are then sent without
+         * the lock, since an open file stays readable after it is deleted.
+         * A compacted segment and its source files, if both are read, have
+         * the same records, which are sent once.
+         */
+        private void catchUp() throws IOException {
+            long count = 0;
+            CommitLogReader reader;
+            Lock filesLock = commitLog.getCommitLog().getFilesLock().readLock();
+            filesLock.lock();
+            try {
+                reader = CommitLogReader.forDirectory(commitLog.getCommitLog().getDirectory());
+            } finally {
+                filesLock.unlock();
+            }
+            try {
+                LogRecord record;
+                while ((record = reader.next()) != null) {
+                    if (send(record)) count++;
+                }
+            } finally {
+                reader.close();
+            }
+            out.flush();
+            log.debug("Follower " + socket.getRemoteSocketAddress() + " caught up from the log files: " + count + " records");
+        }
+
+        private void streamLive() throws IOException, InterruptedException {
+            while (isRunning && !socket.isClosed()) {
+                LogRecord record = queue.poll(HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+                if (record == null) {
+                    writeFrame(TYPE_HEARTBEAT, 0, 0, lastSequence, System.currentTimeMillis());
+                } else {
+                    do {
+                        send(record);
+                    } while ((record = queue.poll()) != null);
+                }
+                out.flush();
+            }
+        }
+
+        /**
+         * Sends the record, unless it was sent already.
+         *
+         * @return true, if the record was sent
+         */
+        private boolean send(LogRecord record) throws IOException {
+            if (record.getSequence() <= lastSent) return false;
+
+            writeFrame(record.getType(), record.getKey(), record.getAmount(), record.getSequence(), record.getTimestamp());
+            lastSent = record.getSequence();
+            return true;
+        }
+
+        private void writeFrame(byte type, long key, int amount, long sequence, long timestamp) throws IOException {
+            frame.clear();
+            frame.put(type);
+            frame.putLong(key);
+            frame.putInt(amount);
+            frame.putLong(sequence);
+            frame.putLong(timestamp);
+            frame.putLong(Math.max(lastSequence, sequence));
+            out.write(frame.array());
+        }
+    }
+}
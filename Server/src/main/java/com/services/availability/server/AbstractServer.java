@@ -1,18 +1,29 @@
 package com.services.availability.server;
 
 import com.services.availability.common.ThroughputMeter;
+import com.services.availability.common.UnixSockets;
 import org.apache.log4j.Logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 
 /**
+ * Server listens on the TCP port of {@link #setPort(int)} (8888 by default) and,
+ * optionally, on a Unix domain socket for clients on the same host (see
+ * {@link #setUnixSocketPath(String)}). Both carry the same protocol and
+ * their connections are served alike.
+ *
  * @author Roman Reva
  * @version 1.0
  * @since 2014-06-19 19:14
  */
 public abstract class AbstractServer {
+    public static final int DEFAULT_PORT = 8888;
+
     protected final Logger logger;
 
     protected volatile boolean isRunning = false;
@@ -21,6 +32,9 @@ public abstract class AbstractServer {
     protected RequestProcessor requestProcessor;
     protected ThroughputMeter throughputMeter;
     protected ServerSocketChannel serverSocketChannel;
+    protected ServerSocketChannel unixServerSocketChannel;      // null, if no Unix domain socket is open
+    private String unixSocketPath = null;
+    private int port = DEFAULT_PORT;
 
     protected ServerShutdownHook serverShutdownHook = null;
 
@@ -54,6 +68,7 @@ public abstract class AbstractServer {
         if (serverSocketChannel != null) {
             serverSocketChannel.close();
         }
+        closeUnixServerSocket();
         if (heartbeatThread != null) {
             heartbeatThread.interrupt();
         }
@@ -70,7 +85,113 @@ public abstract class AbstractServer {
 
     protected void openServerSocket() throws IOException {
         serverSocketChannel = ServerSocketChannel.open();
+        serverSocketChannel.socket().setReuseAddress(true);
         serverSocketChannel.socket().bind(getBindAddress());
+
+        if (unixSocketPath == null) return;
+        if (UnixSockets.isSupported()) {
+            unixServerSocketChannel = UnixSockets.openServerChannel(unixSocketPath);
+            logger.debug("Listening on Unix domain socket " + unixSocketPath);
+        } else {
+            logger.warn("Unix domain sockets are not supported by the runtime, listening on TCP only");
+        }
+    }
+
+    /**
+     * Sets the TCP port to listen on, so that several servers, e.g. a
+     * primary and its follower, could run on the same host. Should be
+     * called before the startup.
+     *
+     * @param port TCP port
+     */
+    public void setPort(int port) {
+        this.port = port;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Makes the server listen on a Unix domain socket as well, so that
+     * clients on the same host skip the TCP/IP stack. Should be called
+     * before the startup. Ignored with a warning, if the runtime does not
+     * support Unix domain sockets (Java 16+ is required).
+     *
+     * @param unixSocketPath path of the socket file
+     */
+    public void setUnixSocketPath(String unixSocketPath) {
+        this.unixSocketPath = unixSocketPath;
+    }
+
+    /**
+     * Starts a thread, which accepts connections on the Unix domain socket
+     * and passes them to the handler, the same way the server loop does
+     * for TCP connections.
+     *
+     * @param handler handler of accepted connections
+     * @return acceptor thread, or null if no Unix domain socket is open
+     */
+    protected Thread startUnixAcceptor(final AcceptedChannelHandler handler) {
+        if (unixServerSocketChannel == null) return null;
+
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (isRunning) {
+                    SocketChannel client;
+                    try {
+                        client = unixServerSocketChannel.accept();
+                    } catch (ClosedChannelException e) {
+                        logger.debug("Unix domain socket is closed");
+                        break;
+                    } catch (IOException e) {
+                        logger.error("Cannot accept connection on Unix domain socket", e);
+                        break;
+                    }
+                    try {
+                        handler.accepted(client);
+                    } catch (IOException e) {
+                        logger.debug("Cannot serve accepted channel: " + e.getMessage());
+                        try {
+                            client.close();
+                        } catch (IOException closeException) {
+                            logger.error("Cannot close channel", closeException);
+                        }
+                    }
+                }
+            }
+        }, "unix-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        return acceptor;
+    }
+
+    /**
+     * Closes the Unix domain socket, which stops its acceptor, and waits
+     * for the acceptor to finish.
+     *
+     * @param acceptor acceptor thread; could be null
+     */
+    protected void stopUnixAcceptor(Thread acceptor) {
+        try {
+            closeUnixServerSocket();
+        } catch (IOException e) {
+            logger.error("Cannot close Unix domain socket", e);
+        }
+        if (acceptor == null) return;
+        try {
+            acceptor.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeUnixServerSocket() throws IOException {
+        if (unixServerSocketChannel != null && unixServerSocketChannel.isOpen()) {
+            unixServerSocketChannel.close();
+            new File(unixSocketPath).delete();
+        }
     }
 
     protected void startHeartbeat() {
@@ -78,7 +199,9 @@ public abstract class AbstractServer {
         heartbeatThread.start();
     }
 
-    protected abstract InetSocketAddress getBindAddress();
+    protected InetSocketAddress getBindAddress() {
+        return new InetSocketAddress(port);
+    }
 
     protected abstract Logger getLogger();
 
@@ -90,6 +213,13 @@ public abstract class AbstractServer {
         this.requestProcessor = requestProcessor;
     }
 
+    /**
+     * Receives connections accepted on the Unix domain socket.
+     */
+    protected static interface AcceptedChannelHandler {
+        public void accepted(SocketChannel channel) throws IOException;
+    }
+
     /**
      * An implementation of current interface could be provided to the client,
      * so that corresponding methods will be executed just before and after
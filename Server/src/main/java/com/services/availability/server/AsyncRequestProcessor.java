@@ -1,35 +1,259 @@
 package com.services.availability.server;
 
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
+import com.services.availability.protocol.binary.BinaryErrorCodes;
 import com.services.availability.protocol.binary.BinaryRequest;
 import com.services.availability.protocol.binary.BinaryResponse;
+import com.services.availability.protocol.binary.RequestFlyweight;
+import com.services.availability.protocol.binary.ResponseFlyweight;
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.storage.ShardedStorage;
 import org.apache.log4j.Logger;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
+ * Worker pool that processes requests asynchronously.
+ *
+ * Queue of the pool is bounded. When it is full, the request is shed: BUSY
+ * error is returned to the client immediately on the calling thread, so that
+ * the client could back off or fail over instead of waiting for a response
+ * that would come too late anyway.
+ *
+ * In key affinity mode every worker thread is a shard with its own queue,
+ * and each request is routed to a shard by the hash of its item key (see
+ * {@link ShardedStorage#shardIdx(long, int)}). Requests for the same key are
+ * therefore processed one by one in the order they were received. If the
+ * storage is a {@link ShardedStorage}, every storage shard is accessed by
+ * its shard thread only and no locks are taken at all. A batch request is
+ * split into a sub-batch per shard, and a single response is written out
+ * when all sub-batches are processed.
+ *
  * @author Roman Reva
  * @version 1.0
  * @since 2014-07-18 13:10
  */
 public class AsyncRequestProcessor {
+    public final static int DEFAULT_QUEUE_CAPACITY = 4096;
+
     private Logger logger = Logger.getLogger(AsyncRequestProcessor.class);
-    private final ThreadPoolExecutor executorService;
+    private final ThreadPoolExecutor[] executors;                // single pool, or a single-thread executor per shard
     private final RequestProcessor processor;
+    private final int queueCapacity;
+    private final boolean keyAffinity;
+    private final AtomicLong shedRequests = new AtomicLong(0);     // requests rejected with BUSY
 
     public AsyncRequestProcessor(RequestProcessor processor, int threadNumber) {
+        this(processor, threadNumber, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param processor request processor
+     * @param threadNumber number of worker threads
+     * @param queueCapacity max number of requests waiting for a worker
+     */
+    public AsyncRequestProcessor(RequestProcessor processor, int threadNumber, int queueCapacity) {
+        this(processor, threadNumber, queueCapacity, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param processor request processor
+     * @param threadNumber number of worker threads; number of shards in key affinity mode
+     * @param queueCapacity max number of requests waiting for a worker; per shard in key affinity mode
+     * @param keyAffinity true to route requests to shard threads by item key
+     */
+    public AsyncRequestProcessor(RequestProcessor processor, int threadNumber, int queueCapacity, boolean keyAffinity) {
+        if (queueCapacity <= 0) throw new IllegalArgumentException("Queue capacity should be positive");
+        if (processor.getStorage() instanceof ShardedStorage
+                && (!keyAffinity || ((ShardedStorage) processor.getStorage()).getShardNumber() != threadNumber)) {
+            throw new IllegalArgumentException("Sharded storage requires key affinity mode with a thread per shard");
+        }
+
         this.processor = processor;
-        this.executorService = (ThreadPoolExecutor)Executors.newFixedThreadPool(threadNumber);
+        this.queueCapacity = queueCapacity;
+        this.keyAffinity = keyAffinity;
+
+        if (keyAffinity) {
+            executors = new ThreadPoolExecutor[threadNumber];
+            for (int i = 0; i < threadNumber; i++) {
+                executors[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(queueCapacity), new SheddingPolicy());
+            }
+        } else {
+            executors = new ThreadPoolExecutor[] {
+                    new ThreadPoolExecutor(threadNumber, threadNumber, 0L, TimeUnit.MILLISECONDS,
+                            new ArrayBlockingQueue<Runnable>(queueCapacity), new SheddingPolicy())
+            };
+        }
     }
 
     public void scheduleRequestProcessing(BinaryRequest request, ResponseWriteOutCallback callback) {
+        if (keyAffinity && request instanceof BinaryBatchRequest) {
+            scheduleBatchProcessing((BinaryBatchRequest) request, callback);
+            return;
+        }
+
         RequestData requestData = new RequestData(request, callback);
-        executorService.execute(new RunnableRequestHandler(processor, requestData));
+        executorFor(request).execute(new RunnableRequestHandler(processor, requestData));
 
 //        logger.debug("Job scheduled, active count = " + executorService.getActiveCount());
     }
 
+    /**
+     * Checks if the request could be processed on the calling thread, see
+     * {@link RequestProcessor#canProcessInline(BinaryRequest)}. Never true in
+     * key affinity mode, since storage shards are owned by shard threads.
+     *
+     * @param request request to check
+     * @return true, if the request could be processed inline
+     */
+    public boolean canProcessInline(BinaryRequest request) {
+        return !keyAffinity && processor.canProcessInline(request);
+    }
+
+    /**
+     * Processes the request on the calling thread.
+     *
+     * @param request request to process
+     * @param callback callback to pass the response to
+     */
+    public void processInline(BinaryRequest request, ResponseWriteOutCallback callback) {
+        processor.processRequest(request, callback);
+    }
+
+    /**
+     * Flyweight counterpart of {@link #canProcessInline(BinaryRequest)}, see
+     * {@link RequestProcessor#canProcessInline(RequestFlyweight)}.
+     *
+     * @param request view of the received request frame
+     * @return true, if the request could be processed inline from the view
+     */
+    public boolean canProcessInline(RequestFlyweight request) {
+        return !keyAffinity && processor.canProcessInline(request);
+    }
+
+    /**
+     * Processes the request on the calling thread, writing the response
+     * straight into the output buffer.
+     *
+     * @param request view of the received request frame
+     * @param response view of the output buffer
+     */
+    public void processInline(RequestFlyweight request, ResponseFlyweight response) {
+        processor.processRequest(request, response);
+    }
+
+    public boolean isKeyAffinity() {
+        return keyAffinity;
+    }
+
+    /**
+     * @return number of requests waiting for a worker, in all shards
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (ThreadPoolExecutor executor: executors) {
+            depth += executor.getQueue().size();
+        }
+        return depth;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return number of requests rejected with BUSY error
+     */
+    public long getShedRequests() {
+        return shedRequests.get();
+    }
+
+    /**
+     * Stops worker threads and waits until queued requests are processed.
+     */
+    public void shutdown() {
+        for (ThreadPoolExecutor executor: executors) {
+            executor.shutdown();
+        }
+        try {
+            for (ThreadPoolExecutor executor: executors) {
+                if (!executor.awaitTermination(60, TimeUnit.SECONDS))
+                    logger.error("Termination timeout elapsed, requests are still being processed");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Splits the batch into sub-batches by shard and schedules each of them
+     * on its shard thread.
+     */
+    private void scheduleBatchProcessing(BinaryBatchRequest request, ResponseWriteOutCallback callback) {
+        int[] itemShards = new int[request.size()], shardSizes = new int[executors.length];
+        for (int i = 0; i < request.size(); i++) {
+            long key = AvailabilityItem.key(request.getSku(i), request.getStore(i));
+            itemShards[i] = ShardedStorage.shardIdx(key, executors.length);
+            shardSizes[itemShards[i]]++;
+        }
+
+        int[][] shardItems = new int[executors.length][];
+        int parts = 0, lastShard = 0;
+        for (int shard = 0; shard < executors.length; shard++) {
+            if (shardSizes[shard] == 0) continue;
+            shardItems[shard] = new int[shardSizes[shard]];
+            shardSizes[shard] = 0;
+            parts++;
+            lastShard = shard;
+        }
+        for (int i = 0; i < itemShards.length; i++) {
+            shardItems[itemShards[i]][shardSizes[itemShards[i]]++] = i;
+        }
+
+        if (parts <= 1) {                   // all items belong to a single shard
+            executors[lastShard].execute(new RunnableRequestHandler(processor, new RequestData(request, callback)));
+            return;
+        }
+
+        BatchMerger merger = new BatchMerger(request, callback, parts);
+        for (int shard = 0; shard < executors.length; shard++) {
+            if (shardItems[shard] == null) continue;
+            RequestData requestData = new RequestData(request.subBatch(shardItems[shard]), merger.partCallback(shardItems[shard]));
+            executors[shard].execute(new RunnableRequestHandler(processor, requestData));
+        }
+    }
+
+    private ThreadPoolExecutor executorFor(BinaryRequest request) {
+        if (!keyAffinity) return executors[0];
+
+        long key = AvailabilityItem.key(request.getSku(), request.getStore());
+        return executors[ShardedStorage.shardIdx(key, executors.length)];
+    }
+
+    /**
+     * Answers requests that do not fit into the queue with BUSY error.
+     */
+    private class SheddingPolicy implements RejectedExecutionHandler {
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            shedRequests.incrementAndGet();
+
+            RequestData requestData = ((RunnableRequestHandler) runnable).requestData;
+            requestData.getCallback().writeOut(BinaryResponse.errorFor(requestData.getRequest(), BinaryErrorCodes.BUSY));
+        }
+    }
+
     public static class RunnableRequestHandler implements Runnable {
         private final RequestData requestData;
         private final RequestProcessor processor;
@@ -41,9 +265,65 @@ public class AsyncRequestProcessor {
 
         @Override
         public void run() {
-            BinaryResponse response = processor.processRequest(requestData.getRequest());
-            ResponseWriteOutCallback callback = requestData.getCallback();
-            callback.writeOut(response);
+            processor.processRequest(requestData.getRequest(), requestData.getCallback());
+        }
+    }
+
+    /**
+     * Collects responses to the sub-batches of a batch request into a single
+     * response. Sub-batches cover disjoint items, so their results are copied
+     * without locking; the last completed sub-batch writes the response out.
+     * If a sub-batch failed as a whole, e.g. was shed with BUSY, its items get
+     * its error, and the rest of items keep their results, since the other
+     * sub-batches have been applied. If all sub-batches failed, the batch
+     * gets the error of the last one.
+     */
+    private static class BatchMerger {
+        private final BinaryBatchRequest request;
+        private final ResponseWriteOutCallback callback;
+        private final BinaryBatchResponse response;
+        private final AtomicInteger remainingParts;
+        private final AtomicInteger succeededParts = new AtomicInteger(0);
+        private volatile BinaryErrorCodes error = null;
+
+        BatchMerger(BinaryBatchRequest request, ResponseWriteOutCallback callback, int parts) {
+            this.request = request;
+            this.callback = callback;
+            this.response = new BinaryBatchResponse(request.getRequestType(), request.size());
+            this.remainingParts = new AtomicInteger(parts);
+        }
+
+        /**
+         * @param items indices of the sub-batch items in the batch
+         * @return callback for the response to the sub-batch
+         */
+        ResponseWriteOutCallback partCallback(final int[] items) {
+            return new ResponseWriteOutCallback() {
+                @Override
+                public void writeOut(BinaryResponse partResponse) {
+                    if (partResponse.isSuccess()) {
+                        for (int i = 0; i < items.length; i++) {
+                            response.copyResult(items[i], (BinaryBatchResponse) partResponse, i);
+                        }
+                        succeededParts.incrementAndGet();
+                    } else {
+                        error = partResponse.getErrorCode();
+                        for (int i = 0; i < items.length; i++) {
+                            response.setResult(items[i], error, request.getSku(items[i]), request.getStore(items[i]), -1);
+                        }
+                    }
+                    if (remainingParts.decrementAndGet() == 0) complete();
+                }
+            };
+        }
+
+        private void complete() {
+            if (succeededParts.get() == 0) {
+                callback.writeOut(BinaryResponse.errorFor(request, error));
+            } else {
+                response.setRequestId(request.getRequestId());
+                callback.writeOut(response);
+            }
         }
     }
 
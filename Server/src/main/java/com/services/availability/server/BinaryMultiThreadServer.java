@@ -1,31 +1,65 @@
 package com.services.availability.server;
 
-import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
 import com.services.availability.protocol.binary.BinaryResponse;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.SocketChannel;
-import java.util.Iterator;
-import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Multithreaded server with persistent connections.
+ *
+ * The server thread only accepts connections and hands them over to one
+ * of N reactors (see {@link Reactor}). Each reactor has its own selector
+ * and thread, reads and decodes requests of its connections and passes
+ * them to the worker pool, so network I/O scales with the number of cores.
+ * A new connection goes to the reactor with the fewest connections; ties
+ * are resolved round-robin.
+ *
+ * Clients could pipeline requests: responses are written out as soon as
+ * workers complete them, possibly out of order, and are matched to requests
+ * by request ID. Workers never write to channels: responses are queued in
+ * pooled direct buffers and flushed by the reactor with gathering writes.
+ * Connections idle for longer than the idle timeout are closed.
+ *
+ * Worker pool has a bounded queue: if it is full, the request is answered
+ * with BUSY error at once (see {@link AsyncRequestProcessor}).
+ *
+ * In key affinity mode every worker thread serves a shard of the key space,
+ * so that requests for the same key are processed in order and a
+ * {@link com.services.availability.storage.ShardedStorage} is used without
+ * locks; the number of shards is the number of worker threads.
+ *
+ * Dispatch is adaptive if inline execution is enabled: requests that the
+ * storage can answer without blocking are processed by the reactor itself,
+ * and only slow ones go to the worker pool.
+ *
  * @author Roman Reva
  * @version 1.0
  * @since 2014-07-17 17:50
  */
 public class BinaryMultiThreadServer extends AbstractServer {
     private final static int DEFAULT_THREAD_NUMBER = 4;
+    public final static long DEFAULT_IDLE_TIMEOUT = 60000;     // ms
+    private final static int BUFFER_POOL_SIZE = 4096;          // pooled response buffers shared by reactors
+    private final static int BATCH_BUFFER_POOL_SIZE = 64;      // pooled batch frame buffers shared by reactors
 
-    private final InetSocketAddress serverAddress = new InetSocketAddress(8888);
-    private AsyncRequestProcessor asyncRequestProcessor;
+    private volatile AsyncRequestProcessor asyncRequestProcessor;
     private int threadNumber;
+    private int reactorNumber = Runtime.getRuntime().availableProcessors();
+    private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+    private volatile boolean inlineExecution = false;
+    private volatile int queueCapacity = AsyncRequestProcessor.DEFAULT_QUEUE_CAPACITY;
+    private volatile boolean keyAffinity = false;
+    private volatile CountDownLatch stopped;                    // released when the server loop is finished
 
-    private int counter = 0;
+    private volatile Reactor[] reactors;
+    private int nextReactor = 0;
 
     /**
      * Default client constructor.
@@ -43,6 +77,19 @@ public class BinaryMultiThreadServer extends AbstractServer {
         this.threadNumber = threadNumber;
     }
 
+    /**
+     * Client constructor that allows to set up a definite number of worker
+     * and reactor threads.
+     *
+     * @param threadNumber number of worker threads
+     * @param reactorNumber number of reactor (network I/O) threads
+     */
+    public BinaryMultiThreadServer(int threadNumber, int reactorNumber) {
+        super();
+        this.threadNumber = threadNumber;
+        this.reactorNumber = reactorNumber;
+    }
+
     /**
      * Current constructor allows to provide ServerShutdownHook entity that
      * will contain some actions that should be executed during the client
@@ -57,85 +104,181 @@ public class BinaryMultiThreadServer extends AbstractServer {
 
     @Override
     protected void serverLoop() throws IOException {
-        Selector selector = Selector.open();
-        serverSocketChannel.configureBlocking(false);
-        serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
-
-        ByteBuffer buffer = ByteBuffer.allocate(16);
-
-        while (isRunning) {
-            int readyChannels = selector.select();
-            if (readyChannels == 0) continue;
-
-            Set<SelectionKey> selectedKeys = selector.selectedKeys();
-            Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
-            while (keyIterator.hasNext()) {
-                SelectionKey key = keyIterator.next();
-                if (key.isValid() && key.isAcceptable()) {
-                    SocketChannel client = serverSocketChannel.accept();
-                    client.configureBlocking(false);
-                    client.socket().setTcpNoDelay(true);
-                    client.register(selector, SelectionKey.OP_READ);
-                } else if (key.isValid() && key.isReadable()) {
-                    buffer.clear();
-                    SocketChannel clientChannel = ((SocketChannel)key.channel());
-                    try {
-                        if (clientChannel.read(buffer) == -1) {
-                            logger.error("cannot read client channel");
-                            clientChannel.close();
-                            keyIterator.remove();
-                            continue;
-                        }
-                    } catch (Exception e) {
-                        logger.error("Error in client channel: " + clientChannel.hashCode(), e);
-                        throw new RuntimeException(e);
-                    }
-
-                    clientChannel.read(buffer);
-//                    int bytesRead = clientChannel.read(buffer);
-//                    if (bytesRead != BinaryRequest.REQUEST_SIZE)
-//                        logger.warn("bytesRead != BinaryRequest.REQUEST_SIZE; bytesRead = " + bytesRead);
-
-                    buffer.flip();
-
-                    clientChannel.register(selector, 0);        // remove channel from selector's interest set
-
-                    BinaryRequest request = BinaryRequest.fromByteBuffer(buffer);
-                    asyncRequestProcessor.scheduleRequestProcessing(request, buildCallback(clientChannel));
-                    counter++;
+        stopped = new CountDownLatch(1);
+        Thread[] reactorThreads = startReactors();
+        Thread unixAcceptor = startUnixAcceptor(new AcceptedChannelHandler() {
+            @Override
+            public void accepted(SocketChannel channel) {
+                nextReactor().register(channel);
+            }
+        });
 
+        try {
+            while (isRunning) {
+                SocketChannel client;
+                try {
+                    client = serverSocketChannel.accept();
+                } catch (ClosedChannelException e) {
+                    logger.debug("Server socket is closed");
+                    break;
                 }
-                keyIterator.remove();
+                nextReactor().register(client);
             }
-        }
-    }
-
-    private AsyncRequestProcessor.ResponseWriteOutCallback buildCallback(final SocketChannel clientChannel) {
-        return new AsyncRequestProcessor.ResponseWriteOutCallback() {
-            @Override
-            public void writeOut(BinaryResponse response) {
-                ByteBuffer buffer = ByteBuffer.allocate(16);
-                response.putToBuffer(buffer);
-                buffer.flip();
+        } finally {
+            stopUnixAcceptor(unixAcceptor);
+            for (Reactor reactor: reactors) {
+                reactor.shutdown();
+            }
+            for (Thread thread: reactorThreads) {
                 try {
-                    clientChannel.write(buffer);
-                    clientChannel.close();
-//                    logger.debug("Client channel " + clientChannel.hashCode() + "is closed!");
-                } catch (IOException e) {
-                    logger.error("IOException during writing out the response", e);
+                    thread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
                 }
             }
-        };
+            asyncRequestProcessor.shutdown();
+            stopped.countDown();
+        }
+    }
+
+    /**
+     * Stops the server and waits until reactors are stopped and requests
+     * already accepted by workers are processed, so that the storage could
+     * be safely shut down afterwards.
+     *
+     * @throws IOException
+     */
+    @Override
+    public void shutdown() throws IOException {
+        super.shutdown();
+
+        CountDownLatch latch = stopped;
+        if (latch == null) return;
+        try {
+            if (!latch.await(60, TimeUnit.SECONDS)) logger.error("Server loop is not finished within the timeout");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    public void setRequestProcessor(RequestProcessor requestProcessor) {
-        super.setRequestProcessor(requestProcessor);
-        asyncRequestProcessor = new AsyncRequestProcessor(requestProcessor, threadNumber);
+    private Thread[] startReactors() throws IOException {
+        asyncRequestProcessor = new AsyncRequestProcessor(requestProcessor, threadNumber, queueCapacity, keyAffinity);
+        DirectBufferPool bufferPool = new DirectBufferPool(BinaryResponse.RESPONSE_SIZE, BUFFER_POOL_SIZE,
+                BinaryBatchResponse.frameSize(BinaryBatchRequest.MAX_BATCH_SIZE), BATCH_BUFFER_POOL_SIZE);
+        reactors = new Reactor[reactorNumber];
+        Thread[] threads = new Thread[reactorNumber];
+        for (int i = 0; i < reactorNumber; i++) {
+            reactors[i] = new Reactor("reactor-" + i, asyncRequestProcessor, bufferPool, idleTimeout, inlineExecution);
+            threads[i] = new Thread(reactors[i], reactors[i].getName());
+            threads[i].start();
+        }
+        return threads;
     }
 
-    @Override
-    protected InetSocketAddress getBindAddress() {
-        return serverAddress;
+    /**
+     * Chooses the reactor with the fewest connections, starting the scan
+     * from the next reactor in round-robin order. Synchronized, since TCP
+     * and Unix domain socket connections are accepted by different threads.
+     *
+     * @return reactor for a new connection
+     */
+    private synchronized Reactor nextReactor() {
+        Reactor chosen = null;
+        for (int i = 0; i < reactors.length; i++) {
+            Reactor reactor = reactors[(nextReactor + i) % reactors.length];
+            if (chosen == null || reactor.getConnectionCount() < chosen.getConnectionCount()) chosen = reactor;
+        }
+        nextReactor = (nextReactor + 1) % reactors.length;
+        return chosen;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @param idleTimeout time in ms after which a connection without requests is closed; 0 to keep connections forever
+     */
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public boolean isInlineExecution() {
+        return inlineExecution;
+    }
+
+    /**
+     * Should be set before the server is started.
+     *
+     * @param inlineExecution true to process requests that do not block on the reactor threads
+     */
+    public void setInlineExecution(boolean inlineExecution) {
+        this.inlineExecution = inlineExecution;
+    }
+
+    /**
+     * @return number of requests processed on reactor threads
+     */
+    public long getInlineRequests() {
+        long count = 0;
+        if (reactors != null) {
+            for (Reactor reactor: reactors) count += reactor.getInlineRequests();
+        }
+        return count;
+    }
+
+    /**
+     * @return number of requests passed to the worker pool
+     */
+    public long getOffloadedRequests() {
+        long count = 0;
+        if (reactors != null) {
+            for (Reactor reactor: reactors) count += reactor.getOffloadedRequests();
+        }
+        return count;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * Should be set before the server is started.
+     *
+     * @param queueCapacity max number of requests waiting for a worker; the rest is answered with BUSY
+     */
+    public void setQueueCapacity(int queueCapacity) {
+        this.queueCapacity = queueCapacity;
+    }
+
+    public boolean isKeyAffinity() {
+        return keyAffinity;
+    }
+
+    /**
+     * Should be set before the server is started.
+     *
+     * @param keyAffinity true to route requests to a worker thread per shard by item key
+     */
+    public void setKeyAffinity(boolean keyAffinity) {
+        this.keyAffinity = keyAffinity;
+    }
+
+    /**
+     * @return number of requests waiting for a worker
+     */
+    public int getQueueDepth() {
+        AsyncRequestProcessor processor = asyncRequestProcessor;
+        return processor == null ? 0 : processor.getQueueDepth();
+    }
+
+    /**
+     * @return number of requests rejected with BUSY error
+     */
+    public long getShedRequests() {
+        AsyncRequestProcessor processor = asyncRequestProcessor;
+        return processor == null ? 0 : processor.getShedRequests();
     }
 
     @Override
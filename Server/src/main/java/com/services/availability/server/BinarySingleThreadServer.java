@@ -1,14 +1,17 @@
 package com.services.availability.server;
 
+import com.services.availability.common.UnixSockets;
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
 import com.services.availability.protocol.binary.BinaryRequest;
 import com.services.availability.protocol.binary.BinaryResponse;
 import org.apache.log4j.Logger;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.Iterator;
 import java.util.Set;
@@ -19,7 +22,7 @@ import java.util.Set;
  * @since 2014-06-24 14:18
  */
 public class BinarySingleThreadServer extends AbstractServer {
-    private final InetSocketAddress serverAddress = new InetSocketAddress(8888);
+    private final static int RESPONSE_BUFFER_SIZE = BinaryBatchResponse.frameSize(BinaryBatchRequest.MAX_BATCH_SIZE);   // fits the largest response
 
     /**
      * Default client constructor.
@@ -44,8 +47,12 @@ public class BinarySingleThreadServer extends AbstractServer {
         Selector selector = Selector.open();
         serverSocketChannel.configureBlocking(false);
         serverSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        if (unixServerSocketChannel != null) {
+            unixServerSocketChannel.configureBlocking(false);
+            unixServerSocketChannel.register(selector, SelectionKey.OP_ACCEPT);
+        }
 
-        ByteBuffer buffer = ByteBuffer.allocate(16);
+        ByteBuffer responseBuffer = ByteBuffer.allocate(RESPONSE_BUFFER_SIZE);
 
         while (true) {
             int readyChannels = selector.select();
@@ -56,42 +63,48 @@ public class BinarySingleThreadServer extends AbstractServer {
             while (keyIterator.hasNext()) {
                 SelectionKey key = keyIterator.next();
                 if(key.isAcceptable()) {
-                    SocketChannel client = serverSocketChannel.accept();
-                    client.configureBlocking(false);
-                    client.socket().setTcpNoDelay(true);
-                    client.register(selector, SelectionKey.OP_READ);
+                    SocketChannel client = ((ServerSocketChannel) key.channel()).accept();   // TCP or Unix domain socket
+                    if (client != null) {
+                        client.configureBlocking(false);
+                        if (!UnixSockets.isUnixChannel(client)) client.socket().setTcpNoDelay(true);
+                        client.register(selector, SelectionKey.OP_READ, new FrameDecoder());
+                    }
                 } else if (key.isReadable()) {
-                    buffer.clear();
                     SocketChannel clientChannel = ((SocketChannel)key.channel());
-                    if (clientChannel.read(buffer) == -1) {
-                        logger.error("cannot read client channel");
+                    FrameDecoder decoder = (FrameDecoder) key.attachment();
+                    if (decoder.readFrom(clientChannel) == -1) {
+                        logger.debug("client closed the connection");
                         clientChannel.close();
                         keyIterator.remove();
                         continue;
                     }
 
-                    clientChannel.read(buffer);
-                    buffer.flip();
-
-                    BinaryRequest request = BinaryRequest.fromByteBuffer(buffer);
-                    BinaryResponse response = requestProcessor.processRequest(request);
-
-                    buffer.clear();
-                    response.putToBuffer(buffer);
-
-                    buffer.flip();
-                    clientChannel.write(buffer);
-
-                    clientChannel.close();
+                    // pipelined requests are answered in the order of arrival
+                    responseBuffer.clear();
+                    BinaryRequest request;
+                    while ((request = decoder.next()) != null) {
+                        BinaryResponse response = requestProcessor.processRequest(request);
+                        if (response.getFrameSize() > responseBuffer.remaining()) {
+                            writeResponses(responseBuffer, clientChannel);
+                        }
+                        response.putToBuffer(responseBuffer);
+                    }
+                    writeResponses(responseBuffer, clientChannel);    // channel stays in the read set for the next request
                 }
                 keyIterator.remove();
             }
         }
     }
 
-    @Override
-    protected InetSocketAddress getBindAddress() {
-        return serverAddress;
+    /**
+     * Writes out responses collected in the buffer and clears it.
+     */
+    private void writeResponses(ByteBuffer responseBuffer, SocketChannel clientChannel) throws IOException {
+        responseBuffer.flip();
+        while (responseBuffer.hasRemaining()) {
+            clientChannel.write(responseBuffer);
+        }
+        responseBuffer.clear();
     }
 
     @Override
@@ -0,0 +1,267 @@
+package com.services.availability.server;
+
+import com.services.availability.protocol.binary.BinaryResponse;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * State of a persistent client connection. Instance of the class is
+ * attached to the selection key of the client channel and lives as long
+ * as the channel is open, serving many requests. Requests could be
+ * pipelined, i.e. several requests of the connection could be processed
+ * at the same time.
+ *
+ * Connection is the response callback of its requests. Worker threads
+ * encode responses into pooled direct buffers and put them into the write
+ * queue of the connection; the reactor that owns the connection drains the
+ * queue with gathering writes, so that many responses are flushed with one
+ * system call. A request stays in flight until its response is written out,
+ * therefore the write queue never holds more than the in-flight limit.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-27 10:30
+ */
+public class Connection implements AsyncRequestProcessor.ResponseWriteOutCallback {
+    private static final Logger log = Logger.getLogger(Connection.class);
+
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final Reactor reactor;
+    private final FrameDecoder decoder = new FrameDecoder();           // read buffer of the connection
+
+    private volatile long lastActivity = System.currentTimeMillis();   // time of the last read or write
+    private final AtomicInteger inFlight = new AtomicInteger(0);        // requests which responses are not written out yet
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile boolean failed = false;                            // a response was dropped, the connection should be closed
+
+    private final ArrayBlockingQueue<ByteBuffer> writeQueue;            // encoded responses, filled by workers
+    private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+
+    // accessed by the reactor thread only
+    private final ByteBuffer[] gather;                                  // responses being written out
+    private int gatherCount = 0;
+    private boolean readPaused = false;
+
+    /**
+     * Constructor.
+     *
+     * @param channel client channel
+     * @param key selection key of the channel
+     * @param reactor reactor that owns the channel
+     * @param maxInFlight max number of requests in flight
+     */
+    public Connection(SocketChannel channel, SelectionKey key, Reactor reactor, int maxInFlight) {
+        this.channel = channel;
+        this.key = key;
+        this.reactor = reactor;
+        this.writeQueue = new ArrayBlockingQueue<ByteBuffer>(maxInFlight);
+        this.gather = new ByteBuffer[maxInFlight];
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public SelectionKey getKey() {
+        return key;
+    }
+
+    public FrameDecoder getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * Updates the time of the last activity on the connection.
+     */
+    public void touch() {
+        lastActivity = System.currentTimeMillis();
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+
+    /**
+     * @return number of requests in flight, including the started one
+     */
+    public int requestStarted() {
+        return inFlight.incrementAndGet();
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Encodes the response into a pooled buffer, puts it into the write
+     * queue and asks the reactor to flush the queue. Is called by worker
+     * threads; never blocks on the channel.
+     *
+     * @param response response to write out
+     */
+    @Override
+    public void writeOut(BinaryResponse response) {
+        if (closed.get()) return;
+
+        ByteBuffer buffer = reactor.getBufferPool().acquire(response.getFrameSize());
+        response.putToBuffer(buffer);
+        writeOut(buffer);
+    }
+
+    /**
+     * Puts the encoded response into the write queue and asks the reactor
+     * to flush the queue. If the connection has been closed meanwhile, the
+     * queue is drained back to the pool, since the reactor could have
+     * released the buffers of the connection before the response was queued.
+     *
+     * @param buffer pooled buffer with the encoded response, position is at the end of the response
+     */
+    public void writeOut(ByteBuffer buffer) {
+        buffer.flip();
+        if (!writeQueue.offer(buffer)) {        // more responses than requests in flight, the connection is broken
+            reactor.getBufferPool().release(buffer);
+            failed = true;
+            log.error("Write queue of " + this + " is full, the response is dropped and the connection is closed");
+        }
+
+        if (closed.get()) {
+            // each buffer is polled once, either here or by releaseBuffers()
+            ByteBuffer queued;
+            while ((queued = writeQueue.poll()) != null) {
+                reactor.getBufferPool().release(queued);
+            }
+            return;
+        }
+
+        if (flushScheduled.compareAndSet(false, true)) {
+            reactor.scheduleFlush(this);
+        }
+    }
+
+    /**
+     * Is called by the reactor before it flushes the connection, so that
+     * responses queued afterwards schedule another flush.
+     */
+    public void flushStarted() {
+        flushScheduled.set(false);
+    }
+
+    /**
+     * Writes queued responses to the channel with a single gathering write.
+     * Fully written buffers are returned to the pool. Is called by the
+     * reactor thread only.
+     *
+     * @param pool pool to return written buffers to
+     * @return number of responses written out completely
+     * @throws IOException
+     */
+    public int flush(DirectBufferPool pool) throws IOException {
+        ByteBuffer buffer;
+        while (gatherCount < gather.length && (buffer = writeQueue.poll()) != null) {
+            gather[gatherCount++] = buffer;
+        }
+        if (gatherCount == 0) return 0;
+
+        channel.write(gather, 0, gatherCount);
+
+        int written = 0;
+        while (written < gatherCount && !gather[written].hasRemaining()) {
+            pool.release(gather[written]);
+            written++;
+        }
+        if (written == 0) return 0;
+
+        System.arraycopy(gather, written, gather, 0, gatherCount - written);
+        for (int i = gatherCount - written; i < gatherCount; i++) gather[i] = null;
+        gatherCount -= written;
+
+        inFlight.addAndGet(-written);
+        touch();
+        return written;
+    }
+
+    /**
+     * @return true, if some responses are not written out yet
+     */
+    public boolean hasPendingWrites() {
+        return gatherCount > 0 || !writeQueue.isEmpty();
+    }
+
+    public boolean isReadPaused() {
+        return readPaused;
+    }
+
+    public void setReadPaused(boolean readPaused) {
+        this.readPaused = readPaused;
+    }
+
+    /**
+     * Connection is idle if no request is being processed and there was no
+     * activity during the timeout.
+     *
+     * @param now current time, ms
+     * @param idleTimeout idle timeout, ms; 0 means that connections never expire
+     * @return true, if the connection is idle
+     */
+    public boolean isIdle(long now, long idleTimeout) {
+        return idleTimeout > 0 && inFlight.get() == 0 && now - lastActivity > idleTimeout;
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    /**
+     * @return true, if a response could not be queued; the reactor closes such a connection on its next flush
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    /**
+     * Closes the channel and cancels its selection key. Could be called
+     * by the reactor and worker threads at the same time.
+     *
+     * @return true, if the connection was closed by the current call
+     */
+    public boolean close() throws IOException {
+        if (!closed.compareAndSet(false, true)) return false;
+
+        key.cancel();
+        channel.close();
+        return true;
+    }
+
+    /**
+     * Returns buffers of unsent responses to the pool. Is called by the
+     * reactor thread after the connection is closed; responses queued
+     * later are released by {@link #writeOut(ByteBuffer)}.
+     *
+     * @param pool buffer pool
+     */
+    public void releaseBuffers(DirectBufferPool pool) {
+        for (int i = 0; i < gatherCount; i++) {
+            pool.release(gather[i]);
+            gather[i] = null;
+        }
+        gatherCount = 0;
+
+        ByteBuffer buffer;
+        while ((buffer = writeQueue.poll()) != null) {
+            pool.release(buffer);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Connection{" + channel.hashCode() + "}";
+    }
+}
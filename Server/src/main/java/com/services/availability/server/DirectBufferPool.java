@@ -0,0 +1,147 @@
+package com.services.availability.server;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of fixed size direct buffers in two size classes: buffers of single
+ * responses, and larger buffers of batch frames. All pooled buffers of a
+ * class are slices of a single direct memory block allocated up front, so
+ * acquiring and releasing a buffer produces no garbage.
+ *
+ * If a class is exhausted, or the size exceeds the largest class, a heap
+ * buffer is returned and a miss is counted; heap buffers are dropped on
+ * release and are reclaimed by the young generation collection, unlike
+ * direct buffers, which are freed only by their cleaners.
+ *
+ * Buffers could be acquired and released by different threads.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-01 10:20
+ */
+public class DirectBufferPool {
+    private final int bufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> freeBuffers;   // array based, no allocation on offer/poll
+    private final int largeBufferSize;
+    private final ArrayBlockingQueue<ByteBuffer> freeLargeBuffers;
+    private final AtomicLong misses = new AtomicLong(0);        // heap buffers returned because a class was exhausted
+
+    /**
+     * Constructor of a pool with a single size class.
+     *
+     * @param bufferSize size of a single buffer
+     * @param capacity number of buffers in the pool
+     */
+    public DirectBufferPool(int bufferSize, int capacity) {
+        this(bufferSize, capacity, bufferSize, 0);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bufferSize size of a single buffer
+     * @param capacity number of buffers in the pool
+     * @param largeBufferSize size of a large buffer, e.g. of a batch frame
+     * @param largeCapacity number of large buffers in the pool
+     */
+    public DirectBufferPool(int bufferSize, int capacity, int largeBufferSize, int largeCapacity) {
+        if (largeBufferSize < bufferSize) throw new IllegalArgumentException("Large buffers should not be smaller than the regular ones");
+
+        this.bufferSize = bufferSize;
+        this.freeBuffers = allocate(bufferSize, capacity);
+        this.largeBufferSize = largeBufferSize;
+        this.freeLargeBuffers = allocate(largeBufferSize, largeCapacity);
+    }
+
+    /**
+     * @return cleared buffer of the pool's buffer size
+     */
+    public ByteBuffer acquire() {
+        return acquire(freeBuffers, bufferSize);
+    }
+
+    /**
+     * Acquires a buffer of at least the specified size: a regular buffer, or
+     * a large one for sizes up to the large buffer size (e.g. batch
+     * responses), or a heap buffer for larger sizes.
+     *
+     * @param size required buffer size
+     * @return cleared buffer
+     */
+    public ByteBuffer acquire(int size) {
+        if (size <= bufferSize) return acquire();
+        if (size <= largeBufferSize) return acquire(freeLargeBuffers, largeBufferSize);
+
+        misses.incrementAndGet();
+        return ByteBuffer.allocate(size);
+    }
+
+    /**
+     * Returns the buffer to the pool. Buffer should not be used afterwards.
+     *
+     * @param buffer buffer acquired from the pool
+     */
+    public void release(ByteBuffer buffer) {
+        if (!buffer.isDirect()) return;                         // heap buffer given out on a miss
+
+        if (buffer.capacity() == bufferSize) {
+            freeBuffers.offer(buffer);
+        } else if (buffer.capacity() == largeBufferSize) {
+            freeLargeBuffers.offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getLargeBufferSize() {
+        return largeBufferSize;
+    }
+
+    /**
+     * @return number of buffers available in the pool
+     */
+    public int getAvailable() {
+        return freeBuffers.size();
+    }
+
+    /**
+     * @return number of large buffers available in the pool
+     */
+    public int getLargeAvailable() {
+        return freeLargeBuffers.size();
+    }
+
+    /**
+     * @return number of heap buffers returned because the pool was exhausted
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    private ByteBuffer acquire(ArrayBlockingQueue<ByteBuffer> buffers, int size) {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            return ByteBuffer.allocate(size);
+        }
+        buffer.clear();
+        return buffer;
+    }
+
+    private static ArrayBlockingQueue<ByteBuffer> allocate(int bufferSize, int capacity) {
+        ArrayBlockingQueue<ByteBuffer> buffers = new ArrayBlockingQueue<ByteBuffer>(Math.max(capacity, 1));
+        if (capacity == 0) return buffers;
+
+        ByteBuffer block = ByteBuffer.allocateDirect(bufferSize * capacity);
+        for (int i = 0; i < capacity; i++) {
+            block.limit((i + 1) * bufferSize);
+            block.position(i * bufferSize);
+            buffers.offer(block.slice());
+        }
+        return buffers;
+    }
+}
@@ -0,0 +1,123 @@
+package com.services.availability.server;
+
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.RequestFlyweight;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Streaming decoder of request frames. Each connection has its own decoder
+ * with its own read buffer, so a frame split between several reads is
+ * assembled from its parts, and several frames that arrived in a single
+ * read are all decoded. Bytes of an incomplete frame are kept in the buffer
+ * until the rest of the frame arrives.
+ *
+ * Buffer is kept in "read" mode between calls: bytes between position and
+ * limit are received, but not decoded yet.
+ *
+ * Frames of batch requests have variable length. If a frame does not fit
+ * into the buffer, the buffer is enlarged; frame length is limited by the
+ * max batch size.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-31 10:05
+ */
+public class FrameDecoder {
+    public static final int DEFAULT_CAPACITY = BinaryRequest.REQUEST_SIZE * 64;
+
+    private ByteBuffer buffer;
+
+    public FrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity read buffer capacity, should fit at least one frame
+     */
+    public FrameDecoder(int capacity) {
+        if (capacity < BinaryRequest.REQUEST_SIZE)
+            throw new IllegalArgumentException("capacity should fit at least one frame");
+
+        this.buffer = ByteBuffer.allocate(capacity);
+        this.buffer.flip();                             // empty, in read mode
+    }
+
+    /**
+     * Reads available bytes from the channel into the free space of the
+     * buffer. Undecoded bytes are moved to the beginning of the buffer first.
+     *
+     * @param channel channel to read from
+     * @return number of bytes read, or -1 if the end of stream is reached
+     * @throws IOException
+     */
+    public int readFrom(ReadableByteChannel channel) throws IOException {
+        buffer.compact();
+        try {
+            return channel.read(buffer);
+        } finally {
+            buffer.flip();
+        }
+    }
+
+    /**
+     * Decodes the next complete frame.
+     *
+     * @return request, or null if there is no complete frame in the buffer
+     */
+    public BinaryRequest next() {
+        if (!hasFrame()) return null;
+        return BinaryRequest.fromByteBuffer(buffer);
+    }
+
+    /**
+     * Points the flyweight to the next complete frame without decoding it.
+     * Frame stays in the buffer until it is skipped with {@link #skip(int)}.
+     *
+     * @param flyweight view to point to the frame
+     * @return true, if there is a complete frame in the buffer
+     */
+    public boolean peek(RequestFlyweight flyweight) {
+        if (!hasFrame()) return false;
+        flyweight.wrap(buffer, buffer.position());
+        return true;
+    }
+
+    /**
+     * Skips the frame the flyweight was pointed to by {@link #peek(RequestFlyweight)}.
+     *
+     * @param frameSize length of the frame
+     */
+    public void skip(int frameSize) {
+        buffer.position(buffer.position() + frameSize);
+    }
+
+    /**
+     * Checks if the next frame is received completely. If the frame is
+     * larger than the buffer, the buffer is enlarged to fit it.
+     *
+     * @return true, if there is at least one complete frame in the buffer
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public boolean hasFrame() {
+        int frameSize = BinaryRequest.frameSize(buffer);
+        if (frameSize > buffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocate(frameSize);
+            larger.put(buffer);
+            larger.flip();
+            buffer = larger;
+        }
+        return frameSize != -1 && buffer.remaining() >= frameSize;
+    }
+
+    /**
+     * @return number of received bytes, which were not decoded yet
+     */
+    public int getPendingBytes() {
+        return buffer.remaining();
+    }
+}
@@ -0,0 +1,408 @@
+package com.services.availability.server;
+
+import com.services.availability.common.UnixSockets;
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryResponse;
+import com.services.availability.protocol.binary.RequestFlyweight;
+import com.services.availability.protocol.binary.ResponseFlyweight;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Event loop that owns a selector and serves a subset of client connections:
+ * reads and decodes requests, hands them over to the worker pool, pauses and
+ * resumes connections with too many requests in flight and closes idle ones.
+ * Every connection has its own read buffer and {@link FrameDecoder}, so
+ * partial and coalesced frames are handled.
+ *
+ * Responses are written by the reactor as well: workers queue encoded
+ * responses in the connection and schedule a flush, the reactor drains the
+ * queue with gathering writes and waits for OP_WRITE if the socket send
+ * buffer is full. Response buffers come from a shared direct buffer pool.
+ *
+ * With inline execution enabled, requests that the storage can answer
+ * without blocking (see {@link RequestProcessor#canProcessInline(BinaryRequest)})
+ * are processed on the reactor thread (unless the worker pool is in key
+ * affinity mode), which saves two thread handoffs per
+ * request; only slow requests go to the worker pool. Responses of inline
+ * requests decoded from a single read are flushed together at the end of
+ * the loop iteration. Inline GET, PUT and REMOVE are read through a
+ * flyweight view of the read buffer and answered straight into a pooled
+ * response buffer, so no request or response objects are created for them.
+ *
+ * Connections are accepted by the server thread and handed over to a reactor
+ * with {@link #register(SocketChannel)}; from then on the channel is selected
+ * by the reactor thread only. Other threads communicate with the reactor
+ * through queues followed by a selector wakeup.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-30 11:15
+ */
+public class Reactor implements Runnable {
+    private final static Logger logger = Logger.getLogger(Reactor.class);
+
+    private final static long IDLE_CHECK_INTERVAL = 1000;      // ms
+    private final static int MAX_IN_FLIGHT = 128;              // pipelined requests per connection
+
+    private final String name;
+    private final Selector selector;
+    private final AsyncRequestProcessor asyncRequestProcessor;
+    private final DirectBufferPool bufferPool;
+    private final long idleTimeout;
+    private final boolean inlineExecution;
+
+    private final Queue<SocketChannel> acceptedChannels = new ConcurrentLinkedQueue<SocketChannel>();
+    private final Queue<Connection> flushQueue = new ConcurrentLinkedQueue<Connection>();
+    private final AtomicInteger connectionCount = new AtomicInteger(0);
+
+    private volatile boolean isRunning = true;
+    private volatile Thread reactorThread;
+
+    // accessed by the reactor thread only
+    private final RequestFlyweight requestFlyweight = new RequestFlyweight();
+    private final ResponseFlyweight responseFlyweight = new ResponseFlyweight();
+
+    // written by the reactor thread only
+    private volatile long inlineRequests = 0L;                 // requests processed on the reactor thread
+    private volatile long offloadedRequests = 0L;              // requests passed to the worker pool
+
+    /**
+     * Constructor.
+     *
+     * @param name reactor name, used as the thread name
+     * @param asyncRequestProcessor worker pool
+     * @param bufferPool pool of response buffers
+     * @param idleTimeout time in ms after which a connection without requests is closed; 0 to keep connections forever
+     * @throws IOException
+     */
+    public Reactor(String name, AsyncRequestProcessor asyncRequestProcessor, DirectBufferPool bufferPool, long idleTimeout) throws IOException {
+        this(name, asyncRequestProcessor, bufferPool, idleTimeout, false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param name reactor name, used as the thread name
+     * @param asyncRequestProcessor worker pool
+     * @param bufferPool pool of response buffers
+     * @param idleTimeout time in ms after which a connection without requests is closed; 0 to keep connections forever
+     * @param inlineExecution true to process non-blocking requests on the reactor thread
+     * @throws IOException
+     */
+    public Reactor(String name, AsyncRequestProcessor asyncRequestProcessor, DirectBufferPool bufferPool,
+                   long idleTimeout, boolean inlineExecution) throws IOException {
+        this.name = name;
+        this.selector = Selector.open();
+        this.asyncRequestProcessor = asyncRequestProcessor;
+        this.bufferPool = bufferPool;
+        this.idleTimeout = idleTimeout;
+        this.inlineExecution = inlineExecution;
+    }
+
+    /**
+     * Hands over an accepted channel to the reactor. Thread safe.
+     *
+     * @param channel accepted client channel
+     */
+    public void register(SocketChannel channel) {
+        connectionCount.incrementAndGet();
+        acceptedChannels.add(channel);
+        selector.wakeup();
+    }
+
+    /**
+     * Asks the reactor to flush the write queue of the connection. Is called
+     * by worker threads, and by the reactor thread itself for requests
+     * processed inline; the latter need no wakeup, since the reactor flushes
+     * scheduled connections before it selects again.
+     *
+     * @param connection connection with queued responses
+     */
+    public void scheduleFlush(Connection connection) {
+        flushQueue.add(connection);
+        if (Thread.currentThread() != reactorThread) selector.wakeup();
+    }
+
+    public DirectBufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return number of connections served by the reactor
+     */
+    public int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return number of requests processed on the reactor thread
+     */
+    public long getInlineRequests() {
+        return inlineRequests;
+    }
+
+    /**
+     * @return number of requests passed to the worker pool
+     */
+    public long getOffloadedRequests() {
+        return offloadedRequests;
+    }
+
+    /**
+     * Stops the event loop. Connections are closed by the reactor thread.
+     */
+    public void shutdown() {
+        isRunning = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        reactorThread = Thread.currentThread();
+        long lastIdleCheck = System.currentTimeMillis();
+        try {
+            while (isRunning) {
+                selector.select(IDLE_CHECK_INTERVAL);
+                registerAcceptedChannels();
+                flushScheduledConnections();
+
+                long now = System.currentTimeMillis();
+                if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+                    closeIdleConnections(now);
+                    lastIdleCheck = now;
+                }
+
+                Set<SelectionKey> selectedKeys = selector.selectedKeys();
+                Iterator<SelectionKey> keyIterator = selectedKeys.iterator();
+                while (keyIterator.hasNext()) {
+                    SelectionKey key = keyIterator.next();
+                    keyIterator.remove();
+
+                    Connection connection = (Connection) key.attachment();
+                    if (key.isValid() && key.isWritable()) {
+                        write(connection);
+                    }
+                    if (key.isValid() && key.isReadable()) {
+                        read(connection);
+                    }
+                }
+                flushScheduledConnections();            // responses of requests processed inline
+            }
+        } catch (IOException e) {
+            logger.error("Error in reactor " + name, e);
+        } finally {
+            closeSelector();
+        }
+    }
+
+    private void read(Connection connection) {
+        SocketChannel clientChannel = connection.getChannel();
+
+        try {
+            if (connection.getDecoder().readFrom(clientChannel) == -1) {
+                closeConnection(connection);        // client closed the connection
+                return;
+            }
+        } catch (IOException e) {
+            logger.debug("Error in client channel: " + clientChannel.hashCode() + ", " + e.getMessage());
+            closeConnection(connection);
+            return;
+        }
+
+        connection.touch();
+        decode(connection);
+    }
+
+    /**
+     * Schedules processing of all complete frames of the connection's read
+     * buffer, or processes them inline if enabled and possible. If the
+     * connection reaches the limit of requests in flight, the rest of frames
+     * stays in the buffer, and the channel is removed from the read set until
+     * some responses are written out.
+     */
+    private void decode(Connection connection) {
+        FrameDecoder decoder = connection.getDecoder();
+        try {
+            while (connection.getInFlight() < MAX_IN_FLIGHT && decoder.peek(requestFlyweight)) {
+                if (inlineExecution && asyncRequestProcessor.canProcessInline(requestFlyweight)) {
+                    connection.requestStarted();
+                    inlineRequests++;
+                    processFlyweight(connection);
+                    continue;
+                }
+
+                BinaryRequest request = decoder.next();
+                connection.requestStarted();
+                if (inlineExecution && asyncRequestProcessor.canProcessInline(request)) {
+                    inlineRequests++;
+                    asyncRequestProcessor.processInline(request, connection);
+                } else {
+                    offloadedRequests++;
+                    asyncRequestProcessor.scheduleRequestProcessing(request, connection);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            logger.warn("Malformed request frame, closing connection " + connection + ": " + e.getMessage());
+            closeConnection(connection);
+            return;
+        }
+
+        connection.setReadPaused(connection.getInFlight() >= MAX_IN_FLIGHT);
+        updateInterestOps(connection);
+    }
+
+    /**
+     * Processes the request the flyweight points to, writing the response
+     * into a pooled buffer, and queues the response.
+     */
+    private void processFlyweight(Connection connection) {
+        ByteBuffer buffer = bufferPool.acquire(BinaryResponse.RESPONSE_SIZE);
+        asyncRequestProcessor.processInline(requestFlyweight, responseFlyweight.wrap(buffer));
+        responseFlyweight.commit();
+        connection.getDecoder().skip(requestFlyweight.getFrameSize());
+        connection.writeOut(buffer);
+    }
+
+    /**
+     * Writes out queued responses of the connection. Connection paused
+     * because of too many requests in flight is resumed, when some of the
+     * responses are written out.
+     */
+    private void write(Connection connection) {
+        try {
+            while (connection.hasPendingWrites() && connection.flush(bufferPool) > 0) {
+                // gathering write of up to MAX_IN_FLIGHT responses per iteration
+            }
+        } catch (IOException e) {
+            logger.debug("Error in client channel: " + connection.getChannel().hashCode() + ", " + e.getMessage());
+            closeConnection(connection);
+            return;
+        }
+
+        if (connection.isReadPaused() && connection.getInFlight() < MAX_IN_FLIGHT) {
+            decode(connection);                         // frames left in the buffer go first
+        } else {
+            updateInterestOps(connection);
+        }
+    }
+
+    /**
+     * Channel is selected for read unless the connection is paused, and for
+     * write while there are responses that could not be written at once.
+     */
+    private void updateInterestOps(Connection connection) {
+        int ops = (connection.isReadPaused() ? 0 : SelectionKey.OP_READ)
+                | (connection.hasPendingWrites() ? SelectionKey.OP_WRITE : 0);
+        try {
+            connection.getKey().interestOps(ops);
+        } catch (CancelledKeyException e) {
+            // connection was closed
+        }
+    }
+
+    /**
+     * Flushes connections, which responses were queued by workers. Is
+     * called by the reactor thread only.
+     */
+    private void flushScheduledConnections() {
+        Connection connection;
+        while ((connection = flushQueue.poll()) != null) {
+            connection.flushStarted();
+            if (connection.isFailed()) {
+                closeConnection(connection);
+            } else if (connection.getKey().isValid()) {
+                write(connection);
+            }
+        }
+    }
+
+    /**
+     * Registers channels handed over by the acceptor. Is called by the
+     * reactor thread only.
+     */
+    private void registerAcceptedChannels() {
+        SocketChannel channel;
+        while ((channel = acceptedChannels.poll()) != null) {
+            try {
+                channel.configureBlocking(false);
+                if (!UnixSockets.isUnixChannel(channel)) channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new Connection(channel, key, this, MAX_IN_FLIGHT));
+            } catch (IOException e) {
+                logger.debug("Cannot register accepted channel: " + e.getMessage());
+                connectionCount.decrementAndGet();
+                try {
+                    channel.close();
+                } catch (IOException closeException) {
+                    logger.error("Cannot close channel", closeException);
+                }
+            }
+        }
+    }
+
+    /**
+     * Closes connections that were idle for longer than the idle timeout.
+     *
+     * @param now current time, ms
+     */
+    private void closeIdleConnections(long now) {
+        if (idleTimeout <= 0) return;
+
+        for (SelectionKey key: selector.keys()) {
+            Connection connection = (Connection) key.attachment();
+            if (connection != null && connection.isIdle(now, idleTimeout)) {
+                logger.debug("Closing idle connection " + connection);
+                closeConnection(connection);
+            }
+        }
+    }
+
+    private void closeConnection(Connection connection) {
+        try {
+            if (connection.close()) {
+                connectionCount.decrementAndGet();
+                connection.releaseBuffers(bufferPool);
+            }
+        } catch (IOException e) {
+            logger.error("Cannot close connection " + connection, e);
+        }
+    }
+
+    /**
+     * Closes all connections of the reactor and the selector.
+     */
+    private void closeSelector() {
+        for (SelectionKey key: selector.keys()) {
+            if (key.attachment() != null) closeConnection((Connection) key.attachment());
+        }
+        SocketChannel channel;
+        while ((channel = acceptedChannels.poll()) != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.error("Cannot close channel", e);
+            }
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.error("Cannot close selector of reactor " + name, e);
+        }
+    }
+}
@@ -1,68 +1,489 @@
 package com.services.availability.server;
 
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
+import com.services.availability.protocol.binary.BinaryCompareAndSetRequest;
 import com.services.availability.protocol.binary.BinaryErrorCodes;
+import com.services.availability.protocol.binary.BinaryPartitionMapResponse;
 import com.services.availability.protocol.binary.BinaryRequest;
 import com.services.availability.protocol.binary.BinaryRequestType;
 import com.services.availability.protocol.binary.BinaryResponse;
+import com.services.availability.protocol.binary.PartitionMap;
+import com.services.availability.protocol.binary.RequestFlyweight;
+import com.services.availability.protocol.binary.ResponseFlyweight;
+import com.services.availability.cluster.ClusterNode;
 import com.services.availability.model.AvailabilityItem;
 import com.services.availability.common.ThroughputMeter;
+import com.services.availability.storage.ItemUpdate;
+import com.services.availability.storage.OrderedStorage;
 import com.services.availability.storage.Storage;
+import com.services.availability.storage.ccl.commitlog.AsyncCommitLog;
+import org.apache.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 
 /**
  * Current class fetches data from client requests, executes PUT, GET and REMOVE
  * business operations and returns a client response.
  *
+ * Batch requests (MGET, MPUT, MREMOVE) are executed as a single storage
+ * batch, and a single response with a result per item is returned.
+ *
+ * Stock adjustments (ADD, DECREMENT, COMPARE_AND_SET) are executed as an
+ * atomic read-modify-write of the storage, so concurrent checkouts of the
+ * same item never lose updates. Response carries the amount after the
+ * operation, or the current amount if the operation was rejected.
+ *
+ * GET, PUT and REMOVE could also be processed from a flyweight view of the
+ * received frame into a flyweight view of the output buffer, see
+ * {@link #processRequest(RequestFlyweight, ResponseFlyweight)}; no request
+ * or response objects are created then.
+ *
+ * SCAN_SKU is answered with a single range scan if the storage keeps items
+ * in key order (see {@link OrderedStorage}), and with UNKNOWN_REQUEST
+ * otherwise.
+ *
+ * A read-only processor (see {@link #setReadOnly(boolean)}) serves reads
+ * only and rejects mutations with READ_ONLY, as a replication follower does.
+ *
+ * In cluster mode (see {@link #setClusterNode(ClusterNode)}) items of the
+ * partitions owned by other nodes are rejected with WRONG_PARTITION, and
+ * PARTITION_MAP and MIGRATE_PARTITION requests are served. Migrations run
+ * on the migration thread of the node, and MIGRATE_PARTITION is answered
+ * once the migration is completed.
+ *
  * @author Roman Reva
  * @version 1.0
  * @since 2014-06-19 19:14
  */
 public class RequestProcessor {
+    private static final Logger log = Logger.getLogger(RequestProcessor.class);
+
     protected volatile long writesNumber = 0L;
     protected volatile long readsNumber = 0L;
     protected volatile long removesNumber = 0L;
 
     private final Storage storage;
     private final ThroughputMeter throughputMeter;
+    private AsyncCommitLog commitLog = null;
+    private volatile boolean readOnly = false;
+    private ClusterNode clusterNode = null;
 
     public RequestProcessor(ThroughputMeter throughputMeter, Storage storage) {
         this.throughputMeter = throughputMeter;
         this.storage = storage;
     }
 
+    public Storage getStorage() {
+        return storage;
+    }
+
+    /**
+     * Attaches a commit log. Mutations processed by
+     * {@link #processRequest(BinaryRequest, AsyncRequestProcessor.ResponseWriteOutCallback)}
+     * are acknowledged only after they are durable in the log.
+     *
+     * @param commitLog asynchronous commit log
+     */
+    public void setCommitLog(AsyncCommitLog commitLog) {
+        this.commitLog = commitLog;
+    }
+
+    /**
+     * Makes the processor reject all mutations with READ_ONLY error, e.g.
+     * when the storage is a replica maintained by a replication follower.
+     *
+     * @param readOnly true, if mutations should be rejected
+     */
+    public void setReadOnly(boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Makes the processor serve the partitions owned by the node only.
+     *
+     * @param clusterNode node of the cluster
+     */
+    public void setClusterNode(ClusterNode clusterNode) {
+        this.clusterNode = clusterNode;
+    }
+
+    /**
+     * Checks if the request could be processed on the calling thread without
+     * blocking it, so that an event loop could run it inline instead of
+     * handing it over to the worker pool. GET qualifies if the storage can
+     * answer it from memory. Mutations qualify as well if no commit log is
+     * attached, since publishing to the log could wait for space in the
+     * ring buffer.
+     *
+     * @param request request to check
+     * @return true, if the request is not expected to block
+     */
+    public boolean canProcessInline(BinaryRequest request) {
+        BinaryRequestType type = request.getRequestType();
+        if (type.isCluster()) return type == BinaryRequestType.PARTITION_MAP;   // synchronous migration blocks for a while
+        if (type.isMutation() && commitLog != null) return false;
+
+        if (request instanceof BinaryBatchRequest) {
+            BinaryBatchRequest batch = (BinaryBatchRequest) request;
+            for (int i = 0; i < batch.size(); i++) {
+                if (!storage.isResident(AvailabilityItem.key(batch.getSku(i), batch.getStore(i)))) return false;
+            }
+            return true;
+        }
+        return storage.isResident(AvailabilityItem.key(request.getSku(), request.getStore()));
+    }
+
+    /**
+     * Flyweight counterpart of {@link #canProcessInline(BinaryRequest)}.
+     * Only GET, PUT and REMOVE qualify, since only they are supported by
+     * {@link #processRequest(RequestFlyweight, ResponseFlyweight)}. Nothing
+     * qualifies in cluster mode, since partition ownership is checked on the
+     * regular path only.
+     *
+     * @param request view of the received request frame
+     * @return true, if the request could be processed inline from the view
+     */
+    public boolean canProcessInline(RequestFlyweight request) {
+        BinaryRequestType type = request.getRequestType();
+        if (type != BinaryRequestType.GET && type != BinaryRequestType.PUT && type != BinaryRequestType.REMOVE) return false;
+        if (type != BinaryRequestType.GET && commitLog != null) return false;
+        if (clusterNode != null) return false;
+
+        return storage.isResident(AvailabilityItem.key(request.getSku(), request.getStore()));
+    }
+
+    /**
+     * Performs processing of a GET, PUT or REMOVE request read from the
+     * received frame, and writes the response straight into the output
+     * buffer. Neither request nor response objects are created; PUT still
+     * creates the item to store. Mutations are not published to the commit
+     * log, so the caller should check {@link #canProcessInline(RequestFlyweight)}
+     * first.
+     *
+     * @param request view of the received request frame
+     * @param response view of the output buffer to write the response to
+     * @throws IllegalArgumentException if the request type is not supported
+     */
+    public void processRequest(RequestFlyweight request, ResponseFlyweight response) {
+        throughputMeter.inc();
+
+        BinaryRequestType type = request.getRequestType();
+        if (readOnly && type != BinaryRequestType.GET) {
+            response.setError(type, BinaryErrorCodes.READ_ONLY, request.getRequestId());
+            return;
+        }
+
+        long key = AvailabilityItem.key(request.getSku(), request.getStore());
+        AvailabilityItem item;
+        if (type == BinaryRequestType.GET) {
+            readsNumber++;
+            item = storage.get(key);
+        } else if (type == BinaryRequestType.PUT) {
+            writesNumber++;
+            item = new AvailabilityItem(request.getSku(), request.getStore(), request.getAmount());
+            storage.put(key, item);
+        } else if (type == BinaryRequestType.REMOVE) {
+            removesNumber++;
+            item = storage.remove(key);
+        } else {
+            throw new IllegalArgumentException("Request type " + type + " is not supported by flyweight processing");
+        }
+
+        if (item == null) {
+            response.setError(type, BinaryErrorCodes.ITEM_NOT_FOUND, request.getRequestId());
+        } else {
+            response.set(type, BinaryErrorCodes.SUCCESS, request.getRequestId(), item.getSku(), item.getStore(), item.getAmount());
+        }
+    }
+
+    /**
+     * Performs processing of the provided request and passes the response
+     * to the callback.
+     *
+     * If a commit log is attached, every change of an item is published to
+     * the log inside of the storage update, under the lock of the key (see
+     * {@link Storage#compute(long, ItemUpdate)}). Records of a key are
+     * therefore ordered in the log as the changes are applied, and replay
+     * or a replication follower reproduces the live state. The callback is
+     * invoked by the commit log writer thread once the records are durable;
+     * the calling thread is not blocked while waiting for the sync.
+     *
+     * If the records cannot be synced, IOEXCEPTION error is returned to the
+     * client, and it means the outcome is unknown: the change is not rolled
+     * back, since later changes of the key could be applied on top of it,
+     * and it is durable only if its record has reached the log. The commit
+     * log stops after a failed sync (see {@link AsyncCommitLog}), and all
+     * later mutations are rejected with IOEXCEPTION before they are applied,
+     * so the storage does not drift further from the log; the state after
+     * restart is the one replayed from the log.
+     *
+     * MIGRATE_PARTITION is passed to the migration thread of the cluster
+     * node, and the callback is invoked by that thread once the migration
+     * is completed.
+     *
+     * @param request BinaryRequest to process
+     * @param callback callback to pass the response to
+     */
+    public void processRequest(final BinaryRequest request, final AsyncRequestProcessor.ResponseWriteOutCallback callback) {
+        if (clusterNode != null && request.getRequestType() == BinaryRequestType.MIGRATE_PARTITION) {
+            throughputMeter.inc();
+            clusterNode.submitMigration(request.getSku(), request.getStore()).whenComplete(new BiConsumer<PartitionMap, Throwable>() {
+                @Override
+                public void accept(PartitionMap map, Throwable error) {
+                    BinaryResponse response = migrationResponse(request, map, error);
+                    response.setRequestId(request.getRequestId());
+                    callback.writeOut(response);
+                }
+            });
+            return;
+        }
+
+        if (commitLog == null || !request.getRequestType().isMutation()) {
+            callback.writeOut(processRequest(request));
+            return;
+        }
+
+        MutationLog mutationLog = new MutationLog();
+        final BinaryResponse response = execute(request, mutationLog);
+        response.setRequestId(request.getRequestId());
+
+        CompletableFuture<Long> durability = mutationLog.durability();
+        if (durability == null) {
+            callback.writeOut(response);
+            return;
+        }
+
+        durability.whenComplete(new BiConsumer<Long, Throwable>() {
+            @Override
+            public void accept(Long sequence, Throwable error) {
+                if (error == null) {
+                    callback.writeOut(response);
+                } else {
+                    log.error("Request is not durable: " + request.getRequestType(), error);
+                    callback.writeOut(BinaryResponse.errorFor(request, BinaryErrorCodes.IOEXCEPTION));
+                }
+            }
+        });
+    }
+
     /**
      * Performs processing of the provided request and counts number of
-     * requests processed.
+     * requests processed. Response gets the ID of the request. Mutations
+     * are not published to the commit log.
      *
      * @param request BinaryRequest to process
      * @return BinaryResponse
      */
     public BinaryResponse processRequest(BinaryRequest request) {
+        BinaryResponse response = execute(request, null);
+        response.setRequestId(request.getRequestId());
+        return response;
+    }
+
+    /**
+     * @param mutationLog log of the request mutations, or null if they are not logged
+     */
+    private BinaryResponse execute(BinaryRequest request, MutationLog mutationLog) {
         throughputMeter.inc();
 
-        if (request.getRequestType() == BinaryRequestType.GET) {
+        BinaryRequestType type = request.getRequestType();
+        if (readOnly && type.isMutation()) {
+            return BinaryResponse.errorFor(request, BinaryErrorCodes.READ_ONLY);
+        } else if (type.isCluster()) {
+            return processClusterRequest(request);
+        } else if (clusterNode == null) {
+            return executeLocal(request, mutationLog);
+        }
+
+        long[] keys = keysOf(request);
+        if (!type.isMutation()) {
+            for (long key: keys) {
+                if (!clusterNode.owns(AvailabilityItem.keyToSku(key))) return BinaryResponse.errorFor(request, BinaryErrorCodes.WRONG_PARTITION);
+            }
+            return executeLocal(request, mutationLog);
+        }
+
+        BinaryErrorCodes admission = clusterNode.beginWrite(keys);
+        if (admission != BinaryErrorCodes.SUCCESS) return BinaryResponse.errorFor(request, admission);
+        try {
+            return executeLocal(request, mutationLog);
+        } finally {
+            clusterNode.endWrite(keys);
+        }
+    }
+
+    private BinaryResponse executeLocal(BinaryRequest request, MutationLog mutationLog) {
+        if (request instanceof BinaryBatchRequest) {
+            return processBatch((BinaryBatchRequest) request, mutationLog);
+        } else if (request.getRequestType() == BinaryRequestType.GET) {
             readsNumber++;
             return processGet(request);
         } else if (request.getRequestType() == BinaryRequestType.PUT) {
             writesNumber++;
-            return processPut(request);
+            return processPut(request, mutationLog);
         } else if (request.getRequestType() == BinaryRequestType.REMOVE) {
             removesNumber++;
-            return processRemove(request);
+            return processRemove(request, mutationLog);
+        } else if (request.getRequestType() == BinaryRequestType.ADD
+                || request.getRequestType() == BinaryRequestType.DECREMENT
+                || request.getRequestType() == BinaryRequestType.COMPARE_AND_SET) {
+            writesNumber++;
+            return processAdjustment(request, mutationLog);
+        } else if (request.getRequestType() == BinaryRequestType.SCAN_SKU) {
+            readsNumber++;
+            return processScan(request);
         } else {
             return new BinaryResponse(request.getRequestType(), BinaryErrorCodes.UNKNOWN_REQUEST);
         }
     }
 
+    /**
+     * Serves PARTITION_MAP and MIGRATE_PARTITION requests. Successful
+     * migration is answered with the partition, the target node and the
+     * new map version as sku, store and amount.
+     *
+     * @param request cluster request
+     * @return response; UNKNOWN_REQUEST if the processor is not in cluster mode
+     */
+    private BinaryResponse processClusterRequest(BinaryRequest request) {
+        if (clusterNode == null) return BinaryResponse.errorFor(request, BinaryErrorCodes.UNKNOWN_REQUEST);
+        if (request.getRequestType() == BinaryRequestType.PARTITION_MAP) return new BinaryPartitionMapResponse(clusterNode.getPartitionMap());
+
+        try {
+            return migrationResponse(request, clusterNode.submitMigration(request.getSku(), request.getStore()).get(), null);
+        } catch (ExecutionException e) {
+            return migrationResponse(request, null, e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return migrationResponse(request, null, e);
+        }
+    }
+
+    /**
+     * @param request MIGRATE_PARTITION request
+     * @param map partition map after the migration, or null if it failed
+     * @param error migration error, or null
+     * @return response to the request
+     */
+    private BinaryResponse migrationResponse(BinaryRequest request, PartitionMap map, Throwable error) {
+        if (error instanceof IllegalArgumentException) {
+            log.warn("Partition migration rejected: " + error.getMessage());
+            return BinaryResponse.errorFor(request, BinaryErrorCodes.WRONG_PARTITION);
+        } else if (error != null) {
+            log.error("Partition " + request.getSku() + " cannot be moved to node " + request.getStore(), error);
+            return BinaryResponse.errorFor(request, BinaryErrorCodes.IOEXCEPTION);
+        }
+        return new BinaryResponse(request.getRequestType(), request.getSku(), request.getStore(), map.getVersion());
+    }
+
+    /**
+     * @return keys of the items of the request
+     */
+    private long[] keysOf(BinaryRequest request) {
+        if (!(request instanceof BinaryBatchRequest)) return new long[] {AvailabilityItem.key(request.getSku(), request.getStore())};
+
+        BinaryBatchRequest batch = (BinaryBatchRequest) request;
+        long[] keys = new long[batch.size()];
+        for (int i = 0; i < keys.length; i++) keys[i] = AvailabilityItem.key(batch.getSku(i), batch.getStore(i));
+        return keys;
+    }
+
+    /**
+     * Performs the operation of a batch request on all of its items with
+     * a single storage batch. Logged mutations are applied item by item,
+     * since every record is published under the lock of its key.
+     *
+     * @param request batch request to process
+     * @param mutationLog log of the mutations, or null
+     * @return response with a result per item
+     */
+    private BinaryResponse processBatch(BinaryBatchRequest request, MutationLog mutationLog) {
+        BinaryRequestType type = request.getRequestType().getItemType();
+        BinaryBatchResponse response = new BinaryBatchResponse(request.getRequestType(), request.size());
+
+        long[] keys = new long[request.size()];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = AvailabilityItem.key(request.getSku(i), request.getStore(i));
+        }
+
+        if (mutationLog != null && type != BinaryRequestType.GET) {
+            for (int i = 0; i < keys.length; i++) {
+                BinaryRequest item = new BinaryRequest(type, request.getSku(i), request.getStore(i), request.getAmount(i));
+                BinaryResponse result = type == BinaryRequestType.PUT ? processPut(item, mutationLog) : processRemove(item, mutationLog);
+                if (type == BinaryRequestType.PUT) writesNumber++;
+                else removesNumber++;
+
+                if (result.isSuccess()) {
+                    response.setResult(i, BinaryErrorCodes.SUCCESS, result.getSku(), result.getStore(), result.getAmount());
+                } else {
+                    response.setResult(i, result.getErrorCode(), request.getSku(i), request.getStore(i), -1);
+                }
+            }
+            return response;
+        }
+
+        if (type == BinaryRequestType.PUT) {
+            writesNumber += keys.length;
+            AvailabilityItem[] items = new AvailabilityItem[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                items[i] = new AvailabilityItem(request.getSku(i), request.getStore(i), request.getAmount(i));
+            }
+            storage.putAll(keys, items);
+            for (int i = 0; i < keys.length; i++) {
+                response.setResult(i, BinaryErrorCodes.SUCCESS, items[i].getSku(), items[i].getStore(), items[i].getAmount());
+            }
+            return response;
+        }
+
+        AvailabilityItem[] items;
+        if (type == BinaryRequestType.GET) {
+            readsNumber += keys.length;
+            items = storage.getAll(keys);
+        } else {
+            removesNumber += keys.length;
+            items = storage.removeAll(keys);
+        }
+        for (int i = 0; i < keys.length; i++) {
+            if (items[i] == null) {
+                response.setResult(i, BinaryErrorCodes.ITEM_NOT_FOUND, request.getSku(i), request.getStore(i), -1);
+            } else {
+                response.setResult(i, BinaryErrorCodes.SUCCESS, items[i].getSku(), items[i].getStore(), items[i].getAmount());
+            }
+        }
+        return response;
+    }
+
     /**
      * Converts request into Availability Item object and performs PUT
      * operation on storage.
      *
      * @param request request to process
+     * @param mutationLog log of the mutations, or null
      * @return client response
      */
-    private BinaryResponse processPut(BinaryRequest request) {
-        AvailabilityItem item = new AvailabilityItem(request.getSku(), request.getStore(), request.getAmount());
-        storage.put(item.key(), item);
+    private BinaryResponse processPut(BinaryRequest request, MutationLog mutationLog) {
+        final AvailabilityItem item = new AvailabilityItem(request.getSku(), request.getStore(), request.getAmount());
+        if (mutationLog == null) {
+            storage.put(item.key(), item);
+        } else {
+            LoggedUpdate update = mutationLog.apply(item.key(), new ItemUpdate() {
+                @Override
+                public AvailabilityItem apply(AvailabilityItem current) {
+                    return item;
+                }
+            });
+            if (update.rejected) return BinaryResponse.errorFor(request, BinaryErrorCodes.IOEXCEPTION);
+        }
         return new BinaryResponse(request.getRequestType(), item.getSku(), item.getStore(), item.getAmount());
     }
 
@@ -86,13 +507,194 @@ public class RequestProcessor {
      * operation on storage.
      *
      * @param request request to process
+     * @param mutationLog log of the mutations, or null
      * @return client response
      */
-    private BinaryResponse processRemove(BinaryRequest request) {
-        AvailabilityItem item = storage.remove(AvailabilityItem.key(request.getSku(), request.getStore()));
+    private BinaryResponse processRemove(BinaryRequest request, MutationLog mutationLog) {
+        long key = AvailabilityItem.key(request.getSku(), request.getStore());
+        AvailabilityItem item;
+        if (mutationLog == null) {
+            item = storage.remove(key);
+        } else {
+            LoggedUpdate update = mutationLog.apply(key, new ItemUpdate() {
+                @Override
+                public AvailabilityItem apply(AvailabilityItem current) {
+                    return null;
+                }
+            });
+            if (update.rejected) return BinaryResponse.errorFor(request, BinaryErrorCodes.IOEXCEPTION);
+            item = update.previous;
+        }
         if (item == null) {
             return new BinaryResponse(request.getRequestType(), BinaryErrorCodes.ITEM_NOT_FOUND);
         }
         return new BinaryResponse(request.getRequestType(), item.getSku(), item.getStore(), item.getAmount());
     }
+
+    /**
+     * Reads stores of the SKU, starting from the requested store, with a
+     * single range scan.
+     *
+     * @param request request to process
+     * @return response with a result per store found
+     */
+    private BinaryResponse processScan(BinaryRequest request) {
+        if (!(storage instanceof OrderedStorage)) return BinaryResponse.errorFor(request, BinaryErrorCodes.UNKNOWN_REQUEST);
+
+        List<AvailabilityItem> items = ((OrderedStorage) storage).scan(AvailabilityItem.key(request.getSku(), request.getStore()),
+                AvailabilityItem.key(request.getSku(), Short.MAX_VALUE), request.getScanLimit());
+
+        BinaryBatchResponse response = new BinaryBatchResponse(request.getRequestType(), items.size());
+        for (int i = 0; i < items.size(); i++) {
+            AvailabilityItem item = items.get(i);
+            response.setResult(i, BinaryErrorCodes.SUCCESS, item.getSku(), item.getStore(), item.getAmount());
+        }
+        return response;
+    }
+
+    /**
+     * Performs ADD, DECREMENT or COMPARE_AND_SET as a single atomic
+     * read-modify-write of the storage.
+     *
+     * @param request request to process
+     * @param mutationLog log of the mutations, or null
+     * @return client response with the amount after the operation, or with
+     *         the current amount if the operation was rejected
+     */
+    private BinaryResponse processAdjustment(BinaryRequest request, MutationLog mutationLog) {
+        StockAdjustment adjustment = new StockAdjustment(request);
+        long key = AvailabilityItem.key(request.getSku(), request.getStore());
+        AvailabilityItem item;
+        if (mutationLog == null) {
+            item = storage.compute(key, adjustment);
+        } else {
+            LoggedUpdate update = mutationLog.apply(key, adjustment);
+            if (update.rejected) return BinaryResponse.errorFor(request, BinaryErrorCodes.IOEXCEPTION);
+            item = update.result;
+        }
+
+        if (adjustment.errorCode == BinaryErrorCodes.ITEM_NOT_FOUND) {
+            return new BinaryResponse(request.getRequestType(), BinaryErrorCodes.ITEM_NOT_FOUND);
+        }
+        return new BinaryResponse(request.getRequestType(), adjustment.errorCode, item.getSku(), item.getStore(), item.getAmount());
+    }
+
+    /**
+     * Mutations of a single request, which are published to the commit log.
+     */
+    private class MutationLog {
+        private final List<CompletableFuture<Long>> records = new ArrayList<CompletableFuture<Long>>();
+
+        /**
+         * Applies the update to the storage; the change, if any, is
+         * published to the commit log before the lock of the key is released.
+         *
+         * @param key item key
+         * @param update update to apply
+         * @return applied update
+         */
+        LoggedUpdate apply(long key, ItemUpdate update) {
+            LoggedUpdate loggedUpdate = new LoggedUpdate(key, update, records);
+            loggedUpdate.result = storage.compute(key, loggedUpdate);
+            return loggedUpdate;
+        }
+
+        /**
+         * @return future, which is completed when all records are durable, or null if nothing has changed
+         */
+        CompletableFuture<Long> durability() {
+            if (records.isEmpty()) return null;
+
+            return CompletableFuture.allOf(records.toArray(new CompletableFuture<?>[0])).thenApply(new Function<Void, Long>() {
+                @Override
+                public Long apply(Void ignored) {
+                    return records.get(records.size() - 1).join();
+                }
+            });
+        }
+    }
+
+    /**
+     * Update, which publishes its change to the commit log while it is
+     * applied. Publishing could wait for space in the commit log ring
+     * buffer; the writer thread does not take storage locks, so the wait
+     * is bounded. The update is rejected, if the commit log has failed.
+     */
+    private class LoggedUpdate implements ItemUpdate {
+        private final long key;
+        private final ItemUpdate update;
+        private final List<CompletableFuture<Long>> records;
+
+        private AvailabilityItem previous = null;               // value before the update
+        private AvailabilityItem result = null;                 // value after the update
+        private boolean rejected = false;                       // true, if the storage is left unchanged
+
+        LoggedUpdate(long key, ItemUpdate update, List<CompletableFuture<Long>> records) {
+            this.key = key;
+            this.update = update;
+            this.records = records;
+        }
+
+        @Override
+        public AvailabilityItem apply(AvailabilityItem current) {
+            previous = current;
+            if (commitLog.isFailed()) {
+                rejected = true;
+                return current;
+            }
+
+            AvailabilityItem next = update.apply(current);
+            if (next != current) records.add(next == null ? commitLog.publishRemove(key) : commitLog.publishPut(next));
+            return next;
+        }
+    }
+
+    /**
+     * Update of the item amount by a stock adjustment request. Remembers
+     * the outcome, since the storage returns the resulting value only.
+     */
+    private static class StockAdjustment implements ItemUpdate {
+        private final BinaryRequest request;
+        private BinaryErrorCodes errorCode = BinaryErrorCodes.SUCCESS;
+
+        StockAdjustment(BinaryRequest request) {
+            this.request = request;
+        }
+
+        @Override
+        public AvailabilityItem apply(AvailabilityItem current) {
+            errorCode = BinaryErrorCodes.SUCCESS;
+            int delta = request.getAmount();
+
+            switch (request.getRequestType()) {
+                case ADD:
+                    // amount is floored at zero; missing item is created
+                    long sum = (current == null ? 0L : current.getAmount()) + (long) delta;
+                    int amount = (int) Math.min(Integer.MAX_VALUE, Math.max(0L, sum));
+                    return new AvailabilityItem(request.getSku(), request.getStore(), amount);
+                case DECREMENT:
+                    if (current == null) {
+                        errorCode = BinaryErrorCodes.ITEM_NOT_FOUND;
+                        return null;
+                    }
+                    if (delta < 0 || current.getAmount() < delta) {
+                        errorCode = BinaryErrorCodes.INSUFFICIENT_AMOUNT;
+                        return current;
+                    }
+                    return new AvailabilityItem(current.getSku(), current.getStore(), current.getAmount() - delta);
+                case COMPARE_AND_SET:
+                    if (current == null) {
+                        errorCode = BinaryErrorCodes.ITEM_NOT_FOUND;
+                        return null;
+                    }
+                    if (current.getAmount() != ((BinaryCompareAndSetRequest) request).getExpectedAmount()) {
+                        errorCode = BinaryErrorCodes.AMOUNT_MISMATCH;
+                        return current;
+                    }
+                    return new AvailabilityItem(current.getSku(), current.getStore(), delta);
+                default:
+                    throw new IllegalArgumentException("Request type " + request.getRequestType() + " is not an adjustment");
+            }
+        }
+    }
 }
@@ -0,0 +1,222 @@
+package com.services.availability.server;
+
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryResponse;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-per-connection server with plain blocking I/O.
+ *
+ * The server thread accepts connections on a blocking server socket and
+ * starts a thread per connection. The connection thread reads requests,
+ * processes them inline and writes responses back; a storage call that
+ * blocks (e.g. a page fault on the mapped storage file) blocks only the
+ * thread of its connection.
+ *
+ * Pipelined requests are all dispatched before the first response is
+ * awaited, up to {@link #MAX_IN_FLIGHT} per connection, so that mutations
+ * waiting for the commit log share a sync. Responses are written as they
+ * complete, together with the ones completed meanwhile, in any order.
+ *
+ * Threads are virtual if the runtime supports them (Java 21+), so that
+ * thousands of connections cost little memory and blocking just parks
+ * the virtual thread; otherwise platform threads are used. Virtual threads
+ * are created via reflection, since the code base targets Java 8.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-02 10:40
+ */
+public class VirtualThreadServer extends AbstractServer {
+    private final static int MAX_IN_FLIGHT = 128;              // pipelined requests per connection
+
+    private final Set<SocketChannel> channels = ConcurrentHashMap.newKeySet();
+
+    private ThreadFactory threadFactory;
+    private boolean virtualThreads = false;
+
+    /**
+     * Default server constructor.
+     */
+    public VirtualThreadServer() {
+        super();
+    }
+
+    /**
+     * Current constructor allows to provide ServerShutdownHook entity that
+     * will contain some actions that should be executed during the server
+     * shutdown.
+     *
+     * @param hook implementation of a ServerShutdownHook interface
+     */
+    public VirtualThreadServer(ServerShutdownHook hook) {
+        super(hook);
+    }
+
+    @Override
+    protected void serverLoop() throws IOException {
+        threadFactory = createThreadFactory();
+        Thread unixAcceptor = startUnixAcceptor(new AcceptedChannelHandler() {
+            @Override
+            public void accepted(SocketChannel channel) {
+                channels.add(channel);
+                threadFactory.newThread(new ConnectionHandler(channel)).start();
+            }
+        });
+
+        try {
+            while (isRunning) {
+                SocketChannel client;
+                try {
+                    client = serverSocketChannel.accept();
+                } catch (ClosedChannelException e) {
+                    logger.debug("Server socket is closed");
+                    break;
+                }
+                client.socket().setTcpNoDelay(true);           // TCP connections only, see startUnixAcceptor
+                channels.add(client);
+                threadFactory.newThread(new ConnectionHandler(client)).start();
+            }
+        } finally {
+            stopUnixAcceptor(unixAcceptor);
+            for (SocketChannel channel: channels) {
+                closeChannel(channel);              // unblocks connection threads
+            }
+        }
+    }
+
+    /**
+     * @return true, if connections are served by virtual threads
+     */
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Creates a factory of virtual threads, or of platform daemon threads
+     * if virtual threads are not supported by the runtime.
+     */
+    private ThreadFactory createThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "connection-", 0L);
+            Method factory = builderClass.getMethod("factory");
+            ThreadFactory virtualFactory = (ThreadFactory) factory.invoke(builder);
+            virtualThreads = true;
+            logger.debug("Connections are served by virtual threads");
+            return virtualFactory;
+        } catch (Exception e) {
+            logger.warn("Virtual threads are not supported by the runtime, platform threads are used");
+        }
+
+        final AtomicLong counter = new AtomicLong(0);
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "connection-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    private void closeChannel(SocketChannel channel) {
+        channels.remove(channel);
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.error("Cannot close client channel", e);
+        }
+    }
+
+    /**
+     * Serves a single connection with blocking reads and writes.
+     */
+    private class ConnectionHandler implements Runnable, AsyncRequestProcessor.ResponseWriteOutCallback {
+        private final SocketChannel channel;
+        private final FrameDecoder decoder = new FrameDecoder();
+        private final ByteBuffer responseBuffer = ByteBuffer.allocate(BinaryBatchResponse.frameSize(BinaryBatchRequest.MAX_BATCH_SIZE));
+        private final BlockingQueue<BinaryResponse> completed = new ArrayBlockingQueue<BinaryResponse>(MAX_IN_FLIGHT);
+        private int outstanding = 0;                        // dispatched requests, which responses are not written yet
+
+        ConnectionHandler(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (decoder.readFrom(channel) != -1) {
+                    BinaryRequest request;
+                    do {
+                        while (outstanding < MAX_IN_FLIGHT && (request = decoder.next()) != null) {
+                            requestProcessor.processRequest(request, this);
+                            outstanding++;
+                        }
+                        if (outstanding > 0) writeCompleted();
+                    } while (outstanding > 0);
+                }
+            } catch (ClosedChannelException e) {
+                // closed by the server shutdown
+            } catch (IOException e) {
+                logger.debug("Error in client channel: " + channel.hashCode() + ", " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                logger.warn("Malformed request frame, closing connection: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                closeChannel(channel);
+            }
+        }
+
+        @Override
+        public void writeOut(BinaryResponse response) {
+            completed.offer(response);                      // bounded by the number of requests in flight
+        }
+
+        /**
+         * Parks until a response is completed, then writes it out together
+         * with all responses completed meanwhile.
+         */
+        private void writeCompleted() throws IOException, InterruptedException {
+            BinaryResponse response = completed.take();
+            do {
+                if (response.getFrameSize() > responseBuffer.remaining()) writeResponses();
+                response.putToBuffer(responseBuffer);
+                outstanding--;
+            } while ((response = completed.poll()) != null);
+            writeResponses();
+        }
+
+        /**
+         * Writes out responses collected in the buffer and clears it.
+         */
+        private void writeResponses() throws IOException {
+            responseBuffer.flip();
+            while (responseBuffer.hasRemaining()) {
+                channel.write(responseBuffer);
+            }
+            responseBuffer.clear();
+        }
+    }
+
+    @Override
+    protected Logger getLogger() {
+        return Logger.getLogger(VirtualThreadServer.class);
+    }
+}
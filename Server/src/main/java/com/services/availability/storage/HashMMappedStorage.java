@@ -26,6 +26,31 @@ public class HashMMappedStorage implements Storage {
         return hashMMap.remove(key);
     }
 
+    @Override
+    public AvailabilityItem compute(long key, ItemUpdate update) {
+        return hashMMap.compute(key, update);
+    }
+
+    @Override
+    public AvailabilityItem[] getAll(long[] keys) {
+        return hashMMap.getAll(keys);
+    }
+
+    @Override
+    public void putAll(long[] keys, AvailabilityItem[] values) {
+        hashMMap.putAll(keys, values);
+    }
+
+    @Override
+    public AvailabilityItem[] removeAll(long[] keys) {
+        return hashMMap.removeAll(keys);
+    }
+
+    @Override
+    public boolean isResident(long key) {
+        return hashMMap.isResident(key);
+    }
+
     @Override
     public void prepareForShutdown() {
         hashMMap.prepareForShutdown();
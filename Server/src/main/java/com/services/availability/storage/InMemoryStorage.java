@@ -3,13 +3,14 @@ package com.services.availability.storage;
 import com.services.availability.model.AvailabilityItem;
 
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
 
 /**
  * @author Roman Reva
  * @version 1.0
  * @since 2014-07-18 13:26
  */
-public class InMemoryStorage implements Storage {
+public class InMemoryStorage implements IterableStorage {
 
     private final int operationDuration;
     private final ConcurrentHashMap<Long, AvailabilityItem> map = new ConcurrentHashMap<Long, AvailabilityItem>();
@@ -52,6 +53,70 @@ public class InMemoryStorage implements Storage {
         return map.remove(key);
     }
 
+    @Override
+    public AvailabilityItem compute(long key, final ItemUpdate update) {
+        try {
+            if (operationDuration > 0) Thread.sleep(operationDuration);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        return map.compute(key, new BiFunction<Long, AvailabilityItem, AvailabilityItem>() {
+            @Override
+            public AvailabilityItem apply(Long key, AvailabilityItem current) {
+                return update.apply(current);
+            }
+        });
+    }
+
+    /**
+     * Batch costs a single operation duration.
+     */
+    @Override
+    public AvailabilityItem[] getAll(long[] keys) {
+        try {
+            if (operationDuration > 0) Thread.sleep(operationDuration);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        AvailabilityItem[] values = new AvailabilityItem[keys.length];
+        for (int i = 0; i < keys.length; i++) values[i] = map.get(keys[i]);
+        return values;
+    }
+
+    @Override
+    public void putAll(long[] keys, AvailabilityItem[] values) {
+        try {
+            if (operationDuration > 0) Thread.sleep(operationDuration);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        for (int i = 0; i < keys.length; i++) map.put(keys[i], values[i]);
+    }
+
+    @Override
+    public AvailabilityItem[] removeAll(long[] keys) {
+        try {
+            if (operationDuration > 0) Thread.sleep(operationDuration);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        AvailabilityItem[] values = new AvailabilityItem[keys.length];
+        for (int i = 0; i < keys.length; i++) values[i] = map.remove(keys[i]);
+        return values;
+    }
+
+    @Override
+    public void forEach(ItemVisitor visitor) {
+        for (AvailabilityItem item: map.values()) {
+            visitor.visit(item);
+        }
+    }
+
+    @Override
+    public boolean isResident(long key) {
+        return operationDuration == 0;
+    }
+
     @Override
     public void prepareForShutdown() { }
 }
@@ -0,0 +1,24 @@
+package com.services.availability.storage;
+
+import com.services.availability.model.AvailabilityItem;
+
+/**
+ * Read-modify-write operation on a single item, which is performed by
+ * {@link Storage#compute(long, ItemUpdate)} atomically: no other operation
+ * on the key could happen between the read and the write.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-08 11:00
+ */
+public interface ItemUpdate {
+
+    /**
+     * Computes the new value of the item. Should be fast and should not
+     * block, since it is called under the lock of the key.
+     *
+     * @param current current value, or null if there is no item with the key
+     * @return new value; the current value itself to leave the item unchanged; null to remove the item
+     */
+    public AvailabilityItem apply(AvailabilityItem current);
+}
@@ -0,0 +1,31 @@
+package com.services.availability.storage;
+
+import com.services.availability.model.AvailabilityItem;
+
+/**
+ * Storage which could visit all of its items, e.g. to stream a partition
+ * to another node of the cluster.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-15 11:30
+ */
+public interface IterableStorage extends Storage {
+
+    /**
+     * Visits all items of the storage. Iteration is weakly consistent: it
+     * does not block other operations, every item present during the whole
+     * iteration is visited at least once, items changed concurrently may
+     * be visited with either value or not visited at all.
+     *
+     * @param visitor visitor of items
+     */
+    public void forEach(ItemVisitor visitor);
+
+    /**
+     * Receives items of the storage.
+     */
+    public static interface ItemVisitor {
+        public void visit(AvailabilityItem item);
+    }
+}
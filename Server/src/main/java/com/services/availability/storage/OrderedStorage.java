@@ -0,0 +1,27 @@
+package com.services.availability.storage;
+
+import com.services.availability.model.AvailabilityItem;
+
+import java.util.List;
+
+/**
+ * Storage which keeps items in key order. Since the key is
+ * <i>(sku &lt;&lt; 16) + store</i>, all stores of a SKU form a contiguous
+ * key range and could be read with a single scan.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-09 10:00
+ */
+public interface OrderedStorage extends Storage {
+
+    /**
+     * Returns items with keys in the range [fromKey, toKey] in key order.
+     *
+     * @param fromKey first key of the range, inclusive
+     * @param toKey last key of the range, inclusive
+     * @param limit max number of items to return
+     * @return items found, in key order
+     */
+    public List<AvailabilityItem> scan(long fromKey, long toKey, int limit);
+}
@@ -0,0 +1,123 @@
+package com.services.availability.storage;
+
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.storage.hashmmap.ConcurrentHashMMap;
+import com.services.availability.storage.hashmmap.ShardHashMMap;
+
+/**
+ * Storage split into N disjoint shards by key hash. Each shard has its own
+ * storage file (<i>data_s&lt;idx&gt;.dat</i>) and write cache and takes no
+ * locks, so all operations on a shard should be performed by a single
+ * thread: requests should be routed to the shard threads with
+ * {@link #shardIdx(long, int)}, as the key affinity mode of the request
+ * processor does.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-06 10:40
+ */
+public class ShardedStorage implements Storage {
+    public static final String SHARD_FILE_PREFIX = "data_s";
+    public static final String SHARD_FILE_SUFFIX = ".dat";
+
+    private final ShardHashMMap[] shards;
+
+    /**
+     * Creates or opens shards with the default total number of buckets.
+     *
+     * @param shardNumber number of shards
+     */
+    public ShardedStorage(int shardNumber) {
+        this(shardNumber, ConcurrentHashMMap.SYNC_INITIAL_BUCKET_NUMBER);
+    }
+
+    /**
+     * Creates or opens shards.
+     *
+     * @param shardNumber number of shards
+     * @param totalBucketNumber initial number of buckets of all shards together
+     */
+    public ShardedStorage(int shardNumber, int totalBucketNumber) {
+        if (shardNumber <= 0) throw new IllegalArgumentException("Number of shards should be positive");
+
+        this.shards = new ShardHashMMap[shardNumber];
+        for (int i = 0; i < shardNumber; i++) {
+            shards[i] = new ShardHashMMap(SHARD_FILE_PREFIX + i + SHARD_FILE_SUFFIX, Math.max(1, totalBucketNumber / shardNumber));
+        }
+    }
+
+    /**
+     * Calculates the shard of the key.
+     *
+     * @param key item key
+     * @param shardNumber total number of shards
+     * @return shard index
+     */
+    public static int shardIdx(long key, int shardNumber) {
+        int hashCode = AvailabilityItem.keyToHashCode(key);
+        return ((hashCode ^ (hashCode >>> 16)) & Integer.MAX_VALUE) % shardNumber;
+    }
+
+    public int getShardNumber() {
+        return shards.length;
+    }
+
+    @Override
+    public void put(long key, AvailabilityItem value) {
+        shardForKey(key).put(key, value);
+    }
+
+    @Override
+    public AvailabilityItem get(long key) {
+        return shardForKey(key).get(key);
+    }
+
+    @Override
+    public AvailabilityItem remove(long key) {
+        return shardForKey(key).remove(key);
+    }
+
+    @Override
+    public AvailabilityItem compute(long key, ItemUpdate update) {
+        return shardForKey(key).compute(key, update);
+    }
+
+    @Override
+    public AvailabilityItem[] getAll(long[] keys) {
+        AvailabilityItem[] values = new AvailabilityItem[keys.length];
+        for (int i = 0; i < keys.length; i++) values[i] = shardForKey(keys[i]).get(keys[i]);
+        return values;
+    }
+
+    @Override
+    public void putAll(long[] keys, AvailabilityItem[] values) {
+        for (int i = 0; i < keys.length; i++) shardForKey(keys[i]).put(keys[i], values[i]);
+    }
+
+    @Override
+    public AvailabilityItem[] removeAll(long[] keys) {
+        AvailabilityItem[] values = new AvailabilityItem[keys.length];
+        for (int i = 0; i < keys.length; i++) values[i] = shardForKey(keys[i]).remove(keys[i]);
+        return values;
+    }
+
+    @Override
+    public boolean isResident(long key) {
+        return shardForKey(key).isResident(key);
+    }
+
+    /**
+     * Persists cached changes of all shards. Should be called after shard
+     * threads are stopped.
+     */
+    @Override
+    public void prepareForShutdown() {
+        for (ShardHashMMap shard: shards) {
+            shard.flush();
+        }
+    }
+
+    private ShardHashMMap shardForKey(long key) {
+        return shards[shardIdx(key, shards.length)];
+    }
+}
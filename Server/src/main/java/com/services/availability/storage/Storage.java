@@ -15,6 +15,50 @@ public interface Storage {
 
     public AvailabilityItem remove(long key);
 
+    /**
+     * Atomically replaces the value of the key with the one computed by the
+     * update from the current value.
+     *
+     * @param key item key
+     * @param update read-modify-write operation
+     * @return value after the update
+     */
+    public AvailabilityItem compute(long key, ItemUpdate update);
+
+    /**
+     * Performs GET of all keys as a single batch.
+     *
+     * @param keys keys to get
+     * @return values in the order of keys; null for keys that are not found
+     */
+    public AvailabilityItem[] getAll(long[] keys);
+
+    /**
+     * Performs PUT of all items as a single batch.
+     *
+     * @param keys item keys
+     * @param values items, in the order of keys
+     */
+    public void putAll(long[] keys, AvailabilityItem[] values);
+
+    /**
+     * Performs REMOVE of all keys as a single batch.
+     *
+     * @param keys keys to remove
+     * @return removed values in the order of keys; null for keys that are not found
+     */
+    public AvailabilityItem[] removeAll(long[] keys);
+
+    /**
+     * Checks if an operation on the key could be served without blocking,
+     * e.g. the value is cached in memory. The answer is a hint: the state
+     * could change before the operation is performed.
+     *
+     * @param key key to check
+     * @return true, if an operation on the key is not expected to block
+     */
+    public boolean isResident(long key);
+
     public void prepareForShutdown();
 
 }
@@ -0,0 +1,140 @@
+package com.services.availability.storage;
+
+import com.services.availability.model.AvailabilityItem;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Storage, which delegates to another one and could be switched to a new
+ * delegate while requests are served, e.g. to a storage file built by the
+ * bulk loader.
+ *
+ * Operations pass a read-write gate: every operation holds the read lock,
+ * and the switch takes the write lock, so it waits for the operations
+ * started on the previous delegate to complete. Once the switch returns,
+ * no operation is running on the previous delegate, and none is started
+ * on it, so it could be shut down and closed.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-16 16:30
+ */
+public class SwitchableStorage implements Storage {
+    private volatile Storage storage;
+
+    private final ReentrantReadWriteLock gate = new ReentrantReadWriteLock();
+    private final Lock operationLock = gate.readLock();        // held by every operation on the delegate
+    private final Lock switchLock = gate.writeLock();          // held by the switch, drains operations
+
+    public SwitchableStorage(Storage storage) {
+        this.storage = storage;
+    }
+
+    /**
+     * Makes the storage serve all subsequent operations. Waits for the
+     * operations in progress on the previous delegate to complete.
+     *
+     * @param next new delegate
+     * @return previous delegate, which is not used any more and should be shut down by the caller
+     */
+    public Storage switchTo(Storage next) {
+        switchLock.lock();
+        try {
+            Storage previous = storage;
+            storage = next;
+            return previous;
+        } finally {
+            switchLock.unlock();
+        }
+    }
+
+    public Storage getStorage() {
+        return storage;
+    }
+
+    @Override
+    public void put(long key, AvailabilityItem value) {
+        operationLock.lock();
+        try {
+            storage.put(key, value);
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    @Override
+    public AvailabilityItem get(long key) {
+        operationLock.lock();
+        try {
+            return storage.get(key);
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    @Override
+    public AvailabilityItem remove(long key) {
+        operationLock.lock();
+        try {
+            return storage.remove(key);
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    @Override
+    public AvailabilityItem compute(long key, ItemUpdate update) {
+        operationLock.lock();
+        try {
+            return storage.compute(key, update);
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    @Override
+    public AvailabilityItem[] getAll(long[] keys) {
+        operationLock.lock();
+        try {
+            return storage.getAll(keys);
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    @Override
+    public void putAll(long[] keys, AvailabilityItem[] values) {
+        operationLock.lock();
+        try {
+            storage.putAll(keys, values);
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    @Override
+    public AvailabilityItem[] removeAll(long[] keys) {
+        operationLock.lock();
+        try {
+            return storage.removeAll(keys);
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isResident(long key) {
+        operationLock.lock();
+        try {
+            return storage.isResident(key);
+        } finally {
+            operationLock.unlock();
+        }
+    }
+
+    @Override
+    public void prepareForShutdown() {
+        storage.prepareForShutdown();
+    }
+}
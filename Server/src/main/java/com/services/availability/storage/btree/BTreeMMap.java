@@ -0,0 +1,576 @@
+package com.services.availability.storage.btree;
+
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.storage.ItemUpdate;
+import com.services.availability.storage.OrderedStorage;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * B+tree storage mapped to a file. Unlike {@link com.services.availability.storage.hashmmap.HashMMap},
+ * items are kept in key order, so all stores of a SKU could be read with
+ * a single range scan instead of a GET per store.
+ *
+ * File consists of fixed size pages; page 0 is the header. Every page has
+ * an 8 bytes header: type (1 byte), unused (1 byte), number of entries
+ * (2 bytes) and a link (4 bytes), followed by 12 bytes entries:
+ * <ul>
+ *     <li>leaf page: entries are key (8 bytes) and amount (4 bytes); the
+ *     link is the next leaf, so leaves form a list in key order;</li>
+ *     <li>inner page: the link is the first child, entries are key (8 bytes)
+ *     and child (4 bytes), where the key is the least key of the child.</li>
+ * </ul>
+ * Sku and store are restored from the key, so they are not stored.
+ *
+ * Readers share a lock and writers take it exclusively. Removed entries are
+ * deleted from their leaf, but pages are never merged or freed: a leaf left
+ * empty stays in the list until the file is rebuilt. Changes reach the page
+ * cache at once and are forced to the disk by {@link #flush()}.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-09 10:15
+ */
+public class BTreeMMap implements OrderedStorage {
+    public static final String STORAGE_FILE = "ordered.dat";     // storage filename
+
+    public static final int STORAGE_SIZE = Integer.MAX_VALUE;   // 2 GB - 1b
+    public static final int PAGE_SIZE = 4096;
+    public static final int PAGE_HEADER_SIZE = 8;               // type:byte + unused:byte + count:short + link:int
+    public static final int ENTRY_SIZE = 12;                    // key:long + amount:int, or key:long + child:int
+    public static final int MAX_PAGE_CAPACITY = (PAGE_SIZE - PAGE_HEADER_SIZE) / ENTRY_SIZE;   // 340 entries
+
+    private static final int MAGIC = 0x42545245;                // "BTRE"
+    private static final int HEADER_MAGIC_OFFSET = 0;           // int
+    private static final int HEADER_CAPACITY_OFFSET = 4;        // int, number of entries per page
+    private static final int HEADER_ROOT_OFFSET = 8;            // int, root page
+    private static final int HEADER_PAGES_OFFSET = 12;          // int, number of allocated pages
+    private static final int HEADER_SIZE_OFFSET = 16;           // int, number of items
+
+    private static final byte LEAF_PAGE = 1;
+    private static final byte INNER_PAGE = 2;
+    private static final int PAGE_TYPE_OFFSET = 0;              // byte
+    private static final int PAGE_COUNT_OFFSET = 2;             // short
+    private static final int PAGE_LINK_OFFSET = 4;              // int
+
+    private static final int NO_SPLIT = -1;
+    private static final int NO_PAGE = 0;                       // page 0 is the header, so it never is a link
+
+    private static Logger log = Logger.getLogger(BTreeMMap.class);
+
+    private final String storageFile;                           // name of the file the storage is mapped to
+    private final MappedByteBuffer mappedBuffer;                // storage buffer, mmaped to the file system
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final int pageCapacity;                             // max number of entries in a page
+    private int rootPage;
+    private int pageNumber;                                     // number of allocated pages, including the header
+    private int size;                                           // number of items
+
+    private long splitKey;                                      // least key of the page created by the last split
+
+    /**
+     * Opens the storage in the default file, or creates it.
+     */
+    public BTreeMMap() {
+        this(STORAGE_FILE);
+    }
+
+    /**
+     * Opens the storage in the specified file, or creates it with the max
+     * number of entries per page.
+     *
+     * @param storageFile name of the storage file
+     */
+    public BTreeMMap(String storageFile) {
+        this(storageFile, MAX_PAGE_CAPACITY);
+    }
+
+    /**
+     * Opens the storage in the specified file, or creates it. If the file
+     * exists, its own page capacity is used.
+     *
+     * @param storageFile name of the storage file
+     * @param pageCapacity number of entries per page of a new file
+     */
+    public BTreeMMap(String storageFile, int pageCapacity) {
+        if (pageCapacity < 3 || pageCapacity > MAX_PAGE_CAPACITY)
+            throw new IllegalArgumentException("Page capacity should be in range [3, " + MAX_PAGE_CAPACITY + "]");
+
+        this.storageFile = storageFile;
+        boolean storageExists = new File(storageFile).exists();
+        this.mappedBuffer = bindMappedBuffer();
+
+        if (storageExists && mappedBuffer.getInt(HEADER_MAGIC_OFFSET) == MAGIC) {
+            this.pageCapacity = mappedBuffer.getInt(HEADER_CAPACITY_OFFSET);
+            this.rootPage = mappedBuffer.getInt(HEADER_ROOT_OFFSET);
+            this.pageNumber = mappedBuffer.getInt(HEADER_PAGES_OFFSET);
+            this.size = mappedBuffer.getInt(HEADER_SIZE_OFFSET);
+
+            if (this.pageCapacity < 3 || this.pageCapacity > MAX_PAGE_CAPACITY || rootPage <= 0 || rootPage >= pageNumber)
+                throw new IllegalStateException("file `" + storageFile + "` is corrupted");
+        } else {
+            if (storageExists) throw new IllegalStateException("file `" + storageFile + "` is not a B+tree storage");
+
+            this.pageCapacity = pageCapacity;
+            mappedBuffer.putInt(HEADER_MAGIC_OFFSET, MAGIC);
+            mappedBuffer.putInt(HEADER_CAPACITY_OFFSET, pageCapacity);
+            initEmptyTree();
+        }
+        log.debug("B+tree storage " + storageFile + " opened (items = " + size + ", pages = " + pageNumber + ")");
+    }
+
+    @Override
+    public AvailabilityItem get(long key) {
+        lock.readLock().lock();
+        try {
+            int leaf = findLeaf(key);
+            int idx = search(leaf, key);
+            return idx >= 0 ? toItem(key, valueAt(leaf, idx)) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void put(long key, AvailabilityItem value) {
+        lock.writeLock().lock();
+        try {
+            insert(key, value.getAmount());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public AvailabilityItem remove(long key) {
+        lock.writeLock().lock();
+        try {
+            return delete(key);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public AvailabilityItem compute(long key, ItemUpdate update) {
+        lock.writeLock().lock();
+        try {
+            int leaf = findLeaf(key);
+            int idx = search(leaf, key);
+            AvailabilityItem current = idx >= 0 ? toItem(key, valueAt(leaf, idx)) : null;
+
+            AvailabilityItem next = update.apply(current);
+            if (next == current) return current;        // nothing to change
+
+            if (next == null) {
+                delete(key);
+            } else {
+                insert(key, next.getAmount());
+            }
+            return next;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public AvailabilityItem[] getAll(long[] keys) {
+        AvailabilityItem[] values = new AvailabilityItem[keys.length];
+        lock.readLock().lock();
+        try {
+            for (int i = 0; i < keys.length; i++) {
+                int leaf = findLeaf(keys[i]);
+                int idx = search(leaf, keys[i]);
+                values[i] = idx >= 0 ? toItem(keys[i], valueAt(leaf, idx)) : null;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return values;
+    }
+
+    @Override
+    public void putAll(long[] keys, AvailabilityItem[] values) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < keys.length; i++) insert(keys[i], values[i].getAmount());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public AvailabilityItem[] removeAll(long[] keys) {
+        AvailabilityItem[] values = new AvailabilityItem[keys.length];
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < keys.length; i++) values[i] = delete(keys[i]);
+        } finally {
+            lock.writeLock().unlock();
+        }
+        return values;
+    }
+
+    /**
+     * Walks the leaf list from the first key of the range on.
+     */
+    @Override
+    public List<AvailabilityItem> scan(long fromKey, long toKey, int limit) {
+        List<AvailabilityItem> items = new ArrayList<AvailabilityItem>();
+        lock.readLock().lock();
+        try {
+            int leaf = findLeaf(fromKey);
+            int idx = search(leaf, fromKey);
+            if (idx < 0) idx = -idx - 1;
+
+            while (leaf != NO_PAGE && items.size() < limit) {
+                for (int count = countOf(leaf); idx < count && items.size() < limit; idx++) {
+                    long key = keyAt(leaf, idx);
+                    if (key > toKey) return items;
+                    items.add(toItem(key, valueAt(leaf, idx)));
+                }
+                leaf = linkOf(leaf);
+                idx = 0;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return items;
+    }
+
+    /**
+     * Returns all stores of the SKU.
+     *
+     * @param sku requested sku
+     * @param limit max number of items to return
+     * @return items of the SKU, in store order
+     */
+    public List<AvailabilityItem> scanSku(int sku, int limit) {
+        return scan(AvailabilityItem.key(sku, Short.MIN_VALUE), AvailabilityItem.key(sku, Short.MAX_VALUE), limit);
+    }
+
+    /**
+     * Pages could be paged out, and readers wait for writers, so no
+     * operation is guaranteed not to block.
+     *
+     * @return false
+     */
+    @Override
+    public boolean isResident(long key) {
+        return false;
+    }
+
+    /**
+     * @return number of items in the storage
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Forces changes to the storage file.
+     */
+    public void flush() {
+        lock.readLock().lock();
+        try {
+            mappedBuffer.force();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes all items.
+     */
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            initEmptyTree();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void prepareForShutdown() {
+        flush();
+    }
+
+
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////
+    //                                                                                                          //
+    //                                            INTERNAL METHODS                                              //
+    //                                                                                                          //
+    //////////////////////////////////////////////////////////////////////////////////////////////////////////////
+
+    /**
+     * Allocates and initializes mmaped buffer.
+     */
+    private MappedByteBuffer bindMappedBuffer() {
+        MappedByteBuffer buffer = null;
+        try {
+            RandomAccessFile file = new RandomAccessFile(storageFile, "rw");
+            FileChannel fileChannel = file.getChannel();
+            buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, STORAGE_SIZE);
+        } catch (FileNotFoundException e) {
+            log.error(e);
+        } catch (IOException e) {
+            log.error(e);
+        }
+
+        return buffer;
+    }
+
+    private void initEmptyTree() {
+        pageNumber = 1;                 // header page
+        size = 0;
+        rootPage = allocatePage(LEAF_PAGE);
+        writeHeader();
+    }
+
+    private void writeHeader() {
+        mappedBuffer.putInt(HEADER_ROOT_OFFSET, rootPage);
+        mappedBuffer.putInt(HEADER_PAGES_OFFSET, pageNumber);
+        mappedBuffer.putInt(HEADER_SIZE_OFFSET, size);
+    }
+
+    private int allocatePage(byte type) {
+        if ((long) (pageNumber + 1) * PAGE_SIZE > STORAGE_SIZE) throw new IndexOutOfBoundsException(
+                "Not enough storage space for a new page (" + pageNumber + " pages allocated)");
+
+        int page = pageNumber++;
+        mappedBuffer.put(pageOffset(page) + PAGE_TYPE_OFFSET, type);
+        setCount(page, 0);
+        setLink(page, NO_PAGE);
+        return page;
+    }
+
+    /**
+     * Descends from the root to the leaf, which should contain the key.
+     */
+    private int findLeaf(long key) {
+        int page = rootPage;
+        while (mappedBuffer.get(pageOffset(page) + PAGE_TYPE_OFFSET) == INNER_PAGE) {
+            page = childAt(page, childIdx(page, key));
+        }
+        return page;
+    }
+
+    /**
+     * Inserts or replaces an item; splits the root if it is full.
+     */
+    private void insert(long key, int amount) {
+        int sibling = insert(rootPage, key, amount);
+        if (sibling != NO_SPLIT) {
+            int newRoot = allocatePage(INNER_PAGE);
+            setLink(newRoot, rootPage);
+            setEntry(newRoot, 0, splitKey, sibling);
+            setCount(newRoot, 1);
+            rootPage = newRoot;
+        }
+        writeHeader();
+    }
+
+    /**
+     * Inserts or replaces an item in the subtree of the page.
+     *
+     * @return new right sibling of the page if it was split (its least key
+     *         is in {@link #splitKey}), otherwise NO_SPLIT
+     */
+    private int insert(int page, long key, int amount) {
+        if (mappedBuffer.get(pageOffset(page) + PAGE_TYPE_OFFSET) == LEAF_PAGE) {
+            int idx = search(page, key);
+            if (idx >= 0) {
+                setValue(page, idx, amount);
+                return NO_SPLIT;
+            }
+            size++;
+            return insertEntry(page, -idx - 1, key, amount);
+        }
+
+        int childIdx = childIdx(page, key);
+        int newChild = insert(childAt(page, childIdx), key, amount);
+        if (newChild == NO_SPLIT) return NO_SPLIT;
+
+        return insertEntry(page, childIdx, splitKey, newChild);       // new child goes right after the split one
+    }
+
+    /**
+     * Inserts the entry at the index, splitting the page if it is full.
+     * Leaf is split in halves. Inner page is split around the middle key,
+     * which moves up and becomes the first child link of the new page.
+     */
+    private int insertEntry(int page, int idx, long key, int value) {
+        int count = countOf(page);
+        if (count < pageCapacity) {
+            moveEntries(page, idx, page, idx + 1, count - idx);
+            setEntry(page, idx, key, value);
+            setCount(page, count + 1);
+            return NO_SPLIT;
+        }
+
+        boolean leaf = mappedBuffer.get(pageOffset(page) + PAGE_TYPE_OFFSET) == LEAF_PAGE;
+        int sibling = allocatePage(leaf ? LEAF_PAGE : INNER_PAGE);
+        int leftCount = (count + 1) / 2;
+
+        if (leaf) {
+            moveEntries(page, leftCount, sibling, 0, count - leftCount);
+            setCount(page, leftCount);
+            setCount(sibling, count - leftCount);
+            setLink(sibling, linkOf(page));
+            setLink(page, sibling);
+
+            if (idx <= leftCount) {
+                insertEntry(page, idx, key, value);
+            } else {
+                insertEntry(sibling, idx - leftCount, key, value);
+            }
+            splitKey = keyAt(sibling, 0);
+            return sibling;
+        }
+
+        // count + 1 keys after the insert: leftCount stay, the next one moves up, the rest goes to the sibling
+        long[] keys = new long[count + 1];
+        int[] children = new int[count + 1];
+        for (int i = 0, j = 0; i <= count; i++) {
+            if (i == idx) {
+                keys[i] = key;
+                children[i] = value;
+            } else {
+                keys[i] = keyAt(page, j);
+                children[i] = valueAt(page, j);
+                j++;
+            }
+        }
+        for (int i = 0; i < leftCount; i++) setEntry(page, i, keys[i], children[i]);
+        setCount(page, leftCount);
+
+        setLink(sibling, children[leftCount]);
+        for (int i = leftCount + 1; i <= count; i++) setEntry(sibling, i - leftCount - 1, keys[i], children[i]);
+        setCount(sibling, count - leftCount);
+
+        splitKey = keys[leftCount];
+        return sibling;
+    }
+
+    private AvailabilityItem delete(long key) {
+        int leaf = findLeaf(key);
+        int idx = search(leaf, key);
+        if (idx < 0) return null;
+
+        AvailabilityItem item = toItem(key, valueAt(leaf, idx));
+        int count = countOf(leaf);
+        moveEntries(leaf, idx + 1, leaf, idx, count - idx - 1);
+        setCount(leaf, count - 1);
+        size--;
+        writeHeader();
+        return item;
+    }
+
+    /**
+     * Binary search of the key among entries of the page.
+     *
+     * @return index of the key, or (-(insertion point) - 1) if not found
+     */
+    private int search(int page, long key) {
+        int low = 0, high = countOf(page) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midKey = keyAt(page, mid);
+            if (midKey < key) {
+                low = mid + 1;
+            } else if (midKey > key) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * @return index of the child of the inner page, which covers the key:
+     *         number of entry keys not greater than the key
+     */
+    private int childIdx(int page, long key) {
+        int idx = search(page, key);
+        return idx >= 0 ? idx + 1 : -idx - 1;
+    }
+
+    private int childAt(int page, int childIdx) {
+        return childIdx == 0 ? linkOf(page) : valueAt(page, childIdx - 1);
+    }
+
+    private void moveEntries(int srcPage, int srcIdx, int dstPage, int dstIdx, int n) {
+        if (n <= 0) return;
+
+        byte[] entries = new byte[n * ENTRY_SIZE];
+        ByteBuffer buffer = mappedBuffer.duplicate();
+        buffer.position(entryOffset(srcPage, srcIdx));
+        buffer.get(entries);
+        buffer.position(entryOffset(dstPage, dstIdx));
+        buffer.put(entries);
+    }
+
+    private static AvailabilityItem toItem(long key, int amount) {
+        return new AvailabilityItem(AvailabilityItem.keyToSku(key), AvailabilityItem.keyToStore(key), amount);
+    }
+
+    private static int pageOffset(int page) {
+        return page * PAGE_SIZE;
+    }
+
+    private static int entryOffset(int page, int idx) {
+        return pageOffset(page) + PAGE_HEADER_SIZE + idx * ENTRY_SIZE;
+    }
+
+    private int countOf(int page) {
+        return mappedBuffer.getShort(pageOffset(page) + PAGE_COUNT_OFFSET) & 0xFFFF;
+    }
+
+    private void setCount(int page, int count) {
+        mappedBuffer.putShort(pageOffset(page) + PAGE_COUNT_OFFSET, (short) count);
+    }
+
+    private int linkOf(int page) {
+        return mappedBuffer.getInt(pageOffset(page) + PAGE_LINK_OFFSET);
+    }
+
+    private void setLink(int page, int link) {
+        mappedBuffer.putInt(pageOffset(page) + PAGE_LINK_OFFSET, link);
+    }
+
+    private long keyAt(int page, int idx) {
+        return mappedBuffer.getLong(entryOffset(page, idx));
+    }
+
+    private int valueAt(int page, int idx) {
+        return mappedBuffer.getInt(entryOffset(page, idx) + 8);
+    }
+
+    private void setValue(int page, int idx, int value) {
+        mappedBuffer.putInt(entryOffset(page, idx) + 8, value);
+    }
+
+    private void setEntry(int page, int idx, long key, int value) {
+        mappedBuffer.putLong(entryOffset(page, idx), key);
+        mappedBuffer.putInt(entryOffset(page, idx) + 8, value);
+    }
+}
@@ -1,5 +1,6 @@
 package com.services.availability.storage.ccl;
 
+import com.services.availability.model.AvailabilityItem;
 import com.services.availability.utils.ByteUtils;
 
 /**
@@ -18,6 +19,7 @@ public class LogRecord implements Comparable<LogRecord> {
     protected byte type;                                    // operation type
     protected byte committed = 0;                           // if record is transferred to the persistent storage
     protected long timestamp = 0;                           // when the record was created
+    protected long sequence = 0;                            // global commit log sequence number
 
     protected long key;                                     // item key
     protected int sku;                                      // sku number
@@ -60,6 +62,20 @@ public class LogRecord implements Comparable<LogRecord> {
         this.timestamp = timestamp;
     }
 
+    /**
+     * Constructor.
+     *
+     * @param type TYPE_PUT or TYPE_REMOVE constant
+     * @param key item key
+     * @param amount amount of item left
+     * @param timestamp record creation timestamp
+     * @param sequence global commit log sequence number
+     */
+    public LogRecord(byte type, long key, int amount, long timestamp, long sequence) {
+        this(type, (byte) 0, key, AvailabilityItem.keyToSku(key), AvailabilityItem.keyToStore(key), amount, timestamp);
+        this.sequence = sequence;
+    }
+
     /**
      * Constructor. Sets current time as a timestamp, committed=0 and
      * the rest of params according to the arguments.
@@ -97,6 +113,34 @@ public class LogRecord implements Comparable<LogRecord> {
         return type == TYPE_REMOVE;
     }
 
+    public byte getType() {
+        return type;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    public long getKey() {
+        return key;
+    }
+
+    public int getSku() {
+        return sku;
+    }
+
+    public short getStore() {
+        return store;
+    }
+
+    public int getAmount() {
+        return amount;
+    }
+
     /**
      * Performs serialization of LogRecord object to byte array.
      *
@@ -161,6 +205,8 @@ public class LogRecord implements Comparable<LogRecord> {
 
     @Override
     public int compareTo(LogRecord o) {
+        if (this.sequence > o.sequence) return 1;
+        if (this.sequence < o.sequence) return -1;
         if (this.timestamp > o.timestamp) return 1;
         if (this.timestamp < o.timestamp) return -1;
         return 0;
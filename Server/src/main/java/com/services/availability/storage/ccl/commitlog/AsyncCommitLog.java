@@ -0,0 +1,293 @@
+package com.services.availability.storage.ccl.commitlog;
+
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.storage.ccl.LogRecord;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Asynchronous front end of the {@link CommitLog}.
+ *
+ * Request threads publish records into a preallocated ring buffer and
+ * immediately get a future that is completed when the record is durable.
+ * A single writer thread drains published records in batches, appends them
+ * to the commit log, forces the log to the storage device and only then
+ * completes the futures of the batch with record sequence numbers. A batch
+ * costs one fsync, no matter how many records it contains.
+ *
+ * Ring buffer slots are claimed by producers with an atomic counter and
+ * published by writing the claimed ring sequence into the slot's publish
+ * marker, so the writer thread never sees a partially filled slot. When
+ * the ring is full, producers wait for the writer using the configured
+ * {@link WaitStrategy}; the writer uses the same strategy when the ring is
+ * empty.
+ *
+ * The log is fail-stop: once a batch cannot be written or synced, its
+ * futures and the futures of all records published later fail with the
+ * same IOException, and nothing is written to the log any more. Records
+ * of the failed batch may or may not be durable.
+ *
+ * Futures are completed on the writer thread, therefore dependent actions
+ * should be short or use async variants of CompletableFuture methods.
+ * The same applies to the {@link SyncListener}, which gets every synced
+ * batch, e.g. to stream it to replication followers.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-25 13:05
+ */
+public class AsyncCommitLog {
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_MAX_BATCH = 1024;
+
+    private static final Logger log = Logger.getLogger(AsyncCommitLog.class);
+
+    private final CommitLog commitLog;
+    private final WaitStrategy waitStrategy;
+    private final int capacity;
+    private final int mask;
+    private final int maxBatch;
+
+    // ring buffer slots
+    private final byte[] types;
+    private final long[] keys;
+    private final AvailabilityItem[] items;
+    private final long[] logSequences;
+    private final CompletableFuture<Long>[] futures;
+    private final AtomicLongArray published;                // ring sequence published into the slot
+
+    private final AtomicLong claimed = new AtomicLong(-1);  // last claimed ring sequence
+    private volatile long consumed = -1;                    // last ring sequence released by the writer
+    private final AtomicInteger publishing = new AtomicInteger(0);  // publishers between the state check and the publish
+
+    private final Thread writerThread;
+    private volatile boolean isRunning = true;
+    private volatile IOException failure = null;            // error, which has stopped the log
+    private volatile SyncListener syncListener = null;
+
+    public AsyncCommitLog(CommitLog commitLog) {
+        this(commitLog, DEFAULT_CAPACITY, DEFAULT_MAX_BATCH, new WaitStrategy.Sleeping());
+    }
+
+    /**
+     * Constructor. Starts the writer thread.
+     *
+     * @param commitLog target commit log
+     * @param capacity ring buffer capacity, should be a power of 2
+     * @param maxBatch max number of records synced at once
+     * @param waitStrategy strategy used to wait for free slots and published records
+     */
+    @SuppressWarnings("unchecked")
+    public AsyncCommitLog(CommitLog commitLog, int capacity, int maxBatch, WaitStrategy waitStrategy) {
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity should be a power of 2");
+        if (maxBatch <= 0) throw new IllegalArgumentException("maxBatch should be positive");
+
+        this.commitLog = commitLog;
+        this.waitStrategy = waitStrategy;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.maxBatch = Math.min(maxBatch, capacity);
+
+        this.types = new byte[capacity];
+        this.keys = new long[capacity];
+        this.items = new AvailabilityItem[capacity];
+        this.logSequences = new long[capacity];
+        this.futures = (CompletableFuture<Long>[]) new CompletableFuture<?>[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) published.set(i, -1);
+
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writerLoop();
+            }
+        }, "commit-log-writer");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Publishes PUT record.
+     *
+     * @param item item to put
+     * @return future that is completed with the record sequence number when the record is durable
+     */
+    public CompletableFuture<Long> publishPut(AvailabilityItem item) {
+        return publish(LogRecord.TYPE_PUT, item.key(), item);
+    }
+
+    /**
+     * Publishes REMOVE record.
+     *
+     * @param key key of the item to remove
+     * @return future that is completed with the record sequence number when the record is durable
+     */
+    public CompletableFuture<Long> publishRemove(long key) {
+        return publish(LogRecord.TYPE_REMOVE, key, null);
+    }
+
+    /**
+     * Stops accepting records, waits until all published records are
+     * synced and closes the commit log files. Records, which are being
+     * published concurrently, are either synced or rejected.
+     *
+     * @throws InterruptedException
+     */
+    public void close() throws InterruptedException {
+        isRunning = false;
+        waitStrategy.signalAll();
+        writerThread.join();
+        commitLog.closeLogFiles();
+    }
+
+    /**
+     * Sets the listener of synced batches. Listener is called by the writer
+     * thread, after the batch is durable and before its futures are completed.
+     *
+     * @param syncListener listener, or null to remove the current one
+     */
+    public void setSyncListener(SyncListener syncListener) {
+        this.syncListener = syncListener;
+    }
+
+    public CommitLog getCommitLog() {
+        return commitLog;
+    }
+
+    /**
+     * @return true, if a batch has failed and the log does not accept records any more
+     */
+    public boolean isFailed() {
+        return failure != null;
+    }
+
+    /**
+     * @return number of records published but not synced yet
+     */
+    public long getPendingRecords() {
+        return claimed.get() - consumed;
+    }
+
+    private CompletableFuture<Long> publish(byte type, long key, AvailabilityItem item) {
+        // the writer does not stop while a publisher is past the check, see writerLoop()
+        publishing.incrementAndGet();
+        try {
+            if (!isRunning) throw new IllegalStateException("AsyncCommitLog is closed");
+
+            long sequence = claimed.incrementAndGet();
+            int attempt = 0;
+            while (sequence - capacity > consumed) {        // ring is full, waiting for the writer
+                waitStrategy.idle(attempt++);
+            }
+
+            int slot = (int) (sequence & mask);
+            CompletableFuture<Long> future = new CompletableFuture<Long>();
+            types[slot] = type;
+            keys[slot] = key;
+            items[slot] = item;
+            futures[slot] = future;
+            published.set(slot, sequence);                  // volatile write makes the slot visible to the writer
+
+            waitStrategy.signalAll();
+            return future;
+        } finally {
+            publishing.decrementAndGet();
+        }
+    }
+
+    private void writerLoop() {
+        long next = 0;
+        int attempt = 0;
+        while (isRunning || publishing.get() > 0 || claimed.get() >= next) {
+            int count = 0;
+            while (count < maxBatch && published.get((int) ((next + count) & mask)) == next + count) {
+                count++;
+            }
+
+            if (count == 0) {
+                waitStrategy.idle(attempt++);
+                continue;
+            }
+
+            attempt = 0;
+            writeBatch(next, count);
+            next += count;
+        }
+        log.debug("Commit log writer stopped; last ring sequence = " + (next - 1));
+    }
+
+    /**
+     * Appends the records of the batch to the commit log, syncs the log
+     * and completes the futures. Slots are released afterwards.
+     */
+    private void writeBatch(long first, int count) {
+        IOException error = failure;
+        try {
+            if (error == null) {
+                for (long sequence = first; sequence < first + count; sequence++) {
+                    int slot = (int) (sequence & mask);
+                    logSequences[slot] = types[slot] == LogRecord.TYPE_PUT
+                            ? commitLog.addPutRecord(items[slot])
+                            : commitLog.addRemoveRecord(keys[slot]);
+                }
+                commitLog.sync();
+            }
+        } catch (Throwable e) {                         // any failure stops the log, the writer thread keeps completing futures
+            log.error("Cannot write batch of " + count + " records to the commit log; log is stopped", e);
+            error = e instanceof IOException ? (IOException) e : new IOException("Commit log append failed", e);
+            failure = error;
+        }
+
+        SyncListener listener = syncListener;
+        if (error == null && listener != null) {
+            try {
+                listener.recordsSynced(syncedRecords(first, count));
+            } catch (RuntimeException e) {
+                log.error("Sync listener failed on a batch of " + count + " records", e);
+            }
+        }
+
+        for (long sequence = first; sequence < first + count; sequence++) {
+            int slot = (int) (sequence & mask);
+            CompletableFuture<Long> future = futures[slot];
+            futures[slot] = null;
+            items[slot] = null;
+
+            if (error == null) {
+                future.complete(logSequences[slot]);
+            } else {
+                future.completeExceptionally(error);
+            }
+        }
+
+        consumed = first + count - 1;
+        waitStrategy.signalAll();
+    }
+
+    private List<LogRecord> syncedRecords(long first, int count) {
+        long timestamp = System.currentTimeMillis();
+        List<LogRecord> records = new ArrayList<LogRecord>(count);
+        for (long sequence = first; sequence < first + count; sequence++) {
+            int slot = (int) (sequence & mask);
+            int amount = types[slot] == LogRecord.TYPE_PUT ? items[slot].getAmount() : 0;
+            records.add(new LogRecord(types[slot], keys[slot], amount, timestamp, logSequences[slot]));
+        }
+        return records;
+    }
+
+    /**
+     * Receives records that are durable in the commit log, in the sequence
+     * order. Called by the writer thread, therefore should not block.
+     */
+    public static interface SyncListener {
+        public void recordsSynced(List<LogRecord> records);
+    }
+}
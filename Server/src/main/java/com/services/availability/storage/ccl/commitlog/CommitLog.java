@@ -2,98 +2,300 @@ package com.services.availability.storage.ccl.commitlog;
 
 import com.services.availability.model.AvailabilityItem;
 import com.services.availability.storage.ccl.LogRecord;
-import com.services.availability.utils.ByteUtils;
 import org.apache.log4j.Logger;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * Commit log system.
  *
+ * Records are grouped into checksummed frames (see {@link LogFrame}). A frame
+ * is written to the log file when it is full, or when {@link #flush()} is
+ * called explicitly.
+ *
+ * Each writer thread gets its own lane, i.e. its own log file with its own
+ * frame buffer, assigned on the first write of the thread. Writers never
+ * share a file or hand descriptors over to each other. Every record gets a
+ * global monotonic sequence number, so that the original order of records
+ * could be restored on replay by merging lanes (see {@link CommitLogReader}).
+ *
+ * When a lane file grows beyond the max segment size, it is synced, closed
+ * and sealed, and the thread continues in a new file. Sealed files, as well
+ * as files left by previous runs, are never written again and could be
+ * compacted (see {@link CommitLogCompactor}).
+ *
  * @author Roman Reva
  * @version 1.0
  * @since 2014-07-15 17:44
  */
 public class CommitLog {
-    private static final int DEFAULT_THREAD_NUMBER = 1;
-
     private static Logger log = Logger.getLogger(CommitLog.class);
 
-    private static final String LOGFILE_PREFIX = "commit_";
-    private static final String LOGFILE_POSTFIX = ".log";
+    public static final String LOGFILE_PREFIX = "commit_";
+    public static final String LOGFILE_POSTFIX = ".log";
     private static final String LOGFILE_GRP_A = "a";
     private static final String LOGFILE_GRP_B = "b";
+    public static final long DEFAULT_MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
 
-    private final int threadNumber;
-    private final BlockingQueue<LogDescriptor> availableLogs;
-    private final List<LogDescriptor> busyLogs = new ArrayList<LogDescriptor>();
+    private final File directory;
+    private final AtomicLong sequence;
+    private final AtomicInteger laneCounter = new AtomicInteger(0);
+    private final List<LogDescriptor> lanes = new CopyOnWriteArrayList<LogDescriptor>();
+    private final ThreadLocal<LogDescriptor> threadLane = new ThreadLocal<LogDescriptor>() {
+        @Override
+        protected LogDescriptor initialValue() {
+            return openLane();
+        }
+    };
 
-    private final ExecutorService executorService;
     private final LogManager logManager = new LogManager();
-    private final AtomicInteger threadCounter = new AtomicInteger(0);
+    private final Object lanesLock = new Object();         // guards lane file creation against sealed files listing
+    private final ReadWriteLock filesLock = new ReentrantReadWriteLock();  // guards deletion of log files against directory readers
+    private volatile long maxSegmentSize = DEFAULT_MAX_SEGMENT_SIZE;
 
     public CommitLog() {
-        threadNumber = DEFAULT_THREAD_NUMBER;
-        executorService = Executors.newFixedThreadPool(threadNumber);
-        availableLogs = new ArrayBlockingQueue<LogDescriptor>(threadNumber);
-
-        openLogs(threadNumber);
+        this(new File("."), 1);
     }
 
-    public CommitLog(int threadNumber) {
-        this.threadNumber = threadNumber;
-        this.executorService = Executors.newFixedThreadPool(threadNumber);
-        availableLogs = new ArrayBlockingQueue<LogDescriptor>(threadNumber);
+    /**
+     * Constructor.
+     *
+     * @param directory directory to keep log files in
+     * @param initialSequence sequence number of the first record, should be
+     *                        greater than the last sequence found in existing logs
+     */
+    public CommitLog(File directory, long initialSequence) {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IllegalArgumentException("Cannot create log directory " + directory);
 
-        openLogs(threadNumber);
+        this.directory = directory;
+        this.sequence = new AtomicLong(initialSequence - 1);
     }
 
+    /**
+     * Writes pending records, closes and seals the files of all lanes.
+     * Threads, which append records afterwards, continue in new lane files.
+     */
     public void closeLogFiles() {
-        for (LogDescriptor descriptor: availableLogs) {
-            logManager.closeLogFiles(descriptor);
+        for (LogDescriptor descriptor: lanes) {
+            synchronized (descriptor.monitor()) {
+                if (descriptor.sealed) continue;
+                try {
+                    writeFrame(descriptor);
+                } catch (IOException e) {
+                    log.error("Cannot write pending frame to " + descriptor, e);
+                }
+                descriptor.sealed = true;
+                logManager.closeLogFiles(descriptor);
+            }
         }
+        lanes.clear();
     }
 
     /**
-     * Current method opens for write necessary number of log files and
-     * add all logs to availableLogs collection.
+     * Writes all pending records to the log files, even if their frames
+     * are not full yet.
      *
-     * @param logsNumber number of log files to open for write.
+     * @throws IOException
      */
-    private void openLogs(int logsNumber) {
-        try {
-            for (int i=0; i<logsNumber; i++) {
-                String filename = LOGFILE_PREFIX + currentGrp() + i + LOGFILE_POSTFIX;
-                LogDescriptor descriptor = logManager.openLogFile(filename, LogDescriptor.MODE_WRITE);
-                availableLogs.put(descriptor);
+    public void flush() throws IOException {
+        for (LogDescriptor descriptor: lanes) {
+            synchronized (descriptor.monitor()) {
+                if (!descriptor.sealed) writeFrame(descriptor);
+            }
+        }
+    }
+
+    /**
+     * Writes all pending records to the log files and forces them to the
+     * storage device. Records appended before the call are durable when
+     * the method returns.
+     *
+     * @throws IOException
+     */
+    public void sync() throws IOException {
+        for (LogDescriptor descriptor: lanes) {
+            synchronized (descriptor.monitor()) {
+                if (descriptor.sealed) continue;
+                writeFrame(descriptor);
+                logManager.sync(descriptor);
+            }
+        }
+    }
+
+    /**
+     * Appends PUT record to the log. Record fields are encoded straight into
+     * the direct frame buffer of the log, no intermediate objects are created.
+     *
+     * @param item item to put
+     * @return sequence number of the record
+     * @throws IOException
+     */
+    public long addPutRecord(AvailabilityItem item) throws IOException {
+        return writeRecord(LogRecord.TYPE_PUT, item.key(), item.getAmount());
+    }
+
+    /**
+     * Appends REMOVE record to the log.
+     *
+     * @param key key of the item to remove
+     * @return sequence number of the record
+     * @throws IOException
+     */
+    public long addRemoveRecord(long key) throws IOException {
+        return writeRecord(LogRecord.TYPE_REMOVE, key, 0);
+    }
+
+    /**
+     * @return sequence number of the last record appended to the log
+     */
+    public long getLastSequence() {
+        return sequence.get();
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Returns the lock of the log files. Readers of the whole log directory
+     * hold the read lock while the files are listed and opened; an open file
+     * stays readable after it is deleted, so the lock is released before
+     * the files are read. Log files are deleted,
+     * e.g. by the compactor, only under the write lock, so that a reader
+     * never misses a file, which was listed but not opened yet.
+     *
+     * @return lock of the log files
+     */
+    public ReadWriteLock getFilesLock() {
+        return filesLock;
+    }
+
+    public long getMaxSegmentSize() {
+        return maxSegmentSize;
+    }
+
+    /**
+     * @param maxSegmentSize size of a lane file, after which the file is sealed
+     */
+    public void setMaxSegmentSize(long maxSegmentSize) {
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * Returns log files of the directory that are not written by the
+     * current commit log anymore, i.e. sealed lanes and files of previous
+     * runs. Such files could be safely rewritten or removed.
+     *
+     * @return list of sealed log files, sorted by name
+     */
+    public List<File> listSealedFiles() {
+        synchronized (lanesLock) {
+            List<File> files = listLogFiles(directory);
+            for (LogDescriptor descriptor: lanes) {
+                if (!descriptor.sealed) files.remove(descriptor.logFile);
+            }
+            return files;
+        }
+    }
+
+    /**
+     * Returns all commit log files of the directory, sorted by name.
+     *
+     * @param directory log directory
+     * @return list of log files
+     */
+    public static List<File> listLogFiles(File directory) {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(LOGFILE_PREFIX) && name.endsWith(LOGFILE_POSTFIX);
+            }
+        });
+        if (files == null) return new ArrayList<File>();
+
+        Arrays.sort(files);
+        return new ArrayList<File>(Arrays.asList(files));
+    }
+
+    private long writeRecord(byte type, long key, int amount) throws IOException {
+        LogDescriptor descriptor = threadLane.get();
+        synchronized (descriptor.monitor()) {           // uncontended, the lane is owned by the current thread
+            if (descriptor.sealed) {                    // closed by closeLogFiles(); the thread continues in a new lane
+                threadLane.remove();
+                return writeRecord(type, key, amount);
             }
-        } catch (InterruptedException e) {
-            log.error(e);
+            long recordSequence = sequence.incrementAndGet();
+            descriptor.frameWriter.append(type, key, amount, System.currentTimeMillis(), recordSequence);
+            if (descriptor.frameWriter.isFull()) {
+                writeFrame(descriptor);
+                if (descriptor.bytesWritten >= maxSegmentSize) sealLane(descriptor);
+            }
+            return recordSequence;
         }
     }
 
-    public void addPutRecord(AvailabilityItem item) throws IOException {
-        LogRecord record = new LogRecord(LogRecord.TYPE_PUT, item.key(), item.getSku(), item.getStore(), item.getAmount());
-        writeRecord(record);
+    /**
+     * Syncs and closes the lane file of the current thread. The next record
+     * of the thread opens a new lane file.
+     *
+     * @param descriptor lane of the current thread
+     * @throws IOException
+     */
+    private void sealLane(LogDescriptor descriptor) throws IOException {
+        writeFrame(descriptor);
+        logManager.sync(descriptor);
+        descriptor.sealed = true;
+        logManager.closeLogFiles(descriptor);
+        lanes.remove(descriptor);
+        threadLane.remove();
+        log.debug("Commit log lane sealed: " + descriptor + ", " + descriptor.bytesWritten + " bytes");
     }
 
-    public void addRemoveRecord(long key) throws IOException {
-        LogRecord record = new LogRecord(LogRecord.TYPE_REMOVE, key);
-        writeRecord(record);
+    /**
+     * Completes the current frame of the descriptor and writes it to the
+     * log file. Does nothing if there are no pending records.
+     *
+     * @param descriptor log file
+     * @throws IOException
+     */
+    private void writeFrame(LogDescriptor descriptor) throws IOException {
+        if (descriptor.frameWriter.isEmpty()) return;
+
+        try {
+            logManager.write(descriptor, descriptor.frameWriter.complete());
+        } finally {
+            descriptor.frameWriter.reset();
+        }
     }
 
-    private void writeRecord(LogRecord record) throws IOException {
-        LogDescriptor descriptor = availableLogs.remove();
-        descriptor.logFos.write(LogRecord.toByteArray(record));
-        descriptor.logFos.flush();
-        availableLogs.add(descriptor);
+    /**
+     * Opens a log file for a new lane. Existing log files are never reused,
+     * since they may contain records that were not replayed yet.
+     *
+     * @return descriptor of the lane log file
+     */
+    private LogDescriptor openLane() {
+        LogDescriptor descriptor;
+        synchronized (lanesLock) {
+            File file;
+            do {
+                file = new File(directory, LOGFILE_PREFIX + currentGrp() + laneCounter.getAndIncrement() + LOGFILE_POSTFIX);
+            } while (file.exists());
+
+            descriptor = logManager.openLogFile(file.getPath(), LogDescriptor.MODE_WRITE);
+            lanes.add(descriptor);
+        }
+        log.debug("Commit log lane opened for thread " + Thread.currentThread().getName() + ": " + descriptor);
+        return descriptor;
     }
 
 //    private void writeHeader(FileOutputStream logFos, int recordsCommitted) throws IOException {
@@ -0,0 +1,423 @@
+package com.services.availability.storage.ccl.commitlog;
+
+import com.services.availability.storage.ccl.LogRecord;
+import com.services.availability.utils.IoThrottle;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background compaction of sealed commit log files.
+ *
+ * Sealed files written since the last compaction are merged in the
+ * sequence order, and only the latest record of every key is kept.
+ * Tombstones (REMOVE records) are kept as well, since an older PUT of the
+ * same key may still exist in another segment or in a lane that is not
+ * sealed yet. The result is written as a set of new compacted segments;
+ * replay of the compacted segments together with the active lanes gives
+ * the same storage state as replay of the original files.
+ *
+ * The compacted segments themselves are merged only when the segments
+ * written since the last merge reach the <i>merge ratio</i> of the size of
+ * the segments written by it, so every record is rewritten a bounded
+ * number of times, and the log stays within the same ratio of its fully
+ * compacted size.
+ *
+ * Latest records are collected in memory, so the keys are split into
+ * partitions by hash, and every partition is compacted into its own
+ * segment. A pass keeps at most <i>maxKeysPerPass</i> keys: when it
+ * collects more, its partition is split in two, and the records of the
+ * second half are spilled to a temporary file, compacted by one more pass.
+ * The source files are thus read once, and the number of passes follows
+ * the number of distinct keys, not the size of the log.
+ *
+ * Compacted segments are written to temporary files, synced and renamed
+ * atomically; only then the source files are deleted. If the process dies
+ * in between, the source files and the compacted segments contain the same
+ * records, which is harmless for replay and is cleaned up by the next
+ * compaction. Source files are deleted under the write lock of the
+ * {@link CommitLog#getFilesLock() log files}, so that readers of the whole
+ * directory, e.g. the replication catch-up, never miss a file.
+ *
+ * Reads and writes are limited by the I/O budget, so that compaction does
+ * not compete with the commit log writers for the disk bandwidth.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-26 12:40
+ */
+public class CommitLogCompactor {
+    private static final Logger log = Logger.getLogger(CommitLogCompactor.class);
+
+    public static final String COMPACTED_GRP = "c";
+    public static final int DEFAULT_MAX_KEYS_PER_PASS = 1024 * 1024;
+    public static final double DEFAULT_MERGE_RATIO = 0.5;
+    private static final int MAX_PARTITIONS = 1 << 30;                 // keys of the same hash are never split
+    private static final String TMP_POSTFIX = ".tmp";
+    private static final String SPILL_PREFIX = "compaction_";
+
+    private final CommitLog commitLog;
+    private final IoThrottle throttle;
+    private final int maxKeysPerPass;
+    private final ScheduledExecutorService compactionExecutor = Executors.newSingleThreadScheduledExecutor();
+    private double mergeRatio = DEFAULT_MERGE_RATIO;
+    private Set<File> baseSegments = null;  // segments written by the last merge
+
+    private long compactedRecords = 0;      // records written by the last compaction
+    private long droppedRecords = 0;        // superseded records removed by the last compaction
+    private int passes = 0;                 // passes made by the last compaction, one per partition
+
+    public CommitLogCompactor(CommitLog commitLog, IoThrottle throttle) {
+        this(commitLog, throttle, DEFAULT_MAX_KEYS_PER_PASS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param commitLog commit log to compact
+     * @param throttle I/O budget of the compaction
+     * @param maxKeysPerPass max number of keys kept in memory by a single pass
+     */
+    public CommitLogCompactor(CommitLog commitLog, IoThrottle throttle, int maxKeysPerPass) {
+        if (maxKeysPerPass <= 0) throw new IllegalArgumentException("maxKeysPerPass should be positive");
+
+        this.commitLog = commitLog;
+        this.throttle = throttle;
+        this.maxKeysPerPass = maxKeysPerPass;
+    }
+
+    /**
+     * Sets the threshold of the merge of compacted segments: segments are
+     * merged, once the segments written since the last merge reach the
+     * given part of the size of the segments written by it.
+     *
+     * @param mergeRatio size of the new segments relative to the merged ones
+     */
+    public void setMergeRatio(double mergeRatio) {
+        if (mergeRatio < 0) throw new IllegalArgumentException("mergeRatio should not be negative");
+        this.mergeRatio = mergeRatio;
+    }
+
+    /**
+     * Schedules periodic compaction.
+     *
+     * @param interval interval between compactions
+     * @param unit interval time unit
+     */
+    public void start(long interval, TimeUnit unit) {
+        compactionExecutor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    log.error("Commit log compaction failed", e);
+                }
+            }
+        }, interval, interval, unit);
+    }
+
+    /**
+     * Stops periodic compaction and waits for the running one to complete.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException {
+        compactionExecutor.shutdown();
+        if (!compactionExecutor.awaitTermination(60, TimeUnit.SECONDS)) {
+            log.warn("Commit log compaction was not completed in 60 seconds");
+        }
+    }
+
+    /**
+     * Compacts the sealed files of the commit log written since the last
+     * compaction. The compacted segments are merged as well, if the
+     * threshold of the merge is reached. Does nothing if all sealed files
+     * are already compacted.
+     *
+     * @return number of bytes reclaimed
+     * @throws IOException
+     */
+    public synchronized long compact() throws IOException {
+        List<File> files = commitLog.listSealedFiles();
+        List<File> sources = new ArrayList<File>(), compacted = new ArrayList<File>();
+        for (File file: files) {
+            if (isCompacted(file)) {
+                compacted.add(file);
+            } else {
+                sources.add(file);
+            }
+        }
+        if (sources.isEmpty()) return 0;
+
+        if (baseSegments == null) baseSegments = new HashSet<File>(compacted);     // segments found on start are the base
+        long baseBytes = 0, incrementalBytes = 0;
+        for (File file: compacted) {
+            if (baseSegments.contains(file)) {
+                baseBytes += file.length();
+            } else {
+                incrementalBytes += file.length();
+            }
+        }
+        boolean merge = incrementalBytes >= baseBytes * mergeRatio;
+        if (merge) sources = files;
+
+        long sourceBytes = 0;
+        for (File file: sources) sourceBytes += file.length();
+
+        List<File> segments = new ArrayList<File>();
+        long totalRecords = compactFiles(sources, segments);
+        long compactedBytes = 0;
+        for (File segment: segments) compactedBytes += segment.length();
+
+        commitLog.getFilesLock().writeLock().lock();
+        try {
+            for (File file: sources) {
+                if (!file.delete()) log.warn("Cannot delete compacted log file " + file);
+            }
+        } finally {
+            commitLog.getFilesLock().writeLock().unlock();
+        }
+        if (merge) baseSegments = new HashSet<File>(segments);
+
+        droppedRecords = totalRecords - compactedRecords;
+        log.debug("Commit log " + (merge ? "merged: " : "compacted: ") + sources.size() + " files, " + totalRecords
+                + " -> " + compactedRecords + " records, " + sourceBytes + " -> " + compactedBytes + " bytes, "
+                + passes + " passes");
+        return sourceBytes - compactedBytes;
+    }
+
+    /**
+     * Compacts the files into a set of segments, one segment per partition
+     * of the keys. The first pass reads the source files; records of the
+     * partitions split off by a pass are spilled to temporary files, and
+     * every such partition is compacted by a pass over its own spill file.
+     *
+     * @param sources files to compact
+     * @param segments list to add the written segments to
+     * @return number of records in the source files
+     * @throws IOException
+     */
+    private long compactFiles(List<File> sources, List<File> segments) throws IOException {
+        LinkedList<Partition> partitions = new LinkedList<Partition>();
+        partitions.add(new Partition(0, 1));
+
+        long totalRecords = 0, latestRecords = 0;
+        int passNumber = 0;
+        try {
+            while (!partitions.isEmpty()) {
+                Partition partition = partitions.getFirst();
+                int index = partition.index, number = partition.number;
+
+                // latest record per key of the partition, in the order of the latest sequence
+                LinkedHashMap<Long, LogRecord> latest = new LinkedHashMap<Long, LogRecord>();
+                List<Partition> halves = new ArrayList<Partition>();       // partitions split off by this pass
+                CommitLogReader reader = new CommitLogReader(partition.spill == null ? sources
+                        : Collections.singletonList(partition.spill), throttle);
+                try {
+                    LogRecord record;
+                    while ((record = reader.next()) != null) {
+                        if (partition.spill == null) totalRecords++;
+                        if (partitionOf(record.getKey(), number) != index) {
+                            for (Partition half: halves) {
+                                if (partitionOf(record.getKey(), half.number) == half.index) half.append(record);
+                            }
+                            continue;
+                        }
+
+                        latest.remove(record.getKey());
+                        latest.put(record.getKey(), record);
+                        while (latest.size() > maxKeysPerPass && number < MAX_PARTITIONS) {
+                            Partition half = new Partition(index + number, number * 2);
+                            halves.add(half);
+                            partitions.add(half);
+                            half.open();
+                            number *= 2;
+                            Iterator<LogRecord> records = latest.values().iterator();
+                            while (records.hasNext()) {
+                                LogRecord latestRecord = records.next();
+                                if (partitionOf(latestRecord.getKey(), number) != index) {
+                                    half.append(latestRecord);
+                                    records.remove();
+                                }
+                            }
+                        }
+                    }
+                } finally {
+                    reader.close();
+                }
+                for (Partition half: halves) half.close();
+                passNumber++;
+
+                latestRecords += latest.size();
+                if (!latest.isEmpty()) segments.add(writeSegment(latest.values()));
+                partitions.removeFirst().delete();
+            }
+        } finally {
+            for (Partition partition: partitions) partition.delete();
+        }
+
+        compactedRecords = latestRecords;
+        passes = passNumber;
+        return totalRecords;
+    }
+
+    public long getCompactedRecords() {
+        return compactedRecords;
+    }
+
+    public long getDroppedRecords() {
+        return droppedRecords;
+    }
+
+    public int getPasses() {
+        return passes;
+    }
+
+    /**
+     * @param file log file
+     * @return true, if the file is a segment written by the compactor
+     */
+    public static boolean isCompacted(File file) {
+        return file.getName().startsWith(CommitLog.LOGFILE_PREFIX + COMPACTED_GRP);
+    }
+
+    /**
+     * Maps the key to one of the partitions. Keys of the partition
+     * <i>index</i> of <i>number</i> are split between the partitions
+     * <i>index</i> and <i>index + number</i> of <i>2 * number</i>.
+     *
+     * @param key item key
+     * @param number number of partitions
+     * @return partition index
+     */
+    private static int partitionOf(long key, int number) {
+        int hash = (int) ((key * 0x9E3779B97F4A7C15L) >>> 33);     // spreads SKUs and stores over the low bits
+        return hash % number;
+    }
+
+    /**
+     * Writes records into a new compacted segment. Records should be
+     * ordered by sequence number.
+     *
+     * @param records records to write
+     * @return segment file
+     * @throws IOException
+     */
+    private File writeSegment(Iterable<LogRecord> records) throws IOException {
+        File segment = newSegmentFile();
+        File tmp = new File(segment.getPath() + TMP_POSTFIX);
+
+        LogFrameWriter frameWriter = new LogFrameWriter();
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            FileChannel channel = fos.getChannel();
+            for (LogRecord record: records) {
+                frameWriter.append(record);
+                if (frameWriter.isFull()) writeFrame(channel, frameWriter);
+            }
+            writeFrame(channel, frameWriter);
+            channel.force(true);
+        } catch (IOException e) {
+            fos.close();
+            if (!tmp.delete()) log.warn("Cannot delete temporary file " + tmp);
+            throw e;
+        }
+        fos.close();
+
+        Files.move(tmp.toPath(), segment.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return segment;
+    }
+
+    private void writeFrame(FileChannel channel, LogFrameWriter frameWriter) throws IOException {
+        if (frameWriter.isEmpty()) return;
+
+        ByteBuffer frame = frameWriter.complete();
+        try {
+            throttle.acquire(frame.remaining());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the I/O budget");
+        }
+        while (frame.hasRemaining()) {
+            channel.write(frame);
+        }
+        frameWriter.reset();
+    }
+
+    private File newSegmentFile() {
+        File file;
+        int counter = 0;
+        do {
+            file = new File(commitLog.getDirectory(), CommitLog.LOGFILE_PREFIX + COMPACTED_GRP + counter++ + CommitLog.LOGFILE_POSTFIX);
+        } while (file.exists());
+        return file;
+    }
+
+    /**
+     * Partition of the keys left to compact, with the spill file of its
+     * records. The spill file is null for the partition of all keys, which
+     * is read from the source files.
+     */
+    private class Partition {
+        final int index;                    // partition index
+        final int number;                   // number of partitions
+        File spill = null;
+        private FileOutputStream out = null;
+        private LogFrameWriter frameWriter = null;
+
+        Partition(int index, int number) {
+            this.index = index;
+            this.number = number;
+        }
+
+        void open() throws IOException {
+            spill = File.createTempFile(SPILL_PREFIX, TMP_POSTFIX, commitLog.getDirectory());
+            out = new FileOutputStream(spill);
+            frameWriter = new LogFrameWriter();
+        }
+
+        void append(LogRecord record) throws IOException {
+            frameWriter.append(record);
+            if (frameWriter.isFull()) writeFrame(out.getChannel(), frameWriter);
+        }
+
+        void close() throws IOException {
+            if (out == null) return;
+            try {
+                writeFrame(out.getChannel(), frameWriter);
+            } finally {
+                out.close();
+                out = null;
+            }
+        }
+
+        void delete() {
+            try {
+                if (out != null) out.close();
+            } catch (IOException e) {
+                log.warn("Cannot close spill file " + spill, e);
+            }
+            out = null;
+            if (spill != null && !spill.delete()) log.warn("Cannot delete spill file " + spill);
+        }
+    }
+}
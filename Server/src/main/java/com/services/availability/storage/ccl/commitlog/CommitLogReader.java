@@ -0,0 +1,188 @@
+package com.services.availability.storage.ccl.commitlog;
+
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.storage.Storage;
+import com.services.availability.storage.ccl.LogRecord;
+import com.services.availability.utils.IoThrottle;
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Reads records from a set of commit log files in the global sequence order.
+ *
+ * Records inside a single lane file are ordered by sequence number, since
+ * a lane is written by a single thread. Current class performs a k-way merge
+ * of lanes: the head records of all files are kept in a priority queue and
+ * the one with the lowest sequence number is returned first.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-24 15:20
+ */
+public class CommitLogReader implements Closeable {
+    private static final Logger log = Logger.getLogger(CommitLogReader.class);
+
+    private final List<LaneCursor> cursors = new ArrayList<LaneCursor>();
+    private final PriorityQueue<LaneCursor> queue = new PriorityQueue<LaneCursor>();
+    private long lastSequence = 0;
+
+    /**
+     * Opens all provided log files for read.
+     *
+     * @param files commit log files
+     * @throws IOException
+     */
+    public CommitLogReader(List<File> files) throws IOException {
+        this(files, IoThrottle.unlimited());
+    }
+
+    /**
+     * Opens all provided log files for read. Reads are limited by the
+     * provided I/O budget.
+     *
+     * @param files commit log files
+     * @param throttle I/O budget
+     * @throws IOException
+     */
+    public CommitLogReader(List<File> files, IoThrottle throttle) throws IOException {
+        try {
+            for (File file: files) {
+                LaneCursor cursor = new LaneCursor(file, throttle);
+                cursors.add(cursor);
+                if (cursor.advance()) queue.add(cursor);
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens all commit log files of the directory for read.
+     *
+     * @param directory log directory
+     * @return reader
+     * @throws IOException
+     */
+    public static CommitLogReader forDirectory(File directory) throws IOException {
+        return new CommitLogReader(CommitLog.listLogFiles(directory));
+    }
+
+    /**
+     * Returns the record with the lowest sequence number among all lanes.
+     *
+     * @return next record, or null if all lanes are exhausted
+     * @throws IOException
+     */
+    public LogRecord next() throws IOException {
+        LaneCursor cursor = queue.poll();
+        if (cursor == null) return null;
+
+        LogRecord record = cursor.head;
+        if (cursor.advance()) queue.add(cursor);
+
+        lastSequence = record.getSequence();
+        return record;
+    }
+
+    /**
+     * Applies all remaining records to the storage in the sequence order.
+     *
+     * @param storage target storage
+     * @return number of records applied
+     * @throws IOException
+     */
+    public long replay(Storage storage) throws IOException {
+        long count = 0;
+        LogRecord record;
+        while ((record = next()) != null) {
+            if (record.isPutRecord()) {
+                storage.put(record.getKey(), new AvailabilityItem(record.getSku(), record.getStore(), record.getAmount()));
+            } else {
+                storage.remove(record.getKey());
+            }
+            count++;
+        }
+        log.debug("Commit log replayed: " + count + " records, last sequence = " + lastSequence);
+        return count;
+    }
+
+    /**
+     * @return sequence number of the last record returned by {@link #next()}
+     */
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (LaneCursor cursor: cursors) {
+            cursor.close();
+        }
+        cursors.clear();
+        queue.clear();
+    }
+
+    /**
+     * Reads a single lane file frame by frame.
+     */
+    private static class LaneCursor implements Comparable<LaneCursor>, Closeable {
+        private final File file;
+        private final InputStream in;
+        private final LogFrameReader reader;
+        private final LinkedList<LogRecord> frameRecords = new LinkedList<LogRecord>();
+        private final IoThrottle throttle;
+
+        private LogRecord head;
+
+        LaneCursor(File file, IoThrottle throttle) throws IOException {
+            this.file = file;
+            this.throttle = throttle;
+            this.in = new BufferedInputStream(new FileInputStream(file));
+            this.reader = new LogFrameReader(in);
+        }
+
+        /**
+         * Moves the cursor to the next record of the lane.
+         *
+         * @return false, if the lane is exhausted
+         */
+        boolean advance() throws IOException {
+            if (frameRecords.isEmpty()) {
+                long validBytes = reader.getValidBytes();
+                if (!reader.readFrame(frameRecords)) {
+                    if (reader.isTornTail()) log.warn("Log file " + file + " has a torn tail after " + reader.getValidBytes() + " bytes");
+                    head = null;
+                    return false;
+                }
+                acquire(reader.getValidBytes() - validBytes);
+            }
+            head = frameRecords.removeFirst();
+            return true;
+        }
+
+        private void acquire(long bytes) throws IOException {
+            try {
+                throttle.acquire(bytes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the I/O budget");
+            }
+        }
+
+        @Override
+        public int compareTo(LaneCursor o) {
+            return head.compareTo(o.head);
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
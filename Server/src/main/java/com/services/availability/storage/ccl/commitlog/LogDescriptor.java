@@ -3,6 +3,7 @@ package com.services.availability.storage.ccl.commitlog;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.nio.channels.FileChannel;
 
 /**
  * @author Roman Reva
@@ -19,6 +20,12 @@ public class LogDescriptor {
     protected final File logFile;
     protected FileInputStream logFis = null;
     protected FileOutputStream logFos = null;
+    protected FileChannel logChannel = null;                                // channel of logFos, used for buffer writes
+    protected final LogFrameWriter frameWriter = new LogFrameWriter();     // pending records of the current frame
+    protected long bytesWritten = 0;                                        // bytes written through logChannel
+    protected volatile boolean sealed = false;                              // no more records are appended to the file
+
+    private final Object monitor = new Object();
 
     public LogDescriptor(String filename, int mode) {
         this.filename = filename;
@@ -38,7 +45,14 @@ public class LogDescriptor {
         return filename + " (mode=" + (fileOpenForRead() ? "R" : "") + (fileOpenForWrite() ? "W" : "") + ")";
     }
 
-    public String monitor() {
-        return filename.intern();
+    /**
+     * Monitor object that guards writes to the current log file. Each
+     * descriptor has its own monitor, so writers of different files never
+     * contend on a shared (e.g. interned string) lock.
+     *
+     * @return monitor object
+     */
+    public Object monitor() {
+        return monitor;
     }
 }
\ No newline at end of file
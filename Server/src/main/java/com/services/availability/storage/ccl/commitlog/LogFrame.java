@@ -0,0 +1,93 @@
+package com.services.availability.storage.ccl.commitlog;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Current class describes the binary layout of a commit log frame and
+ * provides primitive encoding operations used by the frame writer and
+ * reader.
+ *
+ * A frame is a batch of records prefixed by a fixed size header:
+ * <pre>
+ *   magic:short | recordCount:short | payloadSize:int | baseTimestamp:long | baseSequence:long | checksum:int | payload
+ * </pre>
+ * The checksum is CRC-32C over the first 24 header bytes and the payload.
+ * Each record in the payload is encoded as
+ * <pre>
+ *   type:byte | sequenceDelta:varint | timestampDelta:varint | key:varint | amount:varint (PUT only)
+ * </pre>
+ * Sequence and timestamp deltas are relative to the previous record of the
+ * frame (or to the base values for the first record). Sequence delta is an
+ * unsigned varint, since sequence numbers only grow inside a log file; the
+ * rest of varints are zig-zag encoded. Sku and store are not stored, they
+ * are restored from the key.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-23 11:40
+ */
+public final class LogFrame {
+    public static final short MAGIC = 0x4C46;                  // 'LF'
+
+    public static final int HEADER_SIZE = 2 + 2 + 4 + 8 + 8 + 4;  // magic + recordCount + payloadSize + baseTimestamp + baseSequence + checksum = 28
+    public static final int HEADER_MAGIC_OFFSET = 0;           // short
+    public static final int HEADER_COUNT_OFFSET = 2;           // short
+    public static final int HEADER_PAYLOAD_OFFSET = 4;         // int
+    public static final int HEADER_TIMESTAMP_OFFSET = 8;       // long
+    public static final int HEADER_SEQUENCE_OFFSET = 16;       // long
+    public static final int HEADER_CHECKSUM_OFFSET = 24;       // int
+
+    public static final int MAX_RECORD_SIZE = 1 + 10 + 10 + 10 + 5; // type + sequenceDelta + timestampDelta + key + amount, worst case
+    public static final int MAX_RECORDS = Short.MAX_VALUE;
+    public static final int DEFAULT_MAX_RECORDS = 256;
+
+    private LogFrame() {}
+
+    /**
+     * Writes the value as an unsigned LEB128 varint.
+     *
+     * @param buffer target buffer
+     * @param value value to write
+     */
+    public static void putVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint.
+     *
+     * @param buffer source buffer
+     * @return decoded value
+     */
+    public static long getVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    public static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Calculates the maximum frame size for the specified number of records.
+     *
+     * @param maxRecords max number of records in a frame
+     * @return number of bytes
+     */
+    public static int maxFrameSize(int maxRecords) {
+        return HEADER_SIZE + maxRecords * MAX_RECORD_SIZE;
+    }
+}
@@ -0,0 +1,161 @@
+package com.services.availability.storage.ccl.commitlog;
+
+import com.services.availability.storage.ccl.LogRecord;
+import com.services.availability.utils.Crc32c;
+import org.apache.log4j.Logger;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes commit log frames (see {@link LogFrame}) from an input stream.
+ *
+ * Reading stops at the first frame that is incomplete or fails checksum
+ * verification. Such a frame is considered as a torn tail, i.e. the result
+ * of a crash in the middle of a write. Number of bytes that belong to valid
+ * frames is available via {@link #getValidBytes()}, so that the log could be
+ * truncated to this length before appending new frames.
+ *
+ * Not thread safe.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-23 13:05
+ */
+public class LogFrameReader {
+    private static final Logger log = Logger.getLogger(LogFrameReader.class);
+
+    private final InputStream in;
+    private final byte[] header = new byte[LogFrame.HEADER_SIZE];
+    private final Crc32c crc32c = new Crc32c();
+    private byte[] payload = new byte[LogFrame.maxFrameSize(LogFrame.DEFAULT_MAX_RECORDS)];
+
+    private long validBytes = 0;
+    private boolean finished = false;
+    private boolean tornTail = false;
+
+    public LogFrameReader(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Reads the next frame and adds its records to the provided list.
+     *
+     * @param records list to add decoded records to
+     * @return true, if a valid frame was read; false if the end of log or a torn tail is reached
+     * @throws IOException
+     */
+    public boolean readFrame(List<LogRecord> records) throws IOException {
+        if (finished) return false;
+
+        int headerBytes = readFully(header, LogFrame.HEADER_SIZE);
+        if (headerBytes == 0) return finish(false);                     // clean end of log
+        if (headerBytes < LogFrame.HEADER_SIZE) return finish(true);    // crash during header write
+
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        short magic = headerBuffer.getShort(LogFrame.HEADER_MAGIC_OFFSET);
+        int recordCount = headerBuffer.getShort(LogFrame.HEADER_COUNT_OFFSET);
+        int payloadSize = headerBuffer.getInt(LogFrame.HEADER_PAYLOAD_OFFSET);
+        long baseTimestamp = headerBuffer.getLong(LogFrame.HEADER_TIMESTAMP_OFFSET);
+        long baseSequence = headerBuffer.getLong(LogFrame.HEADER_SEQUENCE_OFFSET);
+        int checksum = headerBuffer.getInt(LogFrame.HEADER_CHECKSUM_OFFSET);
+
+        if (magic != LogFrame.MAGIC || recordCount <= 0 || payloadSize <= 0
+                || payloadSize > recordCount * LogFrame.MAX_RECORD_SIZE) {
+            return finish(true);
+        }
+
+        if (payload.length < payloadSize) payload = new byte[payloadSize];
+        if (readFully(payload, payloadSize) < payloadSize) return finish(true);
+
+        crc32c.reset();
+        crc32c.update(header, 0, LogFrame.HEADER_CHECKSUM_OFFSET);
+        crc32c.update(payload, 0, payloadSize);
+        if (crc32c.getValue() != checksum) return finish(true);
+
+        List<LogRecord> frameRecords = decodePayload(recordCount, payloadSize, baseTimestamp, baseSequence);
+        if (frameRecords == null) return finish(true);
+
+        records.addAll(frameRecords);
+        validBytes += LogFrame.HEADER_SIZE + payloadSize;
+        return true;
+    }
+
+    /**
+     * Reads all valid frames until the end of log or a torn tail.
+     *
+     * @return list of records in the order they were written
+     * @throws IOException
+     */
+    public List<LogRecord> readAll() throws IOException {
+        List<LogRecord> records = new ArrayList<LogRecord>();
+        while (readFrame(records)) { }
+        return records;
+    }
+
+    /**
+     * @return true, if reading stopped at an incomplete or corrupted frame
+     */
+    public boolean isTornTail() {
+        return tornTail;
+    }
+
+    /**
+     * @return number of bytes from the beginning of the stream that belong to valid frames
+     */
+    public long getValidBytes() {
+        return validBytes;
+    }
+
+    private List<LogRecord> decodePayload(int recordCount, int payloadSize, long baseTimestamp, long baseSequence) {
+        ByteBuffer buffer = ByteBuffer.wrap(payload, 0, payloadSize);
+        List<LogRecord> records = new ArrayList<LogRecord>(recordCount);
+        long timestamp = baseTimestamp, sequence = baseSequence;
+        try {
+            for (int i = 0; i < recordCount; i++) {
+                byte type = buffer.get();
+                sequence += LogFrame.getVarLong(buffer);
+                timestamp += LogFrame.unZigZag(LogFrame.getVarLong(buffer));
+                long key = LogFrame.unZigZag(LogFrame.getVarLong(buffer));
+
+                int amount;
+                if (type == LogRecord.TYPE_PUT) {
+                    amount = (int) LogFrame.unZigZag(LogFrame.getVarLong(buffer));
+                } else if (type == LogRecord.TYPE_REMOVE) {
+                    amount = 0;
+                } else {
+                    return null;
+                }
+
+                records.add(new LogRecord(type, key, amount, timestamp, sequence));
+            }
+        } catch (BufferUnderflowException e) {
+            return null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+
+        return buffer.hasRemaining() ? null : records;
+    }
+
+    private boolean finish(boolean torn) {
+        finished = true;
+        tornTail = torn;
+        if (torn) log.warn("Torn tail found in commit log after " + validBytes + " valid bytes");
+        return false;
+    }
+
+    private int readFully(byte[] target, int length) throws IOException {
+        int total = 0;
+        while (total < length) {
+            int read = in.read(target, total, length - total);
+            if (read < 0) break;
+            total += read;
+        }
+        return total;
+    }
+}
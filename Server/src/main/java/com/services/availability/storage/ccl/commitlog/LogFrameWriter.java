@@ -0,0 +1,149 @@
+package com.services.availability.storage.ccl.commitlog;
+
+import com.services.availability.storage.ccl.LogRecord;
+import com.services.availability.utils.Crc32c;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Accumulates log records into a single frame (see {@link LogFrame} for the
+ * layout). Records are encoded immediately on append straight into a direct
+ * buffer that is allocated once per writer; header and checksum are
+ * calculated when the frame is completed. No objects are allocated on the
+ * append/complete path.
+ *
+ * Not thread safe.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-23 12:15
+ */
+public class LogFrameWriter {
+    private final int maxRecords;
+    private final ByteBuffer frame;
+    private final Crc32c crc32c = new Crc32c();
+
+    private int recordCount = 0;
+    private long baseTimestamp = 0;
+    private long lastTimestamp = 0;
+    private long baseSequence = 0;
+    private long lastSequence = 0;
+
+    public LogFrameWriter() {
+        this(LogFrame.DEFAULT_MAX_RECORDS);
+    }
+
+    public LogFrameWriter(int maxRecords) {
+        if (maxRecords <= 0 || maxRecords > LogFrame.MAX_RECORDS)
+            throw new IllegalArgumentException("maxRecords should be in range [1, " + LogFrame.MAX_RECORDS + "]");
+
+        this.maxRecords = maxRecords;
+        this.frame = ByteBuffer.allocateDirect(LogFrame.maxFrameSize(maxRecords));
+        this.frame.position(LogFrame.HEADER_SIZE);
+    }
+
+    /**
+     * Encodes the record and appends it to the current frame.
+     *
+     * @param record record to append
+     */
+    public void append(LogRecord record) {
+        append(record.getType(), record.getKey(), record.getAmount(), record.getTimestamp(), record.getSequence());
+    }
+
+    /**
+     * Encodes the record fields and appends them to the current frame.
+     *
+     * @param type LogRecord.TYPE_PUT or LogRecord.TYPE_REMOVE
+     * @param key item key
+     * @param amount amount of item left, ignored for TYPE_REMOVE
+     * @param timestamp record creation timestamp
+     * @param sequence global sequence number, should be greater than the one of the previous record
+     */
+    public void append(byte type, long key, int amount, long timestamp, long sequence) {
+        if (isFull()) throw new IllegalStateException("Frame is full (" + recordCount + " records)");
+
+        if (recordCount == 0) {
+            baseTimestamp = lastTimestamp = timestamp;
+            baseSequence = lastSequence = sequence;
+        } else if (sequence <= lastSequence) {
+            throw new IllegalArgumentException("Sequence " + sequence + " is not greater than " + lastSequence);
+        }
+
+        frame.put(type);
+        LogFrame.putVarLong(frame, sequence - lastSequence);
+        LogFrame.putVarLong(frame, LogFrame.zigZag(timestamp - lastTimestamp));
+        LogFrame.putVarLong(frame, LogFrame.zigZag(key));
+        if (type == LogRecord.TYPE_PUT) {
+            LogFrame.putVarLong(frame, LogFrame.zigZag(amount));
+        }
+
+        lastTimestamp = timestamp;
+        lastSequence = sequence;
+        recordCount++;
+    }
+
+    public boolean isEmpty() {
+        return recordCount == 0;
+    }
+
+    public boolean isFull() {
+        return recordCount >= maxRecords;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Completes the current frame: fills in the header and the checksum.
+     *
+     * Returned buffer is the internal frame buffer, prepared for read. It is
+     * valid until {@link #reset()} is called, which should be done as soon as
+     * the frame is written out.
+     *
+     * @return encoded frame
+     */
+    public ByteBuffer complete() {
+        if (isEmpty()) throw new IllegalStateException("Frame is empty");
+
+        int frameSize = frame.position();
+        frame.putShort(LogFrame.HEADER_MAGIC_OFFSET, LogFrame.MAGIC);
+        frame.putShort(LogFrame.HEADER_COUNT_OFFSET, (short) recordCount);
+        frame.putInt(LogFrame.HEADER_PAYLOAD_OFFSET, frameSize - LogFrame.HEADER_SIZE);
+        frame.putLong(LogFrame.HEADER_TIMESTAMP_OFFSET, baseTimestamp);
+        frame.putLong(LogFrame.HEADER_SEQUENCE_OFFSET, baseSequence);
+
+        crc32c.reset();
+        crc32c.update(frame, 0, LogFrame.HEADER_CHECKSUM_OFFSET);
+        crc32c.update(frame, LogFrame.HEADER_SIZE, frameSize - LogFrame.HEADER_SIZE);
+        frame.putInt(LogFrame.HEADER_CHECKSUM_OFFSET, crc32c.getValue());
+
+        frame.flip();
+        return frame;
+    }
+
+    /**
+     * Completes the current frame and returns its copy as a byte array.
+     * Writer is reset afterwards.
+     *
+     * @return encoded frame
+     */
+    public byte[] toByteArray() {
+        ByteBuffer completed = complete();
+        byte[] result = new byte[completed.remaining()];
+        completed.get(result);
+
+        reset();
+        return result;
+    }
+
+    /**
+     * Drops all records of the current frame.
+     */
+    public void reset() {
+        frame.clear();
+        frame.position(LogFrame.HEADER_SIZE);
+        recordCount = 0;
+    }
+}
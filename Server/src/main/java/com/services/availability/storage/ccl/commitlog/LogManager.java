@@ -3,6 +3,7 @@ package com.services.availability.storage.ccl.commitlog;
 import org.apache.log4j.Logger;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -41,8 +42,10 @@ public class LogManager {
                     log.debug("New log file created; filename = " + logFile.getName());
                 }
 
-                if ((mode & LogDescriptor.MODE_WRITE) == LogDescriptor.MODE_WRITE)
+                if ((mode & LogDescriptor.MODE_WRITE) == LogDescriptor.MODE_WRITE) {
                     logDescriptor.logFos = new FileOutputStream(logFile);
+                    logDescriptor.logChannel = logDescriptor.logFos.getChannel();
+                }
 
                 if ((mode & LogDescriptor.MODE_READ) == LogDescriptor.MODE_READ)
                     logDescriptor.logFis = new FileInputStream(logFile);
@@ -107,6 +110,26 @@ public class LogManager {
         }
     }
 
+    /**
+     * Verifies that specified file is open for write and writes all remaining
+     * bytes of the <i>buffer</i> to the file channel. Direct buffers are written
+     * without an intermediate copy.
+     *
+     * @param logDescriptor log file
+     * @param buffer data to write
+     * @throws IOException
+     */
+    public void write(LogDescriptor logDescriptor, ByteBuffer buffer) throws IOException {
+        verifyFileOpen(logDescriptor);
+        synchronized (logDescriptor.monitor()) {
+            if (!logDescriptor.fileOpenForWrite()) throw new IllegalStateException("File `" + logDescriptor + "` is not open for write");
+
+            while (buffer.hasRemaining()) {
+                logDescriptor.bytesWritten += logDescriptor.logChannel.write(buffer);
+            }
+        }
+    }
+
     /**
      * Performs flush of the specified file's output stream.
      *
@@ -122,6 +145,21 @@ public class LogManager {
         }
     }
 
+    /**
+     * Forces all data written to the specified file to the storage device.
+     *
+     * @param logDescriptor log file
+     * @throws IOException
+     */
+    public void sync(LogDescriptor logDescriptor) throws IOException {
+        verifyFileOpen(logDescriptor);
+        synchronized (logDescriptor.monitor()) {
+            if (!logDescriptor.fileOpenForWrite()) throw new IllegalStateException("File `" + logDescriptor + "` is not open for write");
+
+            logDescriptor.logChannel.force(false);
+        }
+    }
+
     /**
      * Verifies that specified file is open for write, puts the <i>data</i>
      * into output stream and flushes the changes.
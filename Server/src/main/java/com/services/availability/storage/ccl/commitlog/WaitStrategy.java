@@ -0,0 +1,111 @@
+package com.services.availability.storage.ccl.commitlog;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Strategy used by {@link AsyncCommitLog} producers and the writer thread
+ * to wait for the ring buffer state change (free slot or published record).
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-25 12:30
+ */
+public interface WaitStrategy {
+
+    /**
+     * Is called in a loop while the awaited condition is not met.
+     *
+     * @param attempt number of unsuccessful checks performed so far
+     */
+    public void idle(int attempt);
+
+    /**
+     * Notifies waiting threads that the ring buffer state has changed.
+     */
+    public void signalAll();
+
+    /**
+     * Lowest latency, burns a CPU core per waiting thread.
+     */
+    public static class BusySpin implements WaitStrategy {
+        @Override
+        public void idle(int attempt) { }
+
+        @Override
+        public void signalAll() { }
+    }
+
+    /**
+     * Spins for a while and then yields the CPU to other threads.
+     */
+    public static class Yielding implements WaitStrategy {
+        private static final int SPIN_TRIES = 100;
+
+        @Override
+        public void idle(int attempt) {
+            if (attempt > SPIN_TRIES) Thread.yield();
+        }
+
+        @Override
+        public void signalAll() { }
+    }
+
+    /**
+     * Spins, then yields, then parks the thread for a short period.
+     * Good balance between latency and CPU usage.
+     */
+    public static class Sleeping implements WaitStrategy {
+        private static final int SPIN_TRIES = 100;
+        private static final int YIELD_TRIES = 200;
+        private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+        @Override
+        public void idle(int attempt) {
+            if (attempt > YIELD_TRIES) {
+                LockSupport.parkNanos(PARK_NANOS);
+            } else if (attempt > SPIN_TRIES) {
+                Thread.yield();
+            }
+        }
+
+        @Override
+        public void signalAll() { }
+    }
+
+    /**
+     * Blocks waiting threads on a condition. Lowest CPU usage, but every
+     * signal requires a lock acquisition.
+     */
+    public static class Blocking implements WaitStrategy {
+        private static final long MAX_WAIT_MICROS = 1000;     // protects against missed signals
+
+        private final Lock lock = new ReentrantLock();
+        private final Condition stateChanged = lock.newCondition();
+
+        @Override
+        public void idle(int attempt) {
+            lock.lock();
+            try {
+                stateChanged.await(MAX_WAIT_MICROS, TimeUnit.MICROSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override
+        public void signalAll() {
+            lock.lock();
+            try {
+                stateChanged.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.services.availability.storage.hashmmap;
+
+import com.services.availability.storage.Storage;
+import com.services.availability.storage.SwitchableStorage;
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * Switches a running server to a storage file built by {@link BulkLoader}.
+ * The directory of the storage file is polled for {@link BulkLoader#LOADED_FILE};
+ * once it appears, it is opened and verified, replaces the storage file,
+ * and the server storage is switched to it. The previous storage keeps
+ * serving requests until the switch; the switch waits for the requests in
+ * progress on it, and the previous storage is then shut down and closed,
+ * so that the mapping of the replaced file is released.
+ *
+ * The loaded file replaces the content of the storage: changes made after
+ * the input of the loader was exported are lost.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-16 16:45
+ */
+public class BulkLoadWatcher {
+    private static final Logger log = Logger.getLogger(BulkLoadWatcher.class);
+
+    public static final long POLL_INTERVAL = 5000;          // ms
+
+    private final File storageFile;
+    private final File loadedFile;
+    private final SwitchableStorage storage;
+
+    private volatile boolean isRunning = false;
+    private Thread watcherThread;
+
+    /**
+     * Constructor.
+     *
+     * @param storageFile storage file, which is replaced by the loaded one
+     * @param storage server storage to switch
+     */
+    public BulkLoadWatcher(File storageFile, SwitchableStorage storage) {
+        this.storageFile = storageFile;
+        this.loadedFile = new File(storageFile.getAbsoluteFile().getParentFile(), BulkLoader.LOADED_FILE);
+        this.storage = storage;
+    }
+
+    public void start() {
+        isRunning = true;
+        watcherThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (isRunning) {
+                    try {
+                        switchIfLoaded();
+                        Thread.sleep(POLL_INTERVAL);
+                    } catch (InterruptedException e) {
+                        break;
+                    } catch (IOException e) {
+                        log.error("Loaded storage file cannot be used", e);
+                    }
+                }
+            }
+        }, "bulk-load-watcher");
+        watcherThread.setDaemon(true);
+        watcherThread.start();
+    }
+
+    public void stop() throws InterruptedException {
+        isRunning = false;
+        if (watcherThread != null) {
+            watcherThread.interrupt();
+            watcherThread.join();
+        }
+    }
+
+    /**
+     * Switches the storage to the loaded file, if there is one.
+     *
+     * @return true, if the storage was switched
+     * @throws IOException if the loaded file cannot replace the storage file
+     */
+    public boolean switchIfLoaded() throws IOException {
+        if (!loadedFile.exists()) return false;
+
+        long started = System.currentTimeMillis();
+        ConcurrentHashMMap next;
+        try {
+            next = new ConcurrentHashMMap(loadedFile.getPath());           // verifies the file
+        } catch (IllegalStateException e) {
+            File rejectedFile = new File(loadedFile.getPath() + ".rejected");
+            Files.move(loadedFile.toPath(), rejectedFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            throw new IOException("Loaded file is corrupted and is moved to " + rejectedFile, e);
+        }
+        // the mapping follows the file, which replaces the previous storage file on restart
+        Files.move(loadedFile.toPath(), storageFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        Storage previous = storage.switchTo(next);                     // drains requests on the previous storage
+        log.debug("Storage is switched to the loaded file in " + (System.currentTimeMillis() - started) + " ms");
+        previous.prepareForShutdown();
+        if (previous instanceof HashMMap) ((HashMMap) previous).close();
+        return true;
+    }
+}
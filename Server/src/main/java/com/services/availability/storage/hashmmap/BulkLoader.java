@@ -0,0 +1,378 @@
+package com.services.availability.storage.hashmmap;
+
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.utils.ByteUtils;
+import org.apache.log4j.Logger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Offline builder of a storage file, which could be opened by
+ * {@link ConcurrentHashMMap} as is. Items are read from a CSV file
+ * (<i>sku,store,amount</i> per line) or from a binary file (sku:int,
+ * store:short, amount:int per item, big-endian), see {@link #load(File, File)}.
+ *
+ * Items are sorted by the target bucket in runs of a bounded size, which
+ * are spilled to temporary files; runs are then merged and the storage
+ * file is written in one sequential pass: the header, then every bucket
+ * in order. If an item occurs in the input more than once, the last
+ * occurrence wins.
+ *
+ * A running server picks the file up if it is moved to its working
+ * directory as {@link #LOADED_FILE}, see {@link BulkLoadWatcher}.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-16 15:10
+ */
+public class BulkLoader {
+    private static final Logger log = Logger.getLogger(BulkLoader.class);
+
+    public static final String LOADED_FILE = HashMMap.STORAGE_FILE + ".bulk";  // picked up by a running server
+    public static final int DEFAULT_RUN_RECORDS = 4 * 1024 * 1024;            // items sorted in memory at once, 16 bytes each
+
+    private final int bucketNumber;
+    private final int bucketCapacity;
+    private final int bucketSize;
+    private final int runRecords;
+
+    public BulkLoader(int bucketNumber, int bucketCapacity) {
+        this(bucketNumber, bucketCapacity, DEFAULT_RUN_RECORDS);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param bucketNumber number of buckets of the storage file
+     * @param bucketCapacity number of records in a bucket
+     * @param runRecords max number of items sorted in memory at once
+     */
+    public BulkLoader(int bucketNumber, int bucketCapacity, int runRecords) {
+        if (bucketNumber <= 0 || bucketCapacity <= 0 || runRecords <= 0)
+            throw new IllegalArgumentException("Number of buckets, bucket capacity and run size should be positive");
+
+        this.bucketNumber = bucketNumber;
+        this.bucketCapacity = bucketCapacity;
+        this.bucketSize = bucketCapacity * BinaryRecord.RECORD_SIZE + BinaryBucket.BUCKET_HEADER_SIZE;
+        this.runRecords = runRecords;
+
+        if ((long) bucketNumber * bucketSize + HashMMap.STORAGE_HEADER_SIZE > HashMMap.STORAGE_SIZE)
+            throw new IllegalArgumentException("Storage of " + bucketNumber + " buckets exceeds " + HashMMap.STORAGE_SIZE + " bytes");
+    }
+
+    /**
+     * Builds the storage file of the input items. The file is written
+     * under a temporary name, synced and renamed when complete, so it is
+     * never seen half-written, even after a crash.
+     *
+     * @param input input file; CSV if its name ends with <i>.csv</i>, binary otherwise
+     * @param output storage file; replaced if exists
+     * @return number of items read
+     * @throws IOException
+     * @throws IllegalStateException if a bucket overflows; more buckets are required then
+     */
+    public long load(File input, File output) throws IOException {
+        long started = System.currentTimeMillis();
+        File tmpDirectory = Files.createTempDirectory(output.getAbsoluteFile().toPath().getParent(), "bulk").toFile();
+        List<File> runs = new ArrayList<File>();
+        try {
+            long itemNumber = sortRuns(input, tmpDirectory, runs);
+            log.debug(itemNumber + " items are sorted in " + runs.size() + " runs in " + (System.currentTimeMillis() - started) + " ms");
+
+            File tmpOutput = new File(tmpDirectory, output.getName());
+            int recordNumber = merge(runs, tmpOutput);
+            Files.move(tmpOutput.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+            log.debug(output + " is built of " + recordNumber + " records in " + (System.currentTimeMillis() - started) + " ms");
+            return itemNumber;
+        } finally {
+            for (File run: runs) run.delete();
+            File[] leftovers = tmpDirectory.listFiles();
+            if (leftovers != null) for (File file: leftovers) file.delete();
+            tmpDirectory.delete();
+        }
+    }
+
+    /**
+     * Reads the input in runs, sorts each run by bucket and spills it.
+     *
+     * @return number of items read
+     */
+    private long sortRuns(File input, File tmpDirectory, List<File> runs) throws IOException {
+        long[] keys = new long[runRecords];
+        int[] amounts = new int[runRecords];
+        int[] buckets = new int[runRecords];
+        long itemNumber = 0;
+
+        ItemReader reader = input.getName().toLowerCase().endsWith(".csv") ? new CsvItemReader(input) : new BinaryItemReader(input);
+        try {
+            int size = 0;
+            while (reader.next()) {
+                int bucketIdx = HashMMap.bucketIdx(reader.key, bucketNumber);
+                if (bucketIdx < 0) throw new IllegalArgumentException("Item " + reader.key + " cannot be stored in a bucket");
+
+                keys[size] = reader.key;
+                amounts[size] = reader.amount;
+                buckets[size] = bucketIdx;
+                itemNumber++;
+                if (++size == runRecords) {
+                    runs.add(spillRun(keys, amounts, buckets, size, new File(tmpDirectory, "run" + runs.size())));
+                    size = 0;
+                }
+            }
+            if (size > 0) runs.add(spillRun(keys, amounts, buckets, size, new File(tmpDirectory, "run" + runs.size())));
+        } finally {
+            reader.close();
+        }
+        return itemNumber;
+    }
+
+    /**
+     * Sorts the run by bucket with a counting sort, which keeps the input
+     * order of items of the same bucket, and writes it to the file.
+     */
+    private File spillRun(long[] keys, int[] amounts, int[] buckets, int size, File file) throws IOException {
+        int[] offsets = new int[bucketNumber + 1];
+        for (int i = 0; i < size; i++) offsets[buckets[i] + 1]++;
+        for (int b = 0; b < bucketNumber; b++) offsets[b + 1] += offsets[b];
+
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) order[offsets[buckets[i]]++] = i;
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024 * 1024));
+        try {
+            for (int idx: order) {
+                out.writeInt(buckets[idx]);
+                out.writeLong(keys[idx]);
+                out.writeInt(amounts[idx]);
+            }
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * Merges sorted runs into the storage file. Runs are ordered by bucket,
+     * then by run index, so that later items of the same key overwrite
+     * earlier ones.
+     *
+     * @return number of records written
+     */
+    private int merge(List<File> runs, File output) throws IOException {
+        PriorityQueue<RunReader> queue = new PriorityQueue<RunReader>(Math.max(1, runs.size()));
+        for (int i = 0; i < runs.size(); i++) {
+            RunReader run = new RunReader(runs.get(i), i);
+            if (run.next()) queue.add(run);
+            else run.close();
+        }
+
+        int recordNumber = 0;
+        FileOutputStream fos = new FileOutputStream(output);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos, 4 * 1024 * 1024));
+        try {
+            byte[] header = new byte[HashMMap.STORAGE_HEADER_SIZE];
+            ByteUtils.putInt(bucketNumber, header, HashMMap.STORAGE_BUCKET_NUM_OFFSET);
+            ByteUtils.putInt(bucketCapacity, header, HashMMap.STORAGE_BUCKET_CAP_OFFSET);
+            out.write(header);
+
+            byte[] bucket = new byte[bucketSize], record = new byte[BinaryRecord.RECORD_SIZE];
+            for (int bucketIdx = 0; bucketIdx < bucketNumber; bucketIdx++) {
+                Arrays.fill(bucket, (byte) 0);
+                int size = 0;
+
+                while (!queue.isEmpty() && queue.peek().bucket == bucketIdx) {
+                    RunReader run = queue.poll();
+                    size = putToBucket(bucket, size, run.key, run.amount, record);
+                    if (run.next()) queue.add(run);
+                    else run.close();
+                }
+
+                BinaryBucket.setSize(size, bucket);
+                out.write(bucket);
+                recordNumber += size;
+            }
+            out.flush();
+            fos.getFD().sync();         // durable before it replaces the storage file
+        } finally {
+            out.close();
+            for (RunReader run: queue) run.close();
+        }
+        return recordNumber;
+    }
+
+    /**
+     * Adds the record to the bucket, or overwrites the record of the same key.
+     *
+     * @return new bucket size
+     */
+    private int putToBucket(byte[] bucket, int size, long key, int amount, byte[] record) {
+        int recordIdx = 0;
+        while (recordIdx < size && ByteUtils.getLong(bucket, recordOffset(recordIdx) + BinaryRecord.RECORD_KEY_OFFSET) != key) recordIdx++;
+        if (recordIdx == bucketCapacity)
+            throw new IllegalStateException("Bucket " + HashMMap.bucketIdx(key, bucketNumber) + " overflows; more than "
+                    + bucketNumber + " buckets are required");
+
+        BinaryRecord.setKey(key, record);
+        BinaryRecord.setSku(AvailabilityItem.keyToSku(key), record);
+        BinaryRecord.setStore(AvailabilityItem.keyToStore(key), record);
+        BinaryRecord.setAmount(amount, record);
+        System.arraycopy(record, 0, bucket, recordOffset(recordIdx), BinaryRecord.RECORD_SIZE);
+        return Math.max(size, recordIdx + 1);
+    }
+
+    private static int recordOffset(int recordIdx) {
+        return BinaryBucket.BUCKET_HEADER_SIZE + recordIdx * BinaryRecord.RECORD_SIZE;
+    }
+
+    /**
+     * Builds a storage file of the input file.
+     *
+     * @param args input file, storage file (data.dat.bulk by default), number of buckets and bucket capacity
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1 || args.length > 4) {
+            System.err.println("Usage: BulkLoader <input.csv|input.bin> [storageFile] [bucketNumber] [bucketCapacity]");
+            System.exit(1);
+        }
+
+        File output = new File(args.length > 1 ? args[1] : LOADED_FILE);
+        int bucketNumber = args.length > 2 ? Integer.parseInt(args[2]) : ConcurrentHashMMap.SYNC_INITIAL_BUCKET_NUMBER;
+        int bucketCapacity = args.length > 3 ? Integer.parseInt(args[3]) : HashMMap.DEFAULT_BUCKET_CAPACITY;
+
+        long itemNumber = new BulkLoader(bucketNumber, bucketCapacity).load(new File(args[0]), output);
+        System.out.println(itemNumber + " items are loaded into " + output);
+    }
+
+    /**
+     * Sequential reader of input items.
+     */
+    private static abstract class ItemReader {
+        protected long key;
+        protected int amount;
+
+        /**
+         * Reads the next item into {@link #key} and {@link #amount}.
+         *
+         * @return false, if there are no more items
+         */
+        abstract boolean next() throws IOException;
+
+        abstract void close() throws IOException;
+    }
+
+    private static class CsvItemReader extends ItemReader {
+        private final BufferedReader reader;
+        private long lineNumber = 0;
+
+        CsvItemReader(File file) throws IOException {
+            reader = new BufferedReader(new FileReader(file), 1024 * 1024);
+        }
+
+        @Override
+        boolean next() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+                lineNumber++;
+                if (line == null) return false;
+                line = line.trim();
+            } while (line.isEmpty());
+
+            String[] fields = line.split(",");
+            if (fields.length != 3) throw new IOException("Line " + lineNumber + " should be sku,store,amount: " + line);
+            try {
+                key = AvailabilityItem.key(Integer.parseInt(fields[0].trim()), Short.parseShort(fields[1].trim()));
+                amount = Integer.parseInt(fields[2].trim());
+            } catch (NumberFormatException e) {
+                throw new IOException("Line " + lineNumber + " has an invalid number: " + line, e);
+            }
+            return true;
+        }
+
+        @Override
+        void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    private static class BinaryItemReader extends ItemReader {
+        private final DataInputStream in;
+
+        BinaryItemReader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1024 * 1024));
+        }
+
+        @Override
+        boolean next() throws IOException {
+            int sku;
+            try {
+                sku = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            key = AvailabilityItem.key(sku, in.readShort());
+            amount = in.readInt();
+            return true;
+        }
+
+        @Override
+        void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * Reader of a sorted run, ordered by its current bucket, then by run index.
+     */
+    private static class RunReader implements Comparable<RunReader> {
+        private final DataInputStream in;
+        private final int runIdx;
+        private int bucket;
+        private long key;
+        private int amount;
+
+        RunReader(File file, int runIdx) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 256 * 1024));
+            this.runIdx = runIdx;
+        }
+
+        boolean next() throws IOException {
+            try {
+                bucket = in.readInt();
+            } catch (EOFException e) {
+                return false;
+            }
+            key = in.readLong();
+            amount = in.readInt();
+            return true;
+        }
+
+        void close() throws IOException {
+            in.close();
+        }
+
+        @Override
+        public int compareTo(RunReader o) {
+            if (bucket != o.bucket) return bucket < o.bucket ? -1 : 1;
+            return runIdx < o.runIdx ? -1 : (runIdx == o.runIdx ? 0 : 1);
+        }
+    }
+}
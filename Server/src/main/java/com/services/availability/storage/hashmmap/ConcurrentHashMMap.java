@@ -1,13 +1,21 @@
 package com.services.availability.storage.hashmmap;
 
 import com.services.availability.model.AvailabilityItem;
-import com.services.availability.storage.Storage;
+import com.services.availability.storage.ItemUpdate;
+import com.services.availability.storage.IterableStorage;
 import com.services.availability.storage.hashmmap.cache.*;
 import org.apache.log4j.Logger;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -17,7 +25,7 @@ import java.util.concurrent.locks.ReentrantLock;
  * @version 1.0
  * @since 2014-07-09 13:32
  */
-public class ConcurrentHashMMap extends HashMMap implements Storage {
+public class ConcurrentHashMMap extends HashMMap implements IterableStorage {
     public static final int SYNC_INITIAL_BUCKET_NUMBER = 1024 * 1024 * 3;   // should be enough for ~ 5 * 10^7 elements
 
     private static Logger log = Logger.getLogger(ConcurrentHashMMap.class);
@@ -25,6 +33,8 @@ public class ConcurrentHashMMap extends HashMMap implements Storage {
     private final StorageCache storageCache = new StorageCache();
     protected final Lock flushLock = new ReentrantLock();
     private Object[] bucketMonitor = null;
+    private final Object snapshotMonitor = new Object();     // one snapshot at a time
+    private volatile StorageSnapshot snapshot = null;        // snapshot in progress
 
     private final ExecutorService batchJobExecutor = Executors.newSingleThreadExecutor();
 
@@ -58,6 +68,29 @@ public class ConcurrentHashMMap extends HashMMap implements Storage {
         initMonitors();
     }
 
+    /**
+     * Initializes the storage in the specified file, e.g. a snapshot taken
+     * with {@link #snapshot(File)}; see {@link #ConcurrentHashMMap()}.
+     *
+     * @param storageFile name of the storage file
+     */
+    public ConcurrentHashMMap(String storageFile) {
+        super(storageFile);
+        initMonitors();
+    }
+
+    /**
+     * Initializes the storage in the specified file, see {@link #ConcurrentHashMMap(int, int)}.
+     *
+     * @param storageFile name of the storage file
+     * @param initialBucketNumber initial number of buckets
+     * @param bucketCapacity number of records in a bucket
+     */
+    public ConcurrentHashMMap(String storageFile, int initialBucketNumber, int bucketCapacity) {
+        super(storageFile, initialBucketNumber, bucketCapacity);
+        initMonitors();
+    }
+
     /**
      * Performs synchronized lookup of the provided  key in the
      * collection and cache and returns corresponding value if found.
@@ -111,6 +144,253 @@ public class ConcurrentHashMMap extends HashMMap implements Storage {
         }
     }
 
+    /**
+     * Performs synchronized read-modify-write of the value by the provided
+     * key. The update is applied under the bucket monitor, so no other
+     * operation on the bucket could interleave with it. The new value goes
+     * to the cache like a regular put or remove.
+     *
+     * Thread safe operation.
+     *
+     * @param key requested key
+     * @param update read-modify-write operation
+     * @return value after the update
+     */
+    public AvailabilityItem compute(long key, ItemUpdate update) {
+        synchronized (monitorForKey(key)) {
+            OperationResult operationResult = storageCache.get(key);
+            AvailabilityItem current = operationResult.isFoundByKey() ? operationResult.getValue() : super.get(key);
+
+            AvailabilityItem next = update.apply(current);
+            if (next == current) return current;        // nothing to change
+
+            if (next == null) {
+                storageCache.remove(key);
+            } else {
+                storageCache.put(key, next);
+            }
+            verifyAndStartBatch();
+            return next;
+        }
+    }
+
+    /**
+     * Performs lookup of all keys as a single batch. Keys are grouped by
+     * bucket, so that the monitor of each bucket is taken once per batch.
+     *
+     * Thread safe operation.
+     *
+     * @param keys requested keys
+     * @return values in the order of keys; null for keys that are not found
+     */
+    public AvailabilityItem[] getAll(long[] keys) {
+        AvailabilityItem[] values = new AvailabilityItem[keys.length];
+        long[] order = orderByBucket(keys);
+
+        int i = 0;
+        while (i < order.length) {
+            int bucketIdx = (int) (order[i] >>> 32);
+            synchronized (bucketMonitor[bucketIdx]) {
+                for (; i < order.length && (int) (order[i] >>> 32) == bucketIdx; i++) {
+                    int keyIdx = (int) order[i];
+                    OperationResult operationResult = storageCache.get(keys[keyIdx]);
+                    values[keyIdx] = operationResult.isFoundByKey() ? operationResult.getValue() : super.get(keys[keyIdx]);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Performs put of all items as a single batch. Keys are grouped by
+     * bucket, and the cache is verified once per batch.
+     *
+     * Thread safe operation.
+     *
+     * @param keys item keys
+     * @param values items, in the order of keys
+     */
+    public void putAll(long[] keys, AvailabilityItem[] values) {
+        long[] order = orderByBucket(keys);
+
+        int i = 0;
+        while (i < order.length) {
+            int bucketIdx = (int) (order[i] >>> 32);
+            synchronized (bucketMonitor[bucketIdx]) {
+                for (; i < order.length && (int) (order[i] >>> 32) == bucketIdx; i++) {
+                    int keyIdx = (int) order[i];
+                    storageCache.put(keys[keyIdx], values[keyIdx]);
+                }
+            }
+        }
+        verifyAndStartBatch();
+    }
+
+    /**
+     * Performs remove of all keys as a single batch. Keys are grouped by
+     * bucket, and the cache is verified once per batch.
+     *
+     * Thread safe operation.
+     *
+     * @param keys keys to remove
+     * @return removed values in the order of keys; null for keys that are not found
+     */
+    public AvailabilityItem[] removeAll(long[] keys) {
+        AvailabilityItem[] values = new AvailabilityItem[keys.length];
+        long[] order = orderByBucket(keys);
+
+        int i = 0;
+        while (i < order.length) {
+            int bucketIdx = (int) (order[i] >>> 32);
+            synchronized (bucketMonitor[bucketIdx]) {
+                for (; i < order.length && (int) (order[i] >>> 32) == bucketIdx; i++) {
+                    int keyIdx = (int) order[i];
+                    OperationResult result = storageCache.remove(keys[keyIdx]);
+                    values[keyIdx] = result.isFoundByKey() ? result.getValue() : super.get(keys[keyIdx]);
+                }
+            }
+        }
+        verifyAndStartBatch();
+        return values;
+    }
+
+    /**
+     * Visits all items: cached ones first, then the ones of the mapped
+     * buffer bucket by bucket. Cache goes first, since a cached change
+     * leaves the cache only after it is persisted in its bucket; therefore
+     * an item could be visited twice, but is never missed. Monitor of a
+     * bucket is held only while its keys are read.
+     *
+     * Thread safe operation.
+     *
+     * @param visitor visitor of items
+     */
+    public void forEach(ItemVisitor visitor) {
+        for (long key: storageCache.keys()) {
+            AvailabilityItem item = get(key);
+            if (item != null) visitor.visit(item);
+        }
+
+        for (int bucketIdx = 0; bucketIdx < bucketNumber; bucketIdx++) {
+            long[] keys;
+            synchronized (bucketMonitor[bucketIdx]) {
+                keys = bucketKeys(bucketIdx);
+            }
+            for (long key: keys) {
+                AvailabilityItem item = get(key);
+                if (item != null) visitor.visit(item);
+            }
+        }
+    }
+
+    /**
+     * Checks if the key is cached, so that get, put and remove are served
+     * from memory without touching the mapped buffer, which could cause a
+     * page fault. Values that are not cached could still be resident in the
+     * page cache, but it cannot be checked cheaply for a single record.
+     *
+     * Does not lock the bucket; the key could be flushed from the cache
+     * by the batch job right after the check.
+     *
+     * @param key requested key
+     * @return true, if the key is in the cache
+     */
+    public boolean isResident(long key) {
+        return storageCache.contains(key);
+    }
+
+    /**
+     * Writes a point-in-time consistent copy of the storage to the file,
+     * which could be loaded with {@link #ConcurrentHashMMap(String)}.
+     *
+     * The snapshot is started by the batch job executor between two batch
+     * jobs: the cache is flushed, so that the snapshot contains all changes
+     * made before the call, and buckets are then copied by the calling
+     * thread while the storage keeps serving requests and flushing. A batch
+     * job copies a bucket before changing it, if the bucket was not copied
+     * yet (see {@link StorageSnapshot}), so later changes never get into the
+     * snapshot. Requests are never blocked; flushes wait for a single flush
+     * of the cache when the snapshot is started, and for at most one chunk
+     * of buckets to be copied afterwards.
+     *
+     * Thread safe operation.
+     *
+     * @param target snapshot file; overwritten if exists
+     * @throws IOException if the file cannot be written
+     */
+    public void snapshot(final File target) throws IOException {
+        synchronized (snapshotMonitor) {
+            long started = System.currentTimeMillis();
+
+            Future<StorageSnapshot> startedSnapshot = batchJobExecutor.submit(new Callable<StorageSnapshot>() {
+                @Override
+                public StorageSnapshot call() throws IOException {
+                    flushLock.lock();
+                    try {
+                        Map<Long, CacheValue> cachedValues = storageCache.swap();
+                        if (!cachedValues.isEmpty()) new BatchJobThread(ConcurrentHashMMap.this, cachedValues).run();
+                        snapshot = new StorageSnapshot(target, mappedBuffer, bucketNumber, bucketSize);
+                        return snapshot;
+                    } finally {
+                        flushLock.unlock();
+                    }
+                }
+            });
+
+            StorageSnapshot current;
+            try {
+                current = startedSnapshot.get();
+            } catch (InterruptedException e) {
+                throw new IOException("Interrupted while the snapshot is started", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IllegalStateException("Snapshot cannot be started", e.getCause());
+            }
+
+            try {
+                current.copyAll();
+            } finally {
+                snapshot = null;
+                current.close();
+            }
+            log.debug("Snapshot written to " + target + " in " + (System.currentTimeMillis() - started) + " ms; "
+                    + current.getPreservedChunks() + " of " + current.getChunkNumber() + " chunks copied ahead of flushes");
+        }
+    }
+
+    /**
+     * Writes all records of the cache to the mapped file and syncs it. The
+     * flush is performed by the batch job executor after the batch jobs
+     * already scheduled, so all changes made before the call are durable
+     * once it returns.
+     *
+     * Thread safe operation.
+     *
+     * @throws IOException if interrupted, or if the flush fails
+     */
+    public void flush() throws IOException {
+        Future<?> flushed = batchJobExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                flushLock.lock();
+                try {
+                    Map<Long, CacheValue> cachedValues = storageCache.swap();
+                    if (cachedValues != null && !cachedValues.isEmpty()) new BatchJobThread(ConcurrentHashMMap.this, cachedValues).run();
+                } finally {
+                    flushLock.unlock();
+                }
+            }
+        });
+        try {
+            flushed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while the storage is flushed");
+        } catch (ExecutionException e) {
+            throw new IOException("Storage cannot be flushed", e.getCause());
+        }
+    }
+
     /**
      * Method prepares storage for safe shutdown.
      *
@@ -137,6 +417,33 @@ public class ConcurrentHashMMap extends HashMMap implements Storage {
         log.debug("Storage is ready for shutdown.");
     }
 
+    /**
+     * Closes the storage, see {@link HashMMap#close()}. The cache is flushed
+     * with {@link #prepareForShutdown()} first, unless it was called already,
+     * and a snapshot in progress is completed before the buffer is unmapped.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (snapshotMonitor) {
+            if (!batchJobExecutor.isShutdown()) prepareForShutdown();
+            super.close();
+        }
+    }
+
+    /**
+     * Removes all elements from the collection. Number of buckets is reset to
+     * the default one, so monitors are created for the new buckets.
+     *
+     * Not thread safe: should not be called concurrently with other operations.
+     */
+    @Override
+    public void clear() {
+        super.clear();
+        initMonitors();
+    }
+
     /**
      * Put operation on the mmaped buffer.
      *
@@ -144,6 +451,7 @@ public class ConcurrentHashMMap extends HashMMap implements Storage {
      * @param value availability item to put
      */
     protected void persistentPut(long key, AvailabilityItem value) {
+        preserveBucket(key);
         super.put(key, value);
     }
 
@@ -153,9 +461,30 @@ public class ConcurrentHashMMap extends HashMMap implements Storage {
      * @param key long number to use as key
      */
     protected AvailabilityItem persistentRemove(long key) {
+        preserveBucket(key);
         return super.remove(key);
     }
 
+    /**
+     * Copies the bucket of the key to the snapshot in progress, if any,
+     * before the bucket is changed. A failed copy fails the snapshot, but
+     * not the change.
+     *
+     * @param key key to be persisted
+     */
+    private void preserveBucket(long key) {
+        StorageSnapshot current = snapshot;
+        if (current == null) return;
+
+        try {
+            current.preserve(getBucketIdxByKey(key));
+        } catch (IOException e) {
+            log.error("Snapshot to " + current.getTarget() + " failed", e);
+            current.fail(e);
+            snapshot = null;
+        }
+    }
+
     /**
      * Initializes monitor objects for each bucket.
      */
@@ -164,7 +493,7 @@ public class ConcurrentHashMMap extends HashMMap implements Storage {
         int bktNum = 0;
 
         if (this.bucketMonitor != null) {             // if some monitors were already created, just copying them
-            System.arraycopy(this.bucketMonitor, 0, bucketMonitors, 0, this.bucketMonitor.length);
+            System.arraycopy(this.bucketMonitor, 0, bucketMonitors, 0, Math.min(this.bucketMonitor.length, bucketNumber));
         }
         while (bktNum < bucketNumber) {             // creating the rest of monitors
             bucketMonitors[bktNum++] = new Object();
@@ -206,6 +535,21 @@ public class ConcurrentHashMMap extends HashMMap implements Storage {
         }
     }
 
+    /**
+     * Sorts keys by bucket index.
+     *
+     * @param keys keys of a batch
+     * @return bucket index (high 32 bits) and key index (low 32 bits) of each key, sorted by bucket
+     */
+    private long[] orderByBucket(long[] keys) {
+        long[] order = new long[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            order[i] = ((long) getBucketIdxByKey(keys[i]) << 32) | i;
+        }
+        Arrays.sort(order);
+        return order;
+    }
+
     /**
      * Tries to retrieve a monitor object for the specified key. Monitor
      * cannot be provided if the resize operation is in progress.
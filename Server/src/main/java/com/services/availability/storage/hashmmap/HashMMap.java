@@ -8,6 +8,8 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
@@ -34,8 +36,10 @@ public class HashMMap {
 
     private static Logger log = Logger.getLogger(HashMMap.class);
 
+    protected final String storageFile;                         // name of the file the storage is mapped to
     protected final MappedByteBuffer mappedBuffer;              // main storage buffer, mmaped to the file system
     protected ByteBuffer tmpBuffer;                             // temporary buffer, allocated during the resize operation
+    private RandomAccessFile file;                              // storage file, kept open for the life of the mapping
 
     protected final int bucketCapacity;                         // number of records in a bucket
     protected final int bucketSize;                             // number of bytes allocated for bucket
@@ -52,6 +56,16 @@ public class HashMMap {
      * storage parameters to the default values.
      */
     public HashMMap() {
+        this(STORAGE_FILE);
+    }
+
+    /**
+     * Initializes the storage in the specified file, see {@link #HashMMap()}.
+     *
+     * @param storageFile name of the storage file
+     */
+    public HashMMap(String storageFile) {
+        this.storageFile = storageFile;
         boolean storageExists = storageFileExists();
         this.mappedBuffer = bindMappedBuffer();
 
@@ -85,6 +99,18 @@ public class HashMMap {
      * @param bucketCapacity number of records in a bucket
      */
     public HashMMap(int initialBucketNumber, int bucketCapacity) {
+        this(STORAGE_FILE, initialBucketNumber, bucketCapacity);
+    }
+
+    /**
+     * Initializes the storage in the specified file, see {@link #HashMMap(int, int)}.
+     *
+     * @param storageFile name of the storage file
+     * @param initialBucketNumber initial number of buckets
+     * @param bucketCapacity number of records in a bucket
+     */
+    public HashMMap(String storageFile, int initialBucketNumber, int bucketCapacity) {
+        this.storageFile = storageFile;
         boolean storageExists = storageFileExists();
         this.mappedBuffer = bindMappedBuffer();
 
@@ -216,6 +242,22 @@ public class HashMMap {
         return keys;
     }
 
+    /**
+     * Reads keys of the records of a single bucket.
+     *
+     * @param bucketIdx bucket index
+     * @return keys of the bucket records
+     */
+    protected long[] bucketKeys(int bucketIdx) {
+        byte[] bucket = readBucketByIdx(bucketIdx, mappedBuffer), record = new byte[BinaryRecord.RECORD_SIZE];
+        long[] keys = new long[BinaryBucket.getSize(bucket)];
+        for (int rcdIdx = 0; rcdIdx < keys.length; rcdIdx++) {
+            readRecordFromBucket(rcdIdx, bucket, record);
+            keys[rcdIdx] = BinaryRecord.getKey(record);
+        }
+        return keys;
+    }
+
     /**
      * Removes all elements from the collection by reinitialization of
      * storage headers.
@@ -227,6 +269,25 @@ public class HashMMap {
         getLogger().debug("HashMMap cleared (bktNum = " + bucketNumber + ")");
     }
 
+    /**
+     * Closes the storage file and unmaps the storage buffer, so that the
+     * address space and, if the file was replaced or deleted, its disk
+     * blocks are released without waiting for the buffer to be collected.
+     *
+     * The storage must not be used after the call: an access to the unmapped
+     * buffer crashes the JVM. If the buffer cannot be unmapped on this JVM,
+     * it is released by the garbage collector.
+     *
+     * @throws IOException if the file cannot be closed
+     */
+    public void close() throws IOException {
+        mappedBuffer.force();
+        file.close();
+        unmap(mappedBuffer);
+
+        getLogger().debug("HashMMap closed (" + storageFile + ")");
+    }
+
 
     //////////////////////////////////////////////////////////////////////////////////////////////////////////////
     //                                                                                                          //
@@ -239,7 +300,7 @@ public class HashMMap {
      * @return true, if exists
      */
     private boolean storageFileExists() {
-        File file = new File(STORAGE_FILE);
+        File file = new File(storageFile);
         return file.exists();
     }
 
@@ -249,7 +310,7 @@ public class HashMMap {
     private MappedByteBuffer bindMappedBuffer() {
         MappedByteBuffer buffer = null;
         try {
-            RandomAccessFile file = new RandomAccessFile(STORAGE_FILE, "rw");
+            file = new RandomAccessFile(storageFile, "rw");
             FileChannel fileChannel = file.getChannel();
             buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, STORAGE_SIZE);
         } catch (FileNotFoundException e) {
@@ -261,6 +322,32 @@ public class HashMMap {
         return buffer;
     }
 
+    /**
+     * Releases the mapping of the buffer: with Unsafe.invokeCleaner on Java 9
+     * and later, or with the cleaner of the buffer on Java 8.
+     *
+     * @param buffer mapped buffer, which is not used any more
+     */
+    private void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafeClass.getMethod("invokeCleaner", ByteBuffer.class).invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (Exception e) {
+            // Java 8, there is no invokeCleaner
+        }
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            cleaner.getClass().getMethod("clean").invoke(cleaner);
+        } catch (Exception e) {
+            getLogger().warn("Mapped buffer of " + storageFile + " cannot be unmapped, is left to the garbage collector: " + e);
+        }
+    }
+
     /**
      * Verifies that there is enough space allocated in mapped buffer
      * to keep all required data.
@@ -278,7 +365,7 @@ public class HashMMap {
      * Throws IllegalStateException in the case if the file is corrupted.
      */
     private void verifyNonEmptyMappedBuffer() {
-        IllegalStateException corruptedException = new IllegalStateException("file `" + STORAGE_FILE + "` is corrupted");
+        IllegalStateException corruptedException = new IllegalStateException("file `" + storageFile + "` is corrupted");
 
         if (bucketNumber <= 0) {
             getLogger().debug("storage file is corrupted");
@@ -442,6 +529,19 @@ public class HashMMap {
      * @return bucket index
      */
     protected int getBucketIdxByKey(long key, int bucketNumber) {
+        return bucketIdx(key, bucketNumber);
+    }
+
+    /**
+     * Calculates bucket index for the provided key and the specified
+     * number of buckets; is shared with {@link BulkLoader}, which lays
+     * out buckets without a storage instance.
+     *
+     * @param key target key
+     * @param bucketNumber total number of buckets
+     * @return bucket index
+     */
+    static int bucketIdx(long key, int bucketNumber) {
         int hashCode = Math.abs(AvailabilityItem.keyToHashCode(key));
         return hashCode % bucketNumber;
     }
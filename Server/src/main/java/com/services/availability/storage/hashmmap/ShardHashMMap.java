@@ -0,0 +1,145 @@
+package com.services.availability.storage.hashmmap;
+
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.storage.ItemUpdate;
+import com.services.availability.storage.Storage;
+import com.services.availability.storage.hashmmap.cache.CacheValue;
+import com.services.availability.storage.hashmmap.cache.StorageCache;
+import org.apache.log4j.Logger;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Storage shard confined to a single thread. Has its own storage file and
+ * its own write cache, and is accessed by the thread that owns the shard
+ * only, therefore no operation takes a lock.
+ *
+ * Changes are collected in the write cache and persisted in batches by the
+ * owner thread, when the cache reaches its capacity. Removed keys are kept
+ * in the cache as NULL values until the batch is persisted.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-06 10:15
+ */
+public class ShardHashMMap extends HashMMap implements Storage {
+    private static Logger log = Logger.getLogger(ShardHashMMap.class);
+
+    private final Map<Long, CacheValue> writeCache = new HashMap<Long, CacheValue>();
+    private final int cacheCapacity;                        // max number of changes before the batch is persisted
+
+    /**
+     * Constructor.
+     *
+     * @param storageFile name of the shard storage file
+     * @param initialBucketNumber initial number of buckets
+     */
+    public ShardHashMMap(String storageFile, int initialBucketNumber) {
+        this(storageFile, initialBucketNumber, DEFAULT_BUCKET_CAPACITY, StorageCache.DEFAULT_CACHE_CAPACITY);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param storageFile name of the shard storage file
+     * @param initialBucketNumber initial number of buckets
+     * @param bucketCapacity number of records in a bucket
+     * @param cacheCapacity max number of changes kept in the write cache
+     */
+    public ShardHashMMap(String storageFile, int initialBucketNumber, int bucketCapacity, int cacheCapacity) {
+        super(storageFile, initialBucketNumber, bucketCapacity);
+        this.cacheCapacity = cacheCapacity;
+    }
+
+    @Override
+    public AvailabilityItem get(long key) {
+        CacheValue cached = writeCache.get(key);
+        return cached != null ? cached.value : super.get(key);
+    }
+
+    @Override
+    public void put(long key, AvailabilityItem value) {
+        writeCache.put(key, new CacheValue(value));
+        if (writeCache.size() >= cacheCapacity) flush();
+    }
+
+    @Override
+    public AvailabilityItem remove(long key) {
+        AvailabilityItem removedValue = get(key);
+        writeCache.put(key, new CacheValue(null));
+        if (writeCache.size() >= cacheCapacity) flush();
+        return removedValue;
+    }
+
+    @Override
+    public AvailabilityItem compute(long key, ItemUpdate update) {
+        AvailabilityItem current = get(key);
+        AvailabilityItem next = update.apply(current);
+        if (next != current) {
+            if (next == null) remove(key);
+            else put(key, next);
+        }
+        return next;
+    }
+
+    @Override
+    public AvailabilityItem[] getAll(long[] keys) {
+        AvailabilityItem[] values = new AvailabilityItem[keys.length];
+        for (int i = 0; i < keys.length; i++) values[i] = get(keys[i]);
+        return values;
+    }
+
+    @Override
+    public void putAll(long[] keys, AvailabilityItem[] values) {
+        for (int i = 0; i < keys.length; i++) put(keys[i], values[i]);
+    }
+
+    @Override
+    public AvailabilityItem[] removeAll(long[] keys) {
+        AvailabilityItem[] values = new AvailabilityItem[keys.length];
+        for (int i = 0; i < keys.length; i++) values[i] = remove(keys[i]);
+        return values;
+    }
+
+    /**
+     * @return true, if the key is in the write cache
+     */
+    @Override
+    public boolean isResident(long key) {
+        return writeCache.containsKey(key);
+    }
+
+    /**
+     * Persists cached changes and forces them to the storage file.
+     */
+    public void flush() {
+        if (writeCache.isEmpty()) return;
+
+        for (Map.Entry<Long, CacheValue> entry: writeCache.entrySet()) {
+            AvailabilityItem value = entry.getValue().value;
+            if (value == null) {
+                super.remove(entry.getKey());
+            } else {
+                super.put(entry.getKey(), value, false);
+            }
+        }
+        flushMappedBuffer();
+
+        log.debug("Shard " + storageFile + ": " + writeCache.size() + " changes persisted");
+        writeCache.clear();
+    }
+
+    /**
+     * Persists cached changes. Should be called by the owner thread.
+     */
+    @Override
+    public void prepareForShutdown() {
+        flush();
+    }
+
+    @Override
+    protected Logger getLogger() {
+        return log;
+    }
+}
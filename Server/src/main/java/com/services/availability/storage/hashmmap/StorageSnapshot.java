@@ -0,0 +1,129 @@
+package com.services.availability.storage.hashmmap;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+
+/**
+ * Point-in-time copy of the mapped buffer of a {@link ConcurrentHashMMap}
+ * into a file, see {@link ConcurrentHashMMap#snapshot(File)}.
+ *
+ * Buckets are copied in chunks while the storage keeps flushing. Every
+ * flush of a bucket is preceded by {@link #preserve(int)}, which copies
+ * the chunk of the bucket first, if it was not copied yet; therefore every
+ * chunk is copied exactly once and in the state it had when the snapshot
+ * was started. A flush waits for at most one chunk copy.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-16 11:20
+ */
+class StorageSnapshot {
+    public static final int CHUNK_BUCKETS = 256;            // buckets copied at once
+
+    private final File target;
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final ByteBuffer source;                        // own view of the mapped buffer
+    private final int bucketSize;
+    private final int chunkNumber;
+    private final int structureSize;                        // header and all buckets, bytes
+
+    private final BitSet copiedChunks;
+    private int preservedChunks = 0;                        // chunks copied ahead of a flush
+    private volatile IOException failure = null;            // failed copy ahead of a flush
+
+    /**
+     * Creates the snapshot file and writes the storage header to it.
+     *
+     * @param target snapshot file; overwritten if exists
+     * @param mappedBuffer mapped buffer of the storage
+     * @param bucketNumber number of buckets
+     * @param bucketSize bucket size, bytes
+     * @throws IOException
+     */
+    StorageSnapshot(File target, ByteBuffer mappedBuffer, int bucketNumber, int bucketSize) throws IOException {
+        this.target = target;
+        this.file = new RandomAccessFile(target, "rw");
+        this.channel = file.getChannel();
+        this.source = mappedBuffer.duplicate();
+        this.bucketSize = bucketSize;
+        this.chunkNumber = (bucketNumber + CHUNK_BUCKETS - 1) / CHUNK_BUCKETS;
+        this.structureSize = HashMMap.STORAGE_HEADER_SIZE + bucketNumber * bucketSize;
+        this.copiedChunks = new BitSet(chunkNumber);
+
+        channel.truncate(0);
+        write(0, HashMMap.STORAGE_HEADER_SIZE);
+    }
+
+    /**
+     * Copies the chunk of the bucket, if it was not copied yet. Is called
+     * before the bucket is changed.
+     *
+     * @param bucketIdx bucket index
+     * @throws IOException
+     */
+    synchronized void preserve(int bucketIdx) throws IOException {
+        int chunkIdx = bucketIdx / CHUNK_BUCKETS;
+        if (copiedChunks.get(chunkIdx)) return;
+
+        copyChunk(chunkIdx);
+        preservedChunks++;
+    }
+
+    /**
+     * Copies the chunks, which were not preserved yet, and forces the file
+     * to the disk.
+     *
+     * @throws IOException if a chunk cannot be copied, either by this or by the flushing thread
+     */
+    void copyAll() throws IOException {
+        for (int chunkIdx = 0; chunkIdx < chunkNumber && failure == null; chunkIdx++) {
+            synchronized (this) {
+                if (!copiedChunks.get(chunkIdx)) copyChunk(chunkIdx);
+            }
+        }
+        if (failure != null) throw new IOException("Chunk cannot be copied ahead of a flush", failure);
+        channel.force(true);
+    }
+
+    /**
+     * Marks the snapshot as failed, since a chunk could not be preserved.
+     *
+     * @param e cause
+     */
+    void fail(IOException e) {
+        failure = e;
+    }
+
+    synchronized int getPreservedChunks() {
+        return preservedChunks;
+    }
+
+    int getChunkNumber() {
+        return chunkNumber;
+    }
+
+    File getTarget() {
+        return target;
+    }
+
+    void close() throws IOException {
+        file.close();
+    }
+
+    private void copyChunk(int chunkIdx) throws IOException {
+        int from = HashMMap.STORAGE_HEADER_SIZE + chunkIdx * CHUNK_BUCKETS * bucketSize;
+        write(from, Math.min(structureSize, from + CHUNK_BUCKETS * bucketSize));
+        copiedChunks.set(chunkIdx);
+    }
+
+    private void write(int from, int to) throws IOException {
+        source.limit(to).position(from);
+        long position = from;
+        while (source.hasRemaining()) position += channel.write(source, position);
+    }
+}
@@ -4,7 +4,9 @@ import com.services.availability.model.AvailabilityItem;
 import org.apache.log4j.Logger;
 
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -45,6 +47,25 @@ public class StorageCache {
         return new OperationResult(false, null);
     }
 
+    /**
+     * Checks if the key is in the front or the back cache. Removed keys are
+     * cached as well.
+     */
+    public boolean contains(long key) {
+        CacheContainer cacheContainer = this.container;
+        return cacheContainer.frontCache.containsKey(key) || cacheContainer.backCache.containsKey(key);
+    }
+
+    /**
+     * @return snapshot of the keys of the front and the back cache, including removed ones
+     */
+    public Set<Long> keys() {
+        CacheContainer cacheContainer = this.container;
+        Set<Long> keys = new HashSet<Long>(cacheContainer.frontCache.keySet());
+        keys.addAll(cacheContainer.backCache.keySet());
+        return keys;
+    }
+
     public OperationResult remove(long key) {
         Map<Long, CacheValue> frontCache = container.frontCache;
 
@@ -0,0 +1,100 @@
+package com.services.availability.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Table driven implementation of the CRC-32C (Castagnoli) checksum.
+ *
+ * Unlike the plain CRC-32 polynomial, Castagnoli detects all burst errors
+ * up to 32 bits and has a much better Hamming distance for short messages,
+ * which makes it a good fit for commit log frames. java.util.zip.CRC32C is
+ * not available on Java 8, therefore the algorithm is implemented here.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-23 11:02
+ */
+public final class Crc32c {
+    private static final int POLYNOMIAL = 0x82F63B78;       // reversed Castagnoli polynomial
+    private static final int[] TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i;
+            for (int bit = 0; bit < 8; bit++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+            }
+            TABLE[i] = crc;
+        }
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    /**
+     * Updates the checksum with the specified bytes.
+     *
+     * @param bytes source array
+     * @param offset offset of the first byte
+     * @param length number of bytes to process
+     */
+    public void update(byte[] bytes, int offset, int length) {
+        int value = crc;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value >>> 8) ^ TABLE[(value ^ bytes[i]) & 0xFF];
+        }
+        crc = value;
+    }
+
+    /**
+     * Updates the checksum with the specified bytes of the buffer. Buffer
+     * position and limit are not changed.
+     *
+     * @param buffer source buffer
+     * @param offset absolute index of the first byte
+     * @param length number of bytes to process
+     */
+    public void update(ByteBuffer buffer, int offset, int length) {
+        int value = crc;
+        for (int i = offset; i < offset + length; i++) {
+            value = (value >>> 8) ^ TABLE[(value ^ buffer.get(i)) & 0xFF];
+        }
+        crc = value;
+    }
+
+    /**
+     * Updates the checksum with a single byte.
+     *
+     * @param b byte to process
+     */
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+    }
+
+    /**
+     * @return checksum of all bytes processed since the last reset
+     */
+    public int getValue() {
+        return ~crc;
+    }
+
+    /**
+     * Resets the checksum to its initial state.
+     */
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+
+    /**
+     * Calculates checksum of the array region.
+     *
+     * @param bytes source array
+     * @param offset offset of the first byte
+     * @param length number of bytes to process
+     * @return CRC-32C checksum
+     */
+    public static int checksum(byte[] bytes, int offset, int length) {
+        Crc32c crc32c = new Crc32c();
+        crc32c.update(bytes, offset, length);
+        return crc32c.getValue();
+    }
+}
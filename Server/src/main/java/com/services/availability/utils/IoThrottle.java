@@ -0,0 +1,60 @@
+package com.services.availability.utils;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simple I/O budget for background jobs. Current class is a token bucket
+ * refilled with the configured number of bytes per second; a caller that
+ * performs I/O beyond the budget is put to sleep until the bucket is
+ * refilled. Bursts are limited to one second worth of bytes.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-26 11:20
+ */
+public class IoThrottle {
+    private final long bytesPerSecond;      // <= 0 means no limit
+    private double available;               // bytes that could be consumed without waiting
+    private long lastRefill = System.nanoTime();
+
+    public IoThrottle(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+        this.available = bytesPerSecond;
+    }
+
+    /**
+     * @return throttle that never blocks
+     */
+    public static IoThrottle unlimited() {
+        return new IoThrottle(0);
+    }
+
+    /**
+     * Consumes the specified number of bytes from the budget. Blocks if the
+     * budget is exhausted.
+     *
+     * @param bytes number of bytes read or written
+     * @throws InterruptedException
+     */
+    public synchronized void acquire(long bytes) throws InterruptedException {
+        if (bytesPerSecond <= 0 || bytes <= 0) return;
+
+        refill();
+        available -= bytes;
+        if (available < 0) {
+            long waitNanos = (long) (-available * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+            refill();
+        }
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        available = Math.min(bytesPerSecond, available + (double) (now - lastRefill) * bytesPerSecond / TimeUnit.SECONDS.toNanos(1));
+        lastRefill = now;
+    }
+}
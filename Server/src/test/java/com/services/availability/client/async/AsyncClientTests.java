@@ -0,0 +1,184 @@
+package com.services.availability.client.async;
+
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
+import com.services.availability.protocol.binary.BinaryErrorCodes;
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryRequestType;
+import com.services.availability.protocol.binary.BinaryResponse;
+import com.services.availability.server.AbstractServer;
+import com.services.availability.server.BinaryMultiThreadServer;
+import com.services.availability.server.RequestProcessor;
+import com.services.availability.storage.InMemoryStorage;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeoutException;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-17 15:40
+ */
+public class AsyncClientTests {
+    private static final int PORT = 8888;
+    private static final int REQUESTS = 5000;
+
+    private Logger log = Logger.getLogger(AsyncClientTests.class);
+
+    private AbstractServer server;
+    private AsyncClient client;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        server = new BinaryMultiThreadServer();
+        server.setPort(PORT);
+        server.setRequestProcessor(new RequestProcessor(server.getThroughputMeter(), new InMemoryStorage()));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startup();
+                } catch (IOException e) {
+                    log.error("Error in server loop", e);
+                }
+            }
+        }).start();
+        Thread.sleep(2000);
+
+        client = new AsyncClient(new InetSocketAddress("localhost", PORT), 2, AsyncClient.DEFAULT_REQUEST_TIMEOUT);
+        client.initClient();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.closeClient();
+        server.shutdown();
+    }
+
+    /**
+     * All requests are issued before any response is awaited.
+     */
+    @Test
+    public void inFlightRequestsTest() throws Exception {
+        List<CompletableFuture<BinaryResponse>> puts = new ArrayList<CompletableFuture<BinaryResponse>>();
+        for (int i = 0; i < REQUESTS; i++) {
+            puts.add(client.performRequestAsync(new BinaryRequest(BinaryRequestType.PUT, 4000 + i, (short) 1, i)));
+        }
+        for (CompletableFuture<BinaryResponse> put: puts) assertTrue(put.get().isSuccess());
+
+        List<CompletableFuture<BinaryResponse>> gets = new ArrayList<CompletableFuture<BinaryResponse>>();
+        for (int i = 0; i < REQUESTS; i++) {
+            gets.add(client.performRequestAsync(new BinaryRequest(BinaryRequestType.GET, 4000 + i, (short) 1, 0)));
+        }
+        for (int i = 0; i < REQUESTS; i++) {
+            BinaryResponse response = gets.get(i).get();
+            assertEquals(4000 + i, response.getSku());
+            assertEquals(i, response.getAmount());
+        }
+        assertEquals(0, client.getPendingRequests());
+    }
+
+    @Test
+    public void batchRequestTest() throws Exception {
+        int[] skus = new int[1000];
+        short[] stores = new short[1000];
+        int[] amounts = new int[1000];
+        for (int i = 0; i < skus.length; i++) {
+            skus[i] = 5000 + i;
+            stores[i] = 2;
+            amounts[i] = i * 3;
+        }
+        BinaryBatchResponse written = client.performBatchRequestAsync(new BinaryBatchRequest(BinaryRequestType.MPUT, skus, stores, amounts)).get();
+        for (int i = 0; i < skus.length; i++) assertEquals(BinaryErrorCodes.SUCCESS, written.getErrorCode(i));
+
+        BinaryBatchResponse read = client.performBatchRequest(new BinaryBatchRequest(BinaryRequestType.MGET, skus, stores, new int[skus.length]));
+        for (int i = 0; i < skus.length; i++) assertEquals(i * 3, read.getAmount(i));
+    }
+
+    /**
+     * Server, which accepts the connections and never answers.
+     */
+    @Test
+    public void timeoutTest() throws Exception {
+        ServerSocket silentServer = new ServerSocket(PORT + 2);
+        AsyncClient silentClient = new AsyncClient(new InetSocketAddress("localhost", PORT + 2), 1, 300);
+        try {
+            silentClient.initClient();
+            CompletableFuture<BinaryResponse> future = silentClient.performRequestAsync(new BinaryRequest(BinaryRequestType.GET, 1, (short) 1, 0));
+            try {
+                future.get();
+                fail("Request to the silent server should time out");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof TimeoutException);
+            }
+            assertEquals(0, silentClient.getPendingRequests());
+        } finally {
+            silentClient.closeClient();
+            silentServer.close();
+        }
+
+        try {
+            silentClient.performRequest(new BinaryRequest(BinaryRequestType.GET, 1, (short) 1, 0));
+            fail("Closed client should not perform requests");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Server, which answers with a frame of an unknown type. The connection
+     * fails, and the I/O thread keeps serving the next requests.
+     */
+    @Test
+    public void malformedResponseTest() throws Exception {
+        final ServerSocket garbageServer = new ServerSocket(PORT + 3);
+        Thread garbageThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = garbageServer.accept();
+                        socket.getOutputStream().write(new byte[] {0x7F, 0, 0, 0, 0, 0, 0, 0});
+                        socket.getOutputStream().flush();
+                    }
+                } catch (IOException e) {
+                    // closed by the test
+                }
+            }
+        });
+        garbageThread.start();
+
+        AsyncClient garbageClient = new AsyncClient(new InetSocketAddress("localhost", PORT + 3), 1, 300);
+        try {
+            garbageClient.initClient();
+            for (int i = 0; i < 2; i++) {
+                try {
+                    garbageClient.performRequest(new BinaryRequest(BinaryRequestType.GET, 1, (short) 1, 0));
+                    fail("Malformed response should fail the request");
+                } catch (IOException e) {
+                    // expected, either the connection failure or the timeout
+                }
+            }
+            assertEquals(0, garbageClient.getPendingRequests());
+        } finally {
+            garbageClient.closeClient();
+            garbageServer.close();
+            garbageThread.join();
+        }
+    }
+}
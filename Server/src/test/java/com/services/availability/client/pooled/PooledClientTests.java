@@ -0,0 +1,116 @@
+package com.services.availability.client.pooled;
+
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryRequestType;
+import com.services.availability.protocol.binary.BinaryResponse;
+import com.services.availability.server.AbstractServer;
+import com.services.availability.server.BinaryMultiThreadServer;
+import com.services.availability.server.RequestProcessor;
+import com.services.availability.storage.InMemoryStorage;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-17 11:00
+ */
+public class PooledClientTests {
+    private static final int PORT = 8888;
+    private static final int THREADS = 8;
+    private static final int REQUESTS = 500;
+
+    private Logger log = Logger.getLogger(PooledClientTests.class);
+
+    private AbstractServer server;
+    private PooledClient client;
+
+    @Before
+    public void setUp() throws IOException, InterruptedException {
+        server = new BinaryMultiThreadServer();
+        server.setPort(PORT);
+        server.setRequestProcessor(new RequestProcessor(server.getThroughputMeter(), new InMemoryStorage()));
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startup();
+                } catch (IOException e) {
+                    log.error("Error in server loop", e);
+                }
+            }
+        }).start();
+        Thread.sleep(2000);
+
+        client = new PooledClient(new InetSocketAddress("localhost", PORT), 4, PooledClient.DEFAULT_BORROW_TIMEOUT);
+        client.initClient();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        client.closeClient();
+        server.shutdown();
+    }
+
+    /**
+     * More threads than connections share the client; every thread reads
+     * back its own writes.
+     */
+    @Test
+    public void concurrentRequestsTest() throws InterruptedException {
+        final AtomicInteger errors = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < THREADS; t++) {
+            final short store = (short) (t + 1);
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < REQUESTS; i++) {
+                            int sku = 2000 + i;
+                            BinaryResponse put = client.performRequest(new BinaryRequest(BinaryRequestType.PUT, sku, store, i * store));
+                            BinaryResponse get = client.performRequest(new BinaryRequest(BinaryRequestType.GET, sku, store, 0));
+                            if (!put.isSuccess() || !get.isSuccess() || get.getAmount() != i * store) errors.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        log.error("Request failed", e);
+                        errors.incrementAndGet();
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread: threads) thread.join();
+
+        assertEquals(0, errors.get());
+        assertEquals(4, client.getIdleConnections());
+        assertEquals(4, client.checkConnections());
+        assertEquals(0, client.getFailedChecks());
+    }
+
+    @Test
+    public void closedClientTest() throws IOException {
+        assertTrue(client.performRequest(new BinaryRequest(BinaryRequestType.PUT, 3000, (short) 1, 1)).isSuccess());
+        client.closeClient();
+        assertEquals(0, client.getIdleConnections());
+        try {
+            client.performRequest(new BinaryRequest(BinaryRequestType.GET, 3000, (short) 1, 0));
+            fail("Closed client should not perform requests");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+}
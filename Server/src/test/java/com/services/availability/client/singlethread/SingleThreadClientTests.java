@@ -0,0 +1,158 @@
+package com.services.availability.client.singlethread;
+
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryRequestType;
+import com.services.availability.protocol.binary.BinaryResponse;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * Client against a scripted server, which answers a given number of
+ * requests per connection and then closes it.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-18 10:30
+ */
+public class SingleThreadClientTests {
+    private static final int PORT = 8891;
+
+    private Logger log = Logger.getLogger(SingleThreadClientTests.class);
+
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private final List<BinaryRequestType> received = Collections.synchronizedList(new ArrayList<BinaryRequestType>());
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(PORT);
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        serverSocket.close();
+        if (serverThread != null) serverThread.join(5000);     // the port is released once the accepting thread is out
+    }
+
+    /**
+     * Connection is closed by the server after the first response, while
+     * idle; the client finds it before sending the next request.
+     */
+    @Test
+    public void closedIdleConnectionTest() throws IOException, InterruptedException {
+        startServer(1, true);
+
+        SingleThreadClient client = new SingleThreadClient("localhost", PORT);
+        client.setProbeIdleTime(100);
+        client.initClient();
+        assertTrue(client.performRequest(new BinaryRequest(BinaryRequestType.PUT, 1000, (short) 1, 10)).isSuccess());
+        Thread.sleep(200);
+
+        assertTrue(client.performRequest(new BinaryRequest(BinaryRequestType.DECREMENT, 1000, (short) 1, 1)).isSuccess());
+        assertEquals(2, received.size());
+        client.closeClient();
+    }
+
+    /**
+     * Connection used recently is not checked before the request is sent;
+     * a read, which finds it closed, is repeated on a new connection.
+     */
+    @Test
+    public void recentConnectionTest() throws IOException {
+        startServer(1, true);
+
+        SingleThreadClient client = new SingleThreadClient("localhost", PORT);
+        client.initClient();
+        assertTrue(client.performRequest(new BinaryRequest(BinaryRequestType.PUT, 1000, (short) 1, 10)).isSuccess());
+        assertTrue(client.performRequest(new BinaryRequest(BinaryRequestType.GET, 1000, (short) 1, 0)).isSuccess());
+        assertTrue(client.performRequest(new BinaryRequest(BinaryRequestType.GET, 1000, (short) 1, 0)).isSuccess());
+        assertEquals(3, received.size());
+        client.closeClient();
+    }
+
+    /**
+     * Connection fails after the request is sent: a read is repeated on a
+     * new connection, a mutation is not.
+     */
+    @Test
+    public void failedExchangeTest() throws IOException, InterruptedException {
+        startServer(1, false);
+
+        SingleThreadClient client = new SingleThreadClient("localhost", PORT);
+        client.initClient();
+        assertTrue(client.performRequest(new BinaryRequest(BinaryRequestType.PUT, 1000, (short) 1, 10)).isSuccess());
+
+        try {
+            client.performRequest(new BinaryRequest(BinaryRequestType.DECREMENT, 1000, (short) 1, 1));
+            fail("Mutation, which might have been applied, should not be repeated");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(2, received.size());
+
+        assertTrue(client.performRequest(new BinaryRequest(BinaryRequestType.PUT, 1000, (short) 1, 10)).isSuccess());
+        assertTrue(client.performRequest(new BinaryRequest(BinaryRequestType.GET, 1000, (short) 1, 0)).isSuccess());
+        assertEquals(5, received.size());
+        assertEquals(BinaryRequestType.GET, received.get(3));
+        assertEquals(BinaryRequestType.GET, received.get(4));
+        client.closeClient();
+    }
+
+    /**
+     * Starts the server, which answers the given number of requests per
+     * connection. After that it either closes the connection at once, or
+     * reads one more request and closes the connection without answering.
+     */
+    private void startServer(final int answered, final boolean closeIdle) {
+        serverThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        OutputStream out = socket.getOutputStream();
+                        for (int i = 0; i < answered; i++) {
+                            BinaryRequest request = readRequest(in);
+                            BinaryResponse response = new BinaryResponse(request.getRequestType(), request.getSku(), request.getStore(), request.getAmount());
+                            response.setRequestId(request.getRequestId());
+                            ByteBuffer buffer = ByteBuffer.allocate(response.getFrameSize());
+                            response.putToBuffer(buffer);
+                            out.write(buffer.array());
+                        }
+                        if (!closeIdle) readRequest(in);
+                        socket.close();
+                    } catch (IOException e) {
+                        if (!serverSocket.isClosed()) log.error("Scripted server failed", e);
+                    }
+                }
+            }
+        });
+        serverThread.setDaemon(true);
+        serverThread.start();
+    }
+
+    private BinaryRequest readRequest(DataInputStream in) throws IOException {
+        byte[] frame = new byte[new BinaryRequest(BinaryRequestType.GET, 0, (short) 0, 0).getFrameSize()];
+        in.readFully(frame);
+        BinaryRequest request = BinaryRequest.fromByteBuffer(ByteBuffer.wrap(frame));
+        received.add(request.getRequestType());
+        return request;
+    }
+}
@@ -0,0 +1,266 @@
+package com.services.availability.cluster;
+
+import com.services.availability.client.cluster.ClusterClient;
+import com.services.availability.client.singlethread.SingleThreadClient;
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
+import com.services.availability.protocol.binary.BinaryErrorCodes;
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryRequestType;
+import com.services.availability.protocol.binary.BinaryResponse;
+import com.services.availability.protocol.binary.PartitionMap;
+import com.services.availability.common.ThroughputMeter;
+import com.services.availability.server.AbstractServer;
+import com.services.availability.server.AsyncRequestProcessor;
+import com.services.availability.server.BinaryMultiThreadServer;
+import com.services.availability.server.RequestProcessor;
+import com.services.availability.storage.InMemoryStorage;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Two nodes of a cluster run on different ports of the same host.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-15 17:10
+ */
+public class ClusterTests {
+    private static final int PARTITIONS = 8;
+
+    private Logger log = Logger.getLogger(ClusterTests.class);
+
+    private final List<AbstractServer> servers = new ArrayList<AbstractServer>();
+    private final List<ClusterNode> nodes = new ArrayList<ClusterNode>();
+    private final List<InMemoryStorage> storages = new ArrayList<InMemoryStorage>();
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        for (AbstractServer server: servers) server.shutdown();
+        for (ClusterNode node: nodes) node.stop();
+    }
+
+    /**
+     * Items are routed to the owners of their partitions; one partition is
+     * moved to the other node while it is written to, and no write is lost.
+     */
+    @Test
+    public void migrationTest() throws IOException, InterruptedException {
+        PartitionMap map = PartitionMap.uniform(PARTITIONS, Arrays.asList(
+                PartitionMap.Node.parse("localhost:8888:9888"), PartitionMap.Node.parse("localhost:8889:9889")));
+        startNode(0, map);
+        startNode(1, map);
+
+        ClusterClient client = new ClusterClient("localhost", 8888);
+        client.initClient();
+        for (int sku = 1000; sku < 1100; sku++) {
+            assertTrue(client.performRequest(new BinaryRequest(BinaryRequestType.PUT, sku, (short) 1, sku)).isSuccess());
+        }
+        int[] skus = new int[100];
+        short[] stores = new short[100];
+        int[] amounts = new int[100];
+        for (int i = 0; i < 100; i++) {
+            skus[i] = 1000 + i;
+            stores[i] = 2;
+            amounts[i] = i;
+        }
+        BinaryBatchResponse written = client.performBatchRequest(new BinaryBatchRequest(BinaryRequestType.MPUT, skus, stores, amounts));
+        for (int i = 0; i < 100; i++) assertEquals(BinaryErrorCodes.SUCCESS, written.getErrorCode(i));
+
+        final int partition = map.partitionOf(1000);
+        final int source = map.ownerOf(partition), target = 1 - source;
+        final List<Integer> partitionSkus = new ArrayList<Integer>();
+        for (int sku = 1000; sku < 1100; sku++) if (map.partitionOf(sku) == partition) partitionSkus.add(sku);
+
+        SingleThreadClient targetClient = new SingleThreadClient("localhost", map.getNode(target).getPort());
+        targetClient.initClient();
+        BinaryResponse rejected = targetClient.performRequest(new BinaryRequest(BinaryRequestType.GET, 1000, (short) 1, 0));
+        assertEquals(BinaryErrorCodes.WRONG_PARTITION, rejected.getErrorCode());
+
+        // writer keeps updating the partition during the migration
+        final int[] lastWritten = new int[partitionSkus.size()];
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicInteger rounds = new AtomicInteger();
+        final ClusterClient writerClient = new ClusterClient("localhost", 8889);
+        writerClient.initClient();
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        int round = rounds.incrementAndGet();
+                        for (int i = 0; i < partitionSkus.size(); i++) {
+                            BinaryResponse response = writerClient.performRequest(new BinaryRequest(BinaryRequestType.PUT, partitionSkus.get(i), (short) 1, round));
+                            if (response.isSuccess()) lastWritten[i] = round;
+                            else failures.incrementAndGet();
+                        }
+                    }
+                } catch (IOException e) {
+                    log.error("Writer failed", e);
+                    failures.incrementAndGet();
+                }
+            }
+        });
+        writer.start();
+        Thread.sleep(100);
+
+        BinaryResponse migrated = client.migratePartition(partition, target);
+        assertTrue(migrated.isSuccess());
+        assertEquals(2, migrated.getAmount());
+        assertEquals(2, client.getPartitionMap().getVersion());
+        assertEquals(target, client.getPartitionMap().ownerOf(partition));
+
+        Thread.sleep(100);
+        writer.interrupt();
+        writer.join();
+        writerClient.closeClient();
+        log.debug("Partition " + partition + " migrated during " + rounds.get() + " write rounds");
+        assertEquals(0, failures.get());
+
+        for (ClusterNode node: nodes) assertEquals(2, node.getPartitionMap().getVersion());
+        for (int i = 0; i < partitionSkus.size(); i++) {
+            int sku = partitionSkus.get(i);
+            assertEquals(lastWritten[i], targetClient.performRequest(new BinaryRequest(BinaryRequestType.GET, sku, (short) 1, 0)).getAmount());
+            assertEquals(sku - 1000, targetClient.performRequest(new BinaryRequest(BinaryRequestType.GET, sku, (short) 2, 0)).getAmount());
+        }
+
+        SingleThreadClient sourceClient = new SingleThreadClient("localhost", map.getNode(source).getPort());
+        sourceClient.initClient();
+        rejected = sourceClient.performRequest(new BinaryRequest(BinaryRequestType.PUT, 1000, (short) 1, 5));
+        assertEquals(BinaryErrorCodes.WRONG_PARTITION, rejected.getErrorCode());
+
+        // a client with the old map is redirected
+        ClusterClient staleClient = new ClusterClient("localhost", 8888);
+        staleClient.initClient();
+        BinaryBatchResponse read = (BinaryBatchResponse) staleClient.performRequest(new BinaryBatchRequest(BinaryRequestType.MGET, skus, stores, amounts));
+        for (int i = 0; i < 100; i++) assertEquals(i, read.getAmount(i));
+        for (int sku = 1000; sku < 1100; sku++) {
+            if (map.partitionOf(sku) == partition) continue;
+            assertEquals(sku, staleClient.performRequest(new BinaryRequest(BinaryRequestType.GET, sku, (short) 1, 0)).getAmount());
+        }
+
+        staleClient.closeClient();
+        sourceClient.closeClient();
+        targetClient.closeClient();
+        client.closeClient();
+    }
+
+    /**
+     * Target has installed a map of the same version meanwhile, as if
+     * another owner has migrated a partition to it; the migration is
+     * rejected, and the partition stays with its owner.
+     */
+    @Test
+    public void rejectedMigrationTest() throws IOException, InterruptedException {
+        PartitionMap map = PartitionMap.uniform(PARTITIONS, Arrays.asList(
+                PartitionMap.Node.parse("localhost:8888:9888"), PartitionMap.Node.parse("localhost:8889:9889")));
+        startNode(0, map);
+        startNode(1, map);
+
+        ClusterClient client = new ClusterClient("localhost", 8888);
+        client.initClient();
+        for (int sku = 2000; sku < 2100; sku++) {
+            assertTrue(client.performRequest(new BinaryRequest(BinaryRequestType.PUT, sku, (short) 1, sku)).isSuccess());
+        }
+
+        int partition = map.partitionOf(2000);
+        int source = map.ownerOf(partition), target = 1 - source;
+        int targetPartition = partition;
+        while (map.ownerOf(targetPartition) != target) targetPartition = (targetPartition + 1) % PARTITIONS;
+        assertTrue(nodes.get(target).installMap(map.withOwner(targetPartition, target)));
+
+        BinaryResponse migrated = client.migratePartition(partition, target);
+        assertEquals(BinaryErrorCodes.IOEXCEPTION, migrated.getErrorCode());
+        assertEquals(1, nodes.get(source).getPartitionMap().getVersion());
+        assertEquals(source, nodes.get(target).getPartitionMap().ownerOf(partition));
+
+        for (int sku = 2000; sku < 2100; sku++) {
+            assertEquals(sku, client.performRequest(new BinaryRequest(BinaryRequestType.GET, sku, (short) 1, 0)).getAmount());
+            if (map.partitionOf(sku) == partition) {
+                assertNull(storages.get(target).get(AvailabilityItem.key(sku, (short) 1)));
+            }
+        }
+        client.closeClient();
+    }
+
+    /**
+     * MIGRATE_PARTITION is run by the migration thread of the node, and is
+     * answered by that thread once the migration is completed.
+     */
+    @Test
+    public void migrationThreadTest() throws InterruptedException {
+        PartitionMap map = PartitionMap.uniform(PARTITIONS, Arrays.asList(
+                PartitionMap.Node.parse("localhost:8890:9890"), PartitionMap.Node.parse("localhost:8891:9891")));
+        ClusterNode node = new ClusterNode(0, map, new InMemoryStorage());
+        nodes.add(node);
+        RequestProcessor requestProcessor = new RequestProcessor(new ThroughputMeter(), new InMemoryStorage());
+        requestProcessor.setClusterNode(node);
+
+        int partition = 0;
+        while (map.ownerOf(partition) != 0) partition++;
+        final List<BinaryResponse> responses = new ArrayList<BinaryResponse>();
+        final List<String> threads = new ArrayList<String>();
+        final CountDownLatch answered = new CountDownLatch(2);
+        AsyncRequestProcessor.ResponseWriteOutCallback callback = new AsyncRequestProcessor.ResponseWriteOutCallback() {
+            @Override
+            public void writeOut(BinaryResponse response) {
+                synchronized (responses) {
+                    responses.add(response);
+                    threads.add(Thread.currentThread().getName());
+                }
+                answered.countDown();
+            }
+        };
+
+        BinaryRequest unreachable = new BinaryRequest(BinaryRequestType.MIGRATE_PARTITION, 7, partition, (short) 1, 0);
+        requestProcessor.processRequest(unreachable, callback);        // node 1 is not running
+        requestProcessor.processRequest(new BinaryRequest(BinaryRequestType.MIGRATE_PARTITION, PARTITIONS, (short) 1, 0), callback);
+        assertTrue(answered.await(10, TimeUnit.SECONDS));
+
+        assertEquals(BinaryErrorCodes.IOEXCEPTION, responses.get(0).getErrorCode());
+        assertEquals(7, responses.get(0).getRequestId());
+        assertEquals(BinaryErrorCodes.WRONG_PARTITION, responses.get(1).getErrorCode());
+        assertEquals(Arrays.asList("cluster-migration", "cluster-migration"), threads);
+        assertEquals(1, node.getPartitionMap().getVersion());
+    }
+
+    private void startNode(int nodeId, PartitionMap map) throws IOException, InterruptedException {
+        InMemoryStorage storage = new InMemoryStorage();
+        ClusterNode node = new ClusterNode(nodeId, map, storage);
+        node.start();
+        nodes.add(node);
+        storages.add(storage);
+
+        final AbstractServer server = new BinaryMultiThreadServer();
+        server.setPort(map.getNode(nodeId).getPort());
+        RequestProcessor requestProcessor = new RequestProcessor(server.getThroughputMeter(), storage);
+        requestProcessor.setClusterNode(node);
+        server.setRequestProcessor(requestProcessor);
+        servers.add(server);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startup();
+                } catch (IOException e) {
+                    log.error("Error in server loop", e);
+                }
+            }
+        }).start();
+        Thread.sleep(2000);
+    }
+}
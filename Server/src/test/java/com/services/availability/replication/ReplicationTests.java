@@ -0,0 +1,146 @@
+package com.services.availability.replication;
+
+import com.services.availability.client.singlethread.SingleThreadClient;
+import com.services.availability.protocol.binary.BinaryErrorCodes;
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryRequestType;
+import com.services.availability.protocol.binary.BinaryResponse;
+import com.services.availability.server.AbstractServer;
+import com.services.availability.server.BinaryMultiThreadServer;
+import com.services.availability.server.RequestProcessor;
+import com.services.availability.storage.InMemoryStorage;
+import com.services.availability.storage.ccl.commitlog.AsyncCommitLog;
+import com.services.availability.storage.ccl.commitlog.CommitLog;
+import com.services.availability.storage.hashmmap.ConcurrentHashMMap;
+import org.apache.log4j.Logger;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * Primary and follower servers run on different ports of the same host.
+ *
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-14 14:30
+ */
+public class ReplicationTests {
+    private static final int PRIMARY_PORT = 8888;
+    private static final int FOLLOWER_PORT = 8889;
+    private static final int REPLICATION_PORT = 9888;
+
+    private Logger log = Logger.getLogger(ReplicationTests.class);
+
+    private AbstractServer primary;
+    private AbstractServer follower;
+    private AsyncCommitLog commitLog;
+    private ReplicationServer replicationServer;
+    private ReplicationFollower replicationFollower;
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        replicationFollower.stop();
+        follower.shutdown();
+        replicationServer.stop();
+        primary.shutdown();
+        commitLog.close();
+    }
+
+    /**
+     * Records written before the follower is connected are caught up from
+     * the log files, later ones are streamed live. Follower serves GETs
+     * from its replica and rejects mutations. Restarted follower continues
+     * from the persisted applied sequence.
+     */
+    @Test
+    public void replicationTest() throws IOException, InterruptedException {
+        commitLog = new AsyncCommitLog(new CommitLog(Files.createTempDirectory("commitlog").toFile(), 1));
+        replicationServer = new ReplicationServer(commitLog, REPLICATION_PORT);
+        replicationServer.start();
+
+        primary = new BinaryMultiThreadServer();
+        primary.setPort(PRIMARY_PORT);
+        RequestProcessor primaryProcessor = new RequestProcessor(primary.getThroughputMeter(), new InMemoryStorage(0));
+        primaryProcessor.setCommitLog(commitLog);
+        startServer(primary, primaryProcessor);
+
+        SingleThreadClient primaryClient = new SingleThreadClient("localhost", PRIMARY_PORT);
+        primaryClient.initClient();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(primaryClient.performRequest(new BinaryRequest(BinaryRequestType.PUT, 9800 + i, (short) 1, i)).isSuccess());
+        }
+
+        ConcurrentHashMMap replica = new ConcurrentHashMMap(256, 32);
+        follower = new BinaryMultiThreadServer();
+        follower.setPort(FOLLOWER_PORT);
+        RequestProcessor followerProcessor = new RequestProcessor(follower.getThroughputMeter(), replica);
+        followerProcessor.setReadOnly(true);
+        startServer(follower, followerProcessor);
+        File sequenceFile = new File(Files.createTempDirectory("follower").toFile(), "applied.seq");
+        replicationFollower = new ReplicationFollower(new InetSocketAddress("localhost", REPLICATION_PORT), replica);
+        replicationFollower.setSequenceFile(sequenceFile);
+        replicationFollower.start();
+        awaitCaughtUp(100);
+
+        for (int i = 100; i < 200; i++) {
+            assertTrue(primaryClient.performRequest(new BinaryRequest(BinaryRequestType.PUT, 9800 + i, (short) 1, i)).isSuccess());
+        }
+        assertTrue(primaryClient.performRequest(new BinaryRequest(BinaryRequestType.REMOVE, 9800, (short) 1, 0)).isSuccess());
+        awaitCaughtUp(201);
+        assertEquals(0, replicationFollower.getLagRecords());
+        assertEquals(0, replicationFollower.getLagMillis());
+        assertEquals(1, replicationServer.getFollowerNumber());
+
+        SingleThreadClient followerClient = new SingleThreadClient("localhost", FOLLOWER_PORT);
+        followerClient.initClient();
+        assertEquals(BinaryErrorCodes.ITEM_NOT_FOUND, followerClient.performRequest(new BinaryRequest(BinaryRequestType.GET, 9800, (short) 1, 0)).getErrorCode());
+        for (int i = 1; i < 200; i++) {
+            assertEquals(i, followerClient.performRequest(new BinaryRequest(BinaryRequestType.GET, 9800 + i, (short) 1, 0)).getAmount());
+        }
+        BinaryResponse rejected = followerClient.performRequest(new BinaryRequest(BinaryRequestType.PUT, 9800, (short) 1, 5));
+        assertEquals(BinaryErrorCodes.READ_ONLY, rejected.getErrorCode());
+
+        replicationFollower.stop();
+        assertEquals(201, ReplicationFollower.readSequence(sequenceFile));
+        replicationFollower = new ReplicationFollower(new InetSocketAddress("localhost", REPLICATION_PORT), replica,
+                ReplicationFollower.readSequence(sequenceFile));
+        replicationFollower.start();
+        assertTrue(primaryClient.performRequest(new BinaryRequest(BinaryRequestType.PUT, 9800, (short) 1, 7)).isSuccess());
+        awaitCaughtUp(202);
+        assertEquals(1, replicationFollower.getAppliedRecords());       // nothing is streamed again
+
+        primaryClient.closeClient();
+        followerClient.closeClient();
+    }
+
+    private void awaitCaughtUp(long sequence) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (replicationFollower.getAppliedSequence() < sequence && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(sequence, replicationFollower.getAppliedSequence());
+        log.debug("Follower caught up to sequence " + sequence);
+    }
+
+    private void startServer(final AbstractServer server, RequestProcessor requestProcessor) throws InterruptedException {
+        server.setRequestProcessor(requestProcessor);
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    server.startup();
+                } catch (IOException e) {
+                    log.error("Error in server loop", e);
+                }
+            }
+        }).start();
+        Thread.sleep(2000);
+    }
+}
@@ -0,0 +1,377 @@
+package com.services.availability.server;
+
+import com.services.availability.common.ThroughputMeter;
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
+import com.services.availability.protocol.binary.BinaryCompareAndSetRequest;
+import com.services.availability.protocol.binary.BinaryErrorCodes;
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryRequestType;
+import com.services.availability.protocol.binary.BinaryResponse;
+import com.services.availability.protocol.binary.RequestFlyweight;
+import com.services.availability.protocol.binary.ResponseFlyweight;
+import com.services.availability.storage.InMemoryStorage;
+import com.services.availability.storage.ShardedStorage;
+import com.services.availability.storage.ccl.LogRecord;
+import com.services.availability.storage.ccl.commitlog.AsyncCommitLog;
+import com.services.availability.storage.ccl.commitlog.CommitLog;
+import com.services.availability.storage.ccl.commitlog.CommitLogReader;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-03 11:20
+ */
+public class AsyncRequestProcessorTests {
+
+    /**
+     * Threads adjust the same item concurrently with a commit log attached;
+     * records of the item are in the log in the order the adjustments were
+     * applied, so replay gives the live state.
+     */
+    @Test
+    public void loggedMutationOrderTest() throws Exception {
+        File directory = Files.createTempDirectory("commitlog").toFile();
+        final AsyncCommitLog commitLog = new AsyncCommitLog(new CommitLog(directory, 1));
+        final InMemoryStorage storage = new InMemoryStorage();
+        final RequestProcessor processor = new RequestProcessor(new ThroughputMeter(), storage);
+        processor.setCommitLog(commitLog);
+
+        final int threadNum = 8, requestNum = 500;
+        final CountDownLatch completed = new CountDownLatch(threadNum * requestNum);
+        final AtomicInteger failed = new AtomicInteger(0);
+        final AsyncRequestProcessor.ResponseWriteOutCallback callback = new AsyncRequestProcessor.ResponseWriteOutCallback() {
+            @Override
+            public void writeOut(BinaryResponse response) {
+                if (!response.isSuccess()) failed.incrementAndGet();
+                completed.countDown();
+            }
+        };
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadNum; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < requestNum; j++) {
+                        processor.processRequest(new BinaryRequest(BinaryRequestType.ADD, 9300, (short) 1, 1), callback);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread: threads) thread.join();
+        assertTrue(completed.await(10, TimeUnit.SECONDS));
+        assertEquals(0, failed.get());
+        commitLog.close();
+
+        CommitLogReader reader = CommitLogReader.forDirectory(directory);
+        LogRecord record;
+        int expected = 0;
+        while ((record = reader.next()) != null) {
+            assertEquals(++expected, record.getAmount());
+        }
+        reader.close();
+        assertEquals(threadNum * requestNum, expected);
+
+        InMemoryStorage replayed = new InMemoryStorage();
+        CommitLogReader.forDirectory(directory).replay(replayed);
+        assertEquals(storage.get(AvailabilityItem.key(9300, (short) 1)).getAmount(),
+                replayed.get(AvailabilityItem.key(9300, (short) 1)).getAmount());
+    }
+
+    /**
+     * Single worker is busy with the first request and two more fit into
+     * the queue; the rest is answered with BUSY at once.
+     */
+    @Test
+    public void loadSheddingTest() throws InterruptedException {
+        RequestProcessor processor = new RequestProcessor(new ThroughputMeter(), new InMemoryStorage(200));
+        AsyncRequestProcessor asyncProcessor = new AsyncRequestProcessor(processor, 1, 2);
+
+        final List<BinaryResponse> responses = Collections.synchronizedList(new ArrayList<BinaryResponse>());
+        final CountDownLatch completed = new CountDownLatch(10);
+        AsyncRequestProcessor.ResponseWriteOutCallback callback = new AsyncRequestProcessor.ResponseWriteOutCallback() {
+            @Override
+            public void writeOut(BinaryResponse response) {
+                responses.add(response);
+                completed.countDown();
+            }
+        };
+
+        for (int i = 0; i < 10; i++) {
+            asyncProcessor.scheduleRequestProcessing(new BinaryRequest(BinaryRequestType.PUT, i, 1000 + i, (short) 1, i), callback);
+        }
+
+        assertEquals(7, responses.size());                 // shed requests are answered on the calling thread
+        assertEquals(7, asyncProcessor.getShedRequests());
+        assertEquals(2, asyncProcessor.getQueueDepth());
+
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        int busy = 0;
+        for (BinaryResponse response: responses) {
+            if (response.getErrorCode() == BinaryErrorCodes.BUSY) {
+                busy++;
+                assertTrue(response.getRequestId() >= 3);
+            } else {
+                assertTrue(response.isSuccess());
+            }
+        }
+        assertEquals(7, busy);
+        assertEquals(0, asyncProcessor.getQueueDepth());
+
+        asyncProcessor.shutdown();
+    }
+
+    /**
+     * Requests for the same key go to the same shard thread and are
+     * processed in the order they were scheduled, so the last PUT wins.
+     */
+    @Test
+    public void keyAffinityTest() throws InterruptedException {
+        ShardedStorage storage = new ShardedStorage(4, 256);
+        try {
+            RequestProcessor processor = new RequestProcessor(new ThroughputMeter(), storage);
+            AsyncRequestProcessor asyncProcessor = new AsyncRequestProcessor(processor, 4, 1000, true);
+
+            final CountDownLatch completed = new CountDownLatch(20 * 50);
+            AsyncRequestProcessor.ResponseWriteOutCallback callback = new AsyncRequestProcessor.ResponseWriteOutCallback() {
+                @Override
+                public void writeOut(BinaryResponse response) {
+                    completed.countDown();
+                }
+            };
+            for (int i = 0; i < 50; i++) {
+                for (int sku = 0; sku < 20; sku++) {
+                    asyncProcessor.scheduleRequestProcessing(new BinaryRequest(BinaryRequestType.PUT, i, 9000 + sku, (short) 1, i), callback);
+                }
+            }
+            assertTrue(completed.await(10, TimeUnit.SECONDS));
+            assertEquals(0, asyncProcessor.getShedRequests());
+            assertFalse(asyncProcessor.canProcessInline(new BinaryRequest(BinaryRequestType.GET, 9000, (short) 1, 0)));
+            asyncProcessor.shutdown();
+
+            for (int sku = 0; sku < 20; sku++) {
+                assertEquals(49, processor.processRequest(new BinaryRequest(BinaryRequestType.GET, 9000 + sku, (short) 1, 0)).getAmount());
+            }
+        } finally {
+            for (int i = 0; i < storage.getShardNumber(); i++) {
+                new File(ShardedStorage.SHARD_FILE_PREFIX + i + ShardedStorage.SHARD_FILE_SUFFIX).delete();
+            }
+        }
+    }
+
+    /**
+     * Batch is split between shards and answered with a single response.
+     */
+    @Test
+    public void keyAffinityBatchTest() throws InterruptedException {
+        ShardedStorage storage = new ShardedStorage(4, 256);
+        try {
+            RequestProcessor processor = new RequestProcessor(new ThroughputMeter(), storage);
+            AsyncRequestProcessor asyncProcessor = new AsyncRequestProcessor(processor, 4, 1000, true);
+
+            int[] skus = new int[40], amounts = new int[40];
+            short[] stores = new short[40];
+            for (int i = 0; i < 40; i++) {
+                skus[i] = 9100 + i;
+                stores[i] = (short) 2;
+                amounts[i] = i;
+            }
+
+            final BlockingQueue<BinaryResponse> responses = new ArrayBlockingQueue<BinaryResponse>(10);
+            AsyncRequestProcessor.ResponseWriteOutCallback callback = new AsyncRequestProcessor.ResponseWriteOutCallback() {
+                @Override
+                public void writeOut(BinaryResponse response) {
+                    responses.offer(response);
+                }
+            };
+            asyncProcessor.scheduleRequestProcessing(new BinaryBatchRequest(BinaryRequestType.MPUT, 1, skus, stores, amounts), callback);
+            assertTrue(responses.poll(5, TimeUnit.SECONDS).isSuccess());
+            assertNull(responses.poll(100, TimeUnit.MILLISECONDS));        // single response per batch
+
+            asyncProcessor.scheduleRequestProcessing(new BinaryBatchRequest(BinaryRequestType.MGET, 2, skus, stores, amounts), callback);
+            BinaryBatchResponse response = (BinaryBatchResponse) responses.poll(5, TimeUnit.SECONDS);
+            assertEquals(2, response.getRequestId());
+            for (int i = 0; i < 40; i++) {
+                assertEquals(9100 + i, response.getSku(i));
+                assertEquals(i, response.getAmount(i));
+            }
+            asyncProcessor.shutdown();
+        } finally {
+            for (int i = 0; i < storage.getShardNumber(); i++) {
+                new File(ShardedStorage.SHARD_FILE_PREFIX + i + ShardedStorage.SHARD_FILE_SUFFIX).delete();
+            }
+        }
+    }
+
+    /**
+     * Sub-batch of a busy shard is shed; its items are answered with BUSY,
+     * and items of the other shard are applied and answered as usual.
+     */
+    @Test
+    public void shedSubBatchTest() throws InterruptedException {
+        InMemoryStorage storage = new InMemoryStorage(300);
+        RequestProcessor processor = new RequestProcessor(new ThroughputMeter(), storage);
+        AsyncRequestProcessor asyncProcessor = new AsyncRequestProcessor(processor, 2, 1, true);
+
+        int[] skus = new int[20], amounts = new int[20];
+        short[] stores = new short[20];
+        int busyShard = -1;
+        for (int i = 0; i < 20; i++) {
+            skus[i] = 9400 + i;
+            stores[i] = (short) 1;
+            amounts[i] = i + 1;
+            if (busyShard < 0) busyShard = ShardedStorage.shardIdx(AvailabilityItem.key(skus[i], stores[i]), 2);
+        }
+
+        final BlockingQueue<BinaryResponse> responses = new ArrayBlockingQueue<BinaryResponse>(10);
+        AsyncRequestProcessor.ResponseWriteOutCallback callback = new AsyncRequestProcessor.ResponseWriteOutCallback() {
+            @Override
+            public void writeOut(BinaryResponse response) {
+                responses.offer(response);
+            }
+        };
+        // worker of the busy shard is occupied, and its queue is full
+        asyncProcessor.scheduleRequestProcessing(new BinaryRequest(BinaryRequestType.GET, skus[0], stores[0], 0), callback);
+        asyncProcessor.scheduleRequestProcessing(new BinaryRequest(BinaryRequestType.GET, skus[0], stores[0], 0), callback);
+        asyncProcessor.scheduleRequestProcessing(new BinaryBatchRequest(BinaryRequestType.MPUT, 7, skus, stores, amounts), callback);
+
+        BinaryBatchResponse response = null;
+        for (int i = 0; i < 3 && response == null; i++) {
+            BinaryResponse next = responses.poll(5, TimeUnit.SECONDS);
+            if (next.getRequestId() == 7) response = (BinaryBatchResponse) next;
+        }
+        assertTrue(response.isSuccess());
+        int busy = 0;
+        for (int i = 0; i < 20; i++) {
+            AvailabilityItem item = storage.get(AvailabilityItem.key(skus[i], stores[i]));
+            if (ShardedStorage.shardIdx(AvailabilityItem.key(skus[i], stores[i]), 2) == busyShard) {
+                assertEquals(BinaryErrorCodes.BUSY, response.getErrorCode(i));
+                assertNull(item);
+                busy++;
+            } else {
+                assertEquals(BinaryErrorCodes.SUCCESS, response.getErrorCode(i));
+                assertEquals(i + 1, response.getAmount(i));
+                assertEquals(i + 1, item.getAmount());
+            }
+        }
+        assertTrue(busy > 0 && busy < 20);
+        asyncProcessor.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shardNumberMismatchTest() {
+        ShardedStorage storage = new ShardedStorage(2, 64);
+        try {
+            new AsyncRequestProcessor(new RequestProcessor(new ThroughputMeter(), storage), 4, 1000, true);
+        } finally {
+            for (int i = 0; i < storage.getShardNumber(); i++) {
+                new File(ShardedStorage.SHARD_FILE_PREFIX + i + ShardedStorage.SHARD_FILE_SUFFIX).delete();
+            }
+        }
+    }
+
+    /**
+     * Concurrent checkouts of the same item: exactly as many DECREMENTs
+     * succeed as there was stock, no update is lost.
+     */
+    @Test
+    public void stockAdjustmentTest() throws InterruptedException {
+        RequestProcessor processor = new RequestProcessor(new ThroughputMeter(), new InMemoryStorage(0));
+        AsyncRequestProcessor asyncProcessor = new AsyncRequestProcessor(processor, 8, 1000);
+        processor.processRequest(new BinaryRequest(BinaryRequestType.PUT, 9200, (short) 3, 100));
+
+        final AtomicInteger succeeded = new AtomicInteger(), insufficient = new AtomicInteger();
+        final CountDownLatch completed = new CountDownLatch(150);
+        AsyncRequestProcessor.ResponseWriteOutCallback callback = new AsyncRequestProcessor.ResponseWriteOutCallback() {
+            @Override
+            public void writeOut(BinaryResponse response) {
+                if (response.isSuccess()) succeeded.incrementAndGet();
+                if (response.getErrorCode() == BinaryErrorCodes.INSUFFICIENT_AMOUNT) insufficient.incrementAndGet();
+                completed.countDown();
+            }
+        };
+        for (int i = 0; i < 150; i++) {
+            asyncProcessor.scheduleRequestProcessing(new BinaryRequest(BinaryRequestType.DECREMENT, i, 9200, (short) 3, 1), callback);
+        }
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        asyncProcessor.shutdown();
+
+        assertEquals(100, succeeded.get());
+        assertEquals(50, insufficient.get());
+        assertEquals(0, processor.processRequest(new BinaryRequest(BinaryRequestType.GET, 9200, (short) 3, 0)).getAmount());
+
+        BinaryResponse response = processor.processRequest(new BinaryRequest(BinaryRequestType.ADD, 9200, (short) 3, -5));
+        assertTrue(response.isSuccess());
+        assertEquals(0, response.getAmount());                          // floored at zero
+        assertEquals(7, processor.processRequest(new BinaryRequest(BinaryRequestType.ADD, 9200, (short) 3, 7)).getAmount());
+        assertEquals(4, processor.processRequest(new BinaryRequest(BinaryRequestType.ADD, 9201, (short) 3, 4)).getAmount());
+
+        response = processor.processRequest(new BinaryCompareAndSetRequest(9200, (short) 3, 3, 2));
+        assertEquals(BinaryErrorCodes.AMOUNT_MISMATCH, response.getErrorCode());
+        assertEquals(7, response.getAmount());                          // current amount is returned
+        response = processor.processRequest(new BinaryCompareAndSetRequest(9200, (short) 3, 7, 2));
+        assertTrue(response.isSuccess());
+        assertEquals(2, response.getAmount());
+
+        assertEquals(BinaryErrorCodes.ITEM_NOT_FOUND,
+                processor.processRequest(new BinaryRequest(BinaryRequestType.DECREMENT, 9202, (short) 3, 1)).getErrorCode());
+    }
+
+    /**
+     * Requests are processed from the received bytes into the output
+     * buffer, the same way as from request objects.
+     */
+    @Test
+    public void flyweightProcessingTest() {
+        RequestProcessor processor = new RequestProcessor(new ThroughputMeter(), new InMemoryStorage(0));
+        ByteBuffer in = ByteBuffer.allocate(BinaryRequest.REQUEST_SIZE * 3);
+        new BinaryRequest(BinaryRequestType.PUT, 1, 9300, (short) 4, 12).putToBuffer(in);
+        new BinaryRequest(BinaryRequestType.GET, 2, 9300, (short) 4, 0).putToBuffer(in);
+        new BinaryRequest(BinaryRequestType.REMOVE, 3, 9301, (short) 4, 0).putToBuffer(in);
+        ByteBuffer out = ByteBuffer.allocate(BinaryResponse.RESPONSE_SIZE * 3);
+
+        RequestFlyweight request = new RequestFlyweight();
+        ResponseFlyweight response = new ResponseFlyweight();
+        for (int i = 0; i < 3; i++) {
+            request.wrap(in, i * BinaryRequest.REQUEST_SIZE);
+            processor.processRequest(request, response.wrap(out));
+            response.commit();
+        }
+        out.flip();
+
+        assertTrue(BinaryResponse.fromByteBuffer(out).isSuccess());
+        BinaryResponse get = BinaryResponse.fromByteBuffer(out);
+        assertEquals(2, get.getRequestId());
+        assertEquals(12, get.getAmount());
+        BinaryResponse remove = BinaryResponse.fromByteBuffer(out);
+        assertEquals(3, remove.getRequestId());
+        assertEquals(BinaryErrorCodes.ITEM_NOT_FOUND, remove.getErrorCode());
+
+        request.wrap(in, BinaryRequest.REQUEST_SIZE);
+        assertTrue(processor.canProcessInline(request));
+        in.put(BinaryRequest.REQUEST_SIZE, BinaryRequestType.ADD.getCode());
+        assertFalse(processor.canProcessInline(request));             // processed via request objects
+    }
+}
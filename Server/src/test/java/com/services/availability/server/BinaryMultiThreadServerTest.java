@@ -1,19 +1,34 @@
 package com.services.availability.server;
 
 import com.services.availability.TestUtils;
+import com.services.availability.common.UnixSockets;
 import com.services.availability.client.singlethread.SingleThreadClient;
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryBatchResponse;
+import com.services.availability.protocol.binary.BinaryErrorCodes;
 import com.services.availability.protocol.binary.BinaryRequest;
 import com.services.availability.protocol.binary.BinaryRequestType;
 import com.services.availability.protocol.binary.BinaryResponse;
 import com.services.availability.storage.InMemoryStorage;
+import com.services.availability.storage.Storage;
+import com.services.availability.storage.btree.BTreeMMap;
+import com.services.availability.storage.ccl.commitlog.AsyncCommitLog;
+import com.services.availability.storage.ccl.commitlog.CommitLog;
 import org.apache.log4j.Logger;
 import org.junit.After;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.List;
 
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
 /**
  * @author Roman Reva
  * @version 1.0
@@ -26,8 +41,16 @@ public class BinaryMultiThreadServerTest {
     private Thread serverThread;
 
     public void setup(AbstractServer serverImpl, int storageDelay) throws IOException, InterruptedException {
+        setup(serverImpl, new InMemoryStorage(storageDelay));
+    }
+
+    public void setup(AbstractServer serverImpl, Storage storage) throws IOException, InterruptedException {
+        setup(serverImpl, new RequestProcessor(serverImpl.getThroughputMeter(), storage));
+    }
+
+    public void setup(AbstractServer serverImpl, RequestProcessor requestProcessor) throws IOException, InterruptedException {
         server = serverImpl;
-        server.setRequestProcessor(new RequestProcessor(server.getThroughputMeter(), new InMemoryStorage(storageDelay)));
+        server.setRequestProcessor(requestProcessor);
 
         log.debug("Starting server...");
         serverThread = new Thread(new Runnable() {
@@ -105,6 +128,388 @@ public class BinaryMultiThreadServerTest {
         avgLatency = avgLatency / reqNum;
         log.debug("Avg ltc: " + avgLatency);
 
+        client.closeClient();
         Thread.sleep(2000);
     }
+
+    /**
+     * Client sends a batch of requests without waiting for responses.
+     * Responses are completed by different workers and may be written out
+     * of order, but are matched to requests by request ID.
+     */
+    @Test
+    public void pipeliningTest() throws IOException, InterruptedException {
+        setup(new BinaryMultiThreadServer(), 0);
+
+        SingleThreadClient client = new SingleThreadClient("localhost", 8888);
+        client.initClient();
+
+        List<BinaryRequest> requests = new ArrayList<BinaryRequest>();
+        for (int i = 0; i < 50; i++) {
+            requests.add(new BinaryRequest(BinaryRequestType.PUT, 2000 + i, (short) 1, i));
+        }
+        assertEquals(50, client.performRequests(requests).size());
+
+        requests.clear();
+        for (int i = 0; i < 50; i++) {
+            requests.add(new BinaryRequest(BinaryRequestType.GET, 2000 + i, (short) 1, 0));
+        }
+        List<BinaryResponse> responses = client.performRequests(requests);
+        for (int i = 0; i < 50; i++) {
+            assertTrue(responses.get(i).isSuccess());
+            assertEquals(2000 + i, responses.get(i).getSku());
+            assertEquals(i, responses.get(i).getAmount());
+        }
+
+        client.closeClient();
+    }
+
+    /**
+     * Batch is larger than the limit of requests in flight, so the
+     * connection is paused and resumed while responses are flushed.
+     */
+    @Test
+    public void largePipelineTest() throws IOException, InterruptedException {
+        setup(new BinaryMultiThreadServer(4, 1), 0);
+
+        SingleThreadClient client = new SingleThreadClient("localhost", 8888);
+        client.initClient();
+
+        List<BinaryRequest> requests = new ArrayList<BinaryRequest>();
+        for (int i = 0; i < 1000; i++) {
+            requests.add(new BinaryRequest(BinaryRequestType.PUT, 4000 + i, (short) 2, i));
+        }
+        List<BinaryResponse> responses = client.performRequests(requests);
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(4000 + i, responses.get(i).getSku());
+        }
+
+        client.closeClient();
+    }
+
+    /**
+     * Several connections are spread between two reactors and served
+     * at the same time.
+     */
+    @Test
+    public void multiReactorTest() throws IOException, InterruptedException {
+        setup(new BinaryMultiThreadServer(4, 2), 0);
+
+        List<SingleThreadClient> clients = new ArrayList<SingleThreadClient>();
+        for (int i = 0; i < 5; i++) {
+            SingleThreadClient client = new SingleThreadClient("localhost", 8888);
+            client.initClient();
+            clients.add(client);
+        }
+
+        for (int i = 0; i < 20; i++) {
+            for (int c = 0; c < clients.size(); c++) {
+                BinaryResponse response = clients.get(c).performRequest(new BinaryRequest(BinaryRequestType.PUT, 3000 + c, (short) 1, i));
+                assertTrue(response.isSuccess());
+                assertEquals(i, response.getAmount());
+            }
+        }
+
+        for (SingleThreadClient client: clients) {
+            client.closeClient();
+        }
+    }
+
+    /**
+     * Storage answers without blocking, so all requests are processed
+     * on the reactor thread.
+     */
+    @Test
+    public void inlineExecutionTest() throws IOException, InterruptedException {
+        BinaryMultiThreadServer serverImpl = new BinaryMultiThreadServer(4, 1);
+        serverImpl.setInlineExecution(true);
+        setup(serverImpl, 0);
+
+        SingleThreadClient client = new SingleThreadClient("localhost", 8888);
+        client.initClient();
+
+        List<BinaryRequest> requests = new ArrayList<BinaryRequest>();
+        for (int i = 0; i < 300; i++) {
+            requests.add(new BinaryRequest(BinaryRequestType.PUT, 6000 + i, (short) 4, i));
+        }
+        assertEquals(300, client.performRequests(requests).size());
+
+        requests.clear();
+        for (int i = 0; i < 300; i++) {
+            requests.add(new BinaryRequest(BinaryRequestType.GET, 6000 + i, (short) 4, 0));
+        }
+        List<BinaryResponse> responses = client.performRequests(requests);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(i, responses.get(i).getAmount());
+        }
+
+        assertEquals(600, serverImpl.getInlineRequests());
+        assertEquals(0, serverImpl.getOffloadedRequests());
+
+        client.closeClient();
+    }
+
+    /**
+     * Storage blocks on every operation, so requests go to the worker pool
+     * even though inline execution is enabled.
+     */
+    @Test
+    public void slowStorageOffloadTest() throws IOException, InterruptedException {
+        BinaryMultiThreadServer serverImpl = new BinaryMultiThreadServer(4, 1);
+        serverImpl.setInlineExecution(true);
+        setup(serverImpl, 1);
+
+        SingleThreadClient client = new SingleThreadClient("localhost", 8888);
+        client.initClient();
+
+        List<BinaryRequest> requests = new ArrayList<BinaryRequest>();
+        for (int i = 0; i < 50; i++) {
+            requests.add(new BinaryRequest(BinaryRequestType.PUT, 7000 + i, (short) 5, i));
+        }
+        assertEquals(50, client.performRequests(requests).size());
+
+        assertEquals(0, serverImpl.getInlineRequests());
+        assertEquals(50, serverImpl.getOffloadedRequests());
+
+        client.closeClient();
+    }
+
+    /**
+     * Pipelined batch overflows the worker queue; overflowing requests are
+     * answered with BUSY instead of waiting.
+     */
+    @Test
+    public void loadSheddingTest() throws IOException, InterruptedException {
+        BinaryMultiThreadServer serverImpl = new BinaryMultiThreadServer(1, 1);
+        serverImpl.setQueueCapacity(4);
+        setup(serverImpl, 50);
+
+        SingleThreadClient client = new SingleThreadClient("localhost", 8888);
+        client.initClient();
+
+        List<BinaryRequest> requests = new ArrayList<BinaryRequest>();
+        for (int i = 0; i < 20; i++) {
+            requests.add(new BinaryRequest(BinaryRequestType.PUT, 8000 + i, (short) 6, i));
+        }
+        int busy = 0;
+        for (BinaryResponse response: client.performRequests(requests)) {
+            if (response.isBusy()) busy++;
+            else assertTrue(response.isSuccess());
+        }
+
+        assertTrue(busy > 0);
+        assertEquals(busy, serverImpl.getShedRequests());
+
+        client.closeClient();
+    }
+
+    /**
+     * Availability of a SKU in 50 stores is updated, read and removed with
+     * a single request each.
+     */
+    @Test
+    public void batchRequestTest() throws IOException, InterruptedException {
+        setup(new BinaryMultiThreadServer(), 0);
+
+        SingleThreadClient client = new SingleThreadClient("localhost", 8888);
+        client.initClient();
+
+        int[] skus = new int[50], amounts = new int[50];
+        short[] stores = new short[50];
+        for (int i = 0; i < 50; i++) {
+            skus[i] = 9500;
+            stores[i] = (short) i;
+            amounts[i] = i * 10;
+        }
+        BinaryBatchResponse response = client.performBatchRequest(new BinaryBatchRequest(BinaryRequestType.MPUT, skus, stores, amounts));
+        assertTrue(response.isSuccess());
+        assertEquals(50, response.size());
+
+        response = client.performBatchRequest(new BinaryBatchRequest(BinaryRequestType.MREMOVE,
+                new int[] {9500}, new short[] {7}, new int[] {0}));
+        assertEquals(70, response.getAmount(0));
+
+        List<BinaryRequest> requests = new ArrayList<BinaryRequest>();
+        requests.add(new BinaryRequest(BinaryRequestType.GET, 9500, (short) 3, 0));
+        requests.add(new BinaryBatchRequest(BinaryRequestType.MGET, skus, stores, amounts));
+        requests.add(new BinaryRequest(BinaryRequestType.GET, 9500, (short) 4, 0));
+        List<BinaryResponse> responses = client.performRequests(requests);
+
+        assertEquals(30, responses.get(0).getAmount());
+        assertEquals(40, responses.get(2).getAmount());
+        response = (BinaryBatchResponse) responses.get(1);
+        for (int i = 0; i < 50; i++) {
+            if (i == 7) {
+                assertEquals(BinaryErrorCodes.ITEM_NOT_FOUND, response.getErrorCode(i));
+            } else {
+                assertEquals(i * 10, response.getAmount(i));
+                assertEquals(i, response.getStore(i));
+            }
+        }
+
+        client.closeClient();
+    }
+
+    /**
+     * Stores of a SKU are read page by page with SCAN_SKU from an ordered
+     * storage; an unordered one rejects the request.
+     */
+    @Test
+    public void scanSkuTest() throws IOException, InterruptedException {
+        BTreeMMap storage = new BTreeMMap("test_scan.dat");
+        try {
+            setup(new BinaryMultiThreadServer(), storage);
+
+            SingleThreadClient client = new SingleThreadClient("localhost", 8888);
+            client.initClient();
+
+            for (int store = 0; store < 120; store++) {
+                client.performRequest(new BinaryRequest(BinaryRequestType.PUT, 9600, (short) store, store * 2));
+            }
+            client.performRequest(new BinaryRequest(BinaryRequestType.PUT, 9601, (short) 0, 1));
+
+            BinaryBatchResponse response = client.scanSku(9600, (short) 0, 100);
+            assertTrue(response.isSuccess());
+            assertEquals(100, response.size());
+            assertEquals(198, response.getAmount(99));
+
+            List<BinaryRequest> requests = new ArrayList<BinaryRequest>();
+            requests.add(new BinaryRequest(BinaryRequestType.SCAN_SKU, 9600, (short) (response.getStore(99) + 1), 100));
+            requests.add(new BinaryRequest(BinaryRequestType.GET, 9601, (short) 0, 0));
+            List<BinaryResponse> responses = client.performRequests(requests);
+
+            response = (BinaryBatchResponse) responses.get(0);
+            assertEquals(20, response.size());                     // last page
+            assertEquals(100, response.getStore(0));
+            assertEquals(1, responses.get(1).getAmount());
+
+            client.closeClient();
+        } finally {
+            new File("test_scan.dat").delete();
+        }
+    }
+
+    /**
+     * Clients on the same host connect to the Unix domain socket, while
+     * the server keeps listening on TCP.
+     */
+    @Test
+    public void unixSocketTest() throws IOException, InterruptedException {
+        if (!UnixSockets.isSupported()) {
+            setup(new BinaryMultiThreadServer(), 0);           // nothing to test on this runtime
+            return;
+        }
+        BinaryMultiThreadServer multiThreadServer = new BinaryMultiThreadServer();
+        multiThreadServer.setUnixSocketPath("test_availability.sock");
+        setup(multiThreadServer, 0);
+
+        SingleThreadClient unixClient = new SingleThreadClient(UnixSockets.address("test_availability.sock"));
+        unixClient.initClient();
+        SingleThreadClient tcpClient = new SingleThreadClient("localhost", 8888);
+        tcpClient.initClient();
+
+        for (int i = 0; i < 100; i++) {
+            assertTrue(unixClient.performRequest(new BinaryRequest(BinaryRequestType.PUT, 9700 + i, (short) 1, i)).isSuccess());
+        }
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, tcpClient.performRequest(new BinaryRequest(BinaryRequestType.GET, 9700 + i, (short) 1, 0)).getAmount());
+        }
+        List<BinaryRequest> requests = new ArrayList<BinaryRequest>();
+        for (int i = 0; i < 100; i++) requests.add(new BinaryRequest(BinaryRequestType.GET, 9700 + i, (short) 1, 0));
+        List<BinaryResponse> responses = unixClient.performRequests(requests);
+        assertEquals(99, responses.get(99).getAmount());
+
+        unixClient.closeClient();
+        tcpClient.closeClient();
+
+        server.shutdown();
+        assertFalse(new File("test_availability.sock").exists());
+    }
+
+    /**
+     * Same client traffic served by a thread per connection.
+     */
+    @Test
+    public void virtualThreadServerTest() throws IOException, InterruptedException {
+        setup(new VirtualThreadServer(), 0);
+
+        SingleThreadClient client = new SingleThreadClient("localhost", 8888);
+        client.initClient();
+
+        BinaryResponse response = client.performRequest(new BinaryRequest(BinaryRequestType.PUT, 5000, (short) 3, 42));
+        assertTrue(response.isSuccess());
+
+        List<BinaryRequest> requests = new ArrayList<BinaryRequest>();
+        for (int i = 0; i < 200; i++) {
+            requests.add(new BinaryRequest(BinaryRequestType.GET, 5000, (short) 3, 0));
+        }
+        for (BinaryResponse getResponse: client.performRequests(requests)) {
+            assertEquals(42, getResponse.getAmount());
+        }
+
+        client.closeClient();
+    }
+
+    /**
+     * Pipelined mutations, more than the limit of requests in flight, are
+     * dispatched by the connection thread before their responses become
+     * durable in the commit log; responses are written as they complete.
+     */
+    @Test
+    public void virtualThreadPipelineTest() throws IOException, InterruptedException {
+        AsyncCommitLog commitLog = new AsyncCommitLog(new CommitLog(Files.createTempDirectory("commitlog").toFile(), 1));
+        VirtualThreadServer virtualThreadServer = new VirtualThreadServer();
+        RequestProcessor requestProcessor = new RequestProcessor(virtualThreadServer.getThroughputMeter(), new InMemoryStorage(0));
+        requestProcessor.setCommitLog(commitLog);
+        setup(virtualThreadServer, requestProcessor);
+
+        SingleThreadClient client = new SingleThreadClient("localhost", 8888);
+        client.initClient();
+
+        List<BinaryRequest> requests = new ArrayList<BinaryRequest>();
+        for (int i = 0; i < 500; i++) {
+            requests.add(new BinaryRequest(BinaryRequestType.PUT, 5100 + i, (short) 3, i));
+        }
+        for (BinaryResponse response: client.performRequests(requests)) {
+            assertTrue(response.isSuccess());
+        }
+        assertEquals(500, commitLog.getCommitLog().getLastSequence());
+
+        requests.clear();
+        for (int i = 0; i < 500; i++) {
+            requests.add(new BinaryRequest(BinaryRequestType.GET, 5100 + i, (short) 3, 0));
+        }
+        List<BinaryResponse> responses = client.performRequests(requests);
+        for (int i = 0; i < 500; i++) {
+            assertEquals(i, responses.get(i).getAmount());
+        }
+
+        client.closeClient();
+        commitLog.close();
+    }
+
+    /**
+     * Server closes the connection after the idle timeout, and the client
+     * transparently reconnects on the next request.
+     */
+    @Test
+    public void idleTimeoutTest() throws IOException, InterruptedException {
+        BinaryMultiThreadServer serverImpl = new BinaryMultiThreadServer();
+        serverImpl.setIdleTimeout(500);
+        setup(serverImpl, 0);
+
+        SingleThreadClient client = new SingleThreadClient("localhost", 8888);
+        client.initClient();
+
+        BinaryResponse response = client.performRequest(new BinaryRequest(BinaryRequestType.PUT, 1000, (short) 325, 10));
+        assertTrue(response.isSuccess());
+
+        Thread.sleep(2500);
+
+        response = client.performRequest(new BinaryRequest(BinaryRequestType.GET, 1000, (short) 325, 0));
+        assertTrue(response.isSuccess());
+        assertEquals(10, response.getAmount());
+
+        client.closeClient();
+    }
 }
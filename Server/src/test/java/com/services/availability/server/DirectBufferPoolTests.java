@@ -0,0 +1,137 @@
+package com.services.availability.server;
+
+import com.services.availability.common.ThroughputMeter;
+import com.services.availability.storage.InMemoryStorage;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-01 12:30
+ */
+public class DirectBufferPoolTests {
+
+    @Test
+    public void acquireReleaseTest() {
+        DirectBufferPool pool = new DirectBufferPool(16, 4);
+        assertEquals(4, pool.getAvailable());
+
+        ByteBuffer[] buffers = new ByteBuffer[5];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = pool.acquire();
+            assertEquals(i < 4, buffers[i].isDirect());        // heap buffer once the pool is exhausted
+            assertEquals(16, buffers[i].remaining());
+            buffers[i].putLong(i).putLong(-i);
+        }
+        assertEquals(0, pool.getAvailable());
+        assertEquals(1, pool.getMisses());
+
+        // slices of the pool do not overlap
+        for (int i = 0; i < buffers.length; i++) {
+            assertEquals(i, buffers[i].getLong(0));
+            assertEquals(-i, buffers[i].getLong(8));
+        }
+
+        for (ByteBuffer buffer: buffers) pool.release(buffer);
+        assertEquals(4, pool.getAvailable());
+        assertEquals(16, pool.acquire().remaining());
+    }
+
+    /**
+     * Batch frames get buffers of the large size class; larger frames and
+     * exhausted classes get heap buffers, which are not pooled.
+     */
+    @Test
+    public void sizeClassesTest() {
+        DirectBufferPool pool = new DirectBufferPool(16, 2, 64, 1);
+
+        ByteBuffer large = pool.acquire(40);
+        assertTrue(large.isDirect());
+        assertEquals(64, large.capacity());
+        assertEquals(0, pool.getLargeAvailable());
+        assertEquals(2, pool.getAvailable());
+
+        ByteBuffer missed = pool.acquire(40);
+        assertFalse(missed.isDirect());
+        ByteBuffer huge = pool.acquire(100);
+        assertFalse(huge.isDirect());
+        assertEquals(2, pool.getMisses());
+
+        pool.release(large);
+        pool.release(missed);
+        pool.release(huge);
+        assertEquals(1, pool.getLargeAvailable());
+        assertEquals(2, pool.getAvailable());
+    }
+
+    /**
+     * Response, which does not fit the write queue, is released to the pool
+     * and the connection is marked failed, so that the reactor closes it.
+     */
+    @Test
+    public void writeQueueOverflowTest() throws IOException {
+        DirectBufferPool pool = new DirectBufferPool(16, 4);
+        AsyncRequestProcessor processor = new AsyncRequestProcessor(new RequestProcessor(new ThroughputMeter(), new InMemoryStorage()), 1);
+        Reactor reactor = new Reactor("test-reactor", processor, pool, 0);
+
+        Selector selector = Selector.open();
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, channel.register(selector, 0), reactor, 1);
+
+        connection.writeOut(pool.acquire().putLong(1));
+        assertFalse(connection.isFailed());
+        connection.writeOut(pool.acquire().putLong(2));
+        assertTrue(connection.isFailed());
+        assertEquals(3, pool.getAvailable());
+
+        assertTrue(connection.close());
+        connection.releaseBuffers(pool);
+        assertEquals(4, pool.getAvailable());
+
+        selector.close();
+        processor.shutdown();
+    }
+
+    /**
+     * Response is queued by a worker after the reactor has closed the
+     * connection and released its buffers; the buffer still gets back to
+     * the pool.
+     */
+    @Test
+    public void writeOutAfterCloseTest() throws IOException {
+        DirectBufferPool pool = new DirectBufferPool(16, 4);
+        AsyncRequestProcessor processor = new AsyncRequestProcessor(new RequestProcessor(new ThroughputMeter(), new InMemoryStorage()), 1);
+        Reactor reactor = new Reactor("test-reactor", processor, pool, 0);
+
+        Selector selector = Selector.open();
+        SocketChannel channel = SocketChannel.open();
+        channel.configureBlocking(false);
+        Connection connection = new Connection(channel, channel.register(selector, 0), reactor, 4);
+
+        ByteBuffer queued = pool.acquire();
+        ByteBuffer late = pool.acquire();
+        connection.writeOut(queued.putLong(1));
+        assertEquals(2, pool.getAvailable());
+
+        assertTrue(connection.close());
+        connection.releaseBuffers(pool);
+        assertEquals(3, pool.getAvailable());
+
+        connection.writeOut(late.putLong(2));                 // worker has passed the closed check before the close
+        assertEquals(4, pool.getAvailable());
+        assertFalse(connection.hasPendingWrites());
+
+        selector.close();
+        processor.shutdown();
+    }
+}
@@ -0,0 +1,138 @@
+package com.services.availability.server;
+
+import com.services.availability.protocol.binary.BinaryBatchRequest;
+import com.services.availability.protocol.binary.BinaryRequest;
+import com.services.availability.protocol.binary.BinaryRequestType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-31 11:40
+ */
+public class FrameDecoderTests {
+
+    /**
+     * Stream of requests is delivered in chunks of various sizes, so that
+     * frames are split between reads and several frames arrive at once.
+     */
+    @Test
+    public void partialAndCoalescedFramesTest() throws IOException {
+        List<BinaryRequest> requests = new ArrayList<BinaryRequest>();
+        ByteBuffer stream = ByteBuffer.allocate(BinaryRequest.REQUEST_SIZE * 100);
+        for (int i = 0; i < 100; i++) {
+            BinaryRequest request = new BinaryRequest(BinaryRequestType.PUT, i, 1000 + i, (short) (i % 7), i * 3);
+            request.putToBuffer(stream);
+            requests.add(request);
+        }
+        stream.flip();
+
+        FrameDecoder decoder = new FrameDecoder(BinaryRequest.REQUEST_SIZE * 4);
+        ChunkedChannel channel = new ChunkedChannel(stream, new int[] {1, 7, 14, 30, 2, 45, 60, 13, 3});
+
+        List<BinaryRequest> decoded = new ArrayList<BinaryRequest>();
+        while (decoder.readFrom(channel) != -1) {
+            BinaryRequest request;
+            while ((request = decoder.next()) != null) {
+                decoded.add(request);
+            }
+        }
+
+        assertEquals(requests, decoded);
+        assertEquals(0, decoder.getPendingBytes());
+        assertNull(decoder.next());
+    }
+
+    @Test
+    public void incompleteFrameTest() throws IOException {
+        ByteBuffer stream = ByteBuffer.allocate(BinaryRequest.REQUEST_SIZE);
+        new BinaryRequest(BinaryRequestType.GET, 1, 1000, (short) 1, 0).putToBuffer(stream);
+        stream.flip();
+        stream.limit(BinaryRequest.REQUEST_SIZE - 1);
+
+        FrameDecoder decoder = new FrameDecoder();
+        decoder.readFrom(new ChunkedChannel(stream, new int[] {100}));
+
+        assertNull(decoder.next());
+        assertEquals(BinaryRequest.REQUEST_SIZE - 1, decoder.getPendingBytes());
+    }
+
+    /**
+     * Batch frame larger than the read buffer is assembled in an enlarged
+     * buffer, and single frames around it are decoded as usual.
+     */
+    @Test
+    public void batchFrameTest() throws IOException {
+        int[] skus = new int[100], amounts = new int[100];
+        short[] stores = new short[100];
+        for (int i = 0; i < 100; i++) {
+            skus[i] = 1000 + i;
+            stores[i] = (short) i;
+            amounts[i] = i * 2;
+        }
+        BinaryRequest single = new BinaryRequest(BinaryRequestType.GET, 1, 1000, (short) 1, 0);
+        BinaryRequest batch = new BinaryBatchRequest(BinaryRequestType.MPUT, 2, skus, stores, amounts);
+
+        ByteBuffer stream = ByteBuffer.allocate(single.getFrameSize() * 2 + batch.getFrameSize());
+        single.putToBuffer(stream);
+        batch.putToBuffer(stream);
+        single.putToBuffer(stream);
+        stream.flip();
+
+        FrameDecoder decoder = new FrameDecoder(BinaryRequest.REQUEST_SIZE * 4);
+        ChunkedChannel channel = new ChunkedChannel(stream, new int[] {3, 50, 17, 200});
+
+        List<BinaryRequest> decoded = new ArrayList<BinaryRequest>();
+        while (decoder.readFrom(channel) != -1) {
+            BinaryRequest request;
+            while ((request = decoder.next()) != null) {
+                decoded.add(request);
+            }
+        }
+
+        assertEquals(3, decoded.size());
+        assertEquals(single, decoded.get(0));
+        assertEquals(batch, decoded.get(1));
+        assertEquals(single, decoded.get(2));
+    }
+
+    /**
+     * Channel that returns the data in chunks of the specified sizes.
+     */
+    private static class ChunkedChannel implements ReadableByteChannel {
+        private final ByteBuffer data;
+        private final int[] chunks;
+        private int chunkIdx = 0;
+
+        ChunkedChannel(ByteBuffer data, int[] chunks) {
+            this.data = data;
+            this.chunks = chunks;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!data.hasRemaining()) return -1;
+
+            int length = Math.min(Math.min(chunks[chunkIdx++ % chunks.length], data.remaining()), dst.remaining());
+            for (int i = 0; i < length; i++) dst.put(data.get());
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() { }
+    }
+}
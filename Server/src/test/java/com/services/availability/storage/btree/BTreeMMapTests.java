@@ -0,0 +1,97 @@
+package com.services.availability.storage.btree;
+
+import com.services.availability.model.AvailabilityItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+
+/**
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-09 12:00
+ */
+public class BTreeMMapTests {
+    private static final String STORAGE_FILE = "test_ordered.dat";
+
+    private Random random = new Random();
+
+    @Before
+    @After
+    public void cleanup() {
+        new File(STORAGE_FILE).delete();
+    }
+
+    /**
+     * Small pages make the tree a few levels deep, so that leaf and inner
+     * splits are exercised. Result is verified against a TreeMap, also
+     * after the file is reopened.
+     */
+    @Test
+    public void randomIntegrationTest() {
+        BTreeMMap tree = new BTreeMMap(STORAGE_FILE, 4);
+        TreeMap<Long, AvailabilityItem> expected = new TreeMap<Long, AvailabilityItem>();
+
+        for (int i = 0; i < 20000; i++) {
+            AvailabilityItem item = new AvailabilityItem(random.nextInt(500), (short) random.nextInt(50), random.nextInt(1000));
+            if (random.nextInt(4) == 0) {
+                AvailabilityItem removed = tree.remove(item.key());
+                assertEquals(expected.remove(item.key()), removed);
+            } else {
+                tree.put(item.key(), item);
+                expected.put(item.key(), item);
+            }
+        }
+        assertEquals(expected.size(), tree.size());
+        for (Map.Entry<Long, AvailabilityItem> entry: expected.entrySet()) {
+            assertEquals(entry.getValue(), tree.get(entry.getKey()));
+        }
+        assertNull(tree.get(AvailabilityItem.key(600, (short) 1)));
+        tree.prepareForShutdown();
+
+        BTreeMMap reopened = new BTreeMMap(STORAGE_FILE);
+        assertEquals(expected.size(), reopened.size());
+        List<AvailabilityItem> all = reopened.scan(Long.MIN_VALUE, Long.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(expected.size(), all.size());
+        int i = 0;
+        for (AvailabilityItem item: expected.values()) {
+            assertEquals(item, all.get(i++));
+        }
+    }
+
+    /**
+     * All stores of a SKU are returned in store order, and nothing of the
+     * neighbour SKUs.
+     */
+    @Test
+    public void scanSkuTest() {
+        BTreeMMap tree = new BTreeMMap(STORAGE_FILE, 8);
+        for (int sku = 100; sku < 110; sku++) {
+            for (int store = 300; store > 0; store -= 3) {
+                AvailabilityItem item = new AvailabilityItem(sku, (short) store, sku * 1000 + store);
+                tree.put(item.key(), item);
+            }
+        }
+
+        List<AvailabilityItem> items = tree.scanSku(105, 1000);
+        assertEquals(100, items.size());
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(105, items.get(i).getSku());
+            assertEquals(3 + 3 * i, items.get(i).getStore());
+            assertEquals(105000 + 3 + 3 * i, items.get(i).getAmount());
+        }
+
+        items = tree.scan(AvailabilityItem.key(105, (short) 100), AvailabilityItem.key(105, Short.MAX_VALUE), 5);
+        assertEquals(5, items.size());
+        assertEquals(102, items.get(0).getStore());
+        assertEquals(0, tree.scanSku(99, 1000).size());
+    }
+}
@@ -0,0 +1,197 @@
+package com.services.availability.storage.ccl.commitlog;
+
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.storage.ccl.LogRecord;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-25 15:10
+ */
+public class AsyncCommitLogTests {
+
+    @Test
+    public void sleepingStrategyTest() throws Exception {
+        publishAndReadBack(new WaitStrategy.Sleeping());
+    }
+
+    @Test
+    public void yieldingStrategyTest() throws Exception {
+        publishAndReadBack(new WaitStrategy.Yielding());
+    }
+
+    @Test
+    public void blockingStrategyTest() throws Exception {
+        publishAndReadBack(new WaitStrategy.Blocking());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void publishAfterCloseTest() throws Exception {
+        AsyncCommitLog commitLog = new AsyncCommitLog(new CommitLog(Files.createTempDirectory("commitlog").toFile(), 1));
+        commitLog.close();
+        commitLog.publishRemove(1);
+    }
+
+    /**
+     * Log is closed while records are published; every returned future
+     * should complete, the rest of publishers are rejected.
+     */
+    @Test
+    public void closeWhilePublishingTest() throws Exception {
+        final AsyncCommitLog commitLog = new AsyncCommitLog(new CommitLog(Files.createTempDirectory("commitlog").toFile(), 1),
+                64, 16, new WaitStrategy.Yielding());
+        final List<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final short store = (short) i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    List<CompletableFuture<Long>> published = new ArrayList<CompletableFuture<Long>>();
+                    try {
+                        for (int amount = 0; ; amount++) {
+                            published.add(commitLog.publishPut(new AvailabilityItem(3000, store, amount)));
+                        }
+                    } catch (IllegalStateException e) {
+                        // closed
+                    }
+                    synchronized (futures) {
+                        futures.addAll(published);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        Thread.sleep(50);
+        commitLog.close();
+        for (Thread thread: threads) thread.join();
+
+        for (CompletableFuture<Long> future: futures) {
+            assertTrue(future.get(5, TimeUnit.SECONDS) >= 0);
+        }
+        assertEquals(0, commitLog.getPendingRecords());
+    }
+
+    /**
+     * Failure of the sync listener does not stop the writer thread: the
+     * futures of the batch and of later records complete.
+     */
+    @Test
+    public void failingListenerTest() throws Exception {
+        AsyncCommitLog commitLog = new AsyncCommitLog(new CommitLog(Files.createTempDirectory("commitlog").toFile(), 1));
+        commitLog.setSyncListener(new AsyncCommitLog.SyncListener() {
+            @Override
+            public void recordsSynced(List<LogRecord> records) {
+                throw new IllegalStateException("listener failure");
+            }
+        });
+
+        assertEquals(1, (long) commitLog.publishPut(new AvailabilityItem(4000, (short) 1, 1)).get(5, TimeUnit.SECONDS));
+        assertEquals(2, (long) commitLog.publishRemove(AvailabilityItem.key(4000, (short) 1)).get(5, TimeUnit.SECONDS));
+        assertFalse(commitLog.isFailed());
+        commitLog.close();
+    }
+
+    /**
+     * Runtime failure of an append stops the log like an IOException: the
+     * futures fail instead of hanging.
+     */
+    @Test
+    public void failingAppendTest() throws Exception {
+        AsyncCommitLog commitLog = new AsyncCommitLog(new CommitLog(Files.createTempDirectory("commitlog").toFile(), 1) {
+            @Override
+            public long addPutRecord(AvailabilityItem item) {
+                throw new IllegalArgumentException("append failure");
+            }
+        });
+
+        CompletableFuture<Long> failed = commitLog.publishPut(new AvailabilityItem(4000, (short) 1, 1));
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail("Append should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        assertTrue(commitLog.isFailed());
+
+        CompletableFuture<Long> later = commitLog.publishRemove(AvailabilityItem.key(4000, (short) 1));
+        try {
+            later.get(5, TimeUnit.SECONDS);
+            fail("Log is stopped");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        commitLog.close();
+    }
+
+    /**
+     * Several threads publish records into a small ring buffer, so that
+     * producers have to wait for the writer. Every future should complete
+     * with a distinct sequence number, and all records should be found
+     * in the log files afterwards.
+     */
+    private void publishAndReadBack(WaitStrategy waitStrategy) throws Exception {
+        final File directory = Files.createTempDirectory("commitlog").toFile();
+        final AsyncCommitLog commitLog = new AsyncCommitLog(new CommitLog(directory, 1), 64, 16, waitStrategy);
+        final int threadNum = 4, recordNum = 2000;
+        final List<CompletableFuture<Long>> futures = new ArrayList<CompletableFuture<Long>>();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadNum; i++) {
+            final short store = (short) i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    List<CompletableFuture<Long>> published = new ArrayList<CompletableFuture<Long>>();
+                    for (int amount = 0; amount < recordNum; amount++) {
+                        published.add(commitLog.publishPut(new AvailabilityItem(2000, store, amount)));
+                    }
+                    published.add(commitLog.publishRemove(AvailabilityItem.key(2000, store)));
+                    synchronized (futures) {
+                        futures.addAll(published);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread: threads) thread.join();
+
+        Set<Long> sequences = new HashSet<Long>();
+        for (CompletableFuture<Long> future: futures) {
+            sequences.add(future.get());
+        }
+        assertEquals(threadNum * (recordNum + 1), sequences.size());
+        commitLog.close();
+        assertEquals(0, commitLog.getPendingRecords());
+
+        CommitLogReader reader = CommitLogReader.forDirectory(directory);
+        LogRecord record;
+        int count = 0;
+        while ((record = reader.next()) != null) {
+            assertTrue(sequences.contains(record.getSequence()));
+            count++;
+        }
+        reader.close();
+        assertEquals(threadNum * (recordNum + 1), count);
+    }
+}
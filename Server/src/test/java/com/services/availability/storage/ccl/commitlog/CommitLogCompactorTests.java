@@ -0,0 +1,245 @@
+package com.services.availability.storage.ccl.commitlog;
+
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.storage.InMemoryStorage;
+import com.services.availability.utils.IoThrottle;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-26 14:05
+ */
+public class CommitLogCompactorTests {
+    private static final int KEY_NUM = 50;
+
+    /**
+     * Writes many updates of a small set of keys, so that lanes are sealed
+     * several times, and verifies that compaction keeps only the latest
+     * record of every key and does not change the replay result.
+     */
+    @Test
+    public void compactionTest() throws Exception {
+        File directory = Files.createTempDirectory("commitlog").toFile();
+        CommitLog commitLog = new CommitLog(directory, 1);
+        commitLog.setMaxSegmentSize(4 * 1024);
+
+        for (int amount = 0; amount < 200; amount++) {
+            for (int sku = 0; sku < KEY_NUM; sku++) {
+                commitLog.addPutRecord(new AvailabilityItem(sku, (short) 1, amount + sku));
+            }
+        }
+        for (int sku = 0; sku < KEY_NUM; sku += 5) {
+            commitLog.addRemoveRecord(AvailabilityItem.key(sku, (short) 1));
+        }
+
+        assertTrue(commitLog.listSealedFiles().size() > 1);
+        assertEquals(CommitLog.listLogFiles(directory).size() - 1, commitLog.listSealedFiles().size());
+
+        CommitLogCompactor compactor = new CommitLogCompactor(commitLog, IoThrottle.unlimited());
+        long reclaimed = compactor.compact();
+        commitLog.closeLogFiles();
+
+        assertTrue(reclaimed > 0);
+        assertEquals(KEY_NUM, compactor.getCompactedRecords());
+        assertEquals(2, CommitLog.listLogFiles(directory).size());     // compacted segment + active lane
+
+        File segment = compactedSegments(directory).get(0);
+
+        // the former active lane is sealed after restart and is compacted into a new segment
+        commitLog = new CommitLog(directory, 200 * KEY_NUM + KEY_NUM / 5 + 1);
+        compactor = new CommitLogCompactor(commitLog, IoThrottle.unlimited());
+        compactor.compact();
+        assertEquals(0, compactor.compact());
+
+        List<File> files = CommitLog.listLogFiles(directory);
+        assertEquals(2, files.size());
+        assertTrue(files.contains(segment));
+        for (File file: files) assertTrue(CommitLogCompactor.isCompacted(file));
+
+        InMemoryStorage storage = new InMemoryStorage();
+        CommitLogReader reader = CommitLogReader.forDirectory(directory);
+        assertEquals(KEY_NUM + compactor.getCompactedRecords(), reader.replay(storage));
+        reader.close();
+
+        for (int sku = 0; sku < KEY_NUM; sku++) {
+            AvailabilityItem item = storage.get(AvailabilityItem.key(sku, (short) 1));
+            if (sku % 5 == 0) {
+                assertNull(item);
+            } else {
+                assertEquals(199 + sku, item.getAmount());
+            }
+        }
+    }
+
+    /**
+     * Compaction with a small key limit per pass splits the keys into
+     * several segments, and gives the same replay result.
+     */
+    @Test
+    public void partitionedCompactionTest() throws Exception {
+        File directory = Files.createTempDirectory("commitlog").toFile();
+        CommitLog commitLog = new CommitLog(directory, 1);
+        commitLog.setMaxSegmentSize(4 * 1024);
+
+        for (int amount = 0; amount < 20; amount++) {
+            for (int sku = 0; sku < KEY_NUM; sku++) {
+                commitLog.addPutRecord(new AvailabilityItem(sku, (short) 1, amount + sku));
+            }
+        }
+        for (int sku = 0; sku < KEY_NUM; sku += 5) {
+            commitLog.addRemoveRecord(AvailabilityItem.key(sku, (short) 1));
+        }
+        commitLog.closeLogFiles();
+
+        commitLog = new CommitLog(directory, 20 * KEY_NUM + KEY_NUM / 5 + 1);
+        CommitLogCompactor compactor = new CommitLogCompactor(commitLog, IoThrottle.unlimited(), 8);
+        assertTrue(compactor.compact() > 0);
+        assertEquals(KEY_NUM, compactor.getCompactedRecords());
+        assertEquals(20 * KEY_NUM + KEY_NUM / 5 - KEY_NUM, compactor.getDroppedRecords());
+        assertTrue(compactor.getPasses() >= KEY_NUM / 8);
+
+        List<File> files = CommitLog.listLogFiles(directory);
+        assertEquals(compactor.getPasses(), files.size());
+        assertEquals(files.size(), directory.list().length);        // spill files are deleted
+        for (File file: files) assertTrue(CommitLogCompactor.isCompacted(file));
+        assertEquals(0, compactor.compact());
+
+        InMemoryStorage storage = new InMemoryStorage();
+        CommitLogReader reader = CommitLogReader.forDirectory(directory);
+        assertEquals(KEY_NUM, reader.replay(storage));
+        reader.close();
+
+        for (int sku = 0; sku < KEY_NUM; sku++) {
+            AvailabilityItem item = storage.get(AvailabilityItem.key(sku, (short) 1));
+            if (sku % 5 == 0) {
+                assertNull(item);
+            } else {
+                assertEquals(19 + sku, item.getAmount());
+            }
+        }
+    }
+
+    /**
+     * Compaction rewrites only the files sealed since the last compaction,
+     * and merges the compacted segments once the new segments reach the
+     * merge ratio of the merged ones.
+     */
+    @Test
+    public void incrementalCompactionTest() throws Exception {
+        File directory = Files.createTempDirectory("commitlog").toFile();
+        CommitLog commitLog = new CommitLog(directory, 1);
+        commitLog.setMaxSegmentSize(1024);
+        CommitLogCompactor compactor = new CommitLogCompactor(commitLog, IoThrottle.unlimited());
+
+        writeRound(commitLog, 0);
+        compactor.compact();                // nothing is merged yet, so all the sealed files are merged
+        List<File> base = compactedSegments(directory);
+        assertEquals(1, base.size());
+
+        writeRound(commitLog, 1);
+        compactor.compact();
+        assertTrue(compactor.getCompactedRecords() <= KEY_NUM);
+        assertTrue(compactor.getDroppedRecords() > 0);
+        List<File> segments = compactedSegments(directory);
+        assertEquals(2, segments.size());
+        assertTrue(segments.containsAll(base));
+        assertEquals(0, compactor.compact());
+
+        writeRound(commitLog, 2);
+        compactor.compact();                // the new segment reaches the merge ratio
+        segments = compactedSegments(directory);
+        assertEquals(1, segments.size());
+        assertEquals(KEY_NUM, compactor.getCompactedRecords());
+        commitLog.closeLogFiles();
+
+        InMemoryStorage storage = new InMemoryStorage();
+        CommitLogReader reader = CommitLogReader.forDirectory(directory);
+        reader.replay(storage);
+        reader.close();
+
+        for (int sku = 0; sku < KEY_NUM; sku++) {
+            assertEquals(2 * 10 + 9 + sku, storage.get(AvailabilityItem.key(sku, (short) 1)).getAmount());
+        }
+    }
+
+    private static void writeRound(CommitLog commitLog, int round) throws IOException {
+        for (int amount = round * 10; amount < round * 10 + 10; amount++) {
+            for (int sku = 0; sku < KEY_NUM; sku++) {
+                commitLog.addPutRecord(new AvailabilityItem(sku, (short) 1, amount + sku));
+            }
+        }
+    }
+
+    private static List<File> compactedSegments(File directory) {
+        List<File> segments = new ArrayList<File>();
+        for (File file: CommitLog.listLogFiles(directory)) {
+            if (CommitLogCompactor.isCompacted(file)) segments.add(file);
+        }
+        return segments;
+    }
+
+    /**
+     * Source files are not deleted while a reader of the log directory
+     * holds the read lock of the log files.
+     */
+    @Test
+    public void deletionWaitsForReadersTest() throws Exception {
+        File directory = Files.createTempDirectory("commitlog").toFile();
+        CommitLog commitLog = new CommitLog(directory, 1);
+        for (int sku = 0; sku < KEY_NUM; sku++) {
+            commitLog.addPutRecord(new AvailabilityItem(sku, (short) 1, sku));
+        }
+        commitLog.closeLogFiles();
+
+        commitLog = new CommitLog(directory, KEY_NUM + 1);
+        final List<File> sources = commitLog.listSealedFiles();
+        final CommitLogCompactor compactor = new CommitLogCompactor(commitLog, IoThrottle.unlimited());
+
+        Lock filesLock = commitLog.getFilesLock().readLock();
+        filesLock.lock();
+        Thread compaction = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    compactor.compact();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        compaction.start();
+        compaction.join(300);
+        assertTrue(compaction.isAlive());
+        for (File file: sources) assertTrue(file.exists());
+
+        filesLock.unlock();
+        compaction.join(5000);
+        for (File file: sources) assertFalse(file.exists());
+        assertEquals(KEY_NUM, compactor.getCompactedRecords());
+    }
+
+    @Test
+    public void throttleTest() throws Exception {
+        IoThrottle throttle = new IoThrottle(100 * 1024);
+
+        long startTime = System.currentTimeMillis();
+        throttle.acquire(100 * 1024);       // initial burst
+        throttle.acquire(50 * 1024);
+        long timeElapsed = System.currentTimeMillis() - startTime;
+
+        assertTrue("Time elapsed: " + timeElapsed, timeElapsed >= 400);
+    }
+}
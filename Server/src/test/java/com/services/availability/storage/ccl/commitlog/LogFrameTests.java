@@ -0,0 +1,118 @@
+package com.services.availability.storage.ccl.commitlog;
+
+import com.services.availability.TestUtils;
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.storage.ccl.LogRecord;
+import com.services.availability.utils.Crc32c;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-03-23 14:10
+ */
+public class LogFrameTests {
+
+    @Test
+    public void crc32cTest() {
+        byte[] bytes = "123456789".getBytes();
+        assertEquals(0xE3069283, Crc32c.checksum(bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void serializationTest() throws IOException {
+        List<LogRecord> records = generateRecords(1000);
+        byte[] log = encode(records, 64);
+
+        LogFrameReader reader = new LogFrameReader(new ByteArrayInputStream(log));
+        List<LogRecord> restored = reader.readAll();
+
+        assertFalse(reader.isTornTail());
+        assertEquals(log.length, reader.getValidBytes());
+        assertRecordsEqual(records, restored);
+
+        System.out.println("Frame encoding: " + log.length + " bytes, fixed encoding: " + records.size() * 32 + " bytes");
+        assertTrue(log.length < records.size() * 32 / 2);
+    }
+
+    @Test
+    public void tornTailTest() throws IOException {
+        List<LogRecord> records = generateRecords(100);
+        byte[] log = encode(records, 10);
+
+        for (int cut = 1; cut < 30; cut++) {
+            byte[] torn = new byte[log.length - cut];
+            System.arraycopy(log, 0, torn, 0, torn.length);
+
+            LogFrameReader reader = new LogFrameReader(new ByteArrayInputStream(torn));
+            List<LogRecord> restored = reader.readAll();
+
+            assertTrue(reader.isTornTail());
+            assertEquals(90, restored.size());
+            assertRecordsEqual(records.subList(0, 90), restored);
+        }
+    }
+
+    @Test
+    public void corruptedFrameTest() throws IOException {
+        List<LogRecord> records = generateRecords(30);
+        byte[] log = encode(records, 10);
+
+        int frameSize = encode(records.subList(0, 10), 10).length;
+        log[frameSize + LogFrame.HEADER_SIZE + 3] ^= 0x10;            // flipping a bit in the second frame payload
+
+        LogFrameReader reader = new LogFrameReader(new ByteArrayInputStream(log));
+        List<LogRecord> restored = reader.readAll();
+
+        assertTrue(reader.isTornTail());
+        assertRecordsEqual(records.subList(0, 10), restored);
+    }
+
+    private List<LogRecord> generateRecords(int number) {
+        List<LogRecord> records = new ArrayList<LogRecord>(number);
+        long timestamp = System.currentTimeMillis();
+        for (int i = 0; i < number; i++) {
+            AvailabilityItem item = new AvailabilityItem(TestUtils.getSku(), TestUtils.getStore(), TestUtils.getAmount());
+            byte type = i % 10 == 0 ? LogRecord.TYPE_REMOVE : LogRecord.TYPE_PUT;
+            int amount = type == LogRecord.TYPE_PUT ? item.getAmount() : 0;
+            timestamp += i % 3;
+            records.add(new LogRecord(type, item.key(), amount, timestamp, 3 * i + i % 3 + 1));
+        }
+        return records;
+    }
+
+    private byte[] encode(List<LogRecord> records, int frameSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        LogFrameWriter writer = new LogFrameWriter(frameSize);
+        for (LogRecord record: records) {
+            writer.append(record);
+            if (writer.isFull()) out.write(writer.toByteArray());
+        }
+        if (!writer.isEmpty()) out.write(writer.toByteArray());
+        return out.toByteArray();
+    }
+
+    private void assertRecordsEqual(List<LogRecord> expected, List<LogRecord> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            LogRecord e = expected.get(i), a = actual.get(i);
+            assertEquals(e.getType(), a.getType());
+            assertEquals(e.getKey(), a.getKey());
+            assertEquals(e.getSku(), a.getSku());
+            assertEquals(e.getStore(), a.getStore());
+            assertEquals(e.getAmount(), a.getAmount());
+            assertEquals(e.getTimestamp(), a.getTimestamp());
+            assertEquals(e.getSequence(), a.getSequence());
+        }
+    }
+}
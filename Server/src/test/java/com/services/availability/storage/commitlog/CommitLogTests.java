@@ -3,10 +3,22 @@ package com.services.availability.storage.commitlog;
 
 import com.services.availability.TestUtils;
 import com.services.availability.model.AvailabilityItem;
+import com.services.availability.storage.InMemoryStorage;
+import com.services.availability.storage.ccl.LogRecord;
 import com.services.availability.storage.ccl.commitlog.CommitLog;
+import com.services.availability.storage.ccl.commitlog.CommitLogReader;
 import org.junit.Test;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
 
 /**
  * @author Roman Reva
@@ -18,7 +30,7 @@ public class CommitLogTests {
     @Test
     public void writeToLogTest() throws IOException {
         AvailabilityItem item = new AvailabilityItem(TestUtils.getSku(), TestUtils.getStore(), TestUtils.getAmount());
-        CommitLog commitLog = new CommitLog();
+        CommitLog commitLog = new CommitLog(Files.createTempDirectory("commitlog").toFile(), 1);
 
         // single record
         long startTime = System.nanoTime();
@@ -37,4 +49,95 @@ public class CommitLogTests {
         // close streams
         commitLog.closeLogFiles();
     }
+
+    /**
+     * Current test starts several threads writing to the same commit log
+     * and verifies that all records are read back in the sequence order.
+     */
+    @Test
+    public void multiLaneReplayTest() throws IOException, InterruptedException {
+        final File directory = Files.createTempDirectory("commitlog").toFile();
+        final CommitLog commitLog = new CommitLog(directory, 1);
+        final int threadNum = 8, recordNum = 5000;
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadNum; i++) {
+            final short store = (short) i;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int amount = 0; amount < recordNum; amount++) {
+                            commitLog.addPutRecord(new AvailabilityItem(1000, store, amount));
+                        }
+                        commitLog.addRemoveRecord(AvailabilityItem.key(1000, store));
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread: threads) thread.join();
+        commitLog.closeLogFiles();
+
+        assertEquals(threadNum, CommitLog.listLogFiles(directory).size());
+
+        CommitLogReader reader = CommitLogReader.forDirectory(directory);
+        LogRecord record;
+        long expectedSequence = 1;
+        int[] lastAmounts = new int[threadNum];
+        while ((record = reader.next()) != null) {
+            assertEquals(expectedSequence++, record.getSequence());
+            if (record.isPutRecord()) {
+                assertEquals(lastAmounts[record.getStore()]++, record.getAmount());
+            }
+        }
+        reader.close();
+        assertEquals(threadNum * (recordNum + 1) + 1, expectedSequence);
+
+        InMemoryStorage storage = new InMemoryStorage();
+        storage.put(AvailabilityItem.key(1000, (short) 100), new AvailabilityItem(1000, (short) 100, 1));
+        reader = CommitLogReader.forDirectory(directory);
+        assertEquals(threadNum * (recordNum + 1), reader.replay(storage));
+        reader.close();
+
+        for (short store = 0; store < threadNum; store++) {
+            assertNull(storage.get(AvailabilityItem.key(1000, store)));
+        }
+        assertNotNull(storage.get(AvailabilityItem.key(1000, (short) 100)));
+        assertTrue(reader.getLastSequence() == threadNum * (recordNum + 1));
+    }
+
+    /**
+     * Lane of the thread is sealed by closeLogFiles(); later records of
+     * the thread are appended to a new lane file.
+     */
+    @Test
+    public void writeAfterCloseTest() throws IOException {
+        File directory = Files.createTempDirectory("commitlog").toFile();
+        CommitLog commitLog = new CommitLog(directory, 1);
+
+        for (int sku = 0; sku < 50; sku++) {
+            commitLog.addPutRecord(new AvailabilityItem(sku, (short) 1, sku));
+        }
+        commitLog.closeLogFiles();
+        assertEquals(1, commitLog.listSealedFiles().size());
+
+        for (int sku = 50; sku < 100; sku++) {
+            commitLog.addPutRecord(new AvailabilityItem(sku, (short) 1, sku));
+        }
+        assertEquals(1, commitLog.listSealedFiles().size());
+        commitLog.closeLogFiles();
+        assertEquals(2, commitLog.listSealedFiles().size());
+
+        InMemoryStorage storage = new InMemoryStorage();
+        CommitLogReader reader = CommitLogReader.forDirectory(directory);
+        assertEquals(100, reader.replay(storage));
+        reader.close();
+        for (int sku = 0; sku < 100; sku++) {
+            assertEquals(sku, storage.get(AvailabilityItem.key(sku, (short) 1)).getAmount());
+        }
+    }
 }
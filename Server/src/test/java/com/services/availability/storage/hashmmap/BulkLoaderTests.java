@@ -0,0 +1,197 @@
+package com.services.availability.storage.hashmmap;
+
+import com.services.availability.model.AvailabilityItem;
+import com.services.availability.storage.ItemUpdate;
+import com.services.availability.storage.SwitchableStorage;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+/**
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-16 17:20
+ */
+public class BulkLoaderTests {
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("bulk").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (File file: directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
+    /**
+     * Input is sorted in several runs; repeated items get the last amount.
+     */
+    @Test
+    public void csvLoadTest() throws IOException {
+        File input = new File(directory, "items.csv");
+        PrintWriter writer = new PrintWriter(input);
+        for (int i = 0; i < 5000; i++) writer.println((40000 + i) + "," + (i % 7) + "," + i);
+        writer.println();
+        for (int i = 0; i < 100; i++) writer.println((40000 + i) + ", " + (i % 7) + ", " + (-i - 1));
+        writer.close();
+
+        File output = new File(directory, "loaded.dat");
+        assertEquals(5100, new BulkLoader(1024, 32, 1000).load(input, output));
+
+        ConcurrentHashMMap map = new ConcurrentHashMMap(output.getPath());
+        for (int i = 0; i < 5000; i++) {
+            AvailabilityItem item = map.get(AvailabilityItem.key(40000 + i, (short) (i % 7)));
+            assertEquals(40000 + i, item.getSku());
+            assertEquals(i % 7, item.getStore());
+            assertEquals(i < 100 ? -i - 1 : i, item.getAmount());
+        }
+        assertNull(map.get(AvailabilityItem.key(40000, (short) 1)));
+        assertEquals(5000, map.keySet().size());
+    }
+
+    @Test
+    public void binaryLoadTest() throws IOException {
+        File input = new File(directory, "items.bin");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(input));
+        for (int i = 0; i < 3000; i++) {
+            out.writeInt(50000 + i / 3);
+            out.writeShort(i % 3);
+            out.writeInt(i);
+        }
+        out.close();
+
+        File output = new File(directory, "loaded.dat");
+        assertEquals(3000, new BulkLoader(512, 32).load(input, output));
+
+        ConcurrentHashMMap map = new ConcurrentHashMMap(output.getPath());
+        for (int i = 0; i < 3000; i++) {
+            assertEquals(i, map.get(AvailabilityItem.key(50000 + i / 3, (short) (i % 3))).getAmount());
+        }
+    }
+
+    @Test
+    public void overflowTest() throws IOException {
+        File input = new File(directory, "items.csv");
+        PrintWriter writer = new PrintWriter(input);
+        for (int i = 0; i < 10; i++) writer.println((60000 + i) + ",1," + i);
+        writer.close();
+
+        File output = new File(directory, "loaded.dat");
+        try {
+            new BulkLoader(1, 4).load(input, output);
+            fail("Bucket of 4 records cannot fit 10 items");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        assertFalse(output.exists());
+    }
+
+    /**
+     * Running storage is switched to the loaded file once it is dropped
+     * next to the storage file.
+     */
+    @Test
+    public void switchTest() throws IOException {
+        File storageFile = new File(directory, HashMMap.STORAGE_FILE);
+        SwitchableStorage storage = new SwitchableStorage(new ConcurrentHashMMap(storageFile.getPath(), 256, 32));
+        storage.put(AvailabilityItem.key(70000, (short) 1), new AvailabilityItem(70000, (short) 1, 5));
+
+        BulkLoadWatcher watcher = new BulkLoadWatcher(storageFile, storage);
+        assertFalse(watcher.switchIfLoaded());
+
+        File input = new File(directory, "items.csv");
+        PrintWriter writer = new PrintWriter(input);
+        writer.println("70001,1,7");
+        writer.close();
+        new BulkLoader(256, 32).load(input, new File(directory, BulkLoader.LOADED_FILE));
+
+        assertTrue(watcher.switchIfLoaded());
+        assertFalse(new File(directory, BulkLoader.LOADED_FILE).exists());
+        assertNull(storage.get(AvailabilityItem.key(70000, (short) 1)));
+        assertEquals(7, storage.get(AvailabilityItem.key(70001, (short) 1)).getAmount());
+
+        assertEquals(7, new ConcurrentHashMMap(storageFile.getPath()).get(AvailabilityItem.key(70001, (short) 1)).getAmount());
+    }
+
+    /**
+     * Switch waits for an update in progress on the previous storage, and
+     * only then shuts the previous storage down and unmaps it.
+     */
+    @Test
+    public void switchDrainTest() throws Exception {
+        File storageFile = new File(directory, HashMMap.STORAGE_FILE);
+        final SwitchableStorage storage = new SwitchableStorage(new ConcurrentHashMMap(storageFile.getPath(), 256, 32));
+        final long key = AvailabilityItem.key(70000, (short) 1);
+
+        File input = new File(directory, "items.csv");
+        PrintWriter writer = new PrintWriter(input);
+        writer.println("70001,1,7");
+        writer.close();
+        new BulkLoader(256, 32).load(input, new File(directory, BulkLoader.LOADED_FILE));
+
+        final CountDownLatch updateStarted = new CountDownLatch(1);
+        final CountDownLatch updateReleased = new CountDownLatch(1);
+        Thread updater = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                storage.compute(key, new ItemUpdate() {
+                    @Override
+                    public AvailabilityItem apply(AvailabilityItem current) {
+                        updateStarted.countDown();
+                        try {
+                            updateReleased.await();
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        return new AvailabilityItem(70000, (short) 1, 5);
+                    }
+                });
+            }
+        });
+        updater.start();
+        assertTrue(updateStarted.await(5, TimeUnit.SECONDS));
+
+        final BulkLoadWatcher watcher = new BulkLoadWatcher(storageFile, storage);
+        final AtomicBoolean switched = new AtomicBoolean(false);
+        Thread switcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    switched.set(watcher.switchIfLoaded());
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        switcher.start();
+        switcher.join(300);
+        assertTrue(switcher.isAlive());                         // waits for the update on the previous storage
+
+        updateReleased.countDown();
+        updater.join(5000);
+        switcher.join(5000);
+        assertTrue(switched.get());
+
+        assertNull(storage.get(key));
+        assertEquals(7, storage.get(AvailabilityItem.key(70001, (short) 1)).getAmount());
+    }
+}
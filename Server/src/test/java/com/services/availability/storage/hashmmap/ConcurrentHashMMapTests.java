@@ -2,10 +2,14 @@ package com.services.availability.storage.hashmmap;
 
 import com.services.availability.model.AvailabilityItem;
 import com.services.availability.TestUtils;
+import com.services.availability.storage.ItemUpdate;
 import com.services.availability.storage.hashmmap.ConcurrentHashMMap;
 import junit.framework.AssertionFailedError;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
 
 import static junit.framework.Assert.*;
@@ -51,6 +55,65 @@ public class ConcurrentHashMMapTests {
         assertNull(restoredItem);
     }
 
+    @Test
+    public void batchTest() {
+        ConcurrentHashMMap map = init();
+
+        long[] keys = new long[100];
+        AvailabilityItem[] items = new AvailabilityItem[100];
+        for (int i = 0; i < 100; i++) {
+            items[i] = new AvailabilityItem(20000 + i % 10, (short) (i / 10), i);
+            keys[i] = items[i].key();
+        }
+        map.putAll(keys, items);
+
+        AvailabilityItem[] restoredItems = map.getAll(keys);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, restoredItems[i].getAmount());
+        }
+
+        AvailabilityItem[] removedItems = map.removeAll(new long[] {keys[5], new AvailabilityItem(1, (short) 1, 0).key()});
+        assertEquals(5, removedItems[0].getAmount());
+        assertNull(removedItems[1]);
+        assertNull(map.getAll(keys)[5]);
+    }
+
+    @Test
+    public void computeTest() throws InterruptedException {
+        final ConcurrentHashMMap map = init();
+        final AvailabilityItem item = new AvailabilityItem(12510, (short) 24, 0);
+        map.put(item.key(), item);
+
+        final ItemUpdate increment = new ItemUpdate() {
+            @Override
+            public AvailabilityItem apply(AvailabilityItem current) {
+                return new AvailabilityItem(current.getSku(), current.getStore(), current.getAmount() + 1);
+            }
+        };
+        Thread[] threads = new Thread[4];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) map.compute(item.key(), increment);
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread: threads) thread.join();
+
+        assertEquals(4000, map.get(item.key()).getAmount());
+
+        ItemUpdate remove = new ItemUpdate() {
+            @Override
+            public AvailabilityItem apply(AvailabilityItem current) {
+                return null;
+            }
+        };
+        assertNull(map.compute(item.key(), remove));
+        assertNull(map.get(item.key()));
+    }
+
     @Test
     public void randomIntegrationTest() {
         ConcurrentHashMMap map = init();
@@ -160,6 +223,48 @@ public class ConcurrentHashMMapTests {
         }
     }
 
+    /**
+     * Snapshot is taken while a thread updates keys one by one. Since the
+     * snapshot is consistent, it contains updates of some first keys and
+     * none of the rest.
+     */
+    @Test
+    public void snapshotTest() throws IOException, InterruptedException {
+        File directory = Files.createTempDirectory("snapshot").toFile();
+        final ConcurrentHashMMap map = new ConcurrentHashMMap(new File(directory, "data.dat").getPath(), 8192, 32);
+        final int itemNumber = 20000;
+        for (int i = 0; i < itemNumber; i++) {
+            map.put(AvailabilityItem.key(30000 + i, (short) 1), new AvailabilityItem(30000 + i, (short) 1, i));
+        }
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < itemNumber; i++) {
+                    map.put(AvailabilityItem.key(30000 + i, (short) 1), new AvailabilityItem(30000 + i, (short) 1, -i));
+                }
+            }
+        });
+        writer.start();
+        File snapshotFile = new File(directory, "snapshot.dat");
+        map.snapshot(snapshotFile);
+        writer.join();
+
+        ConcurrentHashMMap restored = new ConcurrentHashMMap(snapshotFile.getPath());
+        int updated = 0;
+        while (updated < itemNumber && restored.get(AvailabilityItem.key(30000 + updated, (short) 1)).getAmount() == -updated) {
+            updated++;
+        }
+        for (int i = updated; i < itemNumber; i++) {
+            if (i == 0) continue;                                       // both values are 0
+            assertEquals(i, restored.get(AvailabilityItem.key(30000 + i, (short) 1)).getAmount());
+        }
+        System.out.println("Snapshot contains updates of " + updated + " of " + itemNumber + " items");
+
+        for (File file: directory.listFiles()) file.delete();
+        directory.delete();
+    }
+
     static class FlagHolder {
         public volatile boolean isRunning;
         public volatile boolean putStarted = false;
@@ -0,0 +1,57 @@
+package com.services.availability.storage.hashmmap;
+
+import com.services.availability.model.AvailabilityItem;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+/**
+ * @author Roman Reva
+ * @version 1.0
+ * @since 2015-04-06 12:30
+ */
+public class ShardHashMMapTests {
+    private static final String SHARD_FILE = "test_shard.dat";
+
+    @Before
+    @After
+    public void cleanup() {
+        new File(SHARD_FILE).delete();
+    }
+
+    /**
+     * Changes are served from the write cache before they are persisted,
+     * and from the storage file afterwards, also when the file is reopened.
+     */
+    @Test
+    public void writeCacheTest() {
+        ShardHashMMap shard = new ShardHashMMap(SHARD_FILE, 64, 32, 100);
+        for (int i = 0; i < 150; i++) {
+            AvailabilityItem item = new AvailabilityItem(10000 + i, (short) 1, i);
+            shard.put(item.key(), item);
+        }
+        long firstKey = AvailabilityItem.key(10000, (short) 1);
+        long lastKey = AvailabilityItem.key(10149, (short) 1);
+
+        assertFalse(shard.isResident(firstKey));            // persisted with the first batch
+        assertTrue(shard.isResident(lastKey));
+        assertEquals(149, shard.get(lastKey).getAmount());
+
+        assertEquals(5, shard.remove(AvailabilityItem.key(10005, (short) 1)).getAmount());
+        assertNull(shard.get(AvailabilityItem.key(10005, (short) 1)));
+        shard.prepareForShutdown();
+
+        ShardHashMMap reopened = new ShardHashMMap(SHARD_FILE, 64, 32, 100);
+        assertEquals(0, reopened.get(firstKey).getAmount());
+        assertEquals(149, reopened.get(lastKey).getAmount());
+        assertNull(reopened.get(AvailabilityItem.key(10005, (short) 1)));
+        assertEquals(149, reopened.keySet().size());
+    }
+}